@@ -45,6 +45,10 @@ public class Test extends ProtectedType {
     @JsonProperty(required = true)
     @Schema(description = "Are notifications enabled for the test", example = "true")
     public Boolean notificationsEnabled;
+    @Schema(description = "Minimum level of transformation and calculation log messages persisted for this test: 0 = debug, 1 = info, 2 = warning, 3 = error. Uses the server default when not set.", example = "1")
+    public Integer logLevel;
+    @Schema(description = "Payloads of runs that started more than this many days ago are moved to the archive; label values, datapoints and summaries are kept. Uses the server default when not set.", example = "365")
+    public Integer archiveAfterDays;
 
     public Test() {
         this.access = Access.PUBLIC;
@@ -62,6 +66,8 @@ public class Test extends ProtectedType {
         compareUrl = t.compareUrl;
         transformers = t.transformers;
         notificationsEnabled = t.notificationsEnabled;
+        logLevel = t.logLevel;
+        archiveAfterDays = t.archiveAfterDays;
         access = t.access;
         owner = t.owner;
     }
@@ -83,6 +89,8 @@ public class Test extends ProtectedType {
                 ", compareUrl='" + compareUrl + '\'' +
                 ", transformers=" + transformers +
                 ", notificationsEnabled=" + notificationsEnabled +
+                ", logLevel=" + logLevel +
+                ", archiveAfterDays=" + archiveAfterDays +
                 '}';
     }
 
@@ -67,6 +67,18 @@ public interface AlertingService {
             @QueryParam("clear") Boolean clearDatapoints,
             @QueryParam("from") Long from, @QueryParam("to") Long to);
 
+    @POST
+    @Path("recalculate/pause")
+    void pauseDatapointRecalculation(@Parameter(required = true) @QueryParam("test") int testId);
+
+    @POST
+    @Path("recalculate/resume")
+    void resumeDatapointRecalculation(@Parameter(required = true) @QueryParam("test") int testId);
+
+    @POST
+    @Path("recalculate/cancel")
+    void cancelDatapointRecalculation(@Parameter(required = true) @QueryParam("test") int testId);
+
     @GET
     @Path("recalculate")
     DatapointRecalculationStatus getDatapointRecalculationStatus(@Parameter(required = true) @QueryParam("test") int testId);
@@ -171,6 +183,8 @@ public interface AlertingService {
         public Integer errors;
         @NotNull
         public Collection<Dataset.Info> datasetsWithoutValue;
+        public String state;
+        public Double throughput;
     }
 
     class DatapointLastTimestamp {
@@ -51,6 +51,19 @@ public interface ReportService {
     @Path("table/config")
     TableReport updateTableReportConfig(TableReportConfig config, @QueryParam("edit") Integer updatedReportId);
 
+    @POST
+    @Path("table/job")
+    TableReportJobStatus submitTableReportJob(TableReportConfig config, @QueryParam("edit") Integer updatedReportId,
+            @QueryParam("save") boolean save);
+
+    @GET
+    @Path("table/job/{jobId}")
+    TableReportJobStatus getTableReportJobStatus(@PathParam("jobId") String jobId);
+
+    @GET
+    @Path("table/job/{jobId}/result")
+    TableReport getTableReportJobResult(@PathParam("jobId") String jobId);
+
     @GET
     @Path("table/{id}")
     TableReport getTableReport(@PathParam("id") int id);
@@ -91,6 +104,33 @@ public interface ReportService {
         public List<TableReportSummaryItem> reports;
     }
 
+    enum TableReportJobState {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    class TableReportJobStatus {
+        @NotNull
+        public String jobId;
+        @NotNull
+        public TableReportJobState state;
+        @JsonProperty(required = true)
+        public long submitted;
+        public Long finished;
+        @JsonProperty(required = true)
+        public long totalDatasets;
+        @JsonProperty(required = true)
+        public long processedDatasets;
+        /** Label values of the test changed after the job started; the result does not reflect them. */
+        @JsonProperty(required = true)
+        public boolean outdated;
+        /** Set for jobs that save the report, once it was stored. */
+        public Integer reportId;
+        public String error;
+    }
+
     class TableReportSummaryItem {
         @JsonProperty(required = true)
         public int id;
@@ -441,6 +441,8 @@ public interface RunService {
         @JsonProperty(required = true)
         @Schema(description = "Total count of Runs visible", example = "1")
         public long total;
+        @Schema(description = "True if the total count of a filtered search is an estimate", example = "false")
+        public boolean totalEstimated;
         @NotNull
         @Schema(description = "List of Run Summaries")
         public List<RunSummary> runs;
@@ -249,6 +249,30 @@ public interface TestService {
     })
     void recalculateTestDatasets(@PathParam("id") int testId);
 
+    @POST
+    @Path("{id}/recalculate/pause")
+    @Operation(description = "Pause the running recalculation of Datasets for Test")
+    @Parameters(value = {
+            @Parameter(name = "id", description = "Test ID to pause the recalculation for", example = "101"),
+    })
+    void pauseTestRecalculation(@PathParam("id") int testId);
+
+    @POST
+    @Path("{id}/recalculate/resume")
+    @Operation(description = "Resume the paused recalculation of Datasets for Test")
+    @Parameters(value = {
+            @Parameter(name = "id", description = "Test ID to resume the recalculation for", example = "101"),
+    })
+    void resumeTestRecalculation(@PathParam("id") int testId);
+
+    @POST
+    @Path("{id}/recalculate/cancel")
+    @Operation(description = "Cancel the running or paused recalculation of Datasets for Test")
+    @Parameters(value = {
+            @Parameter(name = "id", description = "Test ID to cancel the recalculation for", example = "101"),
+    })
+    void cancelTestRecalculation(@PathParam("id") int testId);
+
     @GET
     @Path("{id}/recalculate")
     @Operation(description = "Get recalculation status for Test")
@@ -346,6 +370,10 @@ public interface TestService {
         @JsonProperty(required = true)
         @Schema(description = "Total number of generated datasets", example = "186")
         public long datasets;
+        @Schema(description = "State of the recalculation in progress", example = "running")
+        public String state;
+        @Schema(description = "Runs recalculated per second since the recalculation was started or resumed", example = "12.5")
+        public Double throughput;
 
         // required for serialization
         public RecalculationStatus() {
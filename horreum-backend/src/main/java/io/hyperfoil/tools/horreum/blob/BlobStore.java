@@ -0,0 +1,46 @@
+package io.hyperfoil.tools.horreum.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+/*
+ * A BlobStore keeps immutable, compressed payloads addressed by the SHA-256 of their uncompressed content,
+ * so that identical payloads are stored once. Hashing and compression are done by the caller; the store only
+ * moves the compressed bytes. The implementation is selected with horreum.blob-store.type.
+ */
+public interface BlobStore {
+
+    /**
+     * @return value of <code>horreum.blob-store.type</code> selecting this store
+     */
+    String type();
+
+    boolean exists(String hash) throws IOException;
+
+    /**
+     * Stores the compressed content of the file under the hash; storing a hash that exists already only refreshes
+     * the time it was stored, so that a blob about to be referenced again is not collected as garbage.
+     */
+    void put(String hash, Path compressed) throws IOException;
+
+    /**
+     * @return the compressed content
+     * @throws java.nio.file.NoSuchFileException when there is no blob with this hash
+     */
+    InputStream get(String hash) throws IOException;
+
+    /**
+     * @return hashes of the blobs last stored before the instant; the stream must be closed
+     */
+    Stream<String> storedBefore(Instant before) throws IOException;
+
+    /**
+     * Deletes the blob unless it has been stored again since the instant.
+     *
+     * @return <code>true</code> if the blob was deleted
+     */
+    boolean delete(String hash, Instant storedBefore) throws IOException;
+}
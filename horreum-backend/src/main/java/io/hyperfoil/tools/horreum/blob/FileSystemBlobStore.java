@@ -0,0 +1,111 @@
+package io.hyperfoil.tools.horreum.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Keeps the blobs as files under <code>horreum.blob-store.path</code>, spread into subdirectories by the first two
+ * characters of the hash. Files are written under a temporary name and atomically moved into place, so that
+ * concurrent writers of the same payload and readers never see a partial blob. The directory may be shared by
+ * several instances, e.g. on a network file system.
+ */
+@ApplicationScoped
+public class FileSystemBlobStore implements BlobStore {
+    public static final String TYPE = "filesystem";
+    private static final String SUFFIX = ".zst";
+
+    @ConfigProperty(name = "horreum.blob-store.path")
+    Optional<String> root;
+
+    public FileSystemBlobStore() {
+    }
+
+    public FileSystemBlobStore(Path root) {
+        this.root = Optional.of(root.toString());
+    }
+
+    @Override
+    public String type() {
+        return TYPE;
+    }
+
+    @Override
+    public boolean exists(String hash) {
+        return Files.exists(file(hash));
+    }
+
+    @Override
+    public void put(String hash, Path compressed) throws IOException {
+        Path file = file(hash);
+        if (Files.exists(file)) {
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), hash, ".tmp");
+        try {
+            Files.copy(compressed, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // written concurrently with the same content
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public InputStream get(String hash) throws IOException {
+        return Files.newInputStream(file(hash));
+    }
+
+    @Override
+    public Stream<String> storedBefore(Instant before) throws IOException {
+        Path dir = root();
+        if (!Files.isDirectory(dir)) {
+            return Stream.empty();
+        }
+        return Files.walk(dir, 2)
+                .filter(file -> file.getFileName().toString().endsWith(SUFFIX) && isStoredBefore(file, before))
+                .map(file -> file.getFileName().toString())
+                .map(name -> name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    @Override
+    public boolean delete(String hash, Instant storedBefore) throws IOException {
+        Path file = file(hash);
+        // a concurrent put of the same content refreshes the modification time
+        return isStoredBefore(file, storedBefore) && Files.deleteIfExists(file);
+    }
+
+    private static boolean isStoredBefore(Path file, Instant before) {
+        try {
+            return Files.isRegularFile(file) && Files.getLastModifiedTime(file).toInstant().isBefore(before);
+        } catch (IOException e) {
+            // deleted in the meantime
+            return false;
+        }
+    }
+
+    private Path root() {
+        return Path.of(root.orElseThrow(() -> new IllegalStateException("horreum.blob-store.path is not set")));
+    }
+
+    private Path file(String hash) {
+        if (hash.length() < 3 || !hash.chars().allMatch(c -> Character.isDigit(c) || (c >= 'a' && c <= 'f'))) {
+            throw new IllegalArgumentException("Invalid blob hash: " + hash);
+        }
+        return root().resolve(hash.substring(0, 2)).resolve(hash + SUFFIX);
+    }
+}
@@ -6,10 +6,13 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
 import io.hyperfoil.tools.horreum.svc.Util;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.Startup;
 import io.vertx.core.Vertx;
@@ -21,8 +24,18 @@ public class BlockingTaskDispatcher {
     @Inject
     Vertx vertx;
 
+    @Inject
+    MeterRegistry registry;
+
     private final ConcurrentMap<Integer, TaskQueue> taskQueues = new ConcurrentHashMap<>();
 
+    @PostConstruct
+    void init() {
+        Gauge.builder("horreum.dispatcher.tasks", taskQueues,
+                queues -> queues.values().stream().mapToInt(TaskQueue::size).sum())
+                .description("Tasks waiting in the per-test queues").register(registry);
+    }
+
     public void executeForTest(int testId, Runnable runnable) {
         Runnable task = Util.wrapForBlockingExecution(runnable);
         vertx.executeBlocking(promise -> {
@@ -48,6 +61,10 @@ class TaskQueue {
         this.testId = testId;
     }
 
+    public int size() {
+        return queue.size();
+    }
+
     public void executeOrAdd(Runnable runnable) {
         queue.add(runnable);
         do {
@@ -35,6 +35,13 @@ import io.smallrye.common.constraint.NotNull;
 @Entity(name = "dataset")
 @JsonIgnoreType
 public class DatasetDAO extends OwnedEntityBase {
+    /**
+     * Elements of {@link #data} produced by a schema without transformer are not copied from the run; they hold
+     * the <code>$schema</code> and a reference <code>{"source": 0|1, "type": ..., "key": ...}</code> to the node
+     * in the run data (source 0) or metadata (source 1) under this key instead. The database resolves them with
+     * <code>dataset_element(element, runid)</code> and <code>dataset_data(data, runid)</code>.
+     */
+    public static final String RUN_REFERENCE = "$runRef";
 
     @Id
     @SequenceGenerator(name = "datasetSequence", sequenceName = "dataset_id_seq", allocationSize = 1)
@@ -60,6 +67,13 @@ public class DatasetDAO extends OwnedEntityBase {
     @Column(columnDefinition = "jsonb")
     public JsonNode data;
 
+    /**
+     * SHA-256 of the data when the dataset is archived to the blob store; {@link #data} then holds only the
+     * <code>$schema</code> of each element.
+     */
+    @Column(name = "data_hash")
+    public String dataHash;
+
     @ManyToOne(cascade = CascadeType.DETACH, fetch = FetchType.LAZY)
     @JoinColumn(name = "runid")
     public RunDAO run;
@@ -79,6 +93,31 @@ public class DatasetDAO extends OwnedEntityBase {
         run = getEntityManager().getReference(RunDAO.class, runId);
     }
 
+    /**
+     * @return {@link #data} with the references into the run resolved
+     */
+    public JsonNode getResolvedData() {
+        if (data == null || !hasRunReferences(data)) {
+            return data;
+        }
+        return (JsonNode) getEntityManager()
+                .createNativeQuery("SELECT dataset_data(data, runid) AS data FROM dataset WHERE id = ?1")
+                .setParameter(1, id).unwrap(NativeQuery.class)
+                .addScalar("data", JsonBinaryType.INSTANCE)
+                .getSingleResult();
+    }
+
+    public static boolean hasRunReferences(JsonNode data) {
+        if (data.isArray()) {
+            for (JsonNode element : data) {
+                if (element.has(RUN_REFERENCE)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public String getFingerprint() {
         @SuppressWarnings("unchecked")
         List<JsonNode> fingerprintList = getEntityManager()
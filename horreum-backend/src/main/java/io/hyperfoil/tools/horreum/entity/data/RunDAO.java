@@ -50,6 +50,19 @@ public class RunDAO extends OwnedEntityBase {
     @Column(columnDefinition = "jsonb")
     public JsonNode data;
 
+    /**
+     * SHA-256 of the payload when it is kept in the blob store; {@link #data} then holds only the
+     * <code>$schema</code> locations.
+     */
+    @Column(name = "data_hash")
+    public String dataHash;
+
+    /**
+     * Size of the serialized payload kept in the blob store, in bytes.
+     */
+    @Column(name = "data_size")
+    public Long dataSize;
+
     @Type(JsonBinaryType.class)
     @Column(columnDefinition = "jsonb")
     public JsonNode metadata;
@@ -74,6 +87,7 @@ public class RunDAO extends OwnedEntityBase {
                 ", description='" + description + '\'' +
                 ", testid=" + testid +
                 ", data=" + data +
+                ", dataHash=" + dataHash +
                 ", metadata=" + metadata +
                 ", trashed=" + trashed +
                 ", datasets=" + datasets +
@@ -18,20 +18,24 @@ import io.hyperfoil.tools.horreum.entity.CustomSequenceGenerator;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 
 @NamedNativeQueries({
-        @NamedNativeQuery(name = SchemaDAO.QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID, query = "SELECT te.name, (" +
-                "CASE WHEN te.isarray THEN jsonb_path_query_array(r.data, te.jsonpath::jsonpath) " +
-                "ELSE jsonb_path_query_first(r.data,te.jsonpath::jsonpath) END) AS value " +
-                "FROM run r, transformer t " +
-                "JOIN transformer_extractors te ON te.transformer_id = t.id " +
-                "WHERE r.id = ?1 AND t.id = ?2"),
-        @NamedNativeQuery(name = SchemaDAO.QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID, query = "SELECT te.name, (" +
-                "CASE WHEN te.isarray THEN jsonb_path_query_array((CASE WHEN ?4 = 0 THEN r.data ELSE r.metadata END)->?3, te.jsonpath::jsonpath) "
+        // Evaluates all extractors of all transformers applicable to the run in one statement. The run data are
+        // read (and de-TOASTed) once: `#> '{}'` returns the detoasted value, which the materialized CTE keeps.
+        @NamedNativeQuery(name = SchemaDAO.QUERY_EXTRACTORS_BY_RUNID, query = "WITH src AS MATERIALIZED (" +
+                "SELECT r.data #> '{}' AS data, r.metadata #> '{}' AS metadata FROM run r WHERE r.id = ?1" +
+                "), targets AS MATERIALIZED (" +
+                "SELECT t.id AS transformer_id, rs.type, rs.key, rs.source, (CASE " +
+                // note: metadata always follow the 2nd level format
+                "WHEN rs.type = 0 THEN src.data " +
+                "WHEN rs.type = 1 THEN (CASE WHEN rs.source = 0 THEN src.data ELSE src.metadata END) -> rs.key " +
+                "ELSE (CASE WHEN rs.source = 0 THEN src.data ELSE src.metadata END) -> rs.key::integer END) AS root " +
+                "FROM src, run_schemas rs " +
+                "JOIN transformer t ON t.schema_id = rs.schemaid AND t.id IN (SELECT transformer_id FROM test_transformers WHERE test_id = rs.testid) "
                 +
-                "ELSE jsonb_path_query_first((CASE WHEN ?4 = 0 THEN r.data ELSE r.metadata END)->?3, te.jsonpath::jsonpath) END) AS value "
-                +
-                "FROM run r, transformer t " +
-                "JOIN transformer_extractors te ON te.transformer_id = t.id " +
-                "WHERE r.id = ?1 AND t.id = ?2"),
+                "WHERE rs.runid = ?1" +
+                ") SELECT targets.transformer_id, targets.type, targets.key, targets.source, te.name, (" +
+                "CASE WHEN te.isarray THEN jsonb_path_query_array(targets.root, te.jsonpath::jsonpath) " +
+                "ELSE jsonb_path_query_first(targets.root, te.jsonpath::jsonpath) END) AS value " +
+                "FROM targets JOIN transformer_extractors te ON te.transformer_id = targets.transformer_id"),
         @NamedNativeQuery(name = SchemaDAO.QUERY_TRANSFORMER_TARGETS, query = "SELECT rs.type, rs.key, t.id as transformer_id, rs.uri, rs.source FROM run_schemas rs "
                 +
                 "LEFT JOIN transformer t ON t.schema_id = rs.schemaid AND t.id IN (SELECT transformer_id FROM test_transformers WHERE test_id = rs.testid) "
@@ -44,8 +48,7 @@ import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 @JsonIgnoreType
 public class SchemaDAO extends OwnedEntityBase {
 
-    public static final String QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID = "Schema.getFirstLevelExtractorsByRunIDTransIDSchemaID";
-    public static final String QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID = "Schema.getSecondLevelExtractorsByRunIDTransIDSchemaID";
+    public static final String QUERY_EXTRACTORS_BY_RUNID = "Schema.getExtractorsByRunID";
     public static final String QUERY_TRANSFORMER_TARGETS = "Schema.queryTransformerTargets";
     public static final int TYPE_1ST_LEVEL = 0;
     public static final int TYPE_2ND_LEVEL = 1;
@@ -85,6 +85,12 @@ public class TestDAO extends PanacheEntityBase {
     @Column(columnDefinition = "boolean default true")
     public Boolean notificationsEnabled;
 
+    @Column(name = "log_level")
+    public Integer logLevel;
+
+    @Column(name = "archive_after_days")
+    public Integer archiveAfterDays;
+
     public void ensureLinked() {
         if (views != null) {
             views.forEach(v -> {
@@ -0,0 +1,289 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Step of a path applied to each item produced by the previous step.
+ */
+abstract class Accessor {
+    static final int LAST = Integer.MAX_VALUE;
+
+    /**
+     * @param current item bound to <code>@</code>
+     * @param item item the accessor is applied to
+     * @param unwrap whether an array item is replaced by its elements first (lax mode)
+     * @param next receives the results
+     */
+    abstract void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next);
+
+    /**
+     * Applies the accessor to the elements of an array item instead, without unwrapping them further.
+     */
+    final boolean unwrapped(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+        if (unwrap && item.isArray()) {
+            for (JsonNode element : item) {
+                apply(ctx, current, element, false, next);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static final class Key extends Accessor {
+        final String name;
+
+        Key(String name) {
+            this.name = name;
+        }
+
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (item.isObject()) {
+                JsonNode value = item.get(name);
+                if (value != null) {
+                    next.accept(value);
+                } else {
+                    ctx.structuralError("JSON object does not contain key \"" + name + "\"");
+                }
+            } else if (!unwrapped(ctx, current, item, unwrap, next)) {
+                ctx.structuralError("jsonpath member accessor can only be applied to an object");
+            }
+        }
+    }
+
+    static final class AnyKey extends Accessor {
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (item.isObject()) {
+                Values.members(item).forEach(next);
+            } else if (!unwrapped(ctx, current, item, unwrap, next)) {
+                ctx.structuralError("jsonpath wildcard member accessor can only be applied to an object");
+            }
+        }
+    }
+
+    static final class AnyElement extends Accessor {
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (item.isArray()) {
+                item.elements().forEachRemaining(next);
+            } else if (ctx.lax) {
+                next.accept(item);
+            } else {
+                ctx.structuralError("jsonpath wildcard array accessor can only be applied to an array");
+            }
+        }
+    }
+
+    /**
+     * <code>[subscript, ...]</code> where each subscript is an index or a range <code>from to to</code>.
+     */
+    static final class Index extends Accessor {
+        final Expr[] from;
+        final Expr[] to;
+
+        Index(List<Expr> from, List<Expr> to) {
+            this.from = from.toArray(Expr[]::new);
+            this.to = to.toArray(Expr[]::new);
+        }
+
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (!item.isArray() && !ctx.lax) {
+                ctx.structuralError("jsonpath array accessor can only be applied to an array");
+                return;
+            }
+            // a non-array item is treated as an array with a single element in lax mode
+            boolean singleton = !item.isArray();
+            int size = singleton ? 1 : item.size();
+            int outerSize = ctx.innermostArraySize;
+            ctx.innermostArraySize = size;
+            try {
+                for (int i = 0; i < from.length; ++i) {
+                    int indexFrom = index(ctx, current, from[i]);
+                    int indexTo = to[i] == null ? indexFrom : index(ctx, current, to[i]);
+                    if (!ctx.ignoreStructuralErrors && (indexFrom < 0 || indexFrom > indexTo || indexTo >= size)) {
+                        throw new JsonPathException("jsonpath array subscript is out of bounds");
+                    }
+                    for (int index = Math.max(indexFrom, 0); index <= Math.min(indexTo, size - 1); ++index) {
+                        next.accept(singleton ? item : item.get(index));
+                    }
+                }
+            } finally {
+                ctx.innermostArraySize = outerSize;
+            }
+        }
+
+        private static int index(Context ctx, JsonNode current, Expr subscript) {
+            List<JsonNode> items = subscript.evaluate(ctx, current);
+            if (items.size() != 1 || !items.get(0).isNumber()) {
+                throw new JsonPathException("jsonpath array subscript is not a single numeric value");
+            }
+            try {
+                return Values.decimal(items.get(0)).setScale(0, RoundingMode.DOWN).intValueExact();
+            } catch (ArithmeticException e) {
+                throw new JsonPathException("jsonpath array subscript is out of integer range");
+            }
+        }
+    }
+
+    /**
+     * <code>.**{first to last}</code>: the item itself (level 0) and all its descendants, limited to the
+     * levels in the range. <code>last</code> as both bounds selects only the leaves.
+     */
+    static final class Descendants extends Accessor {
+        final int first;
+        final int last;
+
+        Descendants(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            boolean ignoreStructuralErrors = ctx.ignoreStructuralErrors;
+            ctx.ignoreStructuralErrors = true;
+            try {
+                if (first == 0) {
+                    next.accept(item);
+                }
+                if (item.isContainerNode()) {
+                    descend(item, 1, next);
+                }
+            } finally {
+                ctx.ignoreStructuralErrors = ignoreStructuralErrors;
+            }
+        }
+
+        private void descend(JsonNode container, int level, Consumer<JsonNode> next) {
+            if (level > last) {
+                return;
+            }
+            for (JsonNode member : Values.members(container)) {
+                if (level >= first || first == LAST && last == LAST && !member.isContainerNode()) {
+                    next.accept(member);
+                }
+                if (level < last && member.isContainerNode()) {
+                    descend(member, level + 1, next);
+                }
+            }
+        }
+    }
+
+    static final class Filter extends Accessor {
+        final Predicate predicate;
+
+        Filter(Predicate predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (!unwrapped(ctx, current, item, unwrap, next) && predicate.test(ctx, item) == Predicate.Result.TRUE) {
+                next.accept(item);
+            }
+        }
+    }
+
+    static final class Type extends Accessor {
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            next.accept(TextNode.valueOf(Values.type(item)));
+        }
+    }
+
+    static final class Size extends Accessor {
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (item.isArray()) {
+                next.accept(Values.number(BigDecimal.valueOf(item.size())));
+            } else if (ctx.lax) {
+                next.accept(Values.number(BigDecimal.ONE));
+            } else {
+                ctx.structuralError("jsonpath item method .size() can only be applied to an array");
+            }
+        }
+    }
+
+    /**
+     * <code>.abs()</code>, <code>.floor()</code> and <code>.ceiling()</code>.
+     */
+    static final class NumericMethod extends Accessor {
+        final String name;
+        final UnaryOperator<BigDecimal> function;
+
+        NumericMethod(String name) {
+            this.name = name;
+            this.function = switch (name) {
+                case "abs" -> BigDecimal::abs;
+                case "floor" -> value -> value.setScale(0, RoundingMode.FLOOR);
+                case "ceiling" -> value -> value.setScale(0, RoundingMode.CEILING);
+                default -> throw new IllegalArgumentException(name);
+            };
+        }
+
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (unwrapped(ctx, current, item, unwrap, next)) {
+                return;
+            }
+            if (!item.isNumber()) {
+                throw new JsonPathException("jsonpath item method ." + name + "() can only be applied to a numeric value");
+            }
+            next.accept(Values.number(function.apply(Values.decimal(item))));
+        }
+    }
+
+    /**
+     * <code>.double()</code>: numbers are kept as they are, strings are parsed as a double precision value
+     * and converted back to a number with 15 significant digits.
+     */
+    static final class DoubleMethod extends Accessor {
+        private static final Pattern DOUBLE = Pattern.compile("\\s*[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?\\s*");
+        private static final MathContext DBL_DIG = new MathContext(15, RoundingMode.HALF_EVEN);
+
+        @Override
+        void apply(Context ctx, JsonNode current, JsonNode item, boolean unwrap, Consumer<JsonNode> next) {
+            if (unwrapped(ctx, current, item, unwrap, next)) {
+                return;
+            }
+            if (item.isNumber()) {
+                if (Double.isInfinite(item.doubleValue())) {
+                    throw outOfRange();
+                }
+                next.accept(item);
+            } else if (item.isTextual()) {
+                String text = item.textValue();
+                if (!DOUBLE.matcher(text).matches()) {
+                    // PostgreSQL accepts more (hexadecimal, infinity, ...) but fails on most of those later
+                    throw JsonPathException.unsupported("cannot parse '" + text + "' as double precision");
+                }
+                double value = Double.parseDouble(text.strip());
+                String mantissa = text.split("[eE]")[0];
+                // zero from a non-zero mantissa is an underflow
+                if (Double.isInfinite(value) || value == 0 && mantissa.chars().anyMatch(c -> c >= '1' && c <= '9')) {
+                    throw outOfRange();
+                }
+                BigDecimal decimal = new BigDecimal(value).round(DBL_DIG).stripTrailingZeros();
+                next.accept(Values.number(decimal.scale() < 0 ? decimal.setScale(0, RoundingMode.UNNECESSARY) : decimal));
+            } else {
+                throw new JsonPathException("jsonpath item method .double() can only be applied to a string or numeric value");
+            }
+        }
+
+        private static JsonPathException outOfRange() {
+            return new JsonPathException(
+                    "numeric argument of jsonpath item method .double() is out of range for type double precision");
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * State of a single evaluation; mirrors <code>JsonPathExecContext</code> in PostgreSQL.
+ */
+final class Context {
+    final JsonNode root;
+    final boolean lax;
+    // lax mode ignores structural errors, strict mode too while evaluating the accessors after .**
+    boolean ignoreStructuralErrors;
+    // size of the innermost array being subscripted, for `last`
+    int innermostArraySize = -1;
+
+    Context(JsonNode root, boolean lax) {
+        this.root = root;
+        this.lax = lax;
+        this.ignoreStructuralErrors = lax;
+    }
+
+    /**
+     * Reports an error about the structure of the document: lax mode treats it as an empty result.
+     */
+    void structuralError(String message) {
+        if (!ignoreStructuralErrors) {
+            throw new JsonPathException(message);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BinaryOperator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Node of a compiled path that produces a sequence of items.
+ */
+abstract class Expr {
+    /**
+     * Adds the items produced by this expression to <code>out</code>.
+     *
+     * @param current item bound to <code>@</code>
+     */
+    abstract void evaluate(Context ctx, JsonNode current, List<JsonNode> out);
+
+    final List<JsonNode> evaluate(Context ctx, JsonNode current) {
+        List<JsonNode> out = new ArrayList<>();
+        evaluate(ctx, current, out);
+        return out;
+    }
+
+    /**
+     * Evaluates an operand; in lax mode arrays in the result are replaced by their elements.
+     */
+    final List<JsonNode> evaluateUnwrapped(Context ctx, JsonNode current) {
+        List<JsonNode> items = evaluate(ctx, current);
+        if (!ctx.lax || items.stream().noneMatch(JsonNode::isArray)) {
+            return items;
+        }
+        List<JsonNode> unwrapped = new ArrayList<>();
+        for (JsonNode item : items) {
+            if (item.isArray()) {
+                item.elements().forEachRemaining(unwrapped::add);
+            } else {
+                unwrapped.add(item);
+            }
+        }
+        return unwrapped;
+    }
+
+    static final class Root extends Expr {
+        @Override
+        void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+            out.add(ctx.root);
+        }
+    }
+
+    static final class Current extends Expr {
+        @Override
+        void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+            out.add(current);
+        }
+    }
+
+    static final class Last extends Expr {
+        @Override
+        void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+            if (ctx.innermostArraySize < 0) {
+                throw new JsonPathException("evaluating jsonpath LAST outside of array subscript");
+            }
+            out.add(Values.number(BigDecimal.valueOf(ctx.innermostArraySize - 1)));
+        }
+    }
+
+    static final class Literal extends Expr {
+        final JsonNode value;
+
+        Literal(JsonNode value) {
+            this.value = value;
+        }
+
+        @Override
+        void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+            out.add(value);
+        }
+    }
+
+    /**
+     * Primary expression followed by accessors. Every accessor is applied to each item produced by the
+     * previous one; in lax mode with automatic unwrapping of arrays.
+     */
+    static final class Path extends Expr {
+        final Expr primary;
+        final Accessor[] accessors;
+
+        Path(Expr primary, List<Accessor> accessors) {
+            this.primary = primary;
+            this.accessors = accessors.toArray(Accessor[]::new);
+        }
+
+        @Override
+        void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+            for (JsonNode item : primary.evaluate(ctx, current)) {
+                step(ctx, current, 0, item, out);
+            }
+        }
+
+        private void step(Context ctx, JsonNode current, int index, JsonNode item, List<JsonNode> out) {
+            if (index == accessors.length) {
+                out.add(item);
+            } else {
+                accessors[index].apply(ctx, current, item, ctx.lax, next -> step(ctx, current, index + 1, next, out));
+            }
+        }
+    }
+
+    static final class Arithmetic extends Expr {
+        final String operator;
+        final Expr left;
+        final Expr right;
+        final BinaryOperator<BigDecimal> function;
+
+        Arithmetic(String operator, Expr left, Expr right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.function = switch (operator) {
+                case "+" -> BigDecimal::add;
+                case "-" -> BigDecimal::subtract;
+                case "*" -> BigDecimal::multiply;
+                case "/" -> Arithmetic::divide;
+                case "%" -> Arithmetic::modulo;
+                default -> throw new IllegalArgumentException(operator);
+            };
+        }
+
+        @Override
+        void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+            BigDecimal l = operand(ctx, current, left, "left");
+            BigDecimal r = operand(ctx, current, right, "right");
+            out.add(Values.number(function.apply(l, r)));
+        }
+
+        private BigDecimal operand(Context ctx, JsonNode current, Expr expr, String side) {
+            List<JsonNode> items = expr.evaluateUnwrapped(ctx, current);
+            if (items.size() != 1 || !items.get(0).isNumber()) {
+                throw new JsonPathException(side + " operand of jsonpath operator " + operator
+                        + " is not a single numeric value");
+            }
+            return Values.decimal(items.get(0));
+        }
+
+        private static BigDecimal modulo(BigDecimal dividend, BigDecimal divisor) {
+            if (divisor.signum() == 0) {
+                throw new JsonPathException("division by zero");
+            }
+            return dividend.remainder(divisor).setScale(Math.max(dividend.scale(), divisor.scale()), RoundingMode.UNNECESSARY);
+        }
+
+        /**
+         * Divides with the result scale that PostgreSQL's <code>numeric</code> division selects: at least 16
+         * significant digits, and no less than the scale of either operand.
+         */
+        private static BigDecimal divide(BigDecimal dividend, BigDecimal divisor) {
+            if (divisor.signum() == 0) {
+                throw new JsonPathException("division by zero");
+            }
+            int[] w1 = weightAndFirstDigit(dividend);
+            int[] w2 = weightAndFirstDigit(divisor);
+            int qweight = w1[0] - w2[0];
+            if (w1[1] <= w2[1]) {
+                qweight--;
+            }
+            int scale = 16 - qweight * 4;
+            scale = Math.max(scale, Math.max(dividend.scale(), divisor.scale()));
+            scale = Math.min(Math.max(scale, 0), 1000);
+            return dividend.divide(divisor, scale, RoundingMode.HALF_UP);
+        }
+
+        /**
+         * Weight and value of the most significant base 10000 digit of the number, as stored by numeric.
+         */
+        private static int[] weightAndFirstDigit(BigDecimal value) {
+            if (value.signum() == 0) {
+                return new int[] { 0, 0 };
+            }
+            BigDecimal abs = value.abs();
+            int exponent = abs.precision() - abs.scale() - 1;
+            int weight = Math.floorDiv(exponent, 4);
+            return new int[] { weight, abs.movePointLeft(4 * weight).intValue() };
+        }
+    }
+
+    static final class Negation extends Expr {
+        final boolean minus;
+        final Expr operand;
+
+        Negation(boolean minus, Expr operand) {
+            this.minus = minus;
+            this.operand = operand;
+        }
+
+        @Override
+        void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+            for (JsonNode item : operand.evaluateUnwrapped(ctx, current)) {
+                if (!item.isNumber()) {
+                    throw new JsonPathException("operand of unary jsonpath operator " + (minus ? "-" : "+")
+                            + " is not a numeric value");
+                }
+                out.add(minus ? Values.number(Values.decimal(item).negate()) : item);
+            }
+        }
+    }
+}
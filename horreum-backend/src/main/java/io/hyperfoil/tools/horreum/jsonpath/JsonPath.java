@@ -0,0 +1,102 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * Compiled SQL/JSON path evaluated in the JVM with the semantics of PostgreSQL's <code>jsonpath</code>, so that
+ * the results are equal to those of <code>jsonb_path_query_first</code> and <code>jsonb_path_query_array</code>
+ * on the same document.
+ * <p>
+ * The supported subset covers what extractors use: <code>lax</code> and <code>strict</code> mode, member,
+ * wildcard, descendant (<code>.**</code>) and array accessors including ranges and <code>last</code>, filters with
+ * comparisons, <code>&amp;&amp;</code>, <code>||</code>, <code>!</code>, <code>exists</code>,
+ * <code>like_regex</code>, <code>starts with</code> and <code>is unknown</code>, arithmetic and the item methods
+ * <code>.type()</code>, <code>.size()</code>, <code>.double()</code>, <code>.abs()</code>, <code>.floor()</code> and
+ * <code>.ceiling()</code>. Anything else fails {@link #compile(String)}; callers are expected to evaluate such
+ * paths in the database instead.
+ */
+public final class JsonPath {
+    private static final int CACHE_SIZE = 1024;
+    // compiled paths and compilation failures, least recently used are evicted
+    private static final Map<String, Object> CACHE = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+
+    private final String source;
+    private final Expr expr;
+    private final boolean lax;
+
+    JsonPath(String source, Expr expr, boolean lax) {
+        this.source = source;
+        this.expr = expr;
+        this.lax = lax;
+    }
+
+    /**
+     * Returns the compiled path, from the cache if it was compiled before.
+     *
+     * @throws JsonPathException when the path is invalid or not supported
+     */
+    public static JsonPath compile(String path) {
+        Object cached = CACHE.get(path);
+        if (cached == null) {
+            try {
+                cached = Parser.parse(path);
+            } catch (JsonPathException e) {
+                cached = e;
+            }
+            CACHE.put(path, cached);
+        }
+        if (cached instanceof JsonPathException e) {
+            throw e;
+        }
+        return (JsonPath) cached;
+    }
+
+    /**
+     * @return all items the path produces for the document
+     * @throws JsonPathException when the evaluation fails
+     */
+    public List<JsonNode> query(JsonNode document) {
+        List<JsonNode> items = expr.evaluate(new Context(document, lax), document);
+        items.replaceAll(Values::result);
+        return items;
+    }
+
+    /**
+     * @return the first item the path produces, or <code>null</code> if there is none
+     */
+    public JsonNode queryFirst(JsonNode document) {
+        List<JsonNode> items = query(document);
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    /**
+     * @return all items the path produces wrapped in an array
+     */
+    public ArrayNode queryArray(JsonNode document) {
+        return JsonNodeFactory.instance.arrayNode().addAll(query(document));
+    }
+
+    /**
+     * Orders object keys as <code>jsonb</code> stores them: shorter keys first, then bytewise in UTF-8.
+     */
+    public static int compareKeys(String k1, String k2) {
+        return Values.compareKeys(k1, k2);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,30 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+/**
+ * Thrown when a path cannot be compiled, either because it is invalid or because it uses a feature that is
+ * not implemented, and when evaluation fails in a case where PostgreSQL would raise an error.
+ */
+public class JsonPathException extends RuntimeException {
+    private final boolean unsupported;
+
+    public JsonPathException(String message) {
+        this(message, false);
+    }
+
+    private JsonPathException(String message, boolean unsupported) {
+        super(message);
+        this.unsupported = unsupported;
+    }
+
+    /**
+     * The path or the value it was applied to needs a feature that this implementation does not reproduce
+     * faithfully; unlike other errors this is never turned into an <code>unknown</code> predicate result.
+     */
+    static JsonPathException unsupported(String message) {
+        return new JsonPathException(message, true);
+    }
+
+    public boolean isUnsupported() {
+        return unsupported;
+    }
+}
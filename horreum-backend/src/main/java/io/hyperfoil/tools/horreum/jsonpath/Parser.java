@@ -0,0 +1,650 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Recursive descent parser following the grammar of PostgreSQL's <code>jsonpath</code> (jsonpath_gram.y).
+ * Constructs that are not implemented, such as variables, <code>.keyvalue()</code> or
+ * <code>.datetime()</code>, fail the compilation.
+ */
+final class Parser {
+    private static final String SPECIAL = "?%$.[]{}()|&!=<>@#,*:-+/\\\" \t\n\r\f";
+    private static final Set<String> UNSUPPORTED_METHODS = Set.of("keyvalue", "datetime", "bigint", "boolean", "date",
+            "decimal", "integer", "number", "string", "time", "time_tz", "timestamp", "timestamp_tz");
+    private static final Pattern REGEX_ESCAPE = Pattern.compile("\\\\[^dDsSwWnt.\\\\*+?()\\[\\]{}|^$/-]");
+
+    private enum Kind {
+        ROOT,
+        VARIABLE,
+        CURRENT,
+        DOT,
+        LBRACKET,
+        RBRACKET,
+        LPAREN,
+        RPAREN,
+        LBRACE,
+        RBRACE,
+        COMMA,
+        QUESTION,
+        STAR,
+        ANY,
+        PLUS,
+        MINUS,
+        SLASH,
+        PERCENT,
+        COMPARISON,
+        NOT,
+        AND,
+        OR,
+        NUMBER,
+        STRING,
+        IDENTIFIER,
+        END
+    }
+
+    private record Token(Kind kind, String text) {
+        boolean is(String keyword) {
+            return kind == Kind.IDENTIFIER && text.equals(keyword);
+        }
+    }
+
+    private final String source;
+    private final List<Token> tokens = new ArrayList<>();
+    private int position;
+    private int filterDepth;
+    private int subscriptDepth;
+
+    private Parser(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @return the compiled expression and whether it is evaluated in lax mode
+     */
+    static JsonPath parse(String source) {
+        Parser parser = new Parser(source);
+        parser.tokenize();
+        boolean lax = true;
+        if (parser.peek().is("strict") || parser.peek().is("lax")) {
+            lax = parser.next().text.equals("lax");
+        }
+        Expr expr = parser.parseOr();
+        parser.expect(Kind.END);
+        return new JsonPath(source, expr, lax);
+    }
+
+    private Token peek() {
+        return tokens.get(position);
+    }
+
+    private Token peek(int offset) {
+        return tokens.get(Math.min(position + offset, tokens.size() - 1));
+    }
+
+    private Token next() {
+        Token token = tokens.get(position);
+        if (token.kind != Kind.END) {
+            ++position;
+        }
+        return token;
+    }
+
+    private boolean accept(Kind kind) {
+        if (peek().kind == kind) {
+            next();
+            return true;
+        }
+        return false;
+    }
+
+    private Token expect(Kind kind) {
+        if (peek().kind != kind) {
+            throw syntaxError();
+        }
+        return next();
+    }
+
+    private JsonPathException syntaxError() {
+        return syntaxError(peek());
+    }
+
+    private JsonPathException syntaxError(Token token) {
+        return new JsonPathException("syntax error at " + (token.kind == Kind.END ? "end of jsonpath input"
+                : "or near \"" + token.text + "\"") + " of jsonpath input '" + source + "'");
+    }
+
+    private static Predicate predicate(Expr expr) {
+        if (expr instanceof Predicate predicate) {
+            return predicate;
+        }
+        throw new JsonPathException("syntax error: expected a predicate");
+    }
+
+    private Expr parseOr() {
+        Expr left = parseAnd();
+        while (accept(Kind.OR)) {
+            left = new Predicate.Or(predicate(left), predicate(parseAnd()));
+        }
+        return left;
+    }
+
+    private Expr parseAnd() {
+        Expr left = parseNot();
+        while (accept(Kind.AND)) {
+            left = new Predicate.And(predicate(left), predicate(parseNot()));
+        }
+        return left;
+    }
+
+    private Expr parseNot() {
+        if (accept(Kind.NOT)) {
+            // only a parenthesized predicate or exists() can be negated
+            if (peek().kind != Kind.LPAREN && !peek().is("exists")) {
+                throw syntaxError();
+            }
+            return new Predicate.Not(predicate(parsePrimary()));
+        }
+        return parseComparison();
+    }
+
+    private Expr parseComparison() {
+        Expr left = parseAdditive();
+        Token token = peek();
+        if (token.kind == Kind.COMPARISON) {
+            next();
+            return new Predicate.Comparison(token.text, left, parseAdditive());
+        } else if (token.is("like_regex")) {
+            next();
+            String regex = expect(Kind.STRING).text;
+            String flags = "";
+            if (peek().is("flag")) {
+                next();
+                flags = expect(Kind.STRING).text;
+            }
+            return likeRegex(left, regex, flags);
+        } else if (token.is("starts") && peek(1).is("with")) {
+            next();
+            next();
+            if (peek().kind == Kind.VARIABLE) {
+                throw JsonPathException.unsupported("jsonpath variables are not supported");
+            }
+            return new Predicate.StartsWith(left, new Expr.Literal(TextNode.valueOf(expect(Kind.STRING).text)));
+        }
+        return left;
+    }
+
+    private Predicate likeRegex(Expr left, String regex, String flags) {
+        int javaFlags = Pattern.UNIX_LINES;
+        boolean dotAll = false;
+        boolean quote = false;
+        for (char flag : flags.toCharArray()) {
+            switch (flag) {
+                case 'i' -> javaFlags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+                case 's' -> dotAll = true;
+                case 'm' -> javaFlags |= Pattern.MULTILINE;
+                case 'q' -> quote = true;
+                case 'x' -> throw new JsonPathException("XQuery \"x\" flag (expanded regular expressions) is not implemented");
+                default -> throw new JsonPathException("invalid input syntax for type jsonpath: unrecognized flag character \""
+                        + flag + "\" in LIKE_REGEX predicate");
+            }
+        }
+        if (quote) {
+            return new Predicate.LikeRegex(left, Pattern.compile(regex, javaFlags | Pattern.LITERAL), false, false);
+        }
+        if (dotAll) {
+            javaFlags |= Pattern.DOTALL;
+        }
+        // PostgreSQL uses its own regular expression engine; only the syntax that means the same in Java is accepted
+        if (REGEX_ESCAPE.matcher(regex).find() || regex.contains("[[") || regex.contains("&&")
+                || regex.replace("(?:", "").contains("(?") || regex.matches("(?s).*[*+?}]\\+.*")
+                || !dotAll && regex.contains("[^")) {
+            throw JsonPathException.unsupported("regular expression '" + regex + "' is not supported");
+        }
+        try {
+            return new Predicate.LikeRegex(left, Pattern.compile(regex, javaFlags),
+                    regex.contains("$") && (javaFlags & Pattern.MULTILINE) == 0,
+                    regex.matches("(?s).*\\\\[dDsSwW].*"));
+        } catch (PatternSyntaxException e) {
+            throw new JsonPathException("invalid regular expression: " + e.getDescription());
+        }
+    }
+
+    private Expr parseAdditive() {
+        Expr left = parseMultiplicative();
+        while (peek().kind == Kind.PLUS || peek().kind == Kind.MINUS) {
+            left = new Expr.Arithmetic(next().text, left, parseMultiplicative());
+        }
+        return left;
+    }
+
+    private Expr parseMultiplicative() {
+        Expr left = parseUnary();
+        while (peek().kind == Kind.STAR || peek().kind == Kind.SLASH || peek().kind == Kind.PERCENT) {
+            left = new Expr.Arithmetic(next().text, left, parseUnary());
+        }
+        return left;
+    }
+
+    private Expr parseUnary() {
+        if (peek().kind == Kind.PLUS || peek().kind == Kind.MINUS) {
+            boolean minus = next().kind == Kind.MINUS;
+            Expr operand = parseUnary();
+            if (operand instanceof Expr.Literal literal && literal.value.isNumber()) {
+                return minus ? new Expr.Literal(Values.number(Values.decimal(literal.value).negate())) : operand;
+            }
+            return new Expr.Negation(minus, operand);
+        }
+        return parsePostfix();
+    }
+
+    private Expr parsePostfix() {
+        Expr primary = parsePrimary();
+        List<Accessor> accessors = new ArrayList<>();
+        while (true) {
+            if (accept(Kind.DOT)) {
+                accessors.add(parseMember());
+            } else if (accept(Kind.LBRACKET)) {
+                accessors.add(parseSubscripts());
+            } else if (accept(Kind.QUESTION)) {
+                expect(Kind.LPAREN);
+                ++filterDepth;
+                Expr filter = parseOr();
+                --filterDepth;
+                expect(Kind.RPAREN);
+                accessors.add(new Accessor.Filter(predicate(filter)));
+            } else {
+                break;
+            }
+        }
+        return accessors.isEmpty() ? primary : new Expr.Path(primary, accessors);
+    }
+
+    private Accessor parseMember() {
+        Token token = next();
+        switch (token.kind) {
+            case STAR:
+                return new Accessor.AnyKey();
+            case ANY:
+                return parseDescendants();
+            case STRING:
+                return new Accessor.Key(token.text);
+            case IDENTIFIER:
+                if (peek().kind != Kind.LPAREN) {
+                    return new Accessor.Key(token.text);
+                }
+                next();
+                if (UNSUPPORTED_METHODS.contains(token.text)) {
+                    throw JsonPathException.unsupported("jsonpath item method ." + token.text + "() is not supported");
+                }
+                Accessor method = switch (token.text) {
+                    case "type" -> new Accessor.Type();
+                    case "size" -> new Accessor.Size();
+                    case "double" -> new Accessor.DoubleMethod();
+                    case "abs", "floor", "ceiling" -> new Accessor.NumericMethod(token.text);
+                    default -> throw syntaxError();
+                };
+                expect(Kind.RPAREN);
+                return method;
+            default:
+                throw syntaxError(token);
+        }
+    }
+
+    private Accessor parseDescendants() {
+        if (!accept(Kind.LBRACE)) {
+            return new Accessor.Descendants(0, Accessor.LAST);
+        }
+        int first = parseLevel();
+        int last = first;
+        if (peek().is("to")) {
+            next();
+            last = parseLevel();
+        }
+        expect(Kind.RBRACE);
+        return new Accessor.Descendants(first, last);
+    }
+
+    private int parseLevel() {
+        if (peek().is("last")) {
+            next();
+            return Accessor.LAST;
+        }
+        try {
+            return Integer.parseInt(expect(Kind.NUMBER).text);
+        } catch (NumberFormatException e) {
+            throw new JsonPathException("invalid .** level in jsonpath");
+        }
+    }
+
+    private Accessor parseSubscripts() {
+        if (accept(Kind.STAR)) {
+            expect(Kind.RBRACKET);
+            return new Accessor.AnyElement();
+        }
+        List<Expr> from = new ArrayList<>();
+        List<Expr> to = new ArrayList<>();
+        ++subscriptDepth;
+        do {
+            from.add(parseAdditive());
+            if (peek().is("to")) {
+                next();
+                to.add(parseAdditive());
+            } else {
+                to.add(null);
+            }
+        } while (accept(Kind.COMMA));
+        --subscriptDepth;
+        expect(Kind.RBRACKET);
+        return new Accessor.Index(from, to);
+    }
+
+    private Expr parsePrimary() {
+        Token token = next();
+        switch (token.kind) {
+            case ROOT:
+                return new Expr.Root();
+            case VARIABLE:
+                throw JsonPathException.unsupported("jsonpath variables are not supported");
+            case CURRENT:
+                if (filterDepth == 0) {
+                    throw new JsonPathException("@ is not allowed in root expressions");
+                }
+                return new Expr.Current();
+            case NUMBER:
+                BigDecimal number = new BigDecimal(token.text);
+                return new Expr.Literal(
+                        Values.number(number.scale() < 0 ? number.setScale(0, RoundingMode.UNNECESSARY) : number));
+            case STRING:
+                return new Expr.Literal(TextNode.valueOf(token.text));
+            case LPAREN:
+                Expr inner = parseOr();
+                expect(Kind.RPAREN);
+                if (inner instanceof Predicate predicate && peek().is("is") && peek(1).is("unknown")) {
+                    next();
+                    next();
+                    return new Predicate.IsUnknown(predicate);
+                }
+                return inner;
+            case IDENTIFIER:
+                switch (token.text) {
+                    case "true":
+                        return new Expr.Literal(BooleanNode.TRUE);
+                    case "false":
+                        return new Expr.Literal(BooleanNode.FALSE);
+                    case "null":
+                        return new Expr.Literal(NullNode.instance);
+                    case "last":
+                        if (subscriptDepth == 0) {
+                            throw new JsonPathException("LAST is allowed only in array subscripts");
+                        }
+                        return new Expr.Last();
+                    case "exists":
+                        expect(Kind.LPAREN);
+                        Expr operand = parseOr();
+                        expect(Kind.RPAREN);
+                        return new Predicate.Exists(operand);
+                }
+                throw syntaxError(token);
+            default:
+                throw syntaxError(token);
+        }
+    }
+
+    private void tokenize() {
+        int i = 0;
+        while (true) {
+            while (i < source.length() && " \t\n\r\f".indexOf(source.charAt(i)) >= 0) {
+                ++i;
+            }
+            if (i >= source.length()) {
+                tokens.add(new Token(Kind.END, ""));
+                return;
+            }
+            char c = source.charAt(i);
+            char n = i + 1 < source.length() ? source.charAt(i + 1) : 0;
+            int start = i;
+            Kind kind;
+            String text = null;
+            switch (c) {
+                case '$' -> {
+                    if (n == '"' || n != 0 && isOther(n)) {
+                        throw JsonPathException.unsupported("jsonpath variables are not supported");
+                    }
+                    kind = Kind.ROOT;
+                    ++i;
+                }
+                case '@' -> {
+                    kind = Kind.CURRENT;
+                    ++i;
+                }
+                case '.' -> {
+                    if (n >= '0' && n <= '9') {
+                        throw JsonPathException.unsupported("numeric literals starting with '.' are not supported");
+                    }
+                    kind = Kind.DOT;
+                    ++i;
+                }
+                case '[' -> {
+                    kind = Kind.LBRACKET;
+                    ++i;
+                }
+                case ']' -> {
+                    kind = Kind.RBRACKET;
+                    ++i;
+                }
+                case '(' -> {
+                    kind = Kind.LPAREN;
+                    ++i;
+                }
+                case ')' -> {
+                    kind = Kind.RPAREN;
+                    ++i;
+                }
+                case '{' -> {
+                    kind = Kind.LBRACE;
+                    ++i;
+                }
+                case '}' -> {
+                    kind = Kind.RBRACE;
+                    ++i;
+                }
+                case ',' -> {
+                    kind = Kind.COMMA;
+                    ++i;
+                }
+                case '?' -> {
+                    kind = Kind.QUESTION;
+                    ++i;
+                }
+                case '*' -> {
+                    kind = n == '*' ? Kind.ANY : Kind.STAR;
+                    i += n == '*' ? 2 : 1;
+                }
+                case '+' -> {
+                    kind = Kind.PLUS;
+                    ++i;
+                }
+                case '-' -> {
+                    kind = Kind.MINUS;
+                    ++i;
+                }
+                case '/' -> {
+                    kind = Kind.SLASH;
+                    ++i;
+                }
+                case '%' -> {
+                    kind = Kind.PERCENT;
+                    ++i;
+                }
+                case '=' -> {
+                    if (n != '=') {
+                        throw new JsonPathException("syntax error at or near \"=\" of jsonpath input '" + source + "'");
+                    }
+                    kind = Kind.COMPARISON;
+                    text = "==";
+                    i += 2;
+                }
+                case '!' -> {
+                    kind = n == '=' ? Kind.COMPARISON : Kind.NOT;
+                    text = n == '=' ? "!=" : "!";
+                    i += n == '=' ? 2 : 1;
+                }
+                case '<' -> {
+                    kind = Kind.COMPARISON;
+                    text = n == '=' ? "<=" : n == '>' ? "!=" : "<";
+                    i += n == '=' || n == '>' ? 2 : 1;
+                }
+                case '>' -> {
+                    kind = Kind.COMPARISON;
+                    text = n == '=' ? ">=" : ">";
+                    i += n == '=' ? 2 : 1;
+                }
+                case '&', '|' -> {
+                    if (n != c) {
+                        throw new JsonPathException("syntax error at or near \"" + c + "\" of jsonpath input '" + source + "'");
+                    }
+                    kind = c == '&' ? Kind.AND : Kind.OR;
+                    i += 2;
+                }
+                case '"' -> {
+                    StringBuilder sb = new StringBuilder();
+                    i = string(i + 1, sb);
+                    kind = Kind.STRING;
+                    text = sb.toString();
+                }
+                default -> {
+                    if (c >= '0' && c <= '9') {
+                        i = number(i);
+                        kind = Kind.NUMBER;
+                    } else if (isOther(c)) {
+                        while (i < source.length() && isOther(source.charAt(i))) {
+                            ++i;
+                        }
+                        kind = Kind.IDENTIFIER;
+                    } else {
+                        throw new JsonPathException("syntax error at or near \"" + c + "\" of jsonpath input '" + source + "'");
+                    }
+                }
+            }
+            tokens.add(new Token(kind, text != null ? text : source.substring(start, i)));
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isOther(char c) {
+        return SPECIAL.indexOf(c) < 0;
+    }
+
+    private int number(int i) {
+        int start = i;
+        while (i < source.length() && isDigit(source.charAt(i))) {
+            ++i;
+        }
+        if (i - start > 1 && source.charAt(start) == '0') {
+            throw new JsonPathException("trailing junk after numeric literal of jsonpath input '" + source + "'");
+        }
+        if (i < source.length() && source.charAt(i) == '.') {
+            ++i;
+            int fraction = i;
+            while (i < source.length() && isDigit(source.charAt(i))) {
+                ++i;
+            }
+            if (i == fraction) {
+                // PostgreSQL reads "1." as a number and rejects what follows, "1.a" or "1.type()"
+                throw JsonPathException.unsupported("numeric literal ending with '.' is not supported");
+            }
+        }
+        if (i < source.length() && (source.charAt(i) == 'e' || source.charAt(i) == 'E')) {
+            ++i;
+            if (i < source.length() && (source.charAt(i) == '+' || source.charAt(i) == '-')) {
+                ++i;
+            }
+            int exponent = i;
+            while (i < source.length() && isDigit(source.charAt(i))) {
+                ++i;
+            }
+            if (i == exponent) {
+                throw new JsonPathException("trailing junk after numeric literal of jsonpath input '" + source + "'");
+            }
+        }
+        if (i < source.length() && isOther(source.charAt(i))) {
+            throw new JsonPathException("trailing junk after numeric literal of jsonpath input '" + source + "'");
+        }
+        return i;
+    }
+
+    private int string(int i, StringBuilder sb) {
+        while (i < source.length()) {
+            char c = source.charAt(i++);
+            if (c == '"') {
+                return i;
+            } else if (c != '\\') {
+                sb.append(c);
+                continue;
+            } else if (i >= source.length()) {
+                break;
+            }
+            char escaped = source.charAt(i++);
+            switch (escaped) {
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'v' -> sb.append('\u000B');
+                case 'x' -> {
+                    sb.appendCodePoint(codePoint(hex(i, 2)));
+                    i += 2;
+                }
+                case 'u' -> {
+                    if (i < source.length() && source.charAt(i) == '{') {
+                        int end = source.indexOf('}', i);
+                        if (end < 0 || end - i - 1 < 1 || end - i - 1 > 6) {
+                            throw new JsonPathException("invalid Unicode escape sequence in jsonpath input '" + source + "'");
+                        }
+                        sb.appendCodePoint(codePoint(hex(i + 1, end - i - 1)));
+                        i = end + 1;
+                    } else {
+                        sb.append((char) codePoint(hex(i, 4)));
+                        i += 4;
+                    }
+                }
+                default -> sb.append(escaped);
+            }
+        }
+        throw new JsonPathException("unexpected end of quoted string of jsonpath input '" + source + "'");
+    }
+
+    private int hex(int i, int length) {
+        if (i + length > source.length()) {
+            throw new JsonPathException("invalid hexadecimal character sequence in jsonpath input '" + source + "'");
+        }
+        try {
+            return Integer.parseInt(source.substring(i, i + length), 16);
+        } catch (NumberFormatException e) {
+            throw new JsonPathException("invalid hexadecimal character sequence in jsonpath input '" + source + "'");
+        }
+    }
+
+    private int codePoint(int value) {
+        // \u0000 is rejected by PostgreSQL; surrogates must be paired, which is left to the database
+        if (value == 0 || value > Character.MAX_CODE_POINT
+                || (value >= Character.MIN_SURROGATE && value <= Character.MAX_SURROGATE)) {
+            throw JsonPathException.unsupported("unsupported Unicode escape sequence in jsonpath input '" + source + "'");
+        }
+        return value;
+    }
+}
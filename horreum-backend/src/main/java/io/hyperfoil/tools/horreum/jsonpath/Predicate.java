@@ -0,0 +1,274 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+/**
+ * Node of a compiled path with a three-valued result. Errors in the operands of a predicate make its result
+ * <code>unknown</code> rather than failing the evaluation.
+ */
+abstract class Predicate extends Expr {
+    enum Result {
+        TRUE,
+        FALSE,
+        UNKNOWN;
+
+        static Result of(boolean value) {
+            return value ? TRUE : FALSE;
+        }
+    }
+
+    abstract Result test(Context ctx, JsonNode current);
+
+    /**
+     * A predicate used as an expression produces a boolean, or <code>null</code> when it is unknown.
+     */
+    @Override
+    final void evaluate(Context ctx, JsonNode current, List<JsonNode> out) {
+        out.add(switch (test(ctx, current)) {
+            case TRUE -> BooleanNode.TRUE;
+            case FALSE -> BooleanNode.FALSE;
+            case UNKNOWN -> NullNode.instance;
+        });
+    }
+
+    /**
+     * Applies <code>function</code> to the operands: the result is true when it is true for any pair in lax
+     * mode, or for all pairs in strict mode; any unknown pair makes the result unknown in strict mode.
+     */
+    static Result existential(Context ctx, List<JsonNode> left, List<JsonNode> right,
+            BiFunction<JsonNode, JsonNode, Result> function) {
+        boolean error = false;
+        boolean found = false;
+        for (JsonNode l : left) {
+            for (JsonNode r : right == null ? List.<JsonNode> of(l) : right) {
+                Result result = function.apply(l, r);
+                if (result == Result.UNKNOWN) {
+                    if (!ctx.lax) {
+                        return Result.UNKNOWN;
+                    }
+                    error = true;
+                } else if (result == Result.TRUE) {
+                    if (ctx.lax) {
+                        return Result.TRUE;
+                    }
+                    found = true;
+                }
+            }
+        }
+        return found ? Result.TRUE : error ? Result.UNKNOWN : Result.FALSE;
+    }
+
+    static final class Comparison extends Predicate {
+        final String operator;
+        final Expr left;
+        final Expr right;
+
+        Comparison(String operator, Expr left, Expr right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            List<JsonNode> l, r;
+            try {
+                l = left.evaluateUnwrapped(ctx, current);
+                r = right.evaluateUnwrapped(ctx, current);
+            } catch (JsonPathException e) {
+                return unknown(e);
+            }
+            return existential(ctx, l, r, this::compare);
+        }
+
+        private Result compare(JsonNode l, JsonNode r) {
+            int cmp;
+            if (l.getNodeType() != r.getNodeType()) {
+                if (l.isNull() || r.isNull()) {
+                    // non-null items are not equal to null
+                    return Result.of(operator.equals("!="));
+                }
+                return Result.UNKNOWN;
+            } else if (l.isNull()) {
+                cmp = 0;
+            } else if (l.isBoolean()) {
+                cmp = Boolean.compare(l.booleanValue(), r.booleanValue());
+            } else if (l.isNumber()) {
+                cmp = Values.decimal(l).compareTo(Values.decimal(r));
+            } else if (l.isTextual()) {
+                cmp = Values.compareStrings(l.textValue(), r.textValue());
+            } else {
+                return Result.UNKNOWN;
+            }
+            return Result.of(switch (operator) {
+                case "==" -> cmp == 0;
+                case "!=" -> cmp != 0;
+                case "<" -> cmp < 0;
+                case "<=" -> cmp <= 0;
+                case ">" -> cmp > 0;
+                case ">=" -> cmp >= 0;
+                default -> throw new IllegalStateException(operator);
+            });
+        }
+    }
+
+    static final class And extends Predicate {
+        final Predicate left;
+        final Predicate right;
+
+        And(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            Result l = left.test(ctx, current);
+            if (l == Result.FALSE) {
+                return l;
+            }
+            Result r = right.test(ctx, current);
+            return r == Result.TRUE ? l : r;
+        }
+    }
+
+    static final class Or extends Predicate {
+        final Predicate left;
+        final Predicate right;
+
+        Or(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            Result l = left.test(ctx, current);
+            if (l == Result.TRUE) {
+                return l;
+            }
+            Result r = right.test(ctx, current);
+            return r == Result.FALSE ? l : r;
+        }
+    }
+
+    static final class Not extends Predicate {
+        final Predicate operand;
+
+        Not(Predicate operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            return switch (operand.test(ctx, current)) {
+                case TRUE -> Result.FALSE;
+                case FALSE -> Result.TRUE;
+                case UNKNOWN -> Result.UNKNOWN;
+            };
+        }
+    }
+
+    static final class IsUnknown extends Predicate {
+        final Predicate operand;
+
+        IsUnknown(Predicate operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            return Result.of(operand.test(ctx, current) == Result.UNKNOWN);
+        }
+    }
+
+    static final class Exists extends Predicate {
+        final Expr operand;
+
+        Exists(Expr operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            try {
+                return Result.of(!operand.evaluate(ctx, current).isEmpty());
+            } catch (JsonPathException e) {
+                return unknown(e);
+            }
+        }
+    }
+
+    static final class StartsWith extends Predicate {
+        final Expr left;
+        final Expr prefix;
+
+        StartsWith(Expr left, Expr prefix) {
+            this.left = left;
+            this.prefix = prefix;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            List<JsonNode> l, r;
+            try {
+                l = left.evaluateUnwrapped(ctx, current);
+                r = prefix.evaluate(ctx, current);
+            } catch (JsonPathException e) {
+                return unknown(e);
+            }
+            return existential(ctx, l, r, (s, p) -> s.isTextual() && p.isTextual()
+                    ? Result.of(s.textValue().startsWith(p.textValue()))
+                    : Result.UNKNOWN);
+        }
+    }
+
+    static final class LikeRegex extends Predicate {
+        final Expr left;
+        final Pattern pattern;
+        // Java's $ also matches before a final line terminator, PostgreSQL's does not
+        final boolean endAnchor;
+        // \d, \s and \w match only ASCII characters in Java
+        final boolean classEscapes;
+
+        LikeRegex(Expr left, Pattern pattern, boolean endAnchor, boolean classEscapes) {
+            this.left = left;
+            this.pattern = pattern;
+            this.endAnchor = endAnchor;
+            this.classEscapes = classEscapes;
+        }
+
+        @Override
+        Result test(Context ctx, JsonNode current) {
+            List<JsonNode> l;
+            try {
+                l = left.evaluateUnwrapped(ctx, current);
+            } catch (JsonPathException e) {
+                return unknown(e);
+            }
+            return existential(ctx, l, null, (s, ignored) -> {
+                if (!s.isTextual()) {
+                    return Result.UNKNOWN;
+                }
+                String text = s.textValue();
+                if (endAnchor && text.endsWith("\n") || classEscapes && !text.chars().allMatch(c -> c < 128)) {
+                    throw JsonPathException.unsupported("like_regex cannot be evaluated on '" + text + "'");
+                }
+                return Result.of(pattern.matcher(text).find());
+            });
+        }
+    }
+
+    private static Result unknown(JsonPathException e) {
+        if (e.isUnsupported()) {
+            throw e;
+        }
+        return Result.UNKNOWN;
+    }
+}
@@ -0,0 +1,131 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.BigIntegerNode;
+import com.fasterxml.jackson.databind.node.DecimalNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+
+/**
+ * Conversions between Jackson nodes and the values of PostgreSQL <code>jsonb</code>.
+ * <p>
+ * Numbers read from the database map to Jackson nodes the way the default <code>ObjectMapper</code> parses
+ * them: numerics with a fractional part (scale > 0) become {@link DoubleNode}, the others integral nodes.
+ * Computed numbers with a fractional part are kept exact in a {@link DecimalNode} while the path is evaluated,
+ * as PostgreSQL keeps them in a numeric, and become {@link DoubleNode} in the result.
+ */
+final class Values {
+    private static final BigInteger INT_MIN = BigInteger.valueOf(Integer.MIN_VALUE);
+    private static final BigInteger INT_MAX = BigInteger.valueOf(Integer.MAX_VALUE);
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+    // jsonb stores object keys ordered by their length in bytes, then bytewise
+    private static final Comparator<byte[]> JSONB_KEY_ORDER = Comparator.<byte[]> comparingInt(k -> k.length)
+            .thenComparing(Arrays::compareUnsigned);
+
+    private Values() {
+    }
+
+    /**
+     * Returns the value of a number node; a floating point node has a scale of at least 1, as the numeric
+     * it was parsed from did.
+     */
+    static BigDecimal decimal(JsonNode node) {
+        BigDecimal value = node.decimalValue();
+        if (node.isFloatingPointNumber()) {
+            return value.scale() < 1 ? value.setScale(1, RoundingMode.UNNECESSARY) : value;
+        }
+        return value;
+    }
+
+    static JsonNode number(BigDecimal value) {
+        if (value.scale() > 0) {
+            return DecimalNode.valueOf(value);
+        }
+        BigInteger integer = value.toBigInteger();
+        if (integer.compareTo(INT_MIN) >= 0 && integer.compareTo(INT_MAX) <= 0) {
+            return IntNode.valueOf(integer.intValue());
+        } else if (integer.compareTo(LONG_MIN) >= 0 && integer.compareTo(LONG_MAX) <= 0) {
+            return LongNode.valueOf(integer.longValue());
+        }
+        return BigIntegerNode.valueOf(integer);
+    }
+
+    /**
+     * Converts an item of the result to the node the database would have returned.
+     */
+    static JsonNode result(JsonNode node) {
+        return node instanceof DecimalNode ? DoubleNode.valueOf(node.doubleValue()) : node;
+    }
+
+    static String type(JsonNode node) {
+        return switch (node.getNodeType()) {
+            case OBJECT -> "object";
+            case ARRAY -> "array";
+            case STRING -> "string";
+            case NUMBER -> "number";
+            case BOOLEAN -> "boolean";
+            case NULL -> "null";
+            default -> throw new JsonPathException("Unsupported JSON node " + node.getNodeType());
+        };
+    }
+
+    /**
+     * Values of an object in the order of its keys in <code>jsonb</code>, or the elements of an array.
+     */
+    static List<JsonNode> members(JsonNode container) {
+        List<JsonNode> members = new ArrayList<>(container.size());
+        if (container.isArray()) {
+            container.elements().forEachRemaining(members::add);
+            return members;
+        }
+        List<Map.Entry<byte[], JsonNode>> entries = new ArrayList<>(container.size());
+        boolean sorted = true;
+        byte[] previous = null;
+        for (Iterator<Map.Entry<String, JsonNode>> it = container.fields(); it.hasNext();) {
+            Map.Entry<String, JsonNode> field = it.next();
+            byte[] key = field.getKey().getBytes(StandardCharsets.UTF_8);
+            sorted &= previous == null || JSONB_KEY_ORDER.compare(previous, key) < 0;
+            previous = key;
+            entries.add(Map.entry(key, field.getValue()));
+        }
+        if (!sorted) {
+            entries.sort(Map.Entry.comparingByKey(JSONB_KEY_ORDER));
+        }
+        entries.forEach(e -> members.add(e.getValue()));
+        return members;
+    }
+
+    static int compareKeys(String k1, String k2) {
+        return JSONB_KEY_ORDER.compare(k1.getBytes(StandardCharsets.UTF_8), k2.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Orders strings by their Unicode codepoints, as the byte order of UTF-8 does.
+     */
+    static int compareStrings(String s1, String s2) {
+        int i1 = 0, i2 = 0;
+        while (i1 < s1.length() && i2 < s2.length()) {
+            int c1 = s1.codePointAt(i1);
+            int c2 = s2.codePointAt(i2);
+            if (c1 != c2) {
+                return Integer.compare(c1, c2);
+            }
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+        return Boolean.compare(i1 < s1.length(), i2 < s2.length());
+    }
+}
@@ -23,6 +23,8 @@ public class TestMapper {
         dto.fingerprintFilter = t.fingerprintFilter;
         dto.compareUrl = t.compareUrl;
         dto.notificationsEnabled = t.notificationsEnabled;
+        dto.logLevel = t.logLevel;
+        dto.archiveAfterDays = t.archiveAfterDays;
         if (t.transformers != null) {
             dto.transformers = t.transformers.stream().map(TransformerMapper::from).collect(Collectors.toList());
         }
@@ -46,6 +48,8 @@ public class TestMapper {
         t.fingerprintFilter = dto.fingerprintFilter;
         t.compareUrl = dto.compareUrl;
         t.notificationsEnabled = dto.notificationsEnabled;
+        t.logLevel = dto.logLevel;
+        t.archiveAfterDays = dto.archiveAfterDays;
         if (dto.datastoreId == null) {
             dto.datastoreId = 1; //by default we will push data into postgres
         }
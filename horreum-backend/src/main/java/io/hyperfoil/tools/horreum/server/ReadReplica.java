@@ -0,0 +1,22 @@
+package io.hyperfoil.tools.horreum.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import jakarta.interceptor.InterceptorBinding;
+
+/**
+ * Routes a read-only method to the read replica (datasource <code>replica</code>) when the replica is active and
+ * does not lag behind, and the method is not called from within a transaction that might have written data the
+ * replica has not seen yet. The method must access the database through {@link ReplicaRouter#session()}; roles set
+ * by {@link WithRoles} apply to the replica connection.
+ */
+@Inherited
+@InterceptorBinding
+@Target({ ElementType.METHOD, ElementType.TYPE })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReadReplica {
+}
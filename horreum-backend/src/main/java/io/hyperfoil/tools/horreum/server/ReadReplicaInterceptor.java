@@ -0,0 +1,29 @@
+package io.hyperfoil.tools.horreum.server;
+
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+import jakarta.transaction.Status;
+import jakarta.transaction.TransactionManager;
+
+// runs before @Transactional so that transactions of the caller can be told from those of the method
+@Interceptor
+@Priority(Interceptor.Priority.PLATFORM_BEFORE + 100)
+@ReadReplica
+public class ReadReplicaInterceptor {
+    @Inject
+    ReplicaRouter router;
+
+    @Inject
+    TransactionManager tm;
+
+    @AroundInvoke
+    public Object intercept(InvocationContext ctx) throws Exception {
+        if (router.isRouted() || tm.getStatus() != Status.STATUS_NO_TRANSACTION || !router.isAvailable()) {
+            return ctx.proceed();
+        }
+        return router.onReplica(ctx::proceed);
+    }
+}
@@ -0,0 +1,14 @@
+package io.hyperfoil.tools.horreum.server;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import io.quarkus.agroal.DataSource;
+
+/**
+ * Sets the same default roles on connections of the read replica as {@link JDBCConnectionInterceptor} does on
+ * those of the primary.
+ */
+@ApplicationScoped
+@DataSource(ReplicaRouter.DATASOURCE)
+public class ReplicaConnectionInterceptor extends JDBCConnectionInterceptor {
+}
@@ -0,0 +1,142 @@
+package io.hyperfoil.tools.horreum.server;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import io.agroal.api.AgroalDataSource;
+import io.quarkus.agroal.runtime.AgroalDataSourceUtil;
+import io.quarkus.logging.Log;
+
+/**
+ * Holds the session of the read replica for methods annotated with {@link ReadReplica}. The replica datasource
+ * is not enlisted in JTA transactions; the routed method runs in a read-only transaction of the replica connection
+ * that is rolled back at the end, so that <code>horreum.userroles</code> set by {@link RoleManager} last for the
+ * whole method.
+ */
+@ApplicationScoped
+public class ReplicaRouter {
+    public static final String DATASOURCE = "replica";
+    //@formatter:off
+    private static final String LAG_QUERY = """
+          SELECT CASE
+             WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0
+             ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0)
+          END
+          """;
+    //@formatter:on
+
+    @ConfigProperty(name = "horreum.replica.max-lag", defaultValue = "10s")
+    Duration maxLag;
+
+    @ConfigProperty(name = "horreum.replica.lag-check", defaultValue = "5s")
+    Duration lagCheck;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    SessionFactory sessionFactory;
+
+    private final ThreadLocal<Session> current = new ThreadLocal<>();
+    AgroalDataSource replica;
+    private volatile long lagCheckedAt;
+    private volatile boolean usable;
+
+    @PostConstruct
+    void init() {
+        replica = AgroalDataSourceUtil.dataSourceIfActive(DATASOURCE).orElse(null);
+        if (replica != null) {
+            lagCheckedAt = System.nanoTime() - lagCheck.toNanos();
+            Log.info("Read-only endpoints use the read replica");
+        }
+    }
+
+    /**
+     * @return session of the read replica within a method routed there, session of the primary otherwise
+     */
+    public Session session() {
+        Session session = current.get();
+        return session != null ? session : em.unwrap(Session.class);
+    }
+
+    boolean isRouted() {
+        return current.get() != null;
+    }
+
+    boolean isAvailable() {
+        if (replica == null) {
+            return false;
+        }
+        if (System.nanoTime() - lagCheckedAt >= lagCheck.toNanos()) {
+            checkLag();
+        }
+        return usable;
+    }
+
+    private synchronized void checkLag() {
+        long now = System.nanoTime();
+        if (now - lagCheckedAt < lagCheck.toNanos()) {
+            return;
+        }
+        lagCheckedAt = now;
+        boolean wasUsable = usable;
+        try (Connection connection = replica.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(LAG_QUERY)) {
+            double lag = rs.next() ? rs.getDouble(1) : 0;
+            usable = lag * 1000 <= maxLag.toMillis();
+            if (!usable && wasUsable) {
+                Log.warnf("Read replica lags behind by %.1f s, using the primary for reads", lag);
+            }
+        } catch (SQLException e) {
+            usable = false;
+            if (wasUsable) {
+                Log.warnf(e, "Read replica is not available, using the primary for reads");
+            }
+        }
+        if (usable && !wasUsable) {
+            Log.info("Read replica caught up, using it for reads");
+        }
+    }
+
+    <T> T onReplica(Callable<T> work) throws Exception {
+        Connection connection;
+        try {
+            connection = replica.getConnection();
+            connection.setReadOnly(true);
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            usable = false;
+            Log.warnf(e, "Cannot connect to the read replica, using the primary for reads");
+            return work.call();
+        }
+        try (connection;
+                Session session = sessionFactory.withOptions()
+                        .connection(connection).autoJoinTransactions(false).openSession()) {
+            current.set(session);
+            try {
+                return work.call();
+            } finally {
+                current.remove();
+                try {
+                    connection.rollback();
+                } catch (SQLException e) {
+                    Log.warn("Cannot roll back the read replica transaction", e);
+                }
+            }
+        }
+    }
+}
@@ -5,7 +5,6 @@ import java.util.List;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
-import jakarta.persistence.EntityManager;
 import jakarta.transaction.SystemException;
 import jakarta.transaction.TransactionManager;
 
@@ -21,7 +20,7 @@ public class RoleManager {
     };
 
     @Inject
-    EntityManager em;
+    ReplicaRouter replicaRouter;
 
     @Inject
     TransactionManager txManager;
@@ -34,7 +33,8 @@ public class RoleManager {
         if (roles == null || roles.isEmpty() || Roles.HORREUM_SYSTEM.equals(roles)) {
             return "";
         }
-        Object[] row = (Object[]) em.createNativeQuery(SET_ROLES).setParameter(1, roles).getSingleResult();
+        // on the read replica within methods routed there
+        Object[] row = (Object[]) replicaRouter.session().createNativeQuery(SET_ROLES).setParameter(1, roles).getSingleResult();
 
         if (Log.isDebugEnabled()) { // enable with: `quarkus.log.category."io.hyperfoil.tools.horreum.server.RoleManager".level=DEBUG`
             try {
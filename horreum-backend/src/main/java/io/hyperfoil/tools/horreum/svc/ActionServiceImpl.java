@@ -63,6 +63,9 @@ public class ActionServiceImpl implements ActionService {
     @Inject
     TestServiceImpl testService;
 
+    @Inject
+    RunPayloadStore payloadStore;
+
     @PostConstruct()
     public void postConstruct() {
         plugins = actionPlugins.stream().collect(Collectors.toMap(ActionPlugin::type, Function.identity()));
@@ -136,6 +139,7 @@ public class ActionServiceImpl implements ActionService {
         DatasetDAO datasetDAO = DatasetDAO.findById(datasetId);
         if (datasetDAO != null) {
             Dataset payload = DatasetMapper.from(datasetDAO);
+            payload.data = payloadStore.data(datasetDAO);
             executeActions(ActionEvent.DATASET_LABELS_COMPUTED, testId, payload, true);
         } else {
             throw new RuntimeException("Cannot find datasetId=" + datasetId);
@@ -1,10 +1,10 @@
 package io.hyperfoil.tools.horreum.svc;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,7 +17,6 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -29,7 +28,6 @@ import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
-import jakarta.persistence.NoResultException;
 import jakarta.persistence.PersistenceException;
 import jakarta.persistence.Query;
 import jakarta.persistence.Tuple;
@@ -44,6 +42,7 @@ import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
 import org.hibernate.type.StandardBasicTypes;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -180,7 +179,48 @@ public class AlertingServiceImpl implements AlertingService {
             AND variable_id = ANY(?2)
          ORDER BY variable_id, timestamp DESC
          """;
+
+    // Change detection of a variable and fingerprint runs in a single transaction across all instances,
+    // the key combines the variable ID with a hash of the fingerprint
+    private static final String TRY_LOCK_CHANGE_DETECTION = """
+         SELECT pg_try_advisory_xact_lock((?1::bigint << 32) | (hashtext(COALESCE(?2, 'null'::jsonb)::text) & 4294967295))
+         """;
+    private static final String LOOKUP_WATERMARK = """
+         SELECT timestamp, inclusive FROM change_detection_watermark
+         WHERE variable_id = ?1 AND fingerprint = COALESCE(?2, 'null'::jsonb)
+         """;
+    // a new datapoint moves the watermark back to its timestamp
+    private static final String LOWER_WATERMARK = """
+         INSERT INTO change_detection_watermark AS w (variable_id, fingerprint, timestamp, inclusive)
+         VALUES (?1, COALESCE(?2, 'null'::jsonb), ?3, false)
+         ON CONFLICT (variable_id, fingerprint) DO UPDATE SET timestamp = EXCLUDED.timestamp, inclusive = false
+         WHERE w.timestamp >= EXCLUDED.timestamp
+         """;
+    // change detection moves it forward unless a new datapoint has moved it in the meantime
+    private static final String INSERT_WATERMARK = """
+         INSERT INTO change_detection_watermark (variable_id, fingerprint, timestamp, inclusive)
+         VALUES (?1, COALESCE(?2, 'null'::jsonb), ?3, true)
+         ON CONFLICT (variable_id, fingerprint) DO NOTHING
+         """;
+    private static final String RAISE_WATERMARK = """
+         UPDATE change_detection_watermark SET timestamp = ?3, inclusive = true
+         WHERE variable_id = ?1 AND fingerprint = COALESCE(?2, 'null'::jsonb) AND timestamp = ?4 AND inclusive = ?5
+         """;
+    // datasets ordered by start and ID after the checkpoint, if there is one
+    private static final String NEXT_DATASETS_FOR_RECALCULATION = """
+         SELECT id, start FROM dataset
+         WHERE testid = ?1 AND (EXTRACT(EPOCH FROM start) * 1000 BETWEEN ?2 AND ?3)
+            AND (CAST(?4 AS timestamptz) IS NULL OR (start, id) > (?4, ?5))
+         ORDER BY start, id
+         LIMIT ?6
+         """;
     //@formatter:on
+    // retries of change detection blocked by another transaction back off exponentially up to the maximum delay
+    static final long CHANGE_DETECTION_RETRY_DELAY = 100;
+    static final long CHANGE_DETECTION_MAX_RETRY_DELAY = 10_000;
+    static final int CHANGE_DETECTION_MAX_ATTEMPTS = 10;
+    // completed datapoint recalculations are reported for a while so that clients polling the status see the result
+    private static final Duration RECALCULATION_RETENTION = Duration.ofSeconds(30);
     private static final Instant LONG_TIME_AGO = Instant.ofEpochSecond(0);
     private static final Instant VERY_DISTANT_FUTURE = Instant.parse("2666-06-06T06:06:06.00Z");
 
@@ -190,9 +230,15 @@ public class AlertingServiceImpl implements AlertingService {
     @Inject
     EntityManager em;
 
+    @Inject
+    PersistentLogWriter logWriter;
+
     @Inject
     BlockingTaskDispatcher messageBus;
 
+    @Inject
+    PipelineMetrics metrics;
+
     @Inject
     SecurityIdentity identity;
 
@@ -214,6 +260,12 @@ public class AlertingServiceImpl implements AlertingService {
     @Inject
     ServiceMediator mediator;
 
+    @Inject
+    ConfigurationCache configCache;
+
+    @Inject
+    RecalculationJobs recalculationJobs;
+
     @Inject
     Session session;
 
@@ -222,13 +274,6 @@ public class AlertingServiceImpl implements AlertingService {
 
     static ConcurrentHashMap<Integer, AtomicInteger> retryCounterSet = new ConcurrentHashMap<>();
 
-    // entries can be removed from timer thread while normally this is updated from one of blocking threads
-    private final ConcurrentMap<Integer, Recalculation> recalcProgress = new ConcurrentHashMap<>();
-
-    // A new datapoint invalidates anything past its timestamp. Any attempt to recalculate starts
-    // at the timestamp.
-    private final ConcurrentMap<VarAndFingerprint, UpTo> validUpTo = new ConcurrentHashMap<>();
-
     static {
         System.setProperty("polyglot.engine.WarnInterpreterOnly", "false");
     }
@@ -263,12 +308,8 @@ public class AlertingServiceImpl implements AlertingService {
         if (event.isRecalculation) {
             sendNotifications = false;
         } else {
-            try {
-                sendNotifications = (Boolean) em.createNativeQuery("SELECT notificationsenabled FROM test WHERE id = ?")
-                        .setParameter(1, dataset.testid).getSingleResult();
-            } catch (NoResultException e) {
-                sendNotifications = true;
-            }
+            ConfigurationCache.TestConfig test = configCache.test(dataset.testid);
+            sendNotifications = test == null || test.notificationsEnabled();
         }
         Recalculation recalculation = new Recalculation();
         recalculation.clearDatapoints = true;
@@ -287,7 +328,8 @@ public class AlertingServiceImpl implements AlertingService {
                 .addScalar("condition", StandardBasicTypes.TEXT)
                 .addScalar("value", JsonBinaryType.INSTANCE)
                 .getResultList();
-        Util.evaluateWithCombinationFunction(ruleValues, row -> (String) row[1], row -> (JsonNode) row[2],
+        Util.evaluateWithCombinationFunction(metrics.jsEvaluation(), ruleValues, row -> (String) row[1],
+                row -> (JsonNode) row[2],
                 (row, result) -> {
                     int ruleId = (int) row[0];
                     if (result.isBoolean()) {
@@ -315,16 +357,17 @@ public class AlertingServiceImpl implements AlertingService {
     private void recalculateDatapointsForDataset(DatasetDAO dataset, boolean notify, boolean debug,
             Recalculation recalculation) {
         Log.debugf("Analyzing dataset %d (%d/%d)", (long) dataset.id, (long) dataset.run.id, dataset.ordinal);
-        TestDAO test = TestDAO.findById(dataset.testid);
+        ConfigurationCache.TestConfig test = configCache.test(dataset.testid);
         if (test == null) {
             Log.errorf("Cannot load test ID %d", dataset.testid);
             return;
         }
-        if (!testFingerprint(dataset, test.fingerprintFilter)) {
+        if (!testFingerprint(dataset, test.fingerprintFilter())) {
             return;
         }
 
-        emitDatapoints(dataset, notify, debug, recalculation);
+        metrics.time(PipelineMetrics.DATAPOINTS, dataset.testid,
+                () -> emitDatapoints(dataset, notify, debug, recalculation));
     }
 
     private boolean testFingerprint(DatasetDAO dataset, String filter) {
@@ -345,7 +388,7 @@ public class AlertingServiceImpl implements AlertingService {
         } else {
             fingerprint = JsonNodeFactory.instance.nullNode();
         }
-        boolean testResult = Util.evaluateTest(filter, fingerprint,
+        boolean testResult = Util.evaluateTest(metrics.jsEvaluation(), filter, fingerprint,
                 value -> {
                     logCalculationMessage(dataset, PersistentLogDAO.ERROR,
                             "Evaluation of fingerprint failed: '%s' is not a boolean", value);
@@ -446,7 +489,7 @@ public class AlertingServiceImpl implements AlertingService {
             String timestampFunction = (String) timestampList.get(0)[0];
             JsonNode value = (JsonNode) timestampList.get(0)[1];
             if (timestampFunction != null && !timestampFunction.isBlank()) {
-                value = Util.evaluateOnce(timestampFunction, value, Util::convertToJson,
+                value = Util.evaluateOnce(metrics.jsEvaluation(), timestampFunction, value, Util::convertToJson,
                         (code, throwable) -> logCalculationMessage(dataset, PersistentLogDAO.ERROR,
                                 "Evaluation of timestamp failed: '%s' Code: <code><pre>%s</pre></code>", throwable.getMessage(),
                                 code),
@@ -461,7 +504,7 @@ public class AlertingServiceImpl implements AlertingService {
             }
         }
         Instant finalTimestamp = timestamp;
-        Util.evaluateWithCombinationFunction(values, data -> data.calculation, data -> data.value,
+        Util.evaluateWithCombinationFunction(metrics.jsEvaluation(), values, data -> data.calculation, data -> data.value,
                 (data, result) -> {
                     Double value = Util.toDoubleOrNull(result,
                             error -> logCalculationMessage(dataset, PersistentLogDAO.ERROR,
@@ -567,10 +610,7 @@ public class AlertingServiceImpl implements AlertingService {
     }
 
     private void logCalculationMessage(int testId, int datasetId, int level, String format, Object... args) {
-        String msg = args.length == 0 ? format : format.formatted(args);
-        Log.tracef("Logging %s for test %d, dataset %d: %s", PersistentLogDAO.logLevel(level), testId, datasetId, msg);
-        new DatasetLogDAO(em.getReference(TestDAO.class, testId), em.getReference(DatasetDAO.class, datasetId),
-                level, "variables", msg).persist();
+        logWriter.logDataset(testId, datasetId, "variables", level, format, args);
     }
 
     private void logMissingDataMessage(DatasetDAO dataSet, int level, String format, Object... args) {
@@ -578,17 +618,11 @@ public class AlertingServiceImpl implements AlertingService {
     }
 
     private void logMissingDataMessage(int testId, int datasetId, int level, String format, Object... args) {
-        String msg = args.length == 0 ? format : format.formatted(args);
-        Log.tracef("Logging %s for test %d, dataset %d: %s", PersistentLogDAO.logLevel(level), testId, datasetId, msg);
-        new DatasetLogDAO(em.getReference(TestDAO.class, testId), em.getReference(DatasetDAO.class, datasetId),
-                level, "missingdata", msg).persist();
+        logWriter.logDataset(testId, datasetId, "missingdata", level, format, args);
     }
 
     private void logChangeDetectionMessage(int testId, int datasetId, int level, String format, Object... args) {
-        String msg = args.length == 0 ? format : format.formatted(args);
-        Log.tracef("Logging %s for test %d, dataset %d: %s", PersistentLogDAO.logLevel(level), testId, datasetId, msg);
-        new DatasetLogDAO(em.getReference(TestDAO.class, testId), em.getReference(DatasetDAO.class, datasetId),
-                level, "changes", msg).persist();
+        logWriter.logDataset(testId, datasetId, "changes", level, format, args);
     }
 
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
@@ -604,17 +638,15 @@ public class AlertingServiceImpl implements AlertingService {
                 JsonNode fingerprint = FingerprintDAO.<FingerprintDAO> findByIdOptional(dataPoint.datasetId)
                         .map(fp -> fp.fingerprint).orElse(null);
 
-                VarAndFingerprint key = new VarAndFingerprint(variable.id, fingerprint);
-                Log.debugf("Invalidating variable %d FP %s timestamp %s, current value is %s", variable.id, fingerprint,
-                        dataPoint.timestamp, validUpTo.get(key));
-                validUpTo.compute(key, (ignored, current) -> {
-                    if (current == null || !dataPoint.timestamp.isAfter(current.timestamp)) {
-                        return new UpTo(dataPoint.timestamp, false);
-                    } else {
-                        return current;
-                    }
-                });
-                runChangeDetection(VariableDAO.findById(variable.id), fingerprint, event.notify, true, lastDatapoint);
+                // A new datapoint invalidates anything past its timestamp. Any attempt to recalculate starts
+                // at the timestamp.
+                Log.debugf("Invalidating variable %d FP %s timestamp %s", variable.id, fingerprint, dataPoint.timestamp);
+                session.createNativeQuery(LOWER_WATERMARK)
+                        .setParameter(1, variable.id)
+                        .setParameter(2, fingerprint, JsonBinaryType.INSTANCE)
+                        .setParameter(3, dataPoint.timestamp, StandardBasicTypes.INSTANT)
+                        .executeUpdate();
+                runChangeDetection(variable, fingerprint, event.notify, true, lastDatapoint, 0);
             } else {
                 Log.warnf("Could not process new datapoint for dataset %d at %s, could not find variable by id %d ",
                         dataPoint.datasetId, dataPoint.timestamp, dataPoint.variable == null ? -1 : dataPoint.variable.id);
@@ -627,13 +659,52 @@ public class AlertingServiceImpl implements AlertingService {
 
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     @Transactional
-    void tryRunChangeDetection(VariableDAO variable, JsonNode fingerprint, boolean notify, boolean lastDatapoint) {
-        runChangeDetection(variable, fingerprint, notify, false, lastDatapoint);
+    void tryRunChangeDetection(VariableDAO variable, JsonNode fingerprint, boolean notify, boolean lastDatapoint,
+            int attempt) {
+        runChangeDetection(variable, fingerprint, notify, false, lastDatapoint, attempt);
     }
 
+    /**
+     * @param attempt number of previous attempts that found change detection locked by another transaction
+     */
     private void runChangeDetection(VariableDAO variable, JsonNode fingerprint, boolean notify, boolean expectExists,
-            boolean lastDatapoint) {
-        UpTo valid = validUpTo.get(new VarAndFingerprint(variable.id, fingerprint));
+            boolean lastDatapoint, int attempt) {
+        metrics.time(PipelineMetrics.CHANGE_DETECTION, variable.testId,
+                () -> detectChanges(variable, fingerprint, notify, expectExists, lastDatapoint, attempt));
+    }
+
+    static long changeDetectionRetryDelay(int attempt) {
+        return Math.min(CHANGE_DETECTION_RETRY_DELAY << Math.min(attempt, 16), CHANGE_DETECTION_MAX_RETRY_DELAY);
+    }
+
+    private void detectChanges(VariableDAO variable, JsonNode fingerprint, boolean notify, boolean expectExists,
+            boolean lastDatapoint, int attempt) {
+        boolean locked = session.createNativeQuery(TRY_LOCK_CHANGE_DETECTION, Boolean.class)
+                .setParameter(1, variable.id)
+                .setParameter(2, fingerprint, JsonBinaryType.INSTANCE)
+                .getSingleResult();
+        if (!locked) {
+            if (attempt + 1 >= CHANGE_DETECTION_MAX_ATTEMPTS) {
+                // the watermark still marks the datapoints as invalid, next change detection of the variable covers them
+                Log.warnf("Change detection for variable %d, fingerprint %s was locked in %d attempts, giving up",
+                        variable.id, fingerprint, attempt + 1);
+                return;
+            }
+            // another transaction is running change detection for the same datapoints, retry once it is done
+            long delay = changeDetectionRetryDelay(attempt);
+            Log.debugf("Change detection for variable %d, fingerprint %s is running, retrying in %d ms", (Object) variable.id,
+                    fingerprint, delay);
+            Util.doAfterCommit(tm, () -> vertx.setTimer(delay, timerId -> messageBus
+                    .executeForTest(variable.testId,
+                            () -> tryRunChangeDetection(variable, fingerprint, notify, lastDatapoint, attempt + 1))));
+            return;
+        }
+        UpTo valid = session.createNativeQuery(LOOKUP_WATERMARK, Object[].class)
+                .setParameter(1, variable.id)
+                .setParameter(2, fingerprint, JsonBinaryType.INSTANCE)
+                .addScalar("timestamp", StandardBasicTypes.INSTANT)
+                .addScalar("inclusive", StandardBasicTypes.BOOLEAN)
+                .getResultStream().findFirst().map(row -> new UpTo((Instant) row[0], (Boolean) row[1])).orElse(null);
         Instant nextTimestamp = session.createNativeQuery(
                 "SELECT MIN(timestamp) FROM datapoint dp LEFT JOIN fingerprint fp ON dp.dataset_id = fp.dataset_id " +
                         "WHERE dp.variable_id = ?1 AND (timestamp > ?2 OR (timestamp = ?2 AND ?3)) AND json_equals(fp.fingerprint, ?4)",
@@ -700,17 +771,17 @@ public class AlertingServiceImpl implements AlertingService {
             }
         } else {
             int datasetId = dataPoints.get(0).getDatasetId();
-            for (ChangeDetectionDAO detection : ChangeDetectionDAO.<ChangeDetectionDAO> find("variable", variable).list()) {
-                ChangeDetectionModel model = modelResolver.getModel(ChangeDetectionModelType.fromString(detection.model));
+            for (ConfigurationCache.ChangeDetectionConfig detection : configCache.changeDetections(variable.id)) {
+                ChangeDetectionModel model = modelResolver.getModel(ChangeDetectionModelType.fromString(detection.model()));
                 if (model == null) {
                     logChangeDetectionMessage(variable.testId, datasetId, PersistentLogDAO.ERROR,
-                            "Cannot find change detection model %s", detection.model);
+                            "Cannot find change detection model %s", detection.model());
                     continue;
                 }
                 //Only run bulk models on the last datapoint, otherwise run on every datapoint
                 if (model.getType() == ModelType.CONTINOUS || (model.getType() == ModelType.BULK && lastDatapoint)) {
                     try {
-                        model.analyze(dataPoints, detection.config, change -> {
+                        model.analyze(dataPoints, detection.config(), change -> {
                             logChangeDetectionMessage(variable.testId, datasetId, PersistentLogDAO.DEBUG,
                                     "Change %s detected using datapoints %s", change, reversedAndLimited(dataPoints));
                             DatasetDAO.Info info = session
@@ -728,8 +799,8 @@ public class AlertingServiceImpl implements AlertingService {
                                     }).getSingleResult();
                             em.persist(change);
                             Hibernate.initialize(change.dataset.run.id);
-                            String testName = TestDAO.<TestDAO> findByIdOptional(variable.testId).map(test -> test.name)
-                                    .orElse("<unknown>");
+                            ConfigurationCache.TestConfig test = configCache.test(variable.testId);
+                            String testName = test != null ? test.name() : "<unknown>";
                             Change.Event event = new Change.Event(ChangeMapper.from(change), testName,
                                     DatasetMapper.fromInfo(info), notify);
                             if (mediator.testMode())
@@ -745,22 +816,27 @@ public class AlertingServiceImpl implements AlertingService {
                 }
             }
         }
+        validateUpTo(variable, fingerprint, valid, nextTimestamp);
         Util.doAfterCommit(tm, () -> {
-            validateUpTo(variable, fingerprint, nextTimestamp);
             //assume not last datapoint if we have found more
-            messageBus.executeForTest(variable.testId, () -> tryRunChangeDetection(variable, fingerprint, notify, false));
+            messageBus.executeForTest(variable.testId, () -> tryRunChangeDetection(variable, fingerprint, notify, false, 0));
         });
     }
 
-    private void validateUpTo(VariableDAO variable, JsonNode fingerprint, Instant timestamp) {
-        validUpTo.compute(new VarAndFingerprint(variable.id, fingerprint), (ignored, current) -> {
-            Log.debugf("Attempt %s, valid up to %s", timestamp, current);
-            if (current == null || !current.timestamp.isAfter(timestamp)) {
-                return new UpTo(timestamp, true);
-            } else {
-                return current;
-            }
-        });
+    private void validateUpTo(VariableDAO variable, JsonNode fingerprint, UpTo current, Instant timestamp) {
+        Log.debugf("Attempt %s, valid up to %s", timestamp, current);
+        NativeQuery<?> query;
+        if (current == null) {
+            query = session.createNativeQuery(INSERT_WATERMARK);
+        } else {
+            query = session.createNativeQuery(RAISE_WATERMARK)
+                    .setParameter(4, current.timestamp, StandardBasicTypes.INSTANT)
+                    .setParameter(5, current.inclusive);
+        }
+        query.setParameter(1, variable.id)
+                .setParameter(2, fingerprint, JsonBinaryType.INSTANCE)
+                .setParameter(3, timestamp, StandardBasicTypes.INSTANT)
+                .executeUpdate();
     }
 
     private String reversedAndLimited(List<DataPointDAO> list) {
@@ -841,6 +917,7 @@ public class AlertingServiceImpl implements AlertingService {
             });
 
             em.flush();
+            configCache.onVariablesUpdated();
         } catch (PersistenceException e) {
             Log.error("Failed to update variables", e);
             throw new WebApplicationException(e, Response.serverError().build());
@@ -992,68 +1069,104 @@ public class AlertingServiceImpl implements AlertingService {
     @WithRoles
     public void recalculateDatapoints(int testId, boolean notify,
             boolean debug, Boolean clearDatapoints, Long from, Long to) {
+        checkRecalculationAllowed(testId);
+        ObjectNode params = Util.OBJECT_MAPPER.createObjectNode().put("notify", notify).put("debug", debug)
+                .put("clear", clearDatapoints == null || clearDatapoints).put("from", from).put("to", to);
+        // the number of datasets is set once they are selected
+        if (recalculationJobs.start(testId, RecalculationJobs.DATAPOINTS, 0, params) == null) {
+            Log.debugf("Already started recalculation on test %d, ignoring.", testId);
+        }
+    }
+
+    @Override
+    @RolesAllowed(Roles.TESTER)
+    @WithRoles
+    public void pauseDatapointRecalculation(int testId) {
+        checkRecalculationAllowed(testId);
+        if (!recalculationJobs.pause(testId, RecalculationJobs.DATAPOINTS)) {
+            throw ServiceException.notFound("No running recalculation for test " + testId);
+        }
+    }
+
+    @Override
+    @RolesAllowed(Roles.TESTER)
+    @WithRoles
+    public void resumeDatapointRecalculation(int testId) {
+        checkRecalculationAllowed(testId);
+        if (!recalculationJobs.resume(testId, RecalculationJobs.DATAPOINTS)) {
+            throw ServiceException.notFound("No paused recalculation for test " + testId);
+        }
+    }
+
+    @Override
+    @RolesAllowed(Roles.TESTER)
+    @WithRoles
+    public void cancelDatapointRecalculation(int testId) {
+        checkRecalculationAllowed(testId);
+        if (!recalculationJobs.cancel(testId, RecalculationJobs.DATAPOINTS)) {
+            throw ServiceException.notFound("No recalculation in progress for test " + testId);
+        }
+    }
+
+    private void checkRecalculationAllowed(int testId) {
         TestDAO test = TestDAO.findById(testId);
         if (test == null) {
             throw ServiceException.notFound("Test " + testId + " does not exist or is not available.");
         } else if (!Roles.hasRoleWithSuffix(identity, test.owner, "-tester")) {
             throw ServiceException.forbidden("This user cannot trigger the recalculation");
         }
-
-        messageBus.executeForTest(testId, () -> {
-            startRecalculation(testId, notify, debug, clearDatapoints == null ? true : clearDatapoints, from, to);
-        });
     }
 
-    void startRecalculation(int testId, boolean notify, boolean debug, boolean clearDatapoints, Long from, Long to) {
+    /**
+     * Recalculates the datapoints of the next batch of datasets after the checkpoint of the job. Before the first
+     * batch the datapoints of all datasets in the range are removed; each dataset also removes its own datapoints
+     * before it is recalculated, so that a batch repeated after a restart does not create duplicates.
+     *
+     * @return <code>null</code> when there are no more datasets
+     */
+    RecalculationJobs.Batch recalculateDatapoints(RecalculationJobs.Job job) {
+        int testId = job.testId();
+        JsonNode params = job.params();
+        boolean notify = params.path("notify").asBoolean();
+        boolean debug = params.path("debug").asBoolean();
+        Long from = params.hasNonNull("from") ? params.get("from").asLong() : null;
+        Long to = params.hasNonNull("to") ? params.get("to").asLong() : null;
         Recalculation recalculation = new Recalculation();
-        Recalculation previous = recalcProgress.putIfAbsent(testId, recalculation);
-        while (previous != null) {
-            if (!previous.done) {
-                Log.debugf("Already started recalculation on test %d, ignoring.", testId);
-                return;
-            }
-            if (recalcProgress.replace(testId, previous, recalculation)) {
-                break;
-            }
-            previous = recalcProgress.putIfAbsent(testId, recalculation);
-        }
-        recalculation.clearDatapoints = clearDatapoints;
-
-        try {
-            Log.debugf("Updating fingerprints for test %d", testId);
-            //update fingerprints before starting recalculation
-            //TODO: check if we need to update fingerprints for all tests
-            mediator.updateFingerprints(testId);
+        recalculation.clearDatapoints = params.path("clear").asBoolean(true);
+        Set<Integer> lastDatasets = new HashSet<>();
+        if (job.checkpoint() == null) {
+            // fingerprints are refreshed when the fingerprint labels change, only fill in the missing ones
+            mediator.createMissingFingerprints(testId);
             Log.debugf("About to recalculate datapoints in test %d between %s and %s", testId, from, to);
             //TODO:: determine if we should clear datapoints
-            recalculation.datasets = getDatasetsForRecalculation(testId, from, to, clearDatapoints);
-            int numRuns = recalculation.datasets.size();
-            Log.debugf("Starting recalculation of test %d, %d runs", testId, numRuns);
-            int completed = 0;
-            recalcProgress.put(testId, recalculation);
-            //TODO:: this could be more streamlined
+            Map<Integer, String> datasets = getDatasetsForRecalculation(testId, from, to, recalculation.clearDatapoints);
+            Log.debugf("Starting recalculation of test %d, %d runs", testId, datasets.size());
+            // the last dataset of each fingerprint
             Map<String, Integer> lastDatapoints = new HashMap<>();
-            recalculation.datasets.entrySet().forEach(entry -> lastDatapoints.put(entry.getValue(), entry.getKey()));
-            Set<Integer> lastDatapointSet = lastDatapoints.values().stream().collect(Collectors.toSet());
-            for (int datasetId : recalculation.datasets.keySet()) {
-                // Since the evaluation might take few moments and we're dealing potentially with thousands
-                // of runs we'll process each run in a separate transaction
-                if (lastDatapointSet.contains(datasetId)) {
-                    recalculation.lastDatapoint = true;
-                } else {
-                    recalculation.lastDatapoint = false;
-                }
-                recalculateForDataset(datasetId, notify, debug, recalculation);
-                recalculation.progress = 100 * ++completed / numRuns;
-            }
-
-        } catch (Throwable t) {
-            Log.error("Recalculation failed", t);
-            throw t;
-        } finally {
-            recalculation.done = true;
-            vertx.setTimer(30_000, timerId -> recalcProgress.remove(testId, recalculation));
+            datasets.forEach((datasetId, fingerprint) -> lastDatapoints.put(fingerprint, datasetId));
+            lastDatasets.addAll(lastDatapoints.values());
+            recalculationJobs.prepare(job.id(), datasets.size(),
+                    ((ObjectNode) params.deepCopy()).set("last", Util.OBJECT_MAPPER.valueToTree(lastDatasets)));
+        } else {
+            params.path("last").forEach(datasetId -> lastDatasets.add(datasetId.asInt()));
+        }
+        List<Object[]> datasets = nextDatasetsForRecalculation(testId, from, to, job.checkpoint());
+        if (datasets.isEmpty()) {
+            return null;
         }
+        for (Object[] row : datasets) {
+            int datasetId = (Integer) row[0];
+            // Since the evaluation might take few moments and we're dealing potentially with thousands
+            // of runs we'll process each run in a separate transaction
+            recalculation.lastDatapoint = lastDatasets.contains(datasetId);
+            recalculateForDataset(datasetId, notify, debug, recalculation);
+        }
+        Object[] last = datasets.get(datasets.size() - 1);
+        JsonNode withoutValue = recalculation.datasetsWithoutValue.isEmpty() ? null
+                : Util.OBJECT_MAPPER.valueToTree(
+                        recalculation.datasetsWithoutValue.values().stream().map(DatasetMapper::fromInfo).toList());
+        return new RecalculationJobs.Batch(RecalculationJobs.checkpoint((Instant) last[1], (Integer) last[0]),
+                datasets.size(), 0, recalculation.errors, withoutValue);
     }
 
     // It doesn't make sense to limit access to particular user when doing the recalculation,
@@ -1063,7 +1176,7 @@ public class AlertingServiceImpl implements AlertingService {
     Map<Integer, String> getDatasetsForRecalculation(Integer testId, Long from, Long to, boolean clearDatapoints) {
         Query query = session
                 .createNativeQuery(
-                        "SELECT id, fingerprint FROM dataset LEFT JOIN fingerprint ON dataset.id = fingerprint.dataset_id WHERE testid = ?1 AND (EXTRACT(EPOCH FROM start) * 1000 BETWEEN ?2 AND ?3) ORDER BY start",
+                        "SELECT id, fingerprint FROM dataset LEFT JOIN fingerprint ON dataset.id = fingerprint.dataset_id WHERE testid = ?1 AND (EXTRACT(EPOCH FROM start) * 1000 BETWEEN ?2 AND ?3) ORDER BY start, id",
                         Tuple.class)
                 .setParameter(1, testId)
                 .setParameter(2, from == null ? Long.MIN_VALUE : from)
@@ -1086,11 +1199,32 @@ public class AlertingServiceImpl implements AlertingService {
         return ids;
     }
 
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    List<Object[]> nextDatasetsForRecalculation(int testId, Long from, Long to, JsonNode checkpoint) {
+        return session.createNativeQuery(NEXT_DATASETS_FOR_RECALCULATION, Object[].class)
+                .setParameter(1, testId)
+                .setParameter(2, from == null ? Long.MIN_VALUE : from)
+                .setParameter(3, to == null ? Long.MAX_VALUE : to)
+                .setParameter(4, RecalculationJobs.checkpointStart(checkpoint), StandardBasicTypes.INSTANT)
+                .setParameter(5, RecalculationJobs.checkpointId(checkpoint), StandardBasicTypes.INTEGER)
+                .setParameter(6, recalculationJobs.batchSize)
+                .addScalar("id", StandardBasicTypes.INTEGER)
+                .addScalar("start", StandardBasicTypes.INSTANT)
+                .getResultList();
+    }
+
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     @Transactional(Transactional.TxType.REQUIRES_NEW)
     void recalculateForDataset(Integer datasetId, boolean notify, boolean debug, Recalculation recalculation) {
         DatasetDAO dataset = DatasetDAO.findById(datasetId);
         if (dataset != null) {
+            // a batch interrupted before its checkpoint is processed again when the job is resumed or claimed,
+            // results of the previous attempt are replaced rather than duplicated
+            ChangeDAO.delete("dataset.id = ?1 AND confirmed = false", datasetId);
+            if (recalculation.clearDatapoints) {
+                DataPointDAO.delete("dataset.id", datasetId);
+            }
             recalculateDatapointsForDataset(dataset, notify, debug, recalculation);
         } else {
             Log.debugf("Could not find dataset with id: %d", datasetId);
@@ -1100,15 +1234,22 @@ public class AlertingServiceImpl implements AlertingService {
     @Override
     @RolesAllowed(Roles.TESTER)
     public DatapointRecalculationStatus getDatapointRecalculationStatus(int testId) {
-        Recalculation recalculation = recalcProgress.get(testId);
+        RecalculationJobs.Job job = recalculationJobs.find(testId, RecalculationJobs.DATAPOINTS, RECALCULATION_RETENTION);
         DatapointRecalculationStatus status = new DatapointRecalculationStatus();
-        status.percentage = recalculation == null ? 100 : recalculation.progress;
-        status.done = recalculation == null || recalculation.done;
-        if (recalculation != null) {
-            status.totalDatasets = recalculation.datasets.size();
-            status.errors = recalculation.errors;
-            status.datasetsWithoutValue = recalculation.datasetsWithoutValue.values().stream().map(DatasetMapper::fromInfo)
-                    .collect(Collectors.toList());
+        status.done = job == null || job.completed();
+        if (job == null || job.total() == 0) {
+            status.percentage = status.done ? 100 : 0;
+        } else {
+            status.percentage = 100 * job.finished() / job.total();
+        }
+        if (job != null) {
+            status.totalDatasets = job.total();
+            status.errors = job.errors();
+            status.datasetsWithoutValue = job.withoutValue() == null ? List.of()
+                    : Util.OBJECT_MAPPER.convertValue(job.withoutValue(), new TypeReference<List<Dataset.Info>>() {
+                    });
+            status.state = job.state();
+            status.throughput = job.throughput();
         }
         return status;
     }
@@ -1188,11 +1329,17 @@ public class AlertingServiceImpl implements AlertingService {
         test.timelineLabels = toJsonArray(update.timelineLabels);
         test.timelineFunction = "";
         test.timelineFunction = update.timelineFunction;
-        test.fingerprintLabels = toJsonArray(update.fingerprintLabels);
+        ArrayNode fingerprintLabels = toJsonArray(update.fingerprintLabels);
+        boolean fingerprintChanged = !Objects.equals(test.fingerprintLabels, fingerprintLabels);
+        test.fingerprintLabels = fingerprintLabels;
         // In case the filter is null we need to force the property to be dirty
         test.fingerprintFilter = "";
         test.fingerprintFilter = update.fingerprintFilter;
         test.persistAndFlush();
+        configCache.onTestUpdated(testId);
+        if (fingerprintChanged) {
+            mediator.updateFingerprints(testId);
+        }
     }
 
     private ArrayNode toJsonArray(List<String> labels) {
@@ -1297,7 +1444,7 @@ public class AlertingServiceImpl implements AlertingService {
         boolean match = true;
         if (rule.condition != null && !rule.condition.isBlank()) {
             String ruleName = rule.name == null ? "#" + rule.id : rule.name;
-            match = Util.evaluateTest(rule.condition, value, notBoolean -> {
+            match = Util.evaluateTest(metrics.jsEvaluation(), rule.condition, value, notBoolean -> {
                 logMissingDataMessage(rule.testId(), datasetId, PersistentLogDAO.ERROR,
                         "Missing data rule %s result is not a boolean: %s", ruleName, notBoolean);
                 return true;
@@ -1389,9 +1536,6 @@ public class AlertingServiceImpl implements AlertingService {
     // Note: this class must be public - otherwise when this is used as a parameter to
     // a method in AlertingServiceImpl the interceptors would not be invoked.
     public static class Recalculation {
-        Map<Integer, String> datasets = Collections.emptyMap();
-        int progress;
-        boolean done;
         public int errors;
 
         boolean lastDatapoint;
@@ -1400,31 +1544,6 @@ public class AlertingServiceImpl implements AlertingService {
         Map<Integer, DatasetDAO.Info> datasetsWithoutValue = new HashMap<>();
     }
 
-    static final class VarAndFingerprint {
-        final int varId;
-        final JsonNode fingerprint;
-
-        VarAndFingerprint(int varId, JsonNode fingerprint) {
-            this.varId = varId;
-            this.fingerprint = fingerprint;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o)
-                return true;
-            if (o == null || getClass() != o.getClass())
-                return false;
-            VarAndFingerprint that = (VarAndFingerprint) o;
-            return varId == that.varId && Objects.equals(fingerprint, that.fingerprint);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(varId, fingerprint);
-        }
-    }
-
     private static class UpTo {
         final Instant timestamp;
         final boolean inclusive;
@@ -7,13 +7,11 @@ import jakarta.annotation.PostConstruct;
 import jakarta.annotation.security.PermitAll;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
-import jakarta.persistence.EntityManager;
 import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.core.Response;
 
 import org.eclipse.microprofile.config.Config;
 import org.eclipse.microprofile.config.ConfigProvider;
-import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -23,6 +21,8 @@ import io.hyperfoil.tools.horreum.api.internal.services.ChangesService;
 import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.VariableDAO;
+import io.hyperfoil.tools.horreum.server.ReadReplica;
+import io.hyperfoil.tools.horreum.server.ReplicaRouter;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 
 /**
@@ -32,7 +32,7 @@ import io.hyperfoil.tools.horreum.server.WithRoles;
 @ApplicationScoped
 public class ChangesServiceImpl implements ChangesService {
     @Inject
-    EntityManager em;
+    ReplicaRouter replicaRouter;
 
     private final List<String> allowedOrigins = new ArrayList<>();
 
@@ -63,6 +63,7 @@ public class ChangesServiceImpl implements ChangesService {
         return VariableDAO.<VariableDAO> listAll().stream().map(v -> String.valueOf(v.id)).toArray(String[]::new);
     }
 
+    @ReadReplica
     @WithRoles
     @Override
     public List<TimeseriesTarget> query(Query query) {
@@ -87,7 +88,8 @@ public class ChangesServiceImpl implements ChangesService {
             if (variableId < 0) {
                 throw ServiceException.badRequest("Target must be variable ID");
             }
-            VariableDAO variable = VariableDAO.findById(variableId);
+            // through the routed session, so that the variable is read with the roles of the user
+            VariableDAO variable = replicaRouter.session().find(VariableDAO.class, variableId);
             String variableName = String.valueOf(variableId);
             if (variable != null) {
                 variableName = variable.name;
@@ -110,7 +112,7 @@ public class ChangesServiceImpl implements ChangesService {
                         "LEFT JOIN fingerprint fp ON fp.dataset_id = dp.dataset_id WHERE json_equals(fp.fingerprint, (?4)::jsonb) ");
             }
             sql.append("ORDER BY timestamp ASC");
-            NativeQuery<DataPointDAO> nativeQuery = em.unwrap(Session.class)
+            NativeQuery<DataPointDAO> nativeQuery = replicaRouter.session()
                     .createNativeQuery(sql.toString(), DataPointDAO.class)
                     .setParameter(1, variableId)
                     .setParameter(2, query.range.from)
@@ -152,6 +154,7 @@ public class ChangesServiceImpl implements ChangesService {
     }
 
     @Override
+    @ReadReplica
     @WithRoles
     public List<AnnotationDefinition> annotations(AnnotationsQuery query) {
         if (query == null) {
@@ -179,7 +182,7 @@ public class ChangesServiceImpl implements ChangesService {
         if (fingerprint != null) {
             sql.append("AND json_equals(fp.fingerprint, (?4)::jsonb)");
         }
-        NativeQuery<ChangeDAO> nativeQuery = em.unwrap(Session.class).createNativeQuery(sql.toString(), ChangeDAO.class)
+        NativeQuery<ChangeDAO> nativeQuery = replicaRouter.session().createNativeQuery(sql.toString(), ChangeDAO.class)
                 .setParameter(1, variableId)
                 .setParameter(2, query.range.from)
                 .setParameter(3, query.range.to);
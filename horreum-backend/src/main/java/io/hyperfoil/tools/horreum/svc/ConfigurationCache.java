@@ -0,0 +1,153 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionManager;
+import jakarta.transaction.Transactional;
+
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Snapshots of the test and change detection configuration read for every processed dataset and datapoint.
+ * <p>
+ * The snapshots are loaded with the <code>horreum.system</code> role, bypassing row level security, and are meant
+ * only for the processing pipeline; they must not be returned to users. Statement triggers on the
+ * <code>test</code>, <code>variable</code> and <code>changedetection</code> tables increment the version in
+ * <code>config_version</code>, which every instance polls every <code>horreum.config-cache.refresh-interval</code>
+ * and drops all snapshots when it changed. Updates made through this instance also invalidate the affected
+ * snapshots as soon as they are committed.
+ * <p>
+ * Snapshots are loaded in a separate transaction so that changes not yet committed by the caller's transaction,
+ * which could still roll back, are never cached; the caller sees the committed configuration.
+ */
+@ApplicationScoped
+public class ConfigurationCache {
+    //@formatter:off
+    private static final String LOAD_TEST = """
+         SELECT name, fingerprint_filter, COALESCE(notificationsenabled, true) AS notifications
+         FROM test WHERE id = ?1
+         """;
+    //@formatter:on
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    TransactionManager tm;
+
+    private final Map<Integer, TestConfig> tests = new ConcurrentHashMap<>();
+    private final Map<Integer, List<ChangeDetectionConfig>> changeDetections = new ConcurrentHashMap<>();
+    // incremented on every invalidation so that snapshots loaded concurrently are not stored
+    private final AtomicLong generation = new AtomicLong();
+    private volatile long version = -1;
+
+    record TestConfig(int id, String name, String fingerprintFilter, boolean notificationsEnabled) {
+    }
+
+    /**
+     * @param config shared between threads, must not be modified
+     */
+    record ChangeDetectionConfig(String model, JsonNode config) {
+    }
+
+    /**
+     * @return configuration of the test or <code>null</code> if it does not exist
+     */
+    TestConfig test(int testId) {
+        return get(tests, testId, this::loadTest);
+    }
+
+    List<ChangeDetectionConfig> changeDetections(int variableId) {
+        return get(changeDetections, variableId, this::loadChangeDetections);
+    }
+
+    /**
+     * Drops the snapshot of the test once the current transaction commits.
+     */
+    void onTestUpdated(int testId) {
+        Util.doAfterCommit(tm, () -> {
+            generation.incrementAndGet();
+            tests.remove(testId);
+        });
+    }
+
+    /**
+     * Drops the change detection snapshots once the current transaction commits.
+     */
+    void onVariablesUpdated() {
+        Util.doAfterCommit(tm, () -> {
+            generation.incrementAndGet();
+            changeDetections.clear();
+        });
+    }
+
+    @Scheduled(every = "{horreum.config-cache.refresh-interval}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void refresh() {
+        long current = loadVersion();
+        if (current != version) {
+            generation.incrementAndGet();
+            tests.clear();
+            changeDetections.clear();
+            version = current;
+        }
+    }
+
+    private <V> V get(Map<Integer, V> cache, int id, IntFunction<V> loader) {
+        V value = cache.get(id);
+        if (value == null) {
+            long loadedGeneration = generation.get();
+            value = loader.apply(id);
+            if (value != null && generation.get() == loadedGeneration) {
+                cache.putIfAbsent(id, value);
+            }
+        }
+        return value;
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    TestConfig loadTest(int testId) {
+        return em.unwrap(Session.class).createNativeQuery(LOAD_TEST, Object[].class)
+                .setParameter(1, testId)
+                .addScalar("name", StandardBasicTypes.TEXT)
+                .addScalar("fingerprint_filter", StandardBasicTypes.TEXT)
+                .addScalar("notifications", StandardBasicTypes.BOOLEAN)
+                .getResultStream()
+                .map(row -> new TestConfig(testId, (String) row[0], (String) row[1], (Boolean) row[2]))
+                .findFirst().orElse(null);
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    List<ChangeDetectionConfig> loadChangeDetections(int variableId) {
+        return em.unwrap(Session.class)
+                .createNativeQuery("SELECT model, config FROM changedetection WHERE variable_id = ?1 ORDER BY id",
+                        Object[].class)
+                .setParameter(1, variableId)
+                .addScalar("model", StandardBasicTypes.TEXT)
+                .addScalar("config", JsonBinaryType.INSTANCE)
+                .getResultStream()
+                .map(row -> new ChangeDetectionConfig((String) row[0], (JsonNode) row[1]))
+                .toList();
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    long loadVersion() {
+        return ((Number) em.createNativeQuery("SELECT version FROM config_version").getSingleResult()).longValue();
+    }
+}
@@ -0,0 +1,107 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.hyperfoil.tools.horreum.api.data.Dataset;
+
+/**
+ * Merges dataset events that were not dispatched yet. Events are keyed by (datasetId, labelId): repeated
+ * events for the same label are sent once and an event for all labels (<code>labelId = -1</code>) subsumes
+ * any single-label events for the dataset. A merged event is a recalculation only if all merged events were.
+ * Used with the AMQP queue backend only; the Postgres work queue merges pending events when they are claimed.
+ */
+final class DatasetEventCoalescer {
+    // guarded by this
+    private final Map<Integer, PendingDataset> pending = new LinkedHashMap<>();
+    private long merged;
+
+    /**
+     * @return <code>true</code> if there were no pending events before, i.e. the caller should schedule a flush
+     */
+    synchronized boolean add(Dataset.EventNew event) {
+        boolean first = pending.isEmpty();
+        PendingDataset existing = pending.get(event.datasetId);
+        if (existing == null) {
+            pending.put(event.datasetId, new PendingDataset(event));
+        } else {
+            existing.merge(event);
+            ++merged;
+        }
+        return first;
+    }
+
+    /**
+     * Removes all pending events.
+     *
+     * @return events to dispatch, in the order in which the datasets were first added
+     */
+    synchronized List<Dataset.EventNew> drain() {
+        List<Dataset.EventNew> events = new ArrayList<>(pending.size());
+        for (var entry : pending.entrySet()) {
+            entry.getValue().toEvents(entry.getKey(), events);
+        }
+        pending.clear();
+        return events;
+    }
+
+    /**
+     * @return number of datasets with pending events
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return number of events merged into another one since the last call
+     */
+    synchronized long resetMerged() {
+        long count = merged;
+        merged = 0;
+        return count;
+    }
+
+    private static class PendingDataset {
+        int testId;
+        int runId;
+        boolean isRecalculation;
+        // null means all labels
+        Set<Integer> labelIds;
+
+        PendingDataset(Dataset.EventNew event) {
+            testId = event.testId;
+            runId = event.runId;
+            isRecalculation = event.isRecalculation;
+            if (event.labelId >= 0) {
+                labelIds = new LinkedHashSet<>();
+                labelIds.add(event.labelId);
+            }
+        }
+
+        void merge(Dataset.EventNew event) {
+            if (runId == 0) {
+                runId = event.runId;
+            }
+            isRecalculation &= event.isRecalculation;
+            if (event.labelId < 0) {
+                labelIds = null;
+            } else if (labelIds != null) {
+                labelIds.add(event.labelId);
+            }
+        }
+
+        void toEvents(int datasetId, List<Dataset.EventNew> events) {
+            if (labelIds == null) {
+                events.add(new Dataset.EventNew(datasetId, testId, runId, -1, isRecalculation));
+            } else {
+                for (int labelId : labelIds) {
+                    events.add(new Dataset.EventNew(datasetId, testId, runId, labelId, isRecalculation));
+                }
+            }
+        }
+    }
+}
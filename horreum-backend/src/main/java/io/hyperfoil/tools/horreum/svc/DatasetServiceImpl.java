@@ -3,11 +3,19 @@ package io.hyperfoil.tools.horreum.svc;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.security.PermitAll;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -19,9 +27,8 @@ import jakarta.transaction.TransactionManager;
 import jakarta.transaction.Transactional;
 import jakarta.ws.rs.DefaultValue;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.hibernate.Hibernate;
-import org.hibernate.ScrollMode;
-import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
 import org.hibernate.type.StandardBasicTypes;
@@ -44,13 +51,16 @@ import io.hyperfoil.tools.horreum.api.services.SchemaService;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
 import io.hyperfoil.tools.horreum.entity.FingerprintDAO;
 import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
-import io.hyperfoil.tools.horreum.entity.alerting.DatasetLogDAO;
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
-import io.hyperfoil.tools.horreum.entity.data.LabelDAO;
 import io.hyperfoil.tools.horreum.entity.data.LabelValueDAO;
-import io.hyperfoil.tools.horreum.entity.data.TestDAO;
+import io.hyperfoil.tools.horreum.entity.data.ViewComponentDAO;
+import io.hyperfoil.tools.horreum.entity.data.ViewDAO;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.jsonpath.JsonPath;
+import io.hyperfoil.tools.horreum.jsonpath.JsonPathException;
 import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
+import io.hyperfoil.tools.horreum.server.ReadReplica;
+import io.hyperfoil.tools.horreum.server.ReplicaRouter;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.Startup;
@@ -70,18 +80,22 @@ public class DatasetServiceImpl implements DatasetService {
             LEFT JOIN label_extractors le ON le.label_id = label.id
             WHERE ds.dataset_id = ?1 AND (?2 < 0 OR label.id = ?2) GROUP BY label.id, label.name, ds.schema_id
          ),
+         elements AS MATERIALIZED (
+            SELECT ds.schema_id, dataset_element(COALESCE(?3, dataset.data) -> ds.index, dataset.runid) #> '{}' AS data
+            FROM dataset
+            JOIN dataset_schemas ds ON dataset.id = ds.dataset_id
+            WHERE dataset.id = ?1 AND ds.schema_id IN (SELECT schema_id FROM used_labels)
+         ),
          lvalues AS (
             SELECT ul.label_id, le.name,
                   (CASE WHEN le.isarray THEN
-                     jsonb_path_query_array(dataset.data -> ds.index, le.jsonpath::jsonpath)
+                     jsonb_path_query_array(elements.data, le.jsonpath::jsonpath)
                  ELSE
-                     jsonb_path_query_first(dataset.data -> ds.index, le.jsonpath::jsonpath)
+                     jsonb_path_query_first(elements.data, le.jsonpath::jsonpath)
                   END) AS value
-            FROM dataset
-            JOIN dataset_schemas ds ON dataset.id = ds.dataset_id
-            JOIN used_labels ul ON ul.schema_id = ds.schema_id
+            FROM elements
+            JOIN used_labels ul ON ul.schema_id = elements.schema_id
             LEFT JOIN label_extractors le ON ul.label_id = le.label_id
-            WHERE dataset.id = ?1
          )
          SELECT lvalues.label_id, ul.name, function,
                (CASE
@@ -94,6 +108,15 @@ public class DatasetServiceImpl implements DatasetService {
          JOIN used_labels ul ON label.id = ul.label_id
          GROUP BY lvalues.label_id, ul.name, function, ul.count
          """;
+    // definitions of the extractors in LABEL_QUERY, for evaluating them in the JVM
+    private static final String LABEL_EXTRACTORS = """
+         SELECT label.id AS label_id, label.name, label.function, ds.index, le.name AS extractor, le.jsonpath, le.isarray
+         FROM dataset_schemas ds
+         JOIN label ON label.schema_id = ds.schema_id
+         LEFT JOIN label_extractors le ON le.label_id = label.id
+         WHERE ds.dataset_id = ?1 AND (?2 < 0 OR label.id = ?2)
+         ORDER BY label.id, ds.index
+         """;
     protected static final String LABEL_PREVIEW = """
          WITH
          le AS (
@@ -102,9 +125,9 @@ public class DatasetServiceImpl implements DatasetService {
          lvalues AS (
             SELECT le.name,
                (CASE WHEN le.isarray THEN
-                  jsonb_path_query_array(dataset.data -> ds.index, le.jsonpath)
+                  jsonb_path_query_array(dataset_element(COALESCE(?4, dataset.data) -> ds.index, dataset.runid), le.jsonpath)
                ELSE
-                  jsonb_path_query_first(dataset.data -> ds.index, le.jsonpath)
+                  jsonb_path_query_first(dataset_element(COALESCE(?4, dataset.data) -> ds.index, dataset.runid), le.jsonpath)
                END) AS value
             FROM le, dataset
             JOIN dataset_schemas ds ON dataset.id = ds.dataset_id
@@ -177,11 +200,65 @@ public class DatasetServiceImpl implements DatasetService {
          LEFT JOIN label_values lv ON dataset.id = lv.dataset_id
          LEFT JOIN label ON label.id = label_id
          """;
+    private static final String DATASET_LABEL_VALUES = """
+         SELECT lv.label_id, label.name, lv.value
+         FROM label_values lv
+         JOIN label ON label.id = lv.label_id
+         WHERE lv.dataset_id = ?1
+         """;
+    // values of the test's fingerprint labels, datasets without any have a single row with NULL name
+    private static final String FINGERPRINT_VALUES = """
+         SELECT ds.id, fpl.name, fpl.value
+         FROM dataset ds
+         JOIN test ON test.id = ds.testid
+         LEFT JOIN LATERAL (
+            SELECT label.name, lv.value
+            FROM label_values lv
+            JOIN label ON label.id = lv.label_id
+            WHERE lv.dataset_id = ds.id AND jsonb_exists(test.fingerprint_labels, label.name)
+         ) fpl ON true
+         WHERE test.fingerprint_labels IS NOT NULL
+         """;
+    private static final String INSERT_FINGERPRINTS = """
+         INSERT INTO fingerprint (dataset_id, fingerprint)
+         SELECT fp.key::integer, fp.value FROM jsonb_each((?1)::jsonb) AS fp
+         """;
+    private static final String UPSERT_DATASET_VIEWS = """
+         INSERT INTO dataset_view (dataset_id, view_id, label_ids, value)
+         SELECT ?1, dv.view_id, dv.label_ids, dv.value
+         FROM jsonb_to_recordset((?2)::jsonb) AS dv(view_id integer, label_ids integer[], value jsonb)
+         ON CONFLICT (dataset_id, view_id) DO UPDATE SET label_ids = EXCLUDED.label_ids, value = EXCLUDED.value
+         """;
+    private static final String CALC_DATASET_VIEWS_BY_TEST_AND_VIEW = """
+         WITH view_agg AS (
+            SELECT ds.dataset_id, vc.id AS vcid, array_agg(DISTINCT label.id) AS label_ids,
+               jsonb_object_agg(label.name, lv.value) AS value
+            FROM dataset
+            JOIN dataset_schemas ds ON ds.dataset_id = dataset.id
+            JOIN label ON label.schema_id = ds.schema_id
+            JOIN viewcomponent vc ON jsonb_exists(vc.labels, label.name) AND vc.view_id = ?1
+            JOIN label_values lv ON lv.label_id = label.id AND lv.dataset_id = ds.dataset_id
+            WHERE dataset.testid = ?2
+            GROUP BY ds.dataset_id, vc.id
+         )
+         INSERT INTO dataset_view (dataset_id, view_id, label_ids, value)
+         SELECT dataset_id, ?1, array_agg(DISTINCT label_id), jsonb_object_agg(vcid, value)
+         FROM view_agg, unnest(label_ids) AS label_id
+         GROUP BY dataset_id
+         """;
     //@formatter:on
+    // datasets whose fingerprints are inserted with a single statement
+    private static final int FINGERPRINT_BATCH_SIZE = 1000;
 
     @Inject
     EntityManager em;
 
+    @Inject
+    PersistentLogWriter logWriter;
+
+    @Inject
+    PipelineMetrics metrics;
+
     @Inject
     ServiceMediator mediator;
 
@@ -191,7 +268,28 @@ public class DatasetServiceImpl implements DatasetService {
     @Inject
     TransactionManager tm;
 
+    @Inject
+    RunPayloadStore payloadStore;
+
+    @Inject
+    ReplicaRouter replicaRouter;
+
+    @ConfigProperty(name = "horreum.label.extraction", defaultValue = "database")
+    String labelExtraction;
+
+    private boolean jvmExtraction;
+
+    @PostConstruct
+    void init() {
+        jvmExtraction = switch (labelExtraction.toLowerCase()) {
+            case "database" -> false;
+            case "jvm" -> true;
+            default -> throw new IllegalArgumentException("Invalid label extraction: " + labelExtraction);
+        };
+    }
+
     @PermitAll
+    @ReadReplica
     @WithRoles
     @Override
     public DatasetService.DatasetList listByTest(int testId, String filter, Integer limit, Integer page, String sort,
@@ -223,7 +321,8 @@ public class DatasetServiceImpl implements DatasetService {
         }
         DatasetService.DatasetList list = new DatasetService.DatasetList();
         list.datasets = query.getResultList();
-        list.total = DatasetDAO.count("testid = ?1", testId);
+        list.total = replicaRouter.session().createNativeQuery("SELECT count(*) FROM dataset WHERE testid = ?1", Long.class)
+                .setParameter(1, testId).getSingleResult();
         return list;
     }
 
@@ -273,7 +372,7 @@ public class DatasetServiceImpl implements DatasetService {
     }
 
     private NativeQuery<DatasetSummary> initTypes(String sql) {
-        return em.unwrap(Session.class).createNativeQuery(sql.toString(), Tuple.class)
+        return replicaRouter.session().createNativeQuery(sql.toString(), Tuple.class)
                 .addScalar("id", StandardBasicTypes.INTEGER)
                 .addScalar("runId", StandardBasicTypes.INTEGER)
                 .addScalar("ordinal", StandardBasicTypes.INTEGER)
@@ -383,6 +482,7 @@ public class DatasetServiceImpl implements DatasetService {
         if (dataset == null || !Roles.hasRoleWithSuffix(identity, dataset.owner, "-tester")) {
             throw ServiceException.badRequest("Dataset not found or insufficient privileges.");
         }
+        JsonNode archived = payloadStore.archivedData(datasetId);
 
         String extractors;
         try {
@@ -398,6 +498,7 @@ public class DatasetServiceImpl implements DatasetService {
                     .setParameter(1, extractors)
                     .setParameter(2, datasetId)
                     .setParameter(3, label.schemaId)
+                    .setParameter(4, archived, JsonBinaryType.INSTANCE)
                     .addScalar("value", JsonBinaryType.INSTANCE).getSingleResult();
         } catch (PersistenceException e) {
             preview.output = Util.explainCauses(e);
@@ -409,7 +510,7 @@ public class DatasetServiceImpl implements DatasetService {
         } else {
             AtomicReference<String> errorRef = new AtomicReference<>();
             AtomicReference<String> outputRef = new AtomicReference<>();
-            JsonNode result = Util.evaluateOnce(label.function, extracted, Util::convertToJson,
+            JsonNode result = Util.evaluateOnce(metrics.jsEvaluation(), label.function, extracted, Util::convertToJson,
                     (code, exception) -> errorRef.set("Execution failed: " + exception.getMessage() + ":\n" + code),
                     outputRef::set);
             preview.value = errorRef.get() == null ? result : JsonNodeFactory.instance.textNode(errorRef.get());
@@ -444,30 +545,42 @@ public class DatasetServiceImpl implements DatasetService {
             throw ServiceException.notFound("Could not find Dataset: " + datasetId
                     + ". If you have recently started a re-tranformation, please wait until datasets are available");
         }
-        return DatasetMapper.from(dataset);
+        Dataset dto = DatasetMapper.from(dataset);
+        dto.data = payloadStore.data(dataset);
+        return dto;
     }
 
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     @Transactional
     void calculateLabelValues(int testId, int datasetId, int queryLabelId, boolean isRecalculation) {
+        metrics.time(PipelineMetrics.LABELS, testId,
+                () -> computeLabelValues(testId, datasetId, queryLabelId, isRecalculation));
+    }
+
+    private void computeLabelValues(int testId, int datasetId, int queryLabelId, boolean isRecalculation) {
         Log.debugf("Calculating label values for dataset %d, label %d", datasetId, queryLabelId);
-        List<Object[]> extracted;
-        try {
-            // Note: we are fetching even labels that are marked as private/could be otherwise inaccessible
-            // to the uploading user. However, the uploader should not have rights to fetch these anyway...
-            extracted = em.unwrap(Session.class).createNativeQuery(LABEL_QUERY, Object[].class)
-                    .setParameter(1, datasetId)
-                    .setParameter(2, queryLabelId)
-                    .addScalar("label_id", StandardBasicTypes.INTEGER)
-                    .addScalar("name", StandardBasicTypes.TEXT)
-                    .addScalar("function", StandardBasicTypes.TEXT)
-                    .addScalar("value", JsonBinaryType.INSTANCE)
-                    .getResultList();
-        } catch (PersistenceException e) {
-            logMessageInNewTx(datasetId, PersistentLogDAO.ERROR,
-                    "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
-            findFailingExtractor(datasetId);
-            return;
+        // archived data are passed to the queries instead of the dataset row, which keeps only their skeleton
+        JsonNode archived = payloadStore.archivedData(datasetId);
+        List<Object[]> extracted = jvmExtraction ? extractInJvm(datasetId, queryLabelId, archived) : null;
+        if (extracted == null) {
+            try {
+                // Note: we are fetching even labels that are marked as private/could be otherwise inaccessible
+                // to the uploading user. However, the uploader should not have rights to fetch these anyway...
+                extracted = em.unwrap(Session.class).createNativeQuery(LABEL_QUERY, Object[].class)
+                        .setParameter(1, datasetId)
+                        .setParameter(2, queryLabelId)
+                        .setParameter(3, archived, JsonBinaryType.INSTANCE)
+                        .addScalar("label_id", StandardBasicTypes.INTEGER)
+                        .addScalar("name", StandardBasicTypes.TEXT)
+                        .addScalar("function", StandardBasicTypes.TEXT)
+                        .addScalar("value", JsonBinaryType.INSTANCE)
+                        .getResultList();
+            } catch (PersistenceException e) {
+                logMessageInNewTx(datasetId, PersistentLogDAO.ERROR,
+                        "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
+                findFailingExtractor(datasetId, archived);
+                return;
+            }
         }
 
         // While any change should remove the label_value first via trigger it is possible
@@ -481,34 +594,180 @@ public class DatasetServiceImpl implements DatasetService {
         }
 
         FingerprintDAO.deleteById(datasetId);
-        Util.evaluateWithCombinationFunction(extracted,
+        List<NamedLabelValue> labelValues = new ArrayList<>(extracted.size());
+        Util.evaluateWithCombinationFunction(metrics.jsEvaluation(), extracted,
                 (row) -> (String) row[2],
                 (row) -> (row[3] instanceof ArrayNode ? flatten((ArrayNode) row[3]) : (JsonNode) row[3]),
-                (row, result) -> createLabelValue(datasetId, testId, (int) row[0], Util.convertToJson(result)),
-                (row) -> createLabelValue(datasetId, testId, (int) row[0], (JsonNode) row[3]),
+                (row, result) -> labelValues
+                        .add(createLabelValue(datasetId, (int) row[0], (String) row[1], Util.convertToJson(result))),
+                (row) -> labelValues.add(createLabelValue(datasetId, (int) row[0], (String) row[1], (JsonNode) row[3])),
                 (row, e, jsCode) -> logMessage(datasetId, PersistentLogDAO.ERROR,
                         "Evaluation of label %s failed: '%s' Code:<pre>%s</pre>", row[0], e.getMessage(), jsCode),
                 (out) -> logMessage(datasetId, PersistentLogDAO.DEBUG, "Output while calculating labels: <pre>%s</pre>", out));
 
-        // create new dataset views from the recently created label values
-        calcDatasetViews(datasetId);
+        // update dataset views from the recently created label values; when a single label
+        // was recalculated the other values are still stored in the database
+        calcDatasetViews(datasetId, testId, queryLabelId < 0 ? labelValues : loadLabelValues(datasetId));
 
-        createFingerprint(datasetId, testId);
+        createFingerprint(datasetId);
         mediator.updateLabels(new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation));
         if (mediator.testMode())
             Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.DATASET_UPDATED_LABELS,
                     testId, new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation)));
     }
 
+    /**
+     * Evaluates the label extractors in the JVM and produces the same rows as {@link #LABEL_QUERY}, so that
+     * the database only loads the dataset. Returns <code>null</code> when an extractor cannot be evaluated
+     * here; the label query then evaluates all of them, reporting errors as usual.
+     *
+     * @param archived data of an archived dataset, <code>null</code> if they are kept in the database
+     */
+    private List<Object[]> extractInJvm(int datasetId, int queryLabelId, JsonNode archived) {
+        JsonNode data = archived != null ? archived
+                : em.unwrap(Session.class)
+                        .createNativeQuery("SELECT dataset_data(data, runid) AS data FROM dataset WHERE id = ?1",
+                                JsonNode.class)
+                        .setParameter(1, datasetId)
+                        .addScalar("data", JsonBinaryType.INSTANCE)
+                        .getSingleResultOrNull();
+        if (data == null) {
+            return null;
+        }
+        List<Object[]> extractors = em.unwrap(Session.class).createNativeQuery(LABEL_EXTRACTORS, Object[].class)
+                .setParameter(1, datasetId)
+                .setParameter(2, queryLabelId)
+                .addScalar("label_id", StandardBasicTypes.INTEGER)
+                .addScalar("name", StandardBasicTypes.TEXT)
+                .addScalar("function", StandardBasicTypes.TEXT)
+                .addScalar("index", StandardBasicTypes.INTEGER)
+                .addScalar("extractor", StandardBasicTypes.TEXT)
+                .addScalar("jsonpath", StandardBasicTypes.TEXT)
+                .addScalar("isarray", StandardBasicTypes.BOOLEAN)
+                .getResultList();
+        Map<Integer, ExtractedLabel> labels = new LinkedHashMap<>();
+        try {
+            for (Object[] row : extractors) {
+                ExtractedLabel label = labels.computeIfAbsent((Integer) row[0],
+                        id -> new ExtractedLabel((String) row[1], (String) row[2]));
+                if (row[5] == null) {
+                    // label without extractors
+                    continue;
+                }
+                JsonPath path = JsonPath.compile((String) row[5]);
+                JsonNode element = data.get((int) row[3]);
+                JsonNode value = null;
+                if (element != null) {
+                    value = (boolean) row[6] ? path.queryArray(element) : path.queryFirst(element);
+                }
+                label.add((String) row[4], value);
+            }
+        } catch (JsonPathException e) {
+            Log.debugf("Extracting labels of dataset %d in the database: %s", datasetId, e.getMessage());
+            return null;
+        }
+        List<Object[]> rows = new ArrayList<>(labels.size());
+        labels.forEach((id, label) -> rows.add(new Object[] { id, label.name, label.function, label.value() }));
+        return rows;
+    }
+
+    /**
+     * Values of the extractors of a label, aggregated as in {@link #LABEL_QUERY}.
+     */
+    private static class ExtractedLabel {
+        final String name;
+        final String function;
+        // jsonb_object_agg keeps the last value of a key, and orders the keys as jsonb does
+        final Map<String, JsonNode> values = new TreeMap<>(JsonPath::compareKeys);
+        JsonNode single;
+        int count;
+
+        ExtractedLabel(String name, String function) {
+            this.name = name;
+            this.function = function;
+        }
+
+        void add(String extractor, JsonNode value) {
+            value = value == null ? JsonNodeFactory.instance.nullNode() : value;
+            values.put(extractor, value);
+            single = value;
+            // counted per schema occurrence in the dataset, as the query does
+            ++count;
+        }
+
+        JsonNode value() {
+            if (count > 1) {
+                ObjectNode object = JsonNodeFactory.instance.objectNode();
+                object.setAll(values);
+                return object;
+            }
+            return count == 1 ? single : JsonNodeFactory.instance.objectNode();
+        }
+    }
+
     @Transactional
     public void calcDatasetViews(int datasetId) {
-        // TODO(user) move calc_dataset_view into Horreum business logic see https://github.com/hibernate/hibernate-orm/pull/7457
-        em.createNativeQuery("DELETE FROM dataset_view WHERE dataset_id = ?1").setParameter(1, datasetId).executeUpdate();
-        em.createNativeQuery("call calc_dataset_view(?1, NULL);").setParameter(1, datasetId).executeUpdate();
+        DatasetDAO dataset = DatasetDAO.findById(datasetId);
+        if (dataset != null) {
+            calcDatasetViews(datasetId, dataset.testid, loadLabelValues(datasetId));
+        }
+    }
+
+    /**
+     * Projects the label values of a dataset into the views of its test. Only the views whose content
+     * changed are written; views that no longer contain any label value are removed.
+     */
+    void calcDatasetViews(int datasetId, int testId, List<NamedLabelValue> labelValues) {
+        Map<String, List<NamedLabelValue>> byName = labelValues.stream()
+                .collect(Collectors.groupingBy(NamedLabelValue::name, HashMap::new, Collectors.toList()));
+        Map<Integer, JsonNode> existing = new HashMap<>();
+        em.unwrap(Session.class).createNativeQuery("SELECT view_id, value FROM dataset_view WHERE dataset_id = ?1",
+                Object[].class)
+                .setParameter(1, datasetId)
+                .addScalar("view_id", StandardBasicTypes.INTEGER)
+                .addScalar("value", JsonBinaryType.INSTANCE)
+                .getResultStream().forEach(row -> existing.put((Integer) row[0], (JsonNode) row[1]));
+
+        ArrayNode changed = JsonNodeFactory.instance.arrayNode();
+        // fetch the components along with the views to avoid one more query per view
+        List<ViewDAO> views = em.createQuery(
+                "SELECT DISTINCT v FROM view v LEFT JOIN FETCH v.components WHERE v.test.id = ?1", ViewDAO.class)
+                .setParameter(1, testId).getResultList();
+        for (ViewDAO view : views) {
+            ObjectNode value = JsonNodeFactory.instance.objectNode();
+            SortedSet<Integer> labelIds = new TreeSet<>();
+            for (ViewComponentDAO component : view.components) {
+                ObjectNode componentValue = JsonNodeFactory.instance.objectNode();
+                for (JsonNode labelName : component.labels) {
+                    for (NamedLabelValue lv : byName.getOrDefault(labelName.asText(), Collections.emptyList())) {
+                        componentValue.set(lv.name(), lv.value());
+                        labelIds.add(lv.labelId());
+                    }
+                }
+                if (!componentValue.isEmpty()) {
+                    value.set(String.valueOf(component.id), componentValue);
+                }
+            }
+            JsonNode previous = existing.remove(view.id);
+            if (!value.isEmpty() && !value.equals(previous)) {
+                ObjectNode row = changed.addObject().put("view_id", view.id).set("value", value);
+                labelIds.forEach(row.putArray("label_ids")::add);
+            } else if (value.isEmpty() && previous != null) {
+                existing.put(view.id, previous);
+            }
+        }
+        if (!existing.isEmpty()) {
+            em.createNativeQuery("DELETE FROM dataset_view WHERE dataset_id = ?1 AND view_id IN ?2")
+                    .setParameter(1, datasetId).setParameter(2, existing.keySet()).executeUpdate();
+        }
+        if (!changed.isEmpty()) {
+            Log.tracef("Updating %d dataset views of dataset %d", changed.size(), datasetId);
+            em.createNativeQuery(UPSERT_DATASET_VIEWS).setParameter(1, datasetId).setParameter(2, changed.toString())
+                    .executeUpdate();
+        }
     }
 
     @Transactional
-    @SuppressWarnings("unchecked")
     public void calcDatasetViewsByTestAndView(int testId, int viewId) {
         // delete all dataset views associated to the provided viewId and testId
         // for new views it won't delete anything
@@ -518,23 +777,23 @@ public class DatasetServiceImpl implements DatasetService {
                 .setParameter(2, testId)
                 .executeUpdate();
 
-        // re-create dataset views associated to the provided viewId
-        try (ScrollableResults<Integer> datasetIds = em
-                .createNativeQuery("SELECT id FROM dataset WHERE testid = ?1")
-                .setParameter(1, testId)
-                .unwrap(NativeQuery.class)
-                .setReadOnly(false)
-                .setFetchSize(100)
-                .scroll(ScrollMode.FORWARD_ONLY)) {
-            while (datasetIds.next()) {
-                int datasetId = datasetIds.get();
-                Log.tracef("Recalculate dataset views for view %d and dataset %d", viewId, datasetId);
-                em.createNativeQuery("call calc_dataset_view(?1, ?2);")
-                        .setParameter(1, datasetId)
-                        .setParameter(2, viewId)
-                        .executeUpdate();
-            }
-        }
+        // re-create dataset views associated to the provided viewId in a single statement
+        int updated = em.createNativeQuery(CALC_DATASET_VIEWS_BY_TEST_AND_VIEW)
+                .setParameter(1, viewId)
+                .setParameter(2, testId)
+                .executeUpdate();
+        Log.debugf("Recalculated %d dataset views for view %d of test %d", updated, viewId, testId);
+    }
+
+    private List<NamedLabelValue> loadLabelValues(int datasetId) {
+        return em.unwrap(Session.class).createNativeQuery(DATASET_LABEL_VALUES, Object[].class)
+                .setParameter(1, datasetId)
+                .addScalar("label_id", StandardBasicTypes.INTEGER)
+                .addScalar("name", StandardBasicTypes.TEXT)
+                .addScalar("value", JsonBinaryType.INSTANCE)
+                .getResultStream()
+                .map(row -> new NamedLabelValue((int) row[0], (String) row[1], (JsonNode) row[2]))
+                .collect(Collectors.toList());
     }
 
     @Transactional
@@ -560,7 +819,7 @@ public class DatasetServiceImpl implements DatasetService {
 
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     @Transactional(Transactional.TxType.REQUIRES_NEW)
-    protected void findFailingExtractor(int datasetId) {
+    protected void findFailingExtractor(int datasetId, JsonNode archived) {
         List<Object[]> extractors = em.unwrap(Session.class).createNativeQuery("""
                 SELECT ds.uri, label.name AS name, le.name AS extractor_name, ds.index, le.jsonpath
                 FROM dataset_schemas ds
@@ -573,9 +832,10 @@ public class DatasetServiceImpl implements DatasetService {
         for (Object[] row : extractors) {
             try {
                 // actual result of query is ignored
-                em.createNativeQuery(
-                        "SELECT jsonb_path_query_first(data -> (?1), (?2)::jsonpath)#>>'{}' FROM dataset WHERE id = ?3")
-                        .setParameter(1, row[3]).setParameter(2, row[4]).setParameter(3, datasetId).getSingleResult();
+                em.unwrap(Session.class).createNativeQuery(
+                        "SELECT jsonb_path_query_first(dataset_element(COALESCE(?4, data) -> (?1), runid), (?2)::jsonpath)#>>'{}' FROM dataset WHERE id = ?3")
+                        .setParameter(1, row[3]).setParameter(2, row[4]).setParameter(3, datasetId)
+                        .setParameter(4, archived, JsonBinaryType.INSTANCE).getSingleResult();
             } catch (PersistenceException e) {
                 logMessageInNewTx(datasetId, PersistentLogDAO.ERROR,
                         "There seems to be an error in schema <code>%s</code> label <code>%s</code>, extractor <code>%s</code>, JSONPath expression <code>%s</code>: %s",
@@ -587,52 +847,81 @@ public class DatasetServiceImpl implements DatasetService {
                 "We thought there's an error in one of the JSONPaths but independent validation did not find any problems.");
     }
 
-    private void createLabelValue(int datasetId, int testId, int labelId, JsonNode value) {
+    private NamedLabelValue createLabelValue(int datasetId, int labelId, String name, JsonNode value) {
         LabelValueDAO labelValue = new LabelValueDAO();
         labelValue.datasetId = datasetId;
         labelValue.labelId = labelId;
         labelValue.value = value;
         labelValue.persist();
+        return new NamedLabelValue(labelId, name, value);
     }
 
-    private void createFingerprint(int datasetId, int testId) {
-        JsonNode json = null;
-        try {
-            json = em.createQuery("SELECT t.fingerprintLabels from test t WHERE t.id = ?1", JsonNode.class)
-                    .setParameter(1, testId).getSingleResult();
-        } catch (NoResultException noResultException) {
-            Log.infof("Could not find fingerprint for dataset: %d", datasetId);
-        }
-        if (json == null)
-            return;
-
-        ObjectNode fpNode = JsonNodeFactory.instance.objectNode();
-        List<LabelValueDAO> labelValues = LabelValueDAO.find("datasetId", datasetId).list();
-        List<String[]> labelPairs = new ArrayList<>(labelValues.size());
-        for (var lv : labelValues)
-            labelPairs.add(new String[] { LabelDAO.<LabelDAO> findById(lv.labelId).name, lv.value.asText() });
-
-        for (int i = 0; i < json.size(); i++)
-            for (var name : labelPairs) {
-                if (json.get(i).asText().equals(name[0]))
-                    fpNode.put(name[0], name[1]);
-            }
+    record NamedLabelValue(int labelId, String name, JsonNode value) {
+    }
 
-        FingerprintDAO fp = new FingerprintDAO();
-        fp.datasetId = datasetId;
-        fp.dataset = DatasetDAO.findById(datasetId);
-        fp.fingerprint = fpNode;
-        if (fp.datasetId > 0 && fp.dataset != null)
-            fp.persist();
+    private void createFingerprint(int datasetId) {
+        // label values of the dataset might not be flushed yet
+        em.flush();
+        storeFingerprints(loadFingerprints(FINGERPRINT_VALUES + " AND ds.id = ?1", datasetId));
+    }
+
+    /**
+     * Fingerprints of the datasets selected by the condition; every dataset gets one, even if it has
+     * no values of the fingerprint labels.
+     */
+    private Map<Integer, ObjectNode> loadFingerprints(String query, int param) {
+        Map<Integer, ObjectNode> fingerprints = new HashMap<>();
+        em.unwrap(Session.class).createNativeQuery(query, Object[].class)
+                .setParameter(1, param)
+                .addScalar("id", StandardBasicTypes.INTEGER)
+                .addScalar("name", StandardBasicTypes.TEXT)
+                .addScalar("value", JsonBinaryType.INSTANCE)
+                .getResultStream()
+                .forEach(row -> {
+                    ObjectNode fingerprint = fingerprints.computeIfAbsent((Integer) row[0],
+                            id -> JsonNodeFactory.instance.objectNode());
+                    if (row[1] != null) {
+                        JsonNode value = (JsonNode) row[2];
+                        fingerprint.put((String) row[1], value == null ? "null" : value.asText());
+                    }
+                });
+        return fingerprints;
+    }
+
+    private void storeFingerprints(Map<Integer, ObjectNode> fingerprints) {
+        ObjectNode batch = JsonNodeFactory.instance.objectNode();
+        for (var entry : fingerprints.entrySet()) {
+            batch.set(String.valueOf(entry.getKey()), entry.getValue());
+            if (batch.size() == FINGERPRINT_BATCH_SIZE) {
+                em.createNativeQuery(INSERT_FINGERPRINTS).setParameter(1, batch.toString()).executeUpdate();
+                batch.removeAll();
+            }
+        }
+        if (!batch.isEmpty()) {
+            em.createNativeQuery(INSERT_FINGERPRINTS).setParameter(1, batch.toString()).executeUpdate();
+        }
     }
 
     @Transactional
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     void updateFingerprints(int testId) {
-        for (var dataset : DatasetDAO.<DatasetDAO> find("testid", testId).list()) {
-            FingerprintDAO.deleteById(dataset.id);
-            createFingerprint(dataset.id, testId);
-        }
+        em.flush();
+        em.createNativeQuery("DELETE FROM fingerprint fp USING dataset ds WHERE ds.id = fp.dataset_id AND ds.testid = ?1")
+                .setParameter(1, testId).executeUpdate();
+        storeFingerprints(loadFingerprints(FINGERPRINT_VALUES + " AND ds.testid = ?1", testId));
+    }
+
+    /**
+     * Creates fingerprints for datasets of the test that do not have one, e.g. because their label values
+     * could not be calculated.
+     */
+    @Transactional
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    void createMissingFingerprints(int testId) {
+        em.flush();
+        storeFingerprints(loadFingerprints(FINGERPRINT_VALUES
+                + " AND ds.testid = ?1 AND NOT EXISTS (SELECT 1 FROM fingerprint WHERE fingerprint.dataset_id = ds.id)",
+                testId));
     }
 
     public void onNewDataset(Dataset.EventNew event) {
@@ -642,17 +931,14 @@ public class DatasetServiceImpl implements DatasetService {
     @Transactional(Transactional.TxType.REQUIRES_NEW)
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     void logMessageInNewTx(int datasetId, int level, String message, Object... params) {
+        // the dataset lookup cannot run in a transaction aborted by a failed query
         logMessage(datasetId, level, message, params);
     }
 
     private void logMessage(int datasetId, int level, String message, Object... params) {
-        String msg = params.length == 0 ? message : message.formatted(params);
         DatasetDAO dataset = DatasetDAO.findById(datasetId);
         if (dataset != null) {
-            Log.tracef("Logging %s for test %d, dataset %d: %s", PersistentLogDAO.logLevel(level), dataset.testid, datasetId,
-                    msg);
-            new DatasetLogDAO(em.getReference(TestDAO.class, dataset.testid), em.getReference(DatasetDAO.class, datasetId),
-                    level, "labels", msg).persist();
+            logWriter.logDataset(dataset.testid, datasetId, "labels", level, message, params);
         }
     }
 }
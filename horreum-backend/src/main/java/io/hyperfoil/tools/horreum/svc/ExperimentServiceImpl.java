@@ -61,6 +61,9 @@ public class ExperimentServiceImpl implements ExperimentService {
     @Inject
     TransactionManager tm;
 
+    @Inject
+    PipelineMetrics metrics;
+
     @WithRoles
     @PermitAll
     @Override
@@ -184,7 +187,8 @@ public class ExperimentServiceImpl implements ExperimentService {
                 .getResultList();
 
         List<Integer> matchingProfile = new ArrayList<>();
-        Util.evaluateWithCombinationFunction(selectorRows, r -> Util.makeFilter((String) r[1]), r -> (JsonNode) r[2],
+        Util.evaluateWithCombinationFunction(metrics.jsEvaluation(), selectorRows, r -> Util.makeFilter((String) r[1]),
+                r -> (JsonNode) r[2],
                 (r, result) -> {
                     if (result.asBoolean()) {
                         matchingProfile.add((Integer) r[0]);
@@ -235,7 +239,8 @@ public class ExperimentServiceImpl implements ExperimentService {
         Map<Integer, List<Integer>> baselines = new HashMap<>();
         Map<Integer, List<DatasetLogDAO>> perProfileLogs = matchingProfile.stream()
                 .collect(Collectors.toMap(Function.identity(), id -> new ArrayList<>(logs)));
-        Util.evaluateWithCombinationFunction(baselineRows, r -> Util.makeFilter((String) r[1]), r -> (JsonNode) r[2],
+        Util.evaluateWithCombinationFunction(metrics.jsEvaluation(), baselineRows, r -> Util.makeFilter((String) r[1]),
+                r -> (JsonNode) r[2],
                 (r, v) -> {
                     if (v.asBoolean()) {
                         baselines.computeIfAbsent((Integer) r[0], profileId -> new ArrayList<>()).add((Integer) r[3]);
@@ -0,0 +1,264 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Helpers for the key-path dictionary kept in the <code>run_keypath</code> table.
+ * <p>
+ * Every object key found in run data is recorded as a (parent, key) pair where the parent
+ * is a normalized JSONPath: <code>$</code> is the root, object members are appended as
+ * <code>.key</code> (or <code>."key"</code> when the key is not a plain identifier) and array
+ * elements are collapsed to <code>[*]</code>. The same encoding is used by the Liquibase backfill,
+ * so paths computed here and in the database are interchangeable.
+ * <p>
+ * Documents nested deeper than {@link #MAX_DEPTH} or with more than {@link #MAX_PATHS} key paths are recorded
+ * only partially; their tests are listed in <code>run_keypath_truncated</code> and excluded from search pruning.
+ */
+final class JsonKeyPaths {
+    static final int MAX_DEPTH = 32;
+    static final int MAX_PATHS = 10000;
+
+    private static final Pattern IDENTIFIER = Pattern.compile("^[a-zA-Z_][a-zA-Z0-9_]*$");
+    // any single segment: an array wildcard, plain member or quoted member
+    private static final String ANY_SEGMENT = "(?:\\[\\*\\]|\\.[a-zA-Z_][a-zA-Z0-9_]*|\\.\"(?:[^\"\\\\]|\\\\.)*\")";
+    private static final String REGEX_SPECIAL = "\\^$.|?*+()[]{}";
+
+    private JsonKeyPaths() {
+    }
+
+    record KeyPath(String parent, String key) implements Comparable<KeyPath> {
+        @Override
+        public int compareTo(KeyPath o) {
+            int cmp = parent.compareTo(o.parent);
+            return cmp != 0 ? cmp : key.compareTo(o.key);
+        }
+    }
+
+    /**
+     * Distinct key paths of a document, sorted to give concurrent upserts a stable lock order.
+     *
+     * @param paths collected key paths
+     * @param truncated <code>true</code> if the document exceeds {@link #MAX_DEPTH} or {@link #MAX_PATHS} and some
+     *        of its keys are missing
+     */
+    record Collected(SortedSet<KeyPath> paths, boolean truncated) {
+    }
+
+    static Collected collect(JsonNode data) {
+        SortedSet<KeyPath> paths = new TreeSet<>();
+        boolean complete = data == null || collect(data, "$", 0, paths);
+        return new Collected(paths, !complete);
+    }
+
+    private static boolean collect(JsonNode node, String path, int depth, SortedSet<KeyPath> paths) {
+        if (!node.isContainerNode() || node.isEmpty()) {
+            return true;
+        } else if (depth >= MAX_DEPTH) {
+            return false;
+        }
+        boolean complete = true;
+        if (node.isObject()) {
+            for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext();) {
+                Map.Entry<String, JsonNode> entry = it.next();
+                if (!paths.contains(new KeyPath(path, entry.getKey())) && paths.size() >= MAX_PATHS) {
+                    return false;
+                }
+                paths.add(new KeyPath(path, entry.getKey()));
+                complete &= collect(entry.getValue(), path + segment(entry.getKey()), depth + 1, paths);
+            }
+        } else {
+            String elementPath = path + "[*]";
+            for (JsonNode element : node) {
+                complete &= collect(element, elementPath, depth + 1, paths);
+            }
+        }
+        return complete;
+    }
+
+    static String segment(String key) {
+        return IDENTIFIER.matcher(key).matches() ? "." + key : "." + new TextNode(key);
+    }
+
+    /**
+     * Translates a simple JSONPath (root, members, <code>.**</code>, <code>.*</code> and array accessors)
+     * into an anchored regular expression matching the encoded parent paths of the keys it may select.
+     * The expression uses only the subset of syntax shared by Java and PostgreSQL regular expressions.
+     *
+     * @param jsonpath JSONPath selecting objects
+     * @return regular expression or <code>null</code> when the path is too complex for the dictionary
+     */
+    static String toParentRegex(String jsonpath) {
+        List<Token> tokens = tokenize(jsonpath);
+        if (tokens == null || consumed(tokens) != jsonpath.trim().length()) {
+            // all input must be consumed for the regex to be exact
+            return null;
+        }
+        StringBuilder regex = new StringBuilder("^\\$");
+        for (Token token : tokens) {
+            switch (token.type) {
+                case MEMBER:
+                    // lax mode unwraps arrays before member access
+                    regex.append("(?:\\[\\*\\])*").append(quote(segment(token.key)));
+                    break;
+                case ANY_MEMBER:
+                    regex.append("(?:\\[\\*\\])*\\.(?:[a-zA-Z_][a-zA-Z0-9_]*|\"(?:[^\"\\\\]|\\\\.)*\")");
+                    break;
+                case DESCENDANTS:
+                    regex.append(ANY_SEGMENT).append('*');
+                    break;
+                case ELEMENT:
+                    regex.append("\\[\\*\\]");
+                    break;
+            }
+        }
+        return regex.append('$').toString();
+    }
+
+    /**
+     * Finds the key that must exist in the run data for the JSONPath to match anything. Only the leading
+     * path of the expression is considered; when it is followed by anything but a filter expression
+     * (e.g. a predicate check that matches even without the key) no key is returned.
+     *
+     * @param jsonpath JSONPath used in a <code>jsonb_path_exists</code> search
+     * @return required key or <code>null</code> if no pruning is possible
+     */
+    static String requiredKey(String jsonpath) {
+        List<Token> tokens = tokenize(jsonpath);
+        if (tokens == null) {
+            return null;
+        }
+        String rest = jsonpath.trim().substring(consumed(tokens)).trim();
+        if (rest.startsWith("?")) {
+            // a conjunctive filter on the current item, e.g. `$.** ? (@.foo == 1)`, requires its key as well
+            String filter = rest.substring(1).trim();
+            if (filter.startsWith("(") && filter.endsWith(")") && !filter.contains("||")
+                    && !filter.replace("!=", "").contains("!")) {
+                filter = filter.substring(1, filter.length() - 1).trim();
+                if (filter.startsWith("@")) {
+                    String key = lastMember(tokenize("$" + filter.substring(1)));
+                    if (key != null) {
+                        return key;
+                    }
+                }
+            }
+        } else if (!rest.isEmpty()) {
+            return null;
+        }
+        return lastMember(tokens);
+    }
+
+    private static String lastMember(List<Token> tokens) {
+        for (int i = tokens.size() - 1; i >= 0; --i) {
+            if (tokens.get(i).type == TokenType.MEMBER) {
+                return tokens.get(i).key;
+            }
+        }
+        return null;
+    }
+
+    private enum TokenType {
+        MEMBER,
+        ANY_MEMBER,
+        DESCENDANTS,
+        ELEMENT
+    }
+
+    private record Token(TokenType type, String key, int end) {
+    }
+
+    private static int consumed(List<Token> tokens) {
+        return tokens.isEmpty() ? 1 : tokens.get(tokens.size() - 1).end;
+    }
+
+    /**
+     * Parses the leading path of the expression; stops at the first unsupported construct.
+     * Returns <code>null</code> if the expression does not start with the root <code>$</code>.
+     */
+    private static List<Token> tokenize(String jsonpath) {
+        if (jsonpath == null) {
+            return null;
+        }
+        String path = jsonpath.trim();
+        if (!path.startsWith("$")) {
+            return null;
+        }
+        List<Token> tokens = new ArrayList<>();
+        int i = 1;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                if (path.startsWith(".**", i)) {
+                    if (path.startsWith(".**{", i)) {
+                        break;
+                    }
+                    tokens.add(new Token(TokenType.DESCENDANTS, null, i += 3));
+                } else if (path.startsWith(".*", i)) {
+                    tokens.add(new Token(TokenType.ANY_MEMBER, null, i += 2));
+                } else if (i + 1 < path.length() && path.charAt(i + 1) == '"') {
+                    StringBuilder key = new StringBuilder();
+                    int j = i + 2;
+                    boolean closed = false;
+                    while (j < path.length()) {
+                        char k = path.charAt(j++);
+                        if (k == '\\' && j < path.length()) {
+                            key.append(path.charAt(j++));
+                        } else if (k == '"') {
+                            closed = true;
+                            break;
+                        } else {
+                            key.append(k);
+                        }
+                    }
+                    if (!closed) {
+                        break;
+                    }
+                    tokens.add(new Token(TokenType.MEMBER, key.toString(), i = j));
+                } else {
+                    int j = i + 1;
+                    while (j < path.length() && (Character.isLetterOrDigit(path.charAt(j)) || path.charAt(j) == '_')) {
+                        ++j;
+                    }
+                    if (j == i + 1 || (j < path.length() && path.charAt(j) == '(')) {
+                        // empty key or item method such as .size()
+                        break;
+                    }
+                    tokens.add(new Token(TokenType.MEMBER, path.substring(i + 1, j), i = j));
+                }
+            } else if (c == '[') {
+                int close = path.indexOf(']', i);
+                if (close < 0) {
+                    break;
+                }
+                String index = path.substring(i + 1, close).trim();
+                if (!index.equals("*") && (index.isEmpty() || !index.chars().allMatch(Character::isDigit))) {
+                    break;
+                }
+                tokens.add(new Token(TokenType.ELEMENT, null, i = close + 1));
+            } else {
+                break;
+            }
+        }
+        return tokens;
+    }
+
+    private static String quote(String literal) {
+        StringBuilder sb = new StringBuilder(literal.length() + 8);
+        for (int i = 0; i < literal.length(); ++i) {
+            char c = literal.charAt(i);
+            if (REGEX_SPECIAL.indexOf(c) >= 0) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
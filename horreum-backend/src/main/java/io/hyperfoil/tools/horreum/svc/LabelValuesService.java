@@ -12,7 +12,6 @@ import java.util.stream.Collectors;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
-import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
 
 import org.hibernate.query.NativeQuery;
@@ -27,6 +26,7 @@ import io.hyperfoil.tools.horreum.api.data.ExportedLabelValues;
 import io.hyperfoil.tools.horreum.api.data.LabelValueMap;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import io.hyperfoil.tools.horreum.hibernate.JsonbSetType;
+import io.hyperfoil.tools.horreum.server.ReplicaRouter;
 import io.quarkus.logging.Log;
 
 /**
@@ -90,8 +90,9 @@ public class LabelValuesService {
                 HAVING COUNT(*) >= :filterKeysCount
             """;
 
+    // the read replica when called from a method annotated with @ReadReplica
     @Inject
-    EntityManager em;
+    ReplicaRouter replicaRouter;
 
     protected FilterDef getFilterDef(JsonNode filter, Instant before, Instant after, boolean multiFilter, boolean byTest,
             Function<String, List<ExportedLabelValues>> checkFilter) {
@@ -192,7 +193,7 @@ public class LabelValuesService {
         } else if (filter != null && filter.getNodeType() == JsonNodeType.STRING) {
             // the provided filter is just a jsonpath, so the check is to filter those labelValues for which
             // the jsonpath resolved to a NON-null value, i.e., it is populated!
-            Util.CheckResult jsonpathResult = Util.castCheck(filter.asText(), "jsonpath", em);
+            Util.CheckResult jsonpathResult = Util.castCheck(filter.asText(), "jsonpath", replicaRouter.session());
             if (jsonpathResult.ok()) {
                 // expecting param :jsonpathRoot and :jsonpathFilter
                 filterSqlBuilder.append("datasetId IN (")
@@ -300,7 +301,7 @@ public class LabelValuesService {
                 .replace("INCLUDE_EXCLUDE_PLACEHOLDER", includeExcludeSql)
                 .replace("ORDER_PLACEHOLDER", orderSql);
 
-        NativeQuery<Object[]> query = (NativeQuery<Object[]>) (em.createNativeQuery(sql))
+        NativeQuery<Object[]> query = (NativeQuery<Object[]>) (replicaRouter.session().createNativeQuery(sql))
                 .setParameter("testId", testId)
                 .setParameter("filteringLabels", filtering)
                 .setParameter("metricLabels", metrics);
@@ -418,7 +419,7 @@ public class LabelValuesService {
                 .replace("INCLUDE_EXCLUDE_PLACEHOLDER", includeExcludeSql)
                 .replace("ORDER_PLACEHOLDER", orderSql);
 
-        NativeQuery<Object[]> query = (NativeQuery<Object[]>) (em.createNativeQuery(sql))
+        NativeQuery<Object[]> query = (NativeQuery<Object[]>) (replicaRouter.session().createNativeQuery(sql))
                 .setParameter("runId", runId);
 
         // checks whether we have to add query filtering
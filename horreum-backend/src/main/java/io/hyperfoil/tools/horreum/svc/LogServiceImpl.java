@@ -5,12 +5,16 @@ import java.time.Instant;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
 
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
 
 import io.hyperfoil.tools.horreum.api.alerting.DatasetLog;
 import io.hyperfoil.tools.horreum.api.alerting.TransformationLog;
@@ -30,19 +34,49 @@ import io.quarkus.panache.common.Sort;
 import io.quarkus.runtime.Startup;
 import io.quarkus.scheduler.Scheduled;
 
+/**
+ * The log tables are partitioned by month. Logs older than the lifespan configured for the table are removed
+ * by dropping whole partitions, and until then the queries skip them.
+ */
 @ApplicationScoped
 @Startup
 public class LogServiceImpl implements LogService {
 
     private static final Instant EPOCH_START = Instant.ofEpochMilli(0);
     private static final Instant FAR_FUTURE = Instant.ofEpochSecond(4 * (long) Integer.MAX_VALUE);
+    // partitions are created this long ahead so that the logs never fall into the default partition
+    private static final Duration PARTITIONS_AHEAD = Duration.ofDays(62);
 
     @ConfigProperty(name = "horreum.transformationlog.max.lifespan")
     String transformationLogMaxLifespan;
 
+    @ConfigProperty(name = "horreum.datasetlog.max.lifespan", defaultValue = "P90d")
+    String datasetLogMaxLifespan;
+
+    @ConfigProperty(name = "horreum.actionlog.max.lifespan", defaultValue = "P90d")
+    String actionLogMaxLifespan;
+
     @Inject
     TimeService timeService;
 
+    @Inject
+    EntityManager em;
+
+    private Duration transformationLogLifespan;
+    private Duration datasetLogLifespan;
+    private Duration actionLogLifespan;
+
+    @PostConstruct
+    void init() {
+        transformationLogLifespan = Duration.parse(transformationLogMaxLifespan);
+        datasetLogLifespan = Duration.parse(datasetLogMaxLifespan);
+        actionLogLifespan = Duration.parse(actionLogMaxLifespan);
+    }
+
+    private Instant notBefore(Duration lifespan) {
+        return timeService.now().minus(lifespan);
+    }
+
     private Integer withDefault(Integer value, Integer defValue) {
         return value != null ? value : defValue;
     }
@@ -56,11 +90,11 @@ public class LogServiceImpl implements LogService {
         limit = withDefault(limit, 25);
         PanacheQuery<DatasetLogDAO> query;
         if (datasetId == null) {
-            query = DatasetLogDAO.find("test.id = ?1 AND source = ?2 AND level >= ?3", Sort.descending("timestamp"), testId,
-                    source, level);
+            query = DatasetLogDAO.find("test.id = ?1 AND source = ?2 AND level >= ?3 AND timestamp >= ?4",
+                    Sort.descending("timestamp"), testId, source, level, notBefore(datasetLogLifespan));
         } else {
-            query = DatasetLogDAO.find("dataset.id = ?1 AND source = ?2 AND level >= ?3", Sort.descending("timestamp"),
-                    datasetId, source, level);
+            query = DatasetLogDAO.find("dataset.id = ?1 AND source = ?2 AND level >= ?3 AND timestamp >= ?4",
+                    Sort.descending("timestamp"), datasetId, source, level, notBefore(datasetLogLifespan));
         }
         return query.page(Page.of(page, limit)).list().stream().map(DatasetLogMapper::from).collect(Collectors.toList());
     }
@@ -70,9 +104,11 @@ public class LogServiceImpl implements LogService {
     @RolesAllowed(Roles.TESTER)
     public long getDatasetLogCount(String source, int testId, int level, Integer datasetId) {
         if (datasetId == null) {
-            return DatasetLogDAO.count("test.id = ?1 AND source = ?2 AND level >= ?3", testId, source, level);
+            return DatasetLogDAO.count("test.id = ?1 AND source = ?2 AND level >= ?3 AND timestamp >= ?4", testId, source,
+                    level, notBefore(datasetLogLifespan));
         } else {
-            return DatasetLogDAO.count("dataset.id = ?1 AND source = ?2 AND level >= ?3", datasetId, source, level);
+            return DatasetLogDAO.count("dataset.id = ?1 AND source = ?2 AND level >= ?3 AND timestamp >= ?4", datasetId,
+                    source, level, notBefore(datasetLogLifespan));
         }
     }
 
@@ -104,12 +140,14 @@ public class LogServiceImpl implements LogService {
         limit = withDefault(limit, 25);
         if (runId == null || runId <= 0) {
             List<TransformationLogDAO> logs = TransformationLogDAO
-                    .find("test.id = ?1 AND level >= ?2", Sort.descending("timestamp"), testId, level)
+                    .find("test.id = ?1 AND level >= ?2 AND timestamp >= ?3", Sort.descending("timestamp"), testId, level,
+                            notBefore(transformationLogLifespan))
                     .page(Page.of(page, limit)).list();
             return logs.stream().map(TransformationLogMapper::from).collect(Collectors.toList());
         } else {
             List<TransformationLogDAO> logs = TransformationLogDAO
-                    .find("test.id = ?1 AND level >= ?2 AND run.id = ?3", Sort.descending("timestamp"), testId, level, runId)
+                    .find("test.id = ?1 AND level >= ?2 AND run.id = ?3 AND timestamp >= ?4", Sort.descending("timestamp"),
+                            testId, level, runId, notBefore(transformationLogLifespan))
                     .page(Page.of(page, limit)).list();
             return logs.stream().map(TransformationLogMapper::from).collect(Collectors.toList());
         }
@@ -120,9 +158,11 @@ public class LogServiceImpl implements LogService {
     @Override
     public long getTransformationLogCount(int testId, int level, Integer runId) {
         if (runId == null || runId <= 0) {
-            return TransformationLogDAO.count("test.id = ?1 AND level >= ?2", testId, level);
+            return TransformationLogDAO.count("test.id = ?1 AND level >= ?2 AND timestamp >= ?3", testId, level,
+                    notBefore(transformationLogLifespan));
         } else {
-            return TransformationLogDAO.count("test.id = ?1 AND level >= ?2 AND run.id = ?3", testId, level, runId);
+            return TransformationLogDAO.count("test.id = ?1 AND level >= ?2 AND run.id = ?3 AND timestamp >= ?4", testId,
+                    level, runId, notBefore(transformationLogLifespan));
         }
     }
 
@@ -150,7 +190,9 @@ public class LogServiceImpl implements LogService {
     public List<ActionLog> getActionLog(int testId, int level, Integer page, Integer limit) {
         page = withDefault(page, 0);
         limit = withDefault(limit, 25);
-        List<ActionLogDAO> logs = ActionLogDAO.find("testId = ?1 AND level >= ?2", Sort.descending("timestamp"), testId, level)
+        List<ActionLogDAO> logs = ActionLogDAO
+                .find("testId = ?1 AND level >= ?2 AND timestamp >= ?3", Sort.descending("timestamp"), testId, level,
+                        notBefore(actionLogLifespan))
                 .page(Page.of(page, limit)).list();
         return logs.stream().map(ActionLogMapper::from).collect(Collectors.toList());
     }
@@ -159,7 +201,8 @@ public class LogServiceImpl implements LogService {
     @WithRoles
     @RolesAllowed(Roles.TESTER)
     public long getActionLogCount(int testId, int level) {
-        return ActionLogDAO.find("testId = ?1 AND level >= ?2", testId, level).count();
+        return ActionLogDAO.find("testId = ?1 AND level >= ?2 AND timestamp >= ?3", testId, level,
+                notBefore(actionLogLifespan)).count();
     }
 
     @Override
@@ -180,12 +223,37 @@ public class LogServiceImpl implements LogService {
         TransformationLogDAO.delete("test.id", testId);
     }
 
-    @Scheduled(every = "{horreum.transformationlog.check}")
+    @Scheduled(every = "{horreum.transformationlog.check}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void maintainLogPartitions() {
+        maintainLogPartitions("transformationlog", transformationLogLifespan);
+        maintainLogPartitions("datasetlog", datasetLogLifespan);
+        maintainLogPartitions("actionlog", actionLogLifespan);
+    }
+
+    private void maintainLogPartitions(String table, Duration lifespan) {
+        // each table in its own transaction so that a failure does not block the others
+        try {
+            maintainLogPartitions(table, lifespan, timeService.now());
+        } catch (Exception e) {
+            Log.errorf(e, "Failed to maintain partitions of %s", table);
+        }
+    }
+
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     @Transactional
-    void checkExpiredTransformationLogs() {
-        Duration maxLifespan = Duration.parse(transformationLogMaxLifespan);
-        long logsDeleted = TransformationLogDAO.delete("timestamp < ?1", timeService.now().minus(maxLifespan));
-        Log.debugf("Deleted %d expired transformation log messages", logsDeleted);
+    void maintainLogPartitions(String table, Duration lifespan, Instant now) {
+        Session session = em.unwrap(Session.class);
+        int created = session
+                .createNativeQuery("SELECT create_log_partitions(?1, ?2, ?3)", Integer.class)
+                .setParameter(1, table)
+                .setParameter(2, now, StandardBasicTypes.INSTANT)
+                .setParameter(3, now.plus(PARTITIONS_AHEAD), StandardBasicTypes.INSTANT)
+                .getSingleResult();
+        int dropped = session
+                .createNativeQuery("SELECT drop_log_partitions(?1, ?2)", Integer.class)
+                .setParameter(1, table)
+                .setParameter(2, now.minus(lifespan), StandardBasicTypes.INSTANT)
+                .getSingleResult();
+        Log.debugf("Created %d new and dropped %d expired partitions of %s", created, dropped, table);
     }
 }
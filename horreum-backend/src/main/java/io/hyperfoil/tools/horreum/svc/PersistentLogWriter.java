@@ -0,0 +1,233 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.vertx.core.Vertx;
+
+/**
+ * Buffers transformation and dataset logs and writes them in batches on a worker thread; in test mode
+ * the messages are written synchronously so that tests can check them right after the processing.
+ * <p>
+ * Messages below the level configured for the test (or <code>horreum.persistent-log.level</code>
+ * when the test does not set one) are dropped before they are formatted. Writes do not participate
+ * in the caller's transaction, so messages are kept even when processing fails and rolls back.
+ * Messages of tests deleted in the meantime are dropped, and a batch that fails to be written is
+ * split to persist all messages but the failing ones.
+ */
+@ApplicationScoped
+public class PersistentLogWriter {
+    //@formatter:off
+    private static final String INSERT_TRANSFORMATION_LOGS = """
+         INSERT INTO transformationlog (id, testid, runid, level, timestamp, message)
+         SELECT nextval('transformationlog_id_generator'), l.testid, l.runid, l.level, l.timestamp, l.message
+         FROM jsonb_to_recordset((?1)::jsonb) AS l(testid integer, runid integer, level integer, timestamp timestamptz, message text)
+         WHERE EXISTS (SELECT 1 FROM test WHERE test.id = l.testid)
+         """;
+    private static final String INSERT_DATASET_LOGS = """
+         INSERT INTO datasetlog (id, testid, dataset_id, source, level, timestamp, message)
+         SELECT nextval('datasetlog_id_generator'), l.testid, l.dataset_id, l.source, l.level, l.timestamp, l.message
+         FROM jsonb_to_recordset((?1)::jsonb)
+            AS l(testid integer, dataset_id integer, source text, level integer, timestamp timestamptz, message text)
+         WHERE EXISTS (SELECT 1 FROM test WHERE test.id = l.testid)
+         """;
+    //@formatter:on
+    private static final long LEVEL_CACHE_MILLIS = 10_000;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    ServiceMediator mediator;
+
+    @ConfigProperty(name = "horreum.persistent-log.level", defaultValue = "DEBUG")
+    String defaultLevelName;
+
+    @ConfigProperty(name = "horreum.persistent-log.batch-size", defaultValue = "500")
+    int batchSize;
+
+    @ConfigProperty(name = "horreum.persistent-log.capacity", defaultValue = "100000")
+    int capacity;
+
+    private int defaultLevel;
+    private LinkedBlockingQueue<Entry> queue;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ConcurrentHashMap<Integer, TestLevel> testLevels = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        defaultLevel = switch (defaultLevelName.toUpperCase()) {
+            case "DEBUG" -> PersistentLogDAO.DEBUG;
+            case "INFO" -> PersistentLogDAO.INFO;
+            case "WARN", "WARNING" -> PersistentLogDAO.WARN;
+            case "ERROR" -> PersistentLogDAO.ERROR;
+            default -> throw new IllegalArgumentException("Invalid persistent log level: " + defaultLevelName);
+        };
+        queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return <code>true</code> if messages with given level are persisted for the test
+     */
+    public boolean isEnabled(int testId, int level) {
+        return level >= minLevel(testId);
+    }
+
+    public void logTransformation(int testId, int runId, int level, String format, Object... args) {
+        if (isEnabled(testId, level)) {
+            enqueue(new Entry(testId, runId, null, level, Instant.now(), format(format, args)));
+        }
+    }
+
+    public void logDataset(int testId, int datasetId, String source, int level, String format, Object... args) {
+        if (isEnabled(testId, level)) {
+            enqueue(new Entry(testId, datasetId, source, level, Instant.now(), format(format, args)));
+        }
+    }
+
+    /**
+     * Invalidates the cached log level of the test after its configuration changed.
+     */
+    public void onTestUpdated(int testId) {
+        testLevels.remove(testId);
+    }
+
+    private static String format(String format, Object[] args) {
+        return args.length == 0 ? format : format.formatted(args);
+    }
+
+    private int minLevel(int testId) {
+        long now = System.currentTimeMillis();
+        TestLevel cached = testLevels.get(testId);
+        if (cached == null || cached.expires < now) {
+            Integer level = loadTestLevel(testId);
+            cached = new TestLevel(level == null ? defaultLevel : level, now + LEVEL_CACHE_MILLIS);
+            testLevels.put(testId, cached);
+        }
+        return cached.level;
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Integer loadTestLevel(int testId) {
+        List<?> result = em.createNativeQuery("SELECT log_level FROM test WHERE id = ?1")
+                .setParameter(1, testId).getResultList();
+        return result.isEmpty() || result.get(0) == null ? null : ((Number) result.get(0)).intValue();
+    }
+
+    private void enqueue(Entry entry) {
+        Log.tracef("Logging %s for test %d, %s %d: %s", PersistentLogDAO.logLevel(entry.level), entry.testId,
+                entry.source == null ? "run" : "dataset", entry.targetId, entry.message);
+        if (mediator.testMode()) {
+            write(List.of(entry));
+            return;
+        }
+        if (!queue.offer(entry)) {
+            long count = dropped.incrementAndGet();
+            if (count % 1000 == 1) {
+                Log.warnf("Persistent log buffer is full, dropped %d messages so far", count);
+            }
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            Util.executeBlocking(vertx, this::flush);
+        }
+    }
+
+    void flush() {
+        flushScheduled.set(false);
+        List<Entry> batch = new ArrayList<>(Math.min(batchSize, queue.size()));
+        while (queue.drainTo(batch, batchSize) > 0) {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the messages, splitting the batch in halves on failure until the failing messages are isolated.
+     *
+     * @return number of messages that could not be written
+     */
+    int write(List<Entry> batch) {
+        try {
+            writeBatch(batch);
+            return 0;
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                Entry entry = batch.get(0);
+                Log.errorf(e, "Failed to persist log message for test %d, %s %d: %s", entry.testId,
+                        entry.source == null ? "run" : "dataset", entry.targetId, entry.message);
+                return 1;
+            }
+            Log.debugf(e, "Failed to persist %d log messages, retrying in smaller batches", batch.size());
+            int half = batch.size() / 2;
+            return write(batch.subList(0, half)) + write(batch.subList(half, batch.size()));
+        }
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    void writeBatch(List<Entry> batch) {
+        ArrayNode transformationLogs = JsonNodeFactory.instance.arrayNode();
+        ArrayNode datasetLogs = JsonNodeFactory.instance.arrayNode();
+        for (Entry entry : batch) {
+            ObjectNode row;
+            if (entry.source == null) {
+                row = transformationLogs.addObject().put("runid", entry.targetId);
+            } else {
+                row = datasetLogs.addObject().put("dataset_id", entry.targetId).put("source", entry.source);
+            }
+            row.put("testid", entry.testId).put("level", entry.level).put("timestamp", entry.timestamp.toString())
+                    .put("message", entry.message);
+        }
+        if (!transformationLogs.isEmpty()) {
+            em.createNativeQuery(INSERT_TRANSFORMATION_LOGS).setParameter(1, transformationLogs.toString()).executeUpdate();
+        }
+        if (!datasetLogs.isEmpty()) {
+            em.createNativeQuery(INSERT_DATASET_LOGS).setParameter(1, datasetLogs.toString()).executeUpdate();
+        }
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        if (!queue.isEmpty()) {
+            Log.infof("Persisting %d buffered log messages", queue.size());
+            flush();
+        }
+    }
+
+    /**
+     * @param targetId run ID for transformation logs, dataset ID for dataset logs
+     * @param source dataset log source, <code>null</code> for transformation logs
+     */
+    record Entry(int testId, int targetId, String source, int level, Instant timestamp, String message) {
+    }
+
+    private record TestLevel(int level, long expires) {
+    }
+}
@@ -0,0 +1,77 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Duration;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Timers and counters for the stages of run processing, exposed in Prometheus format on <code>/q/metrics</code>.
+ * Meters are tagged with the stage and, if <code>horreum.metrics.per-test</code> is enabled, with the test ID.
+ */
+@ApplicationScoped
+public class PipelineMetrics {
+    static final String STAGE_DURATION = "horreum.pipeline.stage";
+    static final String STAGE_ITEMS = "horreum.pipeline.items";
+    static final String JS_EVALUATION = "horreum.js.evaluation";
+
+    static final String TRANSFORM = "transform";
+    static final String LABELS = "labels";
+    static final String DATAPOINTS = "datapoints";
+    static final String CHANGE_DETECTION = "change_detection";
+    static final String VALIDATION = "validation";
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "horreum.metrics.per-test", defaultValue = "false")
+    boolean perTest;
+
+    Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    void stop(Timer.Sample sample, String stage, int testId) {
+        sample.stop(Timer.builder(STAGE_DURATION).description("Time spent in a stage of run processing")
+                .tags(tags(stage, testId))
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(10))
+                .register(registry));
+    }
+
+    void time(String stage, int testId, Runnable runnable) {
+        Timer.Sample sample = start();
+        try {
+            runnable.run();
+        } finally {
+            stop(sample, stage, testId);
+        }
+    }
+
+    /**
+     * Time spent creating JavaScript contexts and evaluating functions. The evaluations are not tagged with the
+     * test, regardless of <code>horreum.metrics.per-test</code>.
+     */
+    Timer jsEvaluation() {
+        return Timer.builder(JS_EVALUATION).description("Time spent creating JavaScript contexts and evaluating functions")
+                .register(registry);
+    }
+
+    /**
+     * Counts items produced by a stage, e.g. datasets created by transformation or datapoints emitted.
+     */
+    void count(String stage, int testId, double amount) {
+        registry.counter(STAGE_ITEMS, tags(stage, testId)).increment(amount);
+    }
+
+    private Tags tags(String stage, int testId) {
+        return perTest ? Tags.of("stage", stage, "test", String.valueOf(testId)) : Tags.of("stage", stage);
+    }
+}
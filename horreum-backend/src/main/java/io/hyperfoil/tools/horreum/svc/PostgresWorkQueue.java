@@ -0,0 +1,425 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionManager;
+import jakarta.transaction.Transactional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import io.hyperfoil.tools.horreum.api.data.Dataset;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+/**
+ * Durable work queue kept in the <code>work_queue</code> table, used instead of the AMQP broker when
+ * <code>horreum.queue.backend=postgres</code>.
+ * <p>
+ * Items are claimed with <code>FOR UPDATE SKIP LOCKED</code> in priority order, so any number of Horreum
+ * instances can consume the same queue. A claimed item stays invisible to other consumers until the visibility
+ * timeout expires; it is deleted when the handler succeeds, scheduled for a retry with exponential backoff when
+ * it fails, and dead-lettered (kept in the table with <code>dead_lettered</code> set) after the last attempt.
+ * Handlers are the same <code>ServiceMediator.process*</code> methods that consume the AMQP channels.
+ * <p>
+ * Dataset events are not held in memory as with AMQP; instead, when an event is claimed, pending duplicates for the
+ * same dataset are merged into it (see {@link #coalesceDatasetEvents(List)}).
+ */
+@ApplicationScoped
+public class PostgresWorkQueue {
+    static final String DATASET_EVENT = "dataset-event";
+    static final String RUN_RECALC = "run-recalc";
+    static final String SCHEMA_SYNC = "schema-sync";
+    static final String RUN_UPLOAD = "run-upload";
+    // default AMQP priority
+    static final short DEFAULT_PRIORITY = 4;
+
+    //@formatter:off
+    private static final String ENQUEUE = """
+         INSERT INTO work_queue (channel, payload, priority) VALUES (?1, (?2)::jsonb, ?3)
+         """;
+    private static final String CLAIM = """
+         UPDATE work_queue SET attempts = attempts + 1, locked_until = now() + ?2 * interval '1 millisecond'
+         WHERE id IN (
+            SELECT id FROM work_queue
+            WHERE channel = ?1 AND dead_lettered IS NULL AND available_at <= now()
+               AND (locked_until IS NULL OR locked_until < now())
+            ORDER BY priority DESC, id
+            LIMIT ?3
+            FOR UPDATE SKIP LOCKED
+         )
+         RETURNING id, payload::text, attempts
+         """;
+    private static final String RETRY = """
+         UPDATE work_queue SET locked_until = NULL, available_at = now() + ?2 * interval '1 millisecond', last_error = ?3
+         WHERE id = ?1
+         """;
+    // items locked by another consumer are being claimed (or processed) and are left alone
+    private static final String PENDING_DATASET_EVENTS = """
+         SELECT id, payload::text FROM work_queue
+         WHERE channel = 'dataset-event' AND dead_lettered IS NULL AND (locked_until IS NULL OR locked_until < now())
+            AND (payload->>'datasetId')::integer IN ?1
+         ORDER BY id
+         FOR UPDATE SKIP LOCKED
+         """;
+    private static final String DEAD_LETTER = """
+         UPDATE work_queue SET locked_until = NULL, dead_lettered = now(), last_error = ?2 WHERE id = ?1
+         """;
+    //@formatter:on
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    ServiceMediator mediator;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "horreum.queue.backend", defaultValue = "amqp")
+    String backend;
+
+    @ConfigProperty(name = "horreum.queue.visibility-timeout", defaultValue = "PT10M")
+    Duration visibilityTimeout;
+
+    @ConfigProperty(name = "horreum.queue.max-attempts", defaultValue = "5")
+    int maxAttempts;
+
+    @ConfigProperty(name = "horreum.queue.retry-delay", defaultValue = "PT10S")
+    Duration retryDelay;
+
+    @ConfigProperty(name = "smallrye.messaging.worker.horreum.dataset.pool.max-concurrency", defaultValue = "10")
+    int datasetConcurrency;
+
+    @ConfigProperty(name = "smallrye.messaging.worker.horreum.run.pool.max-concurrency", defaultValue = "6")
+    int runConcurrency;
+
+    @ConfigProperty(name = "smallrye.messaging.worker.horreum.schema.pool.max-concurrency", defaultValue = "5")
+    int schemaConcurrency;
+
+    private boolean enabled;
+    private List<Consumer> consumers = List.of();
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    @PostConstruct
+    void init() {
+        enabled = switch (backend.toLowerCase()) {
+            case "amqp" -> false;
+            case "postgres" -> true;
+            default -> throw new IllegalArgumentException("Invalid queue backend: " + backend);
+        };
+        if (enabled) {
+            // the pools are shared with the AMQP consumers (unused with this backend) so the limits apply to both
+            WorkerExecutor datasetPool = pool("horreum.dataset.pool", datasetConcurrency);
+            WorkerExecutor runPool = pool("horreum.run.pool", runConcurrency);
+            WorkerExecutor schemaPool = pool("horreum.schema.pool", schemaConcurrency);
+            // run recalculations and uploads share the pool and its limit
+            AtomicInteger runInFlight = new AtomicInteger();
+            consumers = List.of(
+                    new Consumer(DATASET_EVENT, datasetPool, datasetConcurrency, new AtomicInteger()),
+                    new Consumer(RUN_UPLOAD, runPool, runConcurrency, runInFlight),
+                    new Consumer(RUN_RECALC, runPool, runConcurrency, runInFlight),
+                    new Consumer(SCHEMA_SYNC, schemaPool, schemaConcurrency, new AtomicInteger()));
+            for (Consumer consumer : consumers) {
+                Gauge.builder("horreum.queue.in-flight", consumer.inFlight, AtomicInteger::get)
+                        .description("Work items being processed by this instance")
+                        .tag("pool", consumer.pool == runPool ? "run" : consumer.channel).register(registry);
+            }
+            Log.infof("Using Postgres work queue, visibility timeout %s, max %d attempts", visibilityTimeout, maxAttempts);
+        }
+    }
+
+    private WorkerExecutor pool(String name, int concurrency) {
+        return vertx.createSharedWorkerExecutor(name, concurrency, visibilityTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds an item to the queue in the caller's transaction, so that the item is committed atomically with the changes
+     * it processes; consumers in this instance are woken up when the transaction commits.
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void enqueue(String channel, Object payload, short priority) {
+        String json;
+        try {
+            json = Util.OBJECT_MAPPER.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Cannot serialize work item for " + channel, e);
+        }
+        em.createNativeQuery(ENQUEUE).setParameter(1, channel).setParameter(2, json).setParameter(3, priority)
+                .executeUpdate();
+        Util.doAfterCommit(tm, this::wakeUp);
+    }
+
+    // other instances only pick up new work on the next poll
+    @Scheduled(every = "{horreum.queue.poll-interval}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void poll() {
+        if (enabled) {
+            wakeUp();
+        }
+    }
+
+    void wakeUp() {
+        pending.set(true);
+        if (polling.compareAndSet(false, true)) {
+            Util.executeBlocking(vertx, this::dispatchPending);
+        }
+    }
+
+    private void dispatchPending() {
+        do {
+            try {
+                while (pending.getAndSet(false)) {
+                    for (Consumer consumer : consumers) {
+                        dispatch(consumer);
+                    }
+                }
+            } catch (Exception e) {
+                Log.error("Failed to claim work items", e);
+            } finally {
+                polling.set(false);
+            }
+            // a wake-up could arrive after the loop ended but before the flag was cleared
+        } while (pending.get() && polling.compareAndSet(false, true));
+    }
+
+    private void dispatch(Consumer consumer) {
+        int free = consumer.concurrency - consumer.inFlight.get();
+        if (free <= 0) {
+            return;
+        }
+        for (Item item : claim(consumer.channel, free)) {
+            consumer.inFlight.incrementAndGet();
+            consumer.pool.executeBlocking(() -> {
+                try {
+                    process(item);
+                } finally {
+                    consumer.inFlight.decrementAndGet();
+                    wakeUp();
+                }
+                return null;
+            }, false);
+        }
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    List<Item> claim(String channel, int limit) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = em.createNativeQuery(CLAIM).setParameter(1, channel)
+                .setParameter(2, visibilityTimeout.toMillis()).setParameter(3, limit).getResultList();
+        List<Item> items = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            items.add(new Item(((Number) row[0]).longValue(), channel, (String) row[1], ((Number) row[2]).intValue()));
+        }
+        return DATASET_EVENT.equals(channel) && !items.isEmpty() ? coalesceDatasetEvents(items) : items;
+    }
+
+    /**
+     * Merges duplicate dataset events into the claimed ones, both those claimed in the same batch and those still
+     * pending. An event for all labels of a dataset absorbs any other event for the dataset and an event for a single
+     * label absorbs the events for the same label; the merged event is a recalculation only if all absorbed events
+     * were. Absorbed items are deleted in the claiming transaction: the claimed event is processed after they were
+     * committed, so it sees their changes.
+     *
+     * @return claimed items that were not absorbed
+     */
+    List<Item> coalesceDatasetEvents(List<Item> claimed) {
+        Map<Integer, List<ClaimedEvent>> byDataset = new HashMap<>();
+        List<Long> absorbed = new ArrayList<>();
+        for (Item item : claimed) {
+            Dataset.EventNew event = parseDatasetEvent(item.payload);
+            if (event == null) {
+                continue;
+            }
+            if (absorb(byDataset, event)) {
+                absorbed.add(item.id);
+            } else {
+                byDataset.computeIfAbsent(event.datasetId, id -> new ArrayList<>()).add(new ClaimedEvent(item, event));
+            }
+        }
+        if (byDataset.isEmpty()) {
+            return claimed;
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> pending = em.createNativeQuery(PENDING_DATASET_EVENTS)
+                .setParameter(1, new ArrayList<>(byDataset.keySet())).getResultList();
+        for (Object[] row : pending) {
+            Dataset.EventNew event = parseDatasetEvent((String) row[1]);
+            if (event != null && absorb(byDataset, event)) {
+                absorbed.add(((Number) row[0]).longValue());
+            }
+        }
+        if (absorbed.isEmpty()) {
+            return claimed;
+        }
+        em.createNativeQuery("DELETE FROM work_queue WHERE id IN ?1").setParameter(1, absorbed).executeUpdate();
+        Set<Long> absorbedIds = new HashSet<>(absorbed);
+        Map<Long, Item> merged = new HashMap<>();
+        for (List<ClaimedEvent> events : byDataset.values()) {
+            for (ClaimedEvent claimedEvent : events) {
+                if (claimedEvent.changed) {
+                    Item item = claimedEvent.item;
+                    String payload;
+                    try {
+                        payload = Util.OBJECT_MAPPER.writeValueAsString(claimedEvent.event);
+                    } catch (JsonProcessingException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    // a retry processes the merged event as well
+                    em.createNativeQuery("UPDATE work_queue SET payload = (?2)::jsonb WHERE id = ?1")
+                            .setParameter(1, item.id).setParameter(2, payload).executeUpdate();
+                    merged.put(item.id, new Item(item.id, item.channel, payload, item.attempts));
+                }
+            }
+        }
+        Log.debugf("Merged %d duplicate dataset events into the claimed ones", absorbed.size());
+        registry.counter("horreum.queue.coalesced", "channel", DATASET_EVENT).increment(absorbed.size());
+        List<Item> items = new ArrayList<>(claimed.size());
+        for (Item item : claimed) {
+            if (!absorbedIds.contains(item.id)) {
+                items.add(merged.getOrDefault(item.id, item));
+            }
+        }
+        return items;
+    }
+
+    private static boolean absorb(Map<Integer, List<ClaimedEvent>> byDataset, Dataset.EventNew event) {
+        for (ClaimedEvent claimed : byDataset.getOrDefault(event.datasetId, List.of())) {
+            if (claimed.event.labelId < 0 || claimed.event.labelId == event.labelId) {
+                if (claimed.event.isRecalculation && !event.isRecalculation) {
+                    claimed.event.isRecalculation = false;
+                    claimed.changed = true;
+                }
+                if (claimed.event.runId == 0 && event.runId != 0) {
+                    claimed.event.runId = event.runId;
+                    claimed.changed = true;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Dataset.EventNew parseDatasetEvent(String payload) {
+        try {
+            return Util.OBJECT_MAPPER.readValue(payload, Dataset.EventNew.class);
+        } catch (JsonProcessingException e) {
+            // the item fails and is dead-lettered when processed
+            return null;
+        }
+    }
+
+    private void process(Item item) {
+        if (item.attempts > maxAttempts) {
+            // the consumer holding the item died or did not finish within the visibility timeout
+            Log.errorf("Work item %d on %s was not completed in %d attempts, dead-lettering", item.id, item.channel,
+                    maxAttempts);
+            registry.counter("horreum.queue.dead-lettered", "channel", item.channel).increment();
+            deadLetter(item.id, "Not completed within visibility timeout");
+            return;
+        }
+        try {
+            handle(item);
+            acknowledge(item.id);
+        } catch (Throwable t) {
+            String error = t.getMessage() == null ? t.getClass().getName() : t.getMessage();
+            if (item.attempts >= maxAttempts) {
+                Log.errorf(t, "Work item %d on %s failed %d times, dead-lettering", item.id, item.channel, item.attempts);
+                registry.counter("horreum.queue.dead-lettered", "channel", item.channel).increment();
+                deadLetter(item.id, error);
+            } else {
+                long delay = retryDelay.toMillis() << Math.min(item.attempts - 1, 16);
+                Log.warnf(t, "Work item %d on %s failed (attempt %d), retrying in %d ms", item.id, item.channel,
+                        item.attempts, delay);
+                registry.counter("horreum.queue.retries", "channel", item.channel).increment();
+                retry(item.id, delay, error);
+            }
+        }
+    }
+
+    private void handle(Item item) throws JsonProcessingException {
+        switch (item.channel) {
+            case DATASET_EVENT ->
+                mediator.processDatasetEvents(Util.OBJECT_MAPPER.readValue(item.payload, Dataset.EventNew.class));
+            case RUN_RECALC -> mediator.processRunRecalculation(Integer.parseInt(item.payload));
+            case SCHEMA_SYNC -> mediator.processSchemaSync(Integer.parseInt(item.payload));
+            case RUN_UPLOAD -> mediator.processRunUpload(Long.parseLong(item.payload));
+            default -> throw new IllegalStateException("Unknown work queue channel " + item.channel);
+        }
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void acknowledge(long id) {
+        em.createNativeQuery("DELETE FROM work_queue WHERE id = ?1").setParameter(1, id).executeUpdate();
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void retry(long id, long delayMillis, String error) {
+        em.createNativeQuery(RETRY).setParameter(1, id).setParameter(2, delayMillis).setParameter(3, error)
+                .executeUpdate();
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void deadLetter(long id, String error) {
+        em.createNativeQuery(DEAD_LETTER).setParameter(1, id).setParameter(2, error).executeUpdate();
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        // items still being processed become visible again once their visibility timeout expires
+        enabled = false;
+        consumers.stream().map(Consumer::pool).distinct().forEach(WorkerExecutor::close);
+    }
+
+    record Item(long id, String channel, String payload, int attempts) {
+    }
+
+    private static final class ClaimedEvent {
+        final Item item;
+        final Dataset.EventNew event;
+        boolean changed;
+
+        ClaimedEvent(Item item, Dataset.EventNew event) {
+            this.item = item;
+            this.event = event;
+        }
+    }
+
+    private record Consumer(String channel, WorkerExecutor pool, int concurrency, AtomicInteger inFlight) {
+    }
+}
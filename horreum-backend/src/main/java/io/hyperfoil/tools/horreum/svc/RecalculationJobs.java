@@ -0,0 +1,435 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionManager;
+import jakarta.transaction.Transactional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.type.StandardBasicTypes;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.bus.BlockingTaskDispatcher;
+import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.logging.Log;
+import io.quarkus.scheduler.Scheduled;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+/**
+ * Recalculations of the datasets or datapoints of a test, persisted in the <code>recalculation_job</code> table so
+ * that only one of each kind runs for a test across all Horreum instances, its progress can be read on any of them
+ * and it survives restarts.
+ * <p>
+ * A job processes the runs or datasets of the test in batches ordered by their start and ID; after each batch the
+ * position of its last item is stored as a checkpoint. The instance driving a job refreshes it every
+ * <code>horreum.recalculation.poll-interval</code>; a running job that has not been refreshed for
+ * <code>horreum.recalculation.heartbeat-timeout</code>, e.g. because its instance was stopped, is taken over by
+ * another instance and continues from the checkpoint. Jobs can be paused, resumed and cancelled between batches.
+ */
+@ApplicationScoped
+public class RecalculationJobs {
+    static final String DATASETS = "datasets";
+    static final String DATAPOINTS = "datapoints";
+
+    static final String RUNNING = "running";
+    static final String PAUSED = "paused";
+    static final String CANCELLED = "cancelled";
+    static final String COMPLETED = "completed";
+    static final String FAILED = "failed";
+
+    //@formatter:off
+    private static final String START = """
+         INSERT INTO recalculation_job (test_id, kind, total, params, owner) VALUES (?1, ?2, ?3, ?4, ?5)
+         ON CONFLICT (test_id, kind) WHERE completed IS NULL DO NOTHING
+         RETURNING id
+         """;
+    private static final String SELECT = """
+         SELECT id, test_id, kind, state, owner, params, checkpoint, started, total, finished, datasets, errors,
+            without_value, completed IS NOT NULL AS completed,
+            CASE WHEN state = 'running' THEN (finished - resumed_finished) / GREATEST(EXTRACT(EPOCH FROM now() - resumed), 1) END AS throughput
+         FROM recalculation_job
+         """;
+    // the active job, or the one completed most recently if it is not older than the retention
+    private static final String FIND = SELECT + """
+         WHERE test_id = ?1 AND kind = ?2 AND (completed IS NULL OR completed > now() - ?3 * interval '1 millisecond')
+         ORDER BY completed IS NULL DESC, id DESC
+         LIMIT 1
+         """;
+    private static final String PREPARE = """
+         UPDATE recalculation_job SET total = ?2, params = ?3, updated = now() WHERE id = ?1
+         """;
+    // a batch finished while the job was paused is still recorded
+    private static final String CHECKPOINT = """
+         UPDATE recalculation_job SET checkpoint = ?3, finished = finished + ?4, datasets = datasets + ?5,
+            errors = errors + ?6, without_value = COALESCE(without_value, '[]'::jsonb) || COALESCE(?7, '[]'::jsonb),
+            updated = now()
+         WHERE id = ?1 AND owner = ?2 AND completed IS NULL
+         """;
+    private static final String COMPLETE = """
+         UPDATE recalculation_job SET state = ?3, total = CASE WHEN ?3 = 'completed' THEN finished ELSE total END,
+            completed = now(), updated = now()
+         WHERE id = ?1 AND owner = ?2 AND completed IS NULL
+         """;
+    private static final String PAUSE = """
+         UPDATE recalculation_job SET state = 'paused', updated = now()
+         WHERE test_id = ?1 AND kind = ?2 AND completed IS NULL AND state = 'running'
+         """;
+    private static final String RESUME = """
+         UPDATE recalculation_job SET state = 'running', owner = ?3, resumed = now(), resumed_finished = finished,
+            updated = now()
+         WHERE test_id = ?1 AND kind = ?2 AND completed IS NULL AND state = 'paused'
+         RETURNING id
+         """;
+    private static final String CANCEL = """
+         UPDATE recalculation_job SET state = 'cancelled', completed = now(), updated = now()
+         WHERE test_id = ?1 AND kind = ?2 AND completed IS NULL
+         """;
+    private static final String HEARTBEAT = """
+         UPDATE recalculation_job SET updated = now() WHERE id = ?1 AND owner = ?2 AND completed IS NULL
+         """;
+    private static final String CLAIM = """
+         UPDATE recalculation_job SET owner = ?1, resumed = now(), resumed_finished = finished, updated = now()
+         WHERE id IN (
+            SELECT id FROM recalculation_job
+            WHERE completed IS NULL AND state = 'running' AND updated < now() - ?2 * interval '1 millisecond'
+            FOR UPDATE SKIP LOCKED
+         )
+         RETURNING id, test_id, kind
+         """;
+    //@formatter:on
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    BlockingTaskDispatcher messageBus;
+
+    @Inject
+    ServiceMediator mediator;
+
+    @ConfigProperty(name = "horreum.recalculation.heartbeat-timeout", defaultValue = "PT1M")
+    Duration heartbeatTimeout;
+
+    @ConfigProperty(name = "horreum.recalculation.concurrency", defaultValue = "4")
+    int concurrency;
+
+    @ConfigProperty(name = "horreum.recalculation.batch-size", defaultValue = "100")
+    int batchSize;
+
+    // identifies the jobs driven by this instance
+    private final String owner = UUID.randomUUID().toString();
+    private final Set<Long> driving = ConcurrentHashMap.newKeySet();
+    private WorkerExecutor pool;
+
+    /**
+     * @param params parameters of the recalculation, set by the kind of the job
+     * @param checkpoint position after the last processed item, <code>null</code> before the first batch
+     * @param throughput items processed per second since the job was started or resumed, <code>null</code> unless
+     *        it is running
+     */
+    record Job(long id, int testId, String kind, String state, String owner, JsonNode params, JsonNode checkpoint,
+            Instant started, int total, int finished, int datasets, int errors, JsonNode withoutValue, boolean completed,
+            Double throughput) {
+    }
+
+    /**
+     * Result of processing the items after the checkpoint of a job.
+     *
+     * @param checkpoint position after the last item of the batch
+     * @param finished number of processed items
+     * @param datasets number of datasets created
+     * @param errors number of items that failed
+     * @param withoutValue array of datasets without a value for some variable, or <code>null</code>
+     */
+    record Batch(JsonNode checkpoint, int finished, int datasets, int errors, JsonNode withoutValue) {
+    }
+
+    @PostConstruct
+    void init() {
+        pool = vertx.createSharedWorkerExecutor("horreum.recalculation.pool", concurrency, heartbeatTimeout.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void destroy() {
+        pool.close();
+    }
+
+    /**
+     * Registers a new job in the current transaction and starts processing it once the transaction commits; if the
+     * transaction rolls back the job is not registered at all.
+     *
+     * @return ID of the new job or <code>null</code> if the same kind of recalculation is already running or paused
+     *         for the test
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Long start(int testId, String kind, int total, JsonNode params) {
+        em.createNativeQuery("DELETE FROM recalculation_job WHERE test_id = ?1 AND kind = ?2 AND completed IS NOT NULL")
+                .setParameter(1, testId).setParameter(2, kind).executeUpdate();
+        Long jobId = em.unwrap(Session.class).createNativeQuery(START, Long.class).setParameter(1, testId)
+                .setParameter(2, kind).setParameter(3, total).setParameter(4, params, JsonBinaryType.INSTANCE)
+                .setParameter(5, owner).getResultStream().findFirst().orElse(null);
+        if (jobId != null) {
+            Util.doAfterCommit(tm, () -> schedule(jobId, testId, kind));
+        }
+        return jobId;
+    }
+
+    /**
+     * @return <code>true</code> if a running job was paused
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    boolean pause(int testId, String kind) {
+        return em.createNativeQuery(PAUSE).setParameter(1, testId).setParameter(2, kind).executeUpdate() > 0;
+    }
+
+    /**
+     * Continues a paused job from its checkpoint on this instance.
+     *
+     * @return <code>true</code> if a paused job was resumed
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    boolean resume(int testId, String kind) {
+        Long jobId = em.unwrap(Session.class).createNativeQuery(RESUME, Long.class).setParameter(1, testId)
+                .setParameter(2, kind).setParameter(3, owner).getResultStream().findFirst().orElse(null);
+        if (jobId == null) {
+            return false;
+        }
+        Util.doAfterCommit(tm, () -> schedule(jobId, testId, kind));
+        return true;
+    }
+
+    /**
+     * Cancels the running or paused job; the batch being processed is finished but not recorded.
+     *
+     * @return <code>true</code> if a job was cancelled
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    boolean cancel(int testId, String kind) {
+        return em.createNativeQuery(CANCEL).setParameter(1, testId).setParameter(2, kind).executeUpdate() > 0;
+    }
+
+    /**
+     * @param retention how long a completed job is still returned
+     * @return the running or paused job or the last one completed within the retention, <code>null</code> if there is
+     *         none
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Job find(int testId, String kind, Duration retention) {
+        return select(em.unwrap(Session.class).createNativeQuery(FIND, Object[].class)
+                .setParameter(1, testId).setParameter(2, kind).setParameter(3, retention.toMillis()));
+    }
+
+    /**
+     * Records the total number of items and the parameters of the job computed before its first batch.
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    void prepare(long jobId, int total, JsonNode params) {
+        em.unwrap(Session.class).createNativeQuery(PREPARE).setParameter(1, jobId).setParameter(2, total)
+                .setParameter(3, params, JsonBinaryType.INSTANCE).executeUpdate();
+    }
+
+    /**
+     * Runs the task for each of the IDs in the recalculation pool, which limits the number of tasks running
+     * concurrently on this instance to <code>horreum.recalculation.concurrency</code>, and waits until all complete.
+     *
+     * @param task returns the number of datasets created for the ID
+     * @return number of datasets created and number of tasks that failed
+     */
+    int[] runConcurrently(List<Integer> ids, IntUnaryOperator task) {
+        AtomicInteger datasets = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(ids.size());
+        for (int id : ids) {
+            Runnable wrapped = Util.wrapForBlockingExecution(() -> datasets.addAndGet(task.applyAsInt(id)));
+            pool.executeBlocking(() -> {
+                try {
+                    wrapped.run();
+                } catch (Throwable t) {
+                    Log.errorf(t, "Failed to recalculate %d", id);
+                    errors.incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+                return null;
+            }, false);
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for recalculation", e);
+        }
+        return new int[] { datasets.get(), errors.get() };
+    }
+
+    static ObjectNode checkpoint(Instant start, int id) {
+        ObjectNode checkpoint = Util.OBJECT_MAPPER.createObjectNode();
+        // the string keeps the microseconds of the timestamp
+        checkpoint.put("start", start.toString());
+        checkpoint.put("id", id);
+        return checkpoint;
+    }
+
+    static Instant checkpointStart(JsonNode checkpoint) {
+        return checkpoint == null ? null : Instant.parse(checkpoint.path("start").asText());
+    }
+
+    static Integer checkpointId(JsonNode checkpoint) {
+        return checkpoint == null ? null : checkpoint.path("id").asInt();
+    }
+
+    @Scheduled(every = "{horreum.recalculation.poll-interval}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void poll() {
+        for (long jobId : driving) {
+            heartbeat(jobId);
+        }
+        for (Object[] row : claimAbandoned()) {
+            long jobId = ((Number) row[0]).longValue();
+            int testId = (int) row[1];
+            String kind = (String) row[2];
+            Log.infof("Resuming abandoned recalculation of %s in test %d", kind, testId);
+            schedule(jobId, testId, kind);
+        }
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void heartbeat(long jobId) {
+        em.createNativeQuery(HEARTBEAT).setParameter(1, jobId).setParameter(2, owner).executeUpdate();
+    }
+
+    @SuppressWarnings("unchecked")
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    List<Object[]> claimAbandoned() {
+        return em.createNativeQuery(CLAIM).setParameter(1, owner).setParameter(2, heartbeatTimeout.toMillis())
+                .getResultList();
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Job load(long jobId) {
+        return select(em.unwrap(Session.class).createNativeQuery(SELECT + "WHERE id = ?1", Object[].class)
+                .setParameter(1, jobId));
+    }
+
+    /**
+     * @return <code>false</code> if the job has been cancelled or taken over by another instance
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    boolean checkpoint(long jobId, Batch batch) {
+        return em.unwrap(Session.class).createNativeQuery(CHECKPOINT).setParameter(1, jobId).setParameter(2, owner)
+                .setParameter(3, batch.checkpoint(), JsonBinaryType.INSTANCE).setParameter(4, batch.finished())
+                .setParameter(5, batch.datasets()).setParameter(6, batch.errors())
+                .setParameter(7, batch.withoutValue(), JsonBinaryType.INSTANCE).executeUpdate() > 0;
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void complete(long jobId, String state) {
+        em.createNativeQuery(COMPLETE).setParameter(1, jobId).setParameter(2, owner).setParameter(3, state)
+                .executeUpdate();
+    }
+
+    private void schedule(long jobId, int testId, String kind) {
+        if (DATAPOINTS.equals(kind)) {
+            // change detection must not run concurrently with other tasks of the test
+            messageBus.executeForTest(testId, () -> drive(jobId));
+        } else {
+            Util.executeBlocking(vertx, () -> drive(jobId));
+        }
+    }
+
+    private void drive(long jobId) {
+        if (!driving.add(jobId)) {
+            // the job was resumed before the previous driver noticed the pause, that one continues
+            return;
+        }
+        try {
+            for (;;) {
+                Job job = load(jobId);
+                if (job == null || job.completed() || !RUNNING.equals(job.state()) || !owner.equals(job.owner())) {
+                    return;
+                }
+                Batch batch;
+                try {
+                    batch = switch (job.kind()) {
+                        case DATASETS -> mediator.recalculateDatasets(job);
+                        case DATAPOINTS -> mediator.recalculateDatapoints(job);
+                        default -> throw new IllegalStateException("Unknown recalculation kind " + job.kind());
+                    };
+                } catch (Throwable t) {
+                    Log.errorf(t, "Recalculation of %s in test %d failed", job.kind(), job.testId());
+                    complete(jobId, FAILED);
+                    return;
+                }
+                if (batch == null) {
+                    complete(jobId, COMPLETED);
+                    Log.infof("Recalculation of %s in test %d completed", job.kind(), job.testId());
+                    return;
+                } else if (!checkpoint(jobId, batch)) {
+                    return;
+                }
+            }
+        } finally {
+            driving.remove(jobId);
+        }
+    }
+
+    private Job select(NativeQuery<Object[]> query) {
+        return query.addScalar("id", StandardBasicTypes.LONG)
+                .addScalar("test_id", StandardBasicTypes.INTEGER)
+                .addScalar("kind", StandardBasicTypes.TEXT)
+                .addScalar("state", StandardBasicTypes.TEXT)
+                .addScalar("owner", StandardBasicTypes.TEXT)
+                .addScalar("params", JsonBinaryType.INSTANCE)
+                .addScalar("checkpoint", JsonBinaryType.INSTANCE)
+                .addScalar("started", StandardBasicTypes.INSTANT)
+                .addScalar("total", StandardBasicTypes.INTEGER)
+                .addScalar("finished", StandardBasicTypes.INTEGER)
+                .addScalar("datasets", StandardBasicTypes.INTEGER)
+                .addScalar("errors", StandardBasicTypes.INTEGER)
+                .addScalar("without_value", JsonBinaryType.INSTANCE)
+                .addScalar("completed", StandardBasicTypes.BOOLEAN)
+                .addScalar("throughput", StandardBasicTypes.DOUBLE)
+                .getResultStream()
+                .map(row -> new Job((Long) row[0], (Integer) row[1], (String) row[2], (String) row[3], (String) row[4],
+                        (JsonNode) row[5], (JsonNode) row[6], (Instant) row[7], (Integer) row[8], (Integer) row[9],
+                        (Integer) row[10], (Integer) row[11], (JsonNode) row[12], (Boolean) row[13], (Double) row[14]))
+                .findFirst().orElse(null);
+    }
+}
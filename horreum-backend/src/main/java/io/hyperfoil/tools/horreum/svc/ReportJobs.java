@@ -0,0 +1,254 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+import jakarta.ws.rs.core.Response;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.type.StandardBasicTypes;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.api.internal.services.ReportService.TableReportJobState;
+import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Table report jobs, persisted in the <code>tablereport_job</code> table so that their status and result can be read
+ * on any Horreum instance. A job is generated by the instance it was submitted to, which refreshes its progress every
+ * <code>horreum.report.job.poll-interval</code>; a job that has not been refreshed for
+ * <code>horreum.report.job.heartbeat-timeout</code>, e.g. because its instance was stopped, is marked as failed.
+ * Finished jobs are deleted after <code>horreum.report.job.retention</code>.
+ */
+@ApplicationScoped
+public class ReportJobs {
+    //@formatter:off
+    private static final String ACTIVE = """
+         SELECT count(*) AS total, count(*) FILTER (WHERE owner IS NOT DISTINCT FROM ?1) AS owned
+         FROM tablereport_job WHERE finished IS NULL
+         """;
+    private static final String CREATE = """
+         INSERT INTO tablereport_job (id, owner, test_id, preview_key, instance) VALUES (?1, ?2, ?3, ?4, ?5)
+         """;
+    private static final String SELECT = """
+         SELECT id, owner, test_id, preview_key IS NOT NULL AS preview, state, total_datasets, processed_datasets,
+            outdated, report_id, error, submitted, finished
+         FROM tablereport_job
+         """;
+    private static final String FIND_PREVIEW = SELECT + """
+         WHERE preview_key = ?1 AND state <> 'FAILED' AND NOT outdated
+         ORDER BY submitted DESC
+         LIMIT 1
+         """;
+    private static final String START = """
+         UPDATE tablereport_job SET state = 'RUNNING', started = now(), updated = now() WHERE id = ?1
+         """;
+    private static final String PROGRESS = """
+         UPDATE tablereport_job SET total_datasets = ?2, processed_datasets = ?3, updated = now()
+         WHERE id = ?1 AND finished IS NULL
+         """;
+    private static final String COMPLETE = """
+         UPDATE tablereport_job SET state = ?2, result = ?3, report_id = ?4, error = ?5, total_datasets = ?6,
+            processed_datasets = ?7, finished = now(), updated = now()
+         WHERE id = ?1 AND finished IS NULL
+         """;
+    // results of jobs that have read the label values before the change do not reflect it
+    private static final String OUTDATE = """
+         UPDATE tablereport_job SET outdated = true WHERE test_id = ?1 AND NOT outdated AND started IS NOT NULL
+         """;
+    private static final String ABANDON = """
+         UPDATE tablereport_job SET state = 'FAILED', error = 'The instance generating the report has stopped.',
+            finished = now(), updated = now()
+         WHERE finished IS NULL AND updated < now() - ?1 * interval '1 millisecond'
+         """;
+    private static final String EXPIRE = """
+         DELETE FROM tablereport_job WHERE finished < now() - ?1 * interval '1 millisecond'
+         """;
+    //@formatter:on
+
+    @Inject
+    EntityManager em;
+
+    @ConfigProperty(name = "horreum.report.job.retention", defaultValue = "1h")
+    Duration retention;
+
+    @ConfigProperty(name = "horreum.report.job.heartbeat-timeout", defaultValue = "PT1M")
+    Duration heartbeatTimeout;
+
+    @ConfigProperty(name = "horreum.report.job.max-active", defaultValue = "20")
+    int maxActive;
+
+    @ConfigProperty(name = "horreum.report.job.max-active-per-user", defaultValue = "3")
+    int maxActivePerUser;
+
+    // identifies the jobs generated by this instance
+    private final String instance = UUID.randomUUID().toString();
+    // jobs created by this instance that have not finished yet
+    private final Map<String, Progress> running = new ConcurrentHashMap<>();
+
+    /**
+     * Progress of a job generated by this instance.
+     */
+    static final class Progress {
+        volatile long totalDatasets;
+        volatile long processedDatasets;
+    }
+
+    /**
+     * @param owner name of the submitting user or <code>null</code> for an anonymous one
+     * @param preview <code>true</code> if the job generates a preview rather than saving the report
+     * @param finished <code>null</code> until the job completes or fails
+     * @param outdated label values of the test changed after the job started
+     */
+    record Job(String id, String owner, int testId, boolean preview, TableReportJobState state, long totalDatasets,
+            long processedDatasets, boolean outdated, Integer reportId, String error, Instant submitted, Instant finished) {
+    }
+
+    /**
+     * Registers a queued job unless there are too many unfinished jobs in total or of the owner.
+     *
+     * @param previewKey identifies previews that can share their result, <code>null</code> if the result is not shared
+     * @return ID of the new job
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    String create(String owner, int testId, String previewKey) {
+        // serializes the check of the limits with concurrent submissions
+        em.createNativeQuery("SELECT 1 FROM pg_advisory_xact_lock(hashtext('tablereport_job'))").getSingleResult();
+        Object[] active = em.unwrap(Session.class).createNativeQuery(ACTIVE, Object[].class)
+                .setParameter(1, owner, StandardBasicTypes.TEXT)
+                .addScalar("total", StandardBasicTypes.LONG)
+                .addScalar("owned", StandardBasicTypes.LONG)
+                .getSingleResult();
+        if ((Long) active[0] >= maxActive || (Long) active[1] >= maxActivePerUser) {
+            throw new ServiceException(Response.Status.TOO_MANY_REQUESTS,
+                    "Too many report jobs are in progress, try again later.");
+        }
+        String id = UUID.randomUUID().toString();
+        em.unwrap(Session.class).createNativeQuery(CREATE).setParameter(1, id)
+                .setParameter(2, owner, StandardBasicTypes.TEXT).setParameter(3, testId)
+                .setParameter(4, previewKey, StandardBasicTypes.TEXT).setParameter(5, instance).executeUpdate();
+        // queued jobs are refreshed as well
+        running.put(id, new Progress());
+        return id;
+    }
+
+    /**
+     * @return job with the same preview key whose result is, or will be, up to date
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Job findPreview(String previewKey) {
+        return select(em.unwrap(Session.class).createNativeQuery(FIND_PREVIEW, Object[].class)
+                .setParameter(1, previewKey));
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Job find(String jobId) {
+        Job job = select(em.unwrap(Session.class).createNativeQuery(SELECT + "WHERE id = ?1", Object[].class)
+                .setParameter(1, jobId));
+        Progress progress = job == null ? null : running.get(jobId);
+        if (progress != null && job.finished() == null) {
+            // fresher than the last refresh
+            return new Job(job.id(), job.owner(), job.testId(), job.preview(), job.state(), progress.totalDatasets,
+                    progress.processedDatasets, job.outdated(), job.reportId(), job.error(), job.submitted(), null);
+        }
+        return job;
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    JsonNode result(String jobId) {
+        return em.unwrap(Session.class)
+                .createNativeQuery("SELECT result FROM tablereport_job WHERE id = ?1", JsonNode.class)
+                .setParameter(1, jobId)
+                .addScalar("result", JsonBinaryType.INSTANCE)
+                .getResultStream().findFirst().orElse(null);
+    }
+
+    /**
+     * Marks the job created on this instance as running.
+     *
+     * @return progress to be updated while the report is generated
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Progress start(String jobId) {
+        em.createNativeQuery(START).setParameter(1, jobId).executeUpdate();
+        return running.computeIfAbsent(jobId, id -> new Progress());
+    }
+
+    /**
+     * @param result generated report, <code>null</code> if the job failed
+     * @param reportId ID of the saved report
+     * @param error message of the failure
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void complete(String jobId, JsonNode result, Integer reportId, String error) {
+        Progress progress = running.remove(jobId);
+        em.unwrap(Session.class).createNativeQuery(COMPLETE).setParameter(1, jobId)
+                .setParameter(2, (result == null ? TableReportJobState.FAILED : TableReportJobState.COMPLETED).name())
+                .setParameter(3, result, JsonBinaryType.INSTANCE)
+                .setParameter(4, reportId, StandardBasicTypes.INTEGER)
+                .setParameter(5, error, StandardBasicTypes.TEXT)
+                .setParameter(6, progress == null ? 0 : progress.totalDatasets)
+                .setParameter(7, progress == null ? 0 : progress.processedDatasets)
+                .executeUpdate();
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void outdate(int testId) {
+        em.createNativeQuery(OUTDATE).setParameter(1, testId).executeUpdate();
+    }
+
+    @Scheduled(every = "{horreum.report.job.poll-interval}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void poll() {
+        refresh();
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void refresh() {
+        for (var entry : running.entrySet()) {
+            em.createNativeQuery(PROGRESS).setParameter(1, entry.getKey())
+                    .setParameter(2, entry.getValue().totalDatasets)
+                    .setParameter(3, entry.getValue().processedDatasets).executeUpdate();
+        }
+        em.createNativeQuery(ABANDON).setParameter(1, heartbeatTimeout.toMillis()).executeUpdate();
+        em.createNativeQuery(EXPIRE).setParameter(1, retention.toMillis()).executeUpdate();
+    }
+
+    private Job select(NativeQuery<Object[]> query) {
+        return query.addScalar("id", StandardBasicTypes.TEXT)
+                .addScalar("owner", StandardBasicTypes.TEXT)
+                .addScalar("test_id", StandardBasicTypes.INTEGER)
+                .addScalar("preview", StandardBasicTypes.BOOLEAN)
+                .addScalar("state", StandardBasicTypes.TEXT)
+                .addScalar("total_datasets", StandardBasicTypes.LONG)
+                .addScalar("processed_datasets", StandardBasicTypes.LONG)
+                .addScalar("outdated", StandardBasicTypes.BOOLEAN)
+                .addScalar("report_id", StandardBasicTypes.INTEGER)
+                .addScalar("error", StandardBasicTypes.TEXT)
+                .addScalar("submitted", StandardBasicTypes.INSTANT)
+                .addScalar("finished", StandardBasicTypes.INSTANT)
+                .getResultStream()
+                .map(row -> new Job((String) row[0], (String) row[1], (Integer) row[2], (Boolean) row[3],
+                        TableReportJobState.valueOf((String) row[4]), (Long) row[5], (Long) row[6], (Boolean) row[7],
+                        (Integer) row[8], (String) row[9], (Instant) row[10], (Instant) row[11]))
+                .findFirst().orElse(null);
+    }
+}
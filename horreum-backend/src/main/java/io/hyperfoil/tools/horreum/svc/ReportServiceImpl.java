@@ -1,14 +1,20 @@
 package io.hyperfoil.tools.horreum.svc;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -17,9 +23,12 @@ import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
+import jakarta.transaction.SystemException;
+import jakarta.transaction.TransactionManager;
 import jakarta.transaction.Transactional;
 
 import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
 import org.graalvm.polyglot.PolyglotException;
 import org.graalvm.polyglot.Value;
 import org.hibernate.Hibernate;
@@ -27,11 +36,13 @@ import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
 import org.hibernate.type.StandardBasicTypes;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 
 import io.hyperfoil.tools.horreum.api.SortDirection;
+import io.hyperfoil.tools.horreum.api.data.Dataset;
 import io.hyperfoil.tools.horreum.api.internal.services.ReportService;
 import io.hyperfoil.tools.horreum.api.report.ReportComment;
 import io.hyperfoil.tools.horreum.api.report.TableReport;
@@ -42,6 +53,7 @@ import io.hyperfoil.tools.horreum.entity.report.*;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import io.hyperfoil.tools.horreum.mapper.ReportCommentMapper;
 import io.hyperfoil.tools.horreum.mapper.TableReportMapper;
+import io.hyperfoil.tools.horreum.server.RolesInterceptor;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.Startup;
@@ -55,6 +67,17 @@ public class ReportServiceImpl implements ReportService {
         System.setProperty("polyglot.engine.WarnInterpreterOnly", "false");
     }
 
+    //@formatter:off
+    private static final String UPSERT_REPORT_CELLS = """
+         INSERT INTO tablereport_cell (config_id, dataset_id, digest, included, category, series, scale, components)
+         SELECT ?1, c.dataset_id, c.digest, c.included, c.category, c.series, c.scale, c.components
+         FROM jsonb_to_recordset((?2)::jsonb)
+            AS c(dataset_id integer, digest text, included boolean, category text, series text, scale text, components jsonb)
+         ON CONFLICT (config_id, dataset_id) DO UPDATE SET digest = EXCLUDED.digest, included = EXCLUDED.included,
+            category = EXCLUDED.category, series = EXCLUDED.series, scale = EXCLUDED.scale, components = EXCLUDED.components
+         """;
+    //@formatter:on
+
     @Inject
     SecurityIdentity identity;
 
@@ -64,6 +87,15 @@ public class ReportServiceImpl implements ReportService {
     @Inject
     TimeService timeService;
 
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    ServiceMediator mediator;
+
+    @Inject
+    ReportJobs reportJobs;
+
     @PermitAll
     @WithRoles
     @Override
@@ -148,10 +180,18 @@ public class ReportServiceImpl implements ReportService {
     @Override
     @Transactional
     public TableReport updateTableReportConfig(TableReportConfig dto, Integer reportId) {
+        return saveTableReport(dto, reportId, null);
+    }
+
+    @WithRoles
+    @Transactional
+    TableReport saveTableReport(TableReportConfig dto, Integer reportId, ReportJobs.Progress progress) {
         if (dto.id != null && dto.id < 0) {
             dto.id = null;
         }
         boolean createNewConfig = reportId == null || reportId < 0;
+        // a new config can still reuse the cells computed for the config it was created from
+        Integer cacheConfigId = dto.id;
         if (createNewConfig) {
             // We are going to create a new report, therefore we'll use a new config
             dto.id = null;
@@ -164,7 +204,8 @@ public class ReportServiceImpl implements ReportService {
         validateTableConfig(dto);
         TableReportConfigDAO config = TableReportMapper.toTableReportConfig(dto);
         config.ensureLinked();
-        TableReportDAO report = createTableReport(config, reportId);
+        GeneratedReport generated = createTableReport(config, reportId, cacheConfigId, progress);
+        TableReportDAO report = generated.report;
         if (config.id == null) {
             config.persist();
         } else {
@@ -179,7 +220,9 @@ public class ReportServiceImpl implements ReportService {
         } else {
             em.merge(report);
         }
+        // the config must exist before its cells are stored
         em.flush();
+        saveCells(config.id, generated);
         return TableReportMapper.from(report);
     }
 
@@ -283,12 +326,126 @@ public class ReportServiceImpl implements ReportService {
     public TableReport previewTableReport(TableReportConfig dto, Integer reportId) {
         validateTableConfig(dto);
         TableReportConfigDAO config = TableReportMapper.toTableReportConfig(dto);
-        TableReportDAO report = createTableReport(config, reportId);
+        TableReportDAO report = createTableReport(config, reportId, dto.id != null && dto.id >= 0 ? dto.id : null, null).report;
+        em.detach(report);
+        return TableReportMapper.from(report);
+    }
+
+    @WithRoles
+    @Transactional
+    TableReport previewTableReport(TableReportConfig dto, Integer reportId, ReportJobs.Progress progress) {
+        // a preview never changes the database, even when the edited report is loaded
+        try {
+            tm.setRollbackOnly();
+        } catch (SystemException e) {
+            throw new IllegalStateException(e);
+        }
+        TableReportConfigDAO config = TableReportMapper.toTableReportConfig(dto);
+        TableReportDAO report = createTableReport(config, reportId, dto.id != null && dto.id >= 0 ? dto.id : null,
+                progress).report;
         em.detach(report);
         return TableReportMapper.from(report);
     }
 
-    private TableReportDAO createTableReport(TableReportConfigDAO config, Integer reportId) {
+    @PermitAll
+    @WithRoles
+    @Override
+    public TableReportJobStatus submitTableReportJob(TableReportConfig dto, Integer reportId, boolean save) {
+        if (save && !identity.hasRole(Roles.TESTER)) {
+            throw ServiceException.forbidden("Saving a report requires the " + Roles.TESTER + " role");
+        }
+        validateTableConfig(dto);
+        if (TestDAO.findById(dto.test.id) == null) {
+            throw ServiceException.badRequest("Cannot find test with ID " + dto.test.id);
+        }
+        String owner = jobOwner();
+        // identical previews by the same user share the result until label values of the test change; anonymous
+        // users cannot be told apart and do not share them
+        String previewKey = save || owner == null ? null
+                : sha256(owner + "\n" + reportId + "\n" + Util.OBJECT_MAPPER.valueToTree(dto));
+        if (previewKey != null) {
+            ReportJobs.Job previous = reportJobs.findPreview(previewKey);
+            if (previous != null) {
+                return toStatus(previous);
+            }
+        }
+        String jobId = reportJobs.create(owner, dto.test.id, previewKey);
+        CachedSecurityIdentity jobIdentity = new CachedSecurityIdentity(identity);
+        mediator.executeBlocking(() -> {
+            RolesInterceptor.setCurrentIdentity(jobIdentity);
+            TableReport result = null;
+            String error = null;
+            try {
+                ReportJobs.Progress progress = reportJobs.start(jobId);
+                result = save ? saveTableReport(dto, reportId, progress) : previewTableReport(dto, reportId, progress);
+            } catch (Throwable t) {
+                Log.errorf(t, "Report job %s for test %d failed", jobId, dto.test.id);
+                error = t.getMessage() == null ? t.getClass().getName() : t.getMessage();
+            } finally {
+                RolesInterceptor.setCurrentIdentity(null);
+            }
+            reportJobs.complete(jobId, result == null ? null : Util.OBJECT_MAPPER.valueToTree(result),
+                    save && result != null ? result.id : null, error);
+        });
+        return toStatus(reportJobs.find(jobId));
+    }
+
+    @PermitAll
+    @Override
+    public TableReportJobStatus getTableReportJobStatus(String jobId) {
+        return toStatus(getJob(jobId));
+    }
+
+    @PermitAll
+    @Override
+    public TableReport getTableReportJobResult(String jobId) {
+        ReportJobs.Job job = getJob(jobId);
+        return switch (job.state()) {
+            case COMPLETED -> {
+                try {
+                    yield Util.OBJECT_MAPPER.treeToValue(reportJobs.result(jobId), TableReport.class);
+                } catch (JsonProcessingException e) {
+                    throw ServiceException.serverError("Cannot read the result of report job " + jobId);
+                }
+            }
+            case FAILED -> throw ServiceException.serverError("Report job " + jobId + " failed: " + job.error());
+            default -> throw ServiceException.badRequest("Report job " + jobId + " has not completed yet.");
+        };
+    }
+
+    private ReportJobs.Job getJob(String jobId) {
+        ReportJobs.Job job = reportJobs.find(jobId);
+        // jobs of anonymous users are known only to those who submitted them
+        if (job == null || (job.owner() != null && !job.owner().equals(jobOwner()))) {
+            throw ServiceException.notFound("Report job " + jobId + " does not exist.");
+        }
+        return job;
+    }
+
+    private String jobOwner() {
+        return identity.isAnonymous() ? null : identity.getPrincipal().getName();
+    }
+
+    private TableReportJobStatus toStatus(ReportJobs.Job job) {
+        TableReportJobStatus status = new TableReportJobStatus();
+        status.jobId = job.id();
+        status.state = job.state();
+        status.submitted = job.submitted().toEpochMilli();
+        status.finished = job.finished() == null ? null : job.finished().toEpochMilli();
+        status.totalDatasets = job.totalDatasets();
+        status.processedDatasets = job.processedDatasets();
+        status.outdated = job.outdated();
+        status.reportId = job.preview() ? null : job.reportId();
+        status.error = job.error();
+        return status;
+    }
+
+    void onLabelsUpdated(Dataset.LabelsUpdatedEvent event) {
+        Util.doAfterCommit(tm, () -> mediator.executeBlocking(() -> reportJobs.outdate(event.testId)));
+    }
+
+    private GeneratedReport createTableReport(TableReportConfigDAO config, Integer reportId, Integer cacheConfigId,
+            ReportJobs.Progress progress) {
         Integer testId = config.test.id;
         TestDAO test = TestDAO.findById(testId);
         if (test == null) {
@@ -310,206 +467,368 @@ public class ReportServiceImpl implements ReportService {
             report.logs.clear();
         }
         report.config = config;
-        List<Object[]> categories = Collections.emptyList(), series, scales = Collections.emptyList();
-        NativeQuery<Object[]> timestampQuery;
-        if (!nullOrEmpty(config.filterLabels)) {
-            List<Integer> datasetIds = filterDatasetIds(config, report);
-            Log.debugf("Table report %s(%d) includes datasets %s", config.title, config.id, datasetIds);
-            series = selectByDatasets(config.seriesLabels, datasetIds);
-            Log.debugf("Series: %s", rowsToMap(series));
-            if (!nullOrEmpty(config.scaleLabels)) {
-                scales = selectByDatasets(config.scaleLabels, datasetIds);
-                Log.debugf("Scales: %s", rowsToMap(scales));
-            }
-            if (!nullOrEmpty(config.categoryLabels)) {
-                categories = selectByDatasets(config.categoryLabels, datasetIds);
-                Log.debugf("Categories: %s", rowsToMap(categories));
-            }
-            timestampQuery = em.unwrap(Session.class)
-                    .createNativeQuery("SELECT id, start FROM dataset WHERE id IN :datasets", Object[].class)
-                    .setParameter("datasets", datasetIds);
-        } else {
+
+        Map<Integer, DatasetInputs> inputs = loadInputs(config);
+        if (nullOrEmpty(config.filterLabels)) {
             log(report, PersistentLogDAO.DEBUG, "Table report %s(%d) includes all datasets for test %s(%d)", config.title,
                     config.id, config.test.name, config.test.id);
-            series = selectByTest(config.test.id, config.seriesLabels);
-            Log.debugf("Series: %s", rowsToMap(series));
-            if (!nullOrEmpty(config.scaleLabels)) {
-                scales = selectByTest(config.test.id, config.scaleLabels);
-                Log.debugf("Scales: %s", rowsToMap(scales));
+        } else if (inputs.isEmpty()) {
+            log(report, PersistentLogDAO.WARN, "There are no matching datasets for test %s (%d)", config.test.name,
+                    config.test.id);
+        }
+        // cells are reused only when the config and all label values they were computed from are unchanged
+        Map<Integer, ReportCell> cached = cacheConfigId == null ? Collections.emptyMap() : loadCells(cacheConfigId);
+        String configDigest = configDigest(config);
+        List<ReportCell> cells = new ArrayList<>(inputs.size());
+        List<DatasetInputs> changed = new ArrayList<>();
+        for (DatasetInputs in : inputs.values()) {
+            in.digest = digest(configDigest, in);
+            ReportCell cell = cached.get(in.datasetId);
+            if (cell != null && in.digest.equals(cell.digest)) {
+                cell.runId = in.runId;
+                cell.ordinal = in.ordinal;
+                cells.add(cell);
+            } else {
+                changed.add(in);
             }
-            if (!nullOrEmpty(config.categoryLabels)) {
-                categories = selectByTest(config.test.id, config.categoryLabels);
-                Log.debugf("Categories: %s", rowsToMap(categories));
+        }
+        Log.debugf("Table report %s(%d) reuses %d cells, evaluating %d datasets", config.title, config.id,
+                cells.size(), changed.size());
+        if (progress != null) {
+            progress.totalDatasets = inputs.size();
+            progress.processedDatasets = cells.size();
+        }
+        if (!changed.isEmpty()) {
+            // the cells are cached separately, each dataset is evaluated in its own context so that global state
+            // of the functions cannot leak between them; the engine shares the parsed code
+            executeInEngine(config, engine -> {
+                for (DatasetInputs in : changed) {
+                    try (Context context = Context.newBuilder("js").engine(engine).build()) {
+                        cells.add(evaluateCell(context, config, report, in));
+                    }
+                    if (progress != null) {
+                        progress.processedDatasets++;
+                    }
+                }
+            });
+        }
+        if (!nullOrEmpty(config.filterLabels)) {
+            log(report, PersistentLogDAO.DEBUG, "Datasets considered for report: %s", cells.stream()
+                    .map(cell -> cell.runId + "/" + cell.ordinal + (cell.included ? "" : "(filtered)"))
+                    .collect(Collectors.joining(", ")));
+        }
+
+        Map<Integer, TableReportDAO.Data> datasetData = new HashMap<>();
+        for (ReportCell cell : cells) {
+            if (cell.included) {
+                datasetData.put(cell.datasetId, cell.toData());
             }
-            timestampQuery = em.unwrap(Session.class)
-                    .createNativeQuery("SELECT id, start FROM dataset WHERE testid = ?", Object[].class)
-                    .setParameter(1, config.test.id);
-        }
-        if (categories.isEmpty() && !series.isEmpty()) {
-            assert config.categoryLabels == null;
-            assert config.categoryFunction == null;
-            assert config.categoryFormatter == null;
-            categories = series.stream()
-                    .map(row -> new Object[] { row[0], row[1], row[2], JsonNodeFactory.instance.textNode("") })
-                    .collect(Collectors.toList());
-        }
-        if (scales.isEmpty() && !series.isEmpty()) {
-            assert config.scaleLabels == null;
-            assert config.scaleFunction == null;
-            assert config.scaleFormatter == null;
-            scales = series.stream().map(row -> new Object[] { row[0], row[1], row[2], JsonNodeFactory.instance.textNode("") })
-                    .collect(Collectors.toList());
-        }
-        Map<Integer, TableReportDAO.Data> datasetData = series.isEmpty() ? Collections.emptyMap()
-                : getData(config, report, categories, series, scales);
+        }
         Log.debugf("Data per dataset: %s", datasetData);
 
-        Map<Integer, Instant> timestamps = timestampQuery.getResultStream()
+        Map<Integer, Instant> timestamps = em.unwrap(Session.class)
+                .createNativeQuery("SELECT id, start FROM dataset WHERE testid = ?", Object[].class)
+                .setParameter(1, config.test.id)
+                .getResultStream()
                 .collect(Collectors.toMap(row -> (Integer) row[0], row -> (Instant) row[1]));
         // TODO: customizable time range
         List<Integer> datasetIds = getFinalDatasetIds(timestamps, datasetData);
-        List<List<Object[]>> values = config.components.stream()
-                .map(component -> selectByDatasets(component.labels, datasetIds))
-                .collect(Collectors.toList());
-        executeInContext(config, context -> {
-            for (int i = 0; i < values.size(); i++) {
-                List<Object[]> valuesForComponent = values.get(i);
-                ReportComponentDAO component = config.components.get(i);
-                for (Object[] row : valuesForComponent) {
-                    Integer datasetId = (Integer) row[0];
-                    JsonNode value = (JsonNode) row[3];
-                    TableReportDAO.Data data = datasetData.get(datasetId);
-                    if (nullOrEmpty(component.function)) {
-                        if (value == null || value.isNull()) {
-                            data.values.addNull();
-                        } else {
-                            Double dValue = value.asDouble();
-                            if (dValue != null) {
-                                data.values.add(dValue);
-                            } else {
-                                data.values.add(value);
-                            }
-                        }
-                    } else {
-                        String jsCode = buildCode(component.function, String.valueOf(value));
-                        try {
-                            Value calculatedValue = context.eval("js", jsCode);
-                            Double maybeDouble = Util.toDoubleOrNull(calculatedValue,
-                                    err -> log(report, PersistentLogDAO.ERROR, err),
-                                    info -> log(report, PersistentLogDAO.INFO, info));
-                            if (maybeDouble != null) {
-                                data.values.add(maybeDouble);
-                            } else {
-                                data.values.add(Util.convertToJson(calculatedValue));
-                            }
-                        } catch (PolyglotException e) {
-                            log(report, PersistentLogDAO.ERROR,
-                                    "Failed to run report %s(%d) label function on run %d. Offending code: <br><pre>%s</pre>",
-                                    config.title, config.id, datasetId, jsCode);
-                            Log.debug("Caused by exception", e);
-                        }
-                    }
-                }
-            }
-        });
         report.data = datasetIds.stream().map(datasetData::get).collect(Collectors.toList());
-        return report;
+        return new GeneratedReport(report, cells, cacheConfigId);
     }
 
-    private Map<Object, Object> rowsToMap(List<Object[]> series) {
-        return series.stream().collect(
-                Collectors.toMap(row -> row[0] == null ? "<null>" : row[0], row -> row[3] == null ? "<null>" : row[3]));
-    }
-
-    private boolean nullOrEmpty(String str) {
-        return str == null || str.trim().isEmpty();
+    /**
+     * Loads the label values the report config depends on for each dataset of the test.
+     */
+    private Map<Integer, DatasetInputs> loadInputs(TableReportConfigDAO config) {
+        Map<Integer, DatasetInputs> inputs = new LinkedHashMap<>();
+        int numComponents = config.components.size();
+        for (Object[] row : selectByTest(config.test.id, config.seriesLabels)) {
+            DatasetInputs in = inputs.computeIfAbsent((Integer) row[0],
+                    id -> new DatasetInputs(id, (int) row[1], (int) row[2], numComponents));
+            in.series = (JsonNode) row[3];
+        }
+        if (!inputs.isEmpty()) {
+            loadInput(config.test.id, config.filterLabels, inputs, (in, value) -> in.filter = value);
+            loadInput(config.test.id, config.categoryLabels, inputs, (in, value) -> in.category = value);
+            loadInput(config.test.id, config.scaleLabels, inputs, (in, value) -> in.scale = value);
+            for (int i = 0; i < numComponents; ++i) {
+                int index = i;
+                loadInput(config.test.id, config.components.get(i).labels, inputs,
+                        (in, value) -> in.components[index] = value);
+            }
+        }
+        return inputs;
     }
 
-    private boolean nullOrEmpty(JsonNode node) {
-        return node == null || node.isNull() || node.isEmpty();
+    private void loadInput(int testId, ArrayNode labels, Map<Integer, DatasetInputs> inputs,
+            BiConsumer<DatasetInputs, JsonNode> setter) {
+        if (nullOrEmpty(labels)) {
+            return;
+        }
+        for (Object[] row : selectByTest(testId, labels)) {
+            DatasetInputs in = inputs.get((Integer) row[0]);
+            if (in != null) {
+                setter.accept(in, (JsonNode) row[3]);
+            }
+        }
     }
 
-    private Map<Integer, TableReportDAO.Data> getData(TableReportConfigDAO config, TableReportDAO report,
-            List<Object[]> categories, List<Object[]> series, List<Object[]> scales) {
-        assert !categories.isEmpty();
-        assert !series.isEmpty();
-        assert !scales.isEmpty();
-
-        Map<Integer, TableReportDAO.Data> datasetData = new HashMap<>();
-        executeInContext(config, context -> {
-            for (Object[] row : categories) {
-                TableReportDAO.Data data = new TableReportDAO.Data();
-                data.datasetId = (Integer) row[0];
-                data.runId = (int) row[1];
-                data.ordinal = (int) row[2];
-                JsonNode value = (JsonNode) row[3];
-                data.values = JsonNodeFactory.instance.arrayNode(config.components.size());
-                if (nullOrEmpty(config.categoryFunction)) {
-                    data.category = toText(value);
-                } else {
-                    String jsCode = buildCode(config.categoryFunction, String.valueOf(value));
-                    try {
-                        data.category = Util.convert(context.eval("js", jsCode)).toString();
-                    } catch (PolyglotException e) {
+    private ReportCell evaluateCell(Context context, TableReportConfigDAO config, TableReportDAO report, DatasetInputs in) {
+        ReportCell cell = new ReportCell();
+        cell.evaluated = true;
+        cell.datasetId = in.datasetId;
+        cell.runId = in.runId;
+        cell.ordinal = in.ordinal;
+        // cells that failed to evaluate are not cached so that the errors are reported again
+        cell.digest = in.digest;
+        if (!nullOrEmpty(config.filterLabels)) {
+            if (nullOrEmpty(config.filterFunction)) {
+                cell.included = in.filter != null && in.filter.asBoolean(false);
+            } else {
+                String jsCode = buildCode(config.filterFunction, String.valueOf(in.filter));
+                try {
+                    Value value = context.eval("js", jsCode);
+                    if (value.isBoolean()) {
+                        cell.included = value.asBoolean();
+                        if (!cell.included) {
+                            Log.debugf("Dataset %d/%d (%d) filtered out, value: %s", in.runId, in.ordinal, in.datasetId,
+                                    in.filter);
+                        }
+                    } else {
+                        cell.digest = null;
                         log(report, PersistentLogDAO.ERROR,
-                                "Failed to run report %s(%d) category function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
-                                config.title, config.id, data.runId, data.ordinal, data.datasetId, jsCode);
-                        Log.debug("Caused by exception", e);
-                        continue;
+                                "Report %s(%d) filter result for dataset %d/%d (%d) is not a boolean: %s. Offending code: <br><pre>%s</pre>",
+                                config.title, config.id, in.runId, in.ordinal, in.datasetId, value, jsCode);
                     }
+                } catch (PolyglotException e) {
+                    cell.digest = null;
+                    log(report, PersistentLogDAO.ERROR,
+                            "Failed to run report %s(%d) filter function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
+                            config.title, config.id, in.runId, in.ordinal, in.datasetId, jsCode);
+                    Log.debug("Caused by exception", e);
                 }
-                datasetData.put(data.datasetId, data);
             }
-            for (Object[] row : series) {
-                Integer datasetId = (Integer) row[0];
-                int runId = (int) row[1];
-                int ordinal = (int) row[2];
-                JsonNode value = (JsonNode) row[3];
-                TableReportDAO.Data data = datasetData.get(datasetId);
-                if (data == null) {
-                    log(report, PersistentLogDAO.ERROR, "Missing values for dataset %d!", datasetId);
-                    continue;
-                }
-                if (nullOrEmpty(config.seriesFunction)) {
-                    data.series = toText(value);
-                } else {
-                    String jsCode = buildCode(config.seriesFunction, String.valueOf(value));
-                    try {
-                        data.series = Util.convert(context.eval("js", jsCode)).toString();
-                    } catch (PolyglotException e) {
-                        log(report, PersistentLogDAO.ERROR,
-                                "Failed to run report %s(%d) series function on run %d/%d (%d). Offending code: <br><pre>%s</pre>",
-                                config.title, config.id, runId, ordinal, datasetId, jsCode);
-                        Log.debug("Caused by exception", e);
-                    }
-                }
+            if (!cell.included) {
+                return cell;
             }
-            for (Object[] row : scales) {
-                Integer datasetId = (Integer) row[0];
-                int runId = (int) row[1];
-                int ordinal = (int) row[2];
-                JsonNode value = (JsonNode) row[3];
-                TableReportDAO.Data data = datasetData.get(datasetId);
-                if (data == null) {
-                    log(report, PersistentLogDAO.ERROR, "Missing values for dataset %d!", datasetId);
-                    continue;
-                }
-                if (nullOrEmpty(config.scaleFunction)) {
-                    data.scale = toText(value);
+        }
+        cell.included = true;
+        if (nullOrEmpty(config.categoryLabels)) {
+            cell.category = "";
+        } else if (nullOrEmpty(config.categoryFunction)) {
+            cell.category = toText(in.category);
+        } else {
+            String jsCode = buildCode(config.categoryFunction, String.valueOf(in.category));
+            try {
+                cell.category = Util.convert(context.eval("js", jsCode)).toString();
+            } catch (PolyglotException e) {
+                log(report, PersistentLogDAO.ERROR,
+                        "Failed to run report %s(%d) category function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
+                        config.title, config.id, in.runId, in.ordinal, in.datasetId, jsCode);
+                Log.debug("Caused by exception", e);
+                cell.digest = null;
+                cell.included = false;
+                return cell;
+            }
+        }
+        if (nullOrEmpty(config.seriesFunction)) {
+            cell.series = toText(in.series);
+        } else {
+            String jsCode = buildCode(config.seriesFunction, String.valueOf(in.series));
+            try {
+                cell.series = Util.convert(context.eval("js", jsCode)).toString();
+            } catch (PolyglotException e) {
+                cell.digest = null;
+                log(report, PersistentLogDAO.ERROR,
+                        "Failed to run report %s(%d) series function on run %d/%d (%d). Offending code: <br><pre>%s</pre>",
+                        config.title, config.id, in.runId, in.ordinal, in.datasetId, jsCode);
+                Log.debug("Caused by exception", e);
+            }
+        }
+        if (nullOrEmpty(config.scaleLabels)) {
+            cell.scale = "";
+        } else if (nullOrEmpty(config.scaleFunction)) {
+            cell.scale = toText(in.scale);
+        } else {
+            String jsCode = buildCode(config.scaleFunction, String.valueOf(in.scale));
+            try {
+                cell.scale = Util.convert(context.eval("js", jsCode)).toString();
+            } catch (PolyglotException e) {
+                cell.digest = null;
+                log(report, PersistentLogDAO.ERROR,
+                        "Failed to run report %s(%d) label function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
+                        config.title, config.id, in.runId, in.ordinal, in.datasetId, jsCode);
+                Log.debug("Caused by exception", e);
+            }
+        }
+        cell.values = JsonNodeFactory.instance.arrayNode(config.components.size());
+        for (int i = 0; i < config.components.size(); i++) {
+            ReportComponentDAO component = config.components.get(i);
+            JsonNode value = in.components[i];
+            if (nullOrEmpty(component.function)) {
+                if (value == null || value.isNull()) {
+                    cell.values.addNull();
                 } else {
-                    String jsCode = buildCode(config.scaleFunction, String.valueOf(value));
-                    try {
-                        data.scale = Util.convert(context.eval("js", jsCode)).toString();
-                    } catch (PolyglotException e) {
-                        log(report, PersistentLogDAO.ERROR,
-                                "Failed to run report %s(%d) label function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
-                                config.title, config.id, runId, ordinal, datasetId, jsCode);
-                        Log.debug("Caused by exception", e);
+                    cell.values.add(value.asDouble());
+                }
+            } else {
+                String jsCode = buildCode(component.function, String.valueOf(value));
+                try {
+                    Value calculatedValue = context.eval("js", jsCode);
+                    Double maybeDouble = Util.toDoubleOrNull(calculatedValue,
+                            err -> log(report, PersistentLogDAO.ERROR, err),
+                            info -> log(report, PersistentLogDAO.INFO, info));
+                    if (maybeDouble != null) {
+                        cell.values.add(maybeDouble);
+                    } else {
+                        cell.values.add(Util.convertToJson(calculatedValue));
                     }
+                } catch (PolyglotException e) {
+                    cell.digest = null;
+                    // keep the position of the following components
+                    cell.values.addNull();
+                    log(report, PersistentLogDAO.ERROR,
+                            "Failed to run report %s(%d) label function on run %d. Offending code: <br><pre>%s</pre>",
+                            config.title, config.id, in.datasetId, jsCode);
+                    Log.debug("Caused by exception", e);
                 }
             }
-        });
-        return datasetData;
+        }
+        return cell;
+    }
+
+    private Map<Integer, ReportCell> loadCells(int configId) {
+        Map<Integer, ReportCell> cells = new HashMap<>();
+        em.unwrap(Session.class).createNativeQuery(
+                "SELECT dataset_id, digest, included, category, series, scale, components FROM tablereport_cell WHERE config_id = ?1",
+                Object[].class)
+                .setParameter(1, configId)
+                .addScalar("dataset_id", StandardBasicTypes.INTEGER)
+                .addScalar("digest", StandardBasicTypes.TEXT)
+                .addScalar("included", StandardBasicTypes.BOOLEAN)
+                .addScalar("category", StandardBasicTypes.TEXT)
+                .addScalar("series", StandardBasicTypes.TEXT)
+                .addScalar("scale", StandardBasicTypes.TEXT)
+                .addScalar("components", JsonBinaryType.INSTANCE)
+                .getResultStream().forEach(row -> {
+                    ReportCell cell = new ReportCell();
+                    cell.datasetId = (Integer) row[0];
+                    cell.digest = (String) row[1];
+                    cell.included = (Boolean) row[2];
+                    cell.category = (String) row[3];
+                    cell.series = (String) row[4];
+                    cell.scale = (String) row[5];
+                    cell.values = (ArrayNode) row[6];
+                    cells.put(cell.datasetId, cell);
+                });
+        return cells;
+    }
+
+    private void saveCells(int configId, GeneratedReport generated) {
+        ArrayNode rows = JsonNodeFactory.instance.arrayNode();
+        for (ReportCell cell : generated.cells) {
+            // cells reused from the same config are already stored
+            if (cell.digest == null || (!cell.evaluated && Objects.equals(generated.cacheConfigId, configId))) {
+                continue;
+            }
+            rows.addObject().put("dataset_id", cell.datasetId).put("digest", cell.digest).put("included", cell.included)
+                    .put("category", cell.category).put("series", cell.series).put("scale", cell.scale)
+                    .set("components", cell.values);
+        }
+        if (!rows.isEmpty()) {
+            em.createNativeQuery(UPSERT_REPORT_CELLS).setParameter(1, configId).setParameter(2, rows.toString())
+                    .executeUpdate();
+        }
+    }
+
+    private static String configDigest(TableReportConfigDAO config) {
+        StringBuilder sb = new StringBuilder().append(config.test.id)
+                .append('\n').append(config.filterLabels).append('\n').append(config.filterFunction)
+                .append('\n').append(config.categoryLabels).append('\n').append(config.categoryFunction)
+                .append('\n').append(config.seriesLabels).append('\n').append(config.seriesFunction)
+                .append('\n').append(config.scaleLabels).append('\n').append(config.scaleFunction);
+        for (ReportComponentDAO component : config.components) {
+            sb.append('\n').append(component.labels).append('\n').append(component.function);
+        }
+        return sb.toString();
+    }
+
+    private static String digest(String configDigest, DatasetInputs in) {
+        StringBuilder sb = new StringBuilder(configDigest)
+                .append('\n').append(in.filter).append('\n').append(in.category)
+                .append('\n').append(in.series).append('\n').append(in.scale);
+        for (JsonNode value : in.components) {
+            sb.append('\n').append(value);
+        }
+        return sha256(sb.toString());
+    }
+
+    private static String sha256(String value) {
+        try {
+            return Base64.getEncoder().encodeToString(
+                    MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class DatasetInputs {
+        final int datasetId;
+        final int runId;
+        final int ordinal;
+        final JsonNode[] components;
+        JsonNode filter;
+        JsonNode category;
+        JsonNode series;
+        JsonNode scale;
+        String digest;
+
+        DatasetInputs(int datasetId, int runId, int ordinal, int numComponents) {
+            this.datasetId = datasetId;
+            this.runId = runId;
+            this.ordinal = ordinal;
+            this.components = new JsonNode[numComponents];
+        }
+    }
+
+    /**
+     * Report contents computed for a single dataset, stored in <code>tablereport_cell</code>.
+     */
+    private static final class ReportCell {
+        int datasetId;
+        int runId;
+        int ordinal;
+        String digest;
+        boolean evaluated;
+        boolean included;
+        String category;
+        String series;
+        String scale;
+        ArrayNode values;
+
+        TableReportDAO.Data toData() {
+            TableReportDAO.Data data = new TableReportDAO.Data();
+            data.datasetId = datasetId;
+            data.runId = runId;
+            data.ordinal = ordinal;
+            data.category = category;
+            data.series = series;
+            data.scale = scale;
+            data.values = values == null ? JsonNodeFactory.instance.arrayNode() : values.deepCopy();
+            return data;
+        }
+    }
+
+    private record GeneratedReport(TableReportDAO report, List<ReportCell> cells, Integer cacheConfigId) {
+    }
+
+    private boolean nullOrEmpty(String str) {
+        return str == null || str.trim().isEmpty();
+    }
+
+    private boolean nullOrEmpty(JsonNode node) {
+        return node == null || node.isNull() || node.isEmpty();
     }
 
     private String toText(JsonNode value) {
@@ -570,30 +889,6 @@ public class ReportServiceImpl implements ReportService {
         return query.getResultList();
     }
 
-    private List<Object[]> selectByDatasets(ArrayNode labels, List<Integer> datasets) {
-        StringBuilder sql = new StringBuilder("SELECT dataset.id AS id, dataset.runid AS runid, dataset.ordinal AS ordinal, ");
-        if (labels.size() != 1) {
-            sql.append("COALESCE(jsonb_object_agg(label.name, lv.value) FILTER (WHERE label.name IS NOT NULL), '{}'::jsonb)");
-        } else {
-            sql.append("lv.value");
-        }
-        sql.append(" AS value FROM dataset ")
-                .append("LEFT JOIN label_values lv ON dataset.id = lv.dataset_id ")
-                .append("LEFT JOIN label ON label.id = lv.label_id ")
-                .append("WHERE dataset.id IN :datasets AND (json_contains(:labels, label.name) OR label.name IS NULL)");
-        if (labels.size() != 1) {
-            sql.append(" GROUP BY dataset.id, dataset.runid, dataset.ordinal");
-        }
-        NativeQuery<Object[]> query = em.unwrap(Session.class).createNativeQuery(sql.toString(), Object[].class)
-                .setParameter("datasets", datasets)
-                .setParameter("labels", labels, JsonBinaryType.INSTANCE)
-                .addScalar("id", StandardBasicTypes.INTEGER)
-                .addScalar("runid", StandardBasicTypes.INTEGER)
-                .addScalar("ordinal", StandardBasicTypes.INTEGER)
-                .addScalar("value", JsonBinaryType.INSTANCE);
-        return query.getResultList();
-    }
-
     public static final class Coords {
         final String category;
         final String series;
@@ -622,72 +917,6 @@ public class ReportServiceImpl implements ReportService {
         }
     }
 
-    private List<Integer> filterDatasetIds(TableReportConfigDAO config, TableReportDAO report) {
-        List<Object[]> list = selectByTest(config.test.id, config.filterLabels);
-        if (list.isEmpty()) {
-            log(report, PersistentLogDAO.WARN, "There are no matching datasets for test %s (%d)", config.test.name,
-                    config.test.id);
-        }
-        List<Integer> datasetIds = new ArrayList<>(list.size());
-        if (nullOrEmpty(config.filterFunction)) {
-            StringBuilder debugList = new StringBuilder();
-            for (Object[] row : list) {
-                Integer datasetId = (Integer) row[0];
-                int runId = (int) row[1];
-                int ordinal = (int) row[2];
-                if (debugList.length() != 0) {
-                    debugList.append(", ");
-                }
-                debugList.append(runId).append('/').append(ordinal);
-                if (row[3] != null && ((JsonNode) row[3]).asBoolean(false)) {
-                    datasetIds.add(datasetId);
-                } else {
-                    debugList.append("(filtered, null dataset id, check for run without a schema)");
-                }
-            }
-            log(report, PersistentLogDAO.DEBUG, "Datasets considered for report: %s", debugList);
-        } else {
-            executeInContext(config, context -> {
-                StringBuilder debugList = new StringBuilder();
-                for (Object[] row : list) {
-                    Integer datasetId = (Integer) row[0];
-                    int runId = (int) row[1];
-                    int ordinal = (int) row[2];
-                    String jsCode = buildCode(config.filterFunction, String.valueOf(row[3]));
-                    if (debugList.length() != 0) {
-                        debugList.append(", ");
-                    }
-                    debugList.append(runId).append('/').append(ordinal);
-                    try {
-                        org.graalvm.polyglot.Value value = context.eval("js", jsCode);
-                        if (value.isBoolean()) {
-                            if (value.asBoolean()) {
-                                datasetIds.add(datasetId);
-                            } else {
-                                debugList.append("(filtered)");
-                                Log.debugf("Dataset %d/%d (%d) filtered out, value: %s", runId, ordinal, datasetId, row[3]);
-
-                            }
-                        } else {
-                            debugList.append("(filtered: not boolean)");
-                            log(report, PersistentLogDAO.ERROR,
-                                    "Report %s(%d) filter result for dataset %d/%d (%d) is not a boolean: %s. Offending code: <br><pre>%s</pre>",
-                                    config.title, config.id, runId, ordinal, datasetId, value, jsCode);
-                        }
-                    } catch (PolyglotException e) {
-                        debugList.append("(filtered: JS error)");
-                        log(report, PersistentLogDAO.ERROR,
-                                "Failed to run report %s(%d) filter function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
-                                config.title, config.id, runId, ordinal, datasetId, jsCode);
-                        Log.debug("Caused by exception", e);
-                    }
-                }
-                log(report, PersistentLogDAO.DEBUG, "Datasets considered for report: %s", debugList);
-            });
-        }
-        return datasetIds;
-    }
-
     private void log(TableReportDAO report, int level, String msg, Object... args) {
         String message = args.length == 0 ? msg : msg.formatted(args);
         report.logs.add(new ReportLogDAO(report, level, message));
@@ -699,15 +928,10 @@ public class ReportServiceImpl implements ReportService {
                 "__func(__obj)";
     }
 
-    private void executeInContext(TableReportConfigDAO config, Consumer<Context> consumer) {
+    private void executeInEngine(TableReportConfigDAO config, Consumer<Engine> consumer) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try (Context context = Context.newBuilder("js").out(out).err(out).build()) {
-            context.enter();
-            try {
-                consumer.accept(context);
-            } finally {
-                context.leave();
-            }
+        try (Engine engine = Engine.newBuilder("js").out(out).err(out).build()) {
+            consumer.accept(engine);
         } finally {
             if (out.size() > 0) {
                 Log.infof("Output while calculating data for report %s(%d): <pre>%s</pre>", config.title, config.id,
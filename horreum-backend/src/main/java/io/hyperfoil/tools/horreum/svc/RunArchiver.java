@@ -0,0 +1,144 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
+
+import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.RunDAO;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.logging.Log;
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Moves the payloads of runs that started more than <code>archive_after_days</code> of their test (or
+ * <code>horreum.archive.after-days</code>) ago, and the data of their datasets, to the blob store. Label values,
+ * datapoints and everything else derived from the runs stay in the database. Archived payloads are read through
+ * {@link RunPayloadStore}, and label values of archived datasets are recalculated from the blob without bringing the
+ * data back to the database; datasets re-created by a run recalculation are archived again on the next check.
+ */
+@ApplicationScoped
+public class RunArchiver {
+    //@formatter:off
+    private static final String CANDIDATES = """
+         SELECT id FROM run
+         WHERE testid = ?1 AND start < ?2 AND data_hash IS NULL AND NOT trashed
+            AND jsonb_typeof(data) IN ('object', 'array')
+         UNION
+         SELECT dataset.runid FROM dataset JOIN run ON run.id = dataset.runid
+         WHERE dataset.testid = ?1 AND dataset.start < ?2 AND dataset.data_hash IS NULL AND NOT run.trashed
+            AND jsonb_typeof(dataset.data) IN ('object', 'array')
+         LIMIT ?3
+         """;
+    //@formatter:on
+
+    @ConfigProperty(name = "horreum.archive.after-days")
+    Optional<Integer> defaultAfterDays;
+
+    @ConfigProperty(name = "horreum.archive.batch-size", defaultValue = "100")
+    int batchSize;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    RunPayloadStore payloadStore;
+
+    @Inject
+    TimeService timeService;
+
+    @Scheduled(every = "{horreum.archive.check}", delayed = "{horreum.archive.check}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void archiveOldRuns() {
+        if (!payloadStore.isEnabled()) {
+            return;
+        }
+        for (Object[] test : tests()) {
+            Integer afterDays = test[1] != null ? (Integer) test[1] : defaultAfterDays.orElse(null);
+            if (afterDays != null) {
+                archiveOldRuns((int) test[0], timeService.now().minus(Duration.ofDays(afterDays)));
+            }
+        }
+    }
+
+    private void archiveOldRuns(int testId, Instant before) {
+        int archived = 0;
+        List<Integer> candidates;
+        do {
+            candidates = candidates(testId, before);
+            int progress = 0;
+            for (int runId : candidates) {
+                // each run in its own transaction so that a failure does not block the others
+                try {
+                    if (archiveRun(runId)) {
+                        ++progress;
+                    }
+                } catch (Exception e) {
+                    Log.errorf(e, "Failed to archive run %d", runId);
+                }
+            }
+            archived += progress;
+            if (progress == 0) {
+                break;
+            }
+        } while (candidates.size() == batchSize);
+        if (archived > 0) {
+            Log.infof("Archived %d runs of test %d", archived, testId);
+        }
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    List<Object[]> tests() {
+        return em.unwrap(Session.class).createNativeQuery("SELECT id, archive_after_days FROM test", Object[].class)
+                .addScalar("id", StandardBasicTypes.INTEGER)
+                .addScalar("archive_after_days", StandardBasicTypes.INTEGER)
+                .getResultList();
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    List<Integer> candidates(int testId, Instant before) {
+        return em.unwrap(Session.class).createNativeQuery(CANDIDATES, Integer.class)
+                .setParameter(1, testId)
+                .setParameter(2, before, StandardBasicTypes.INSTANT)
+                .setParameter(3, batchSize)
+                .getResultList();
+    }
+
+    /**
+     * @return <code>true</code> if anything was archived, <code>false</code> if the run is being transformed
+     *         or there is nothing to archive
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    boolean archiveRun(int runId) {
+        // the transformation of the run creates datasets that may reference the run payload
+        boolean locked = em.unwrap(Session.class).createNativeQuery("SELECT pg_try_advisory_xact_lock(?1, ?2)", Boolean.class)
+                .setParameter(1, RunServiceImpl.TRANSFORMATION_LOCK).setParameter(2, runId).getSingleResult();
+        RunDAO run = locked ? RunDAO.findById(runId) : null;
+        if (run == null) {
+            return false;
+        }
+        boolean archived = false;
+        for (DatasetDAO dataset : DatasetDAO.<DatasetDAO> list("run.id = ?1 AND dataHash IS NULL", runId)) {
+            payloadStore.archive(dataset);
+            archived |= dataset.dataHash != null;
+        }
+        // only after the datasets, which resolve their references into the payload when archived
+        if (run.dataHash == null) {
+            payloadStore.archive(run);
+            archived |= run.dataHash != null;
+        }
+        return archived;
+    }
+}
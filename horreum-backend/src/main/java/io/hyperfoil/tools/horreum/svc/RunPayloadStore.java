@@ -0,0 +1,333 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import io.hyperfoil.tools.horreum.blob.BlobStore;
+import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.RunDAO;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.arc.All;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Keeps large run payloads in the optional {@link BlobStore}.
+ * <p>
+ * When <code>horreum.blob-store.type</code> is set, payloads of new runs serialized to at least
+ * <code>horreum.blob-store.min-size</code> bytes are compressed with zstd and stored under the SHA-256 of the
+ * serialized payload, so that re-uploads of the same payload are stored once. The <code>run</code> row then holds
+ * the hash, the size and a skeleton of the payload that keeps only the <code>$schema</code> locations; those are
+ * all the database needs to find the schemas of the run. Everything that needs the payload itself reads it
+ * through {@link #data(RunDAO)}.
+ * <p>
+ * The same store is the archive of old runs: {@link #archive(RunDAO)} and {@link #archive(DatasetDAO)} move
+ * payloads of any size, and archived datasets are read through {@link #data(DatasetDAO)}; label extraction passes
+ * {@link #archivedData(int)} to its queries rather than writing the data back to the dataset.
+ * <p>
+ * Blobs are written before the transaction referencing them commits and may be shared by several runs and datasets,
+ * so they are not deleted with them. Instead, blobs that no run or dataset references (e.g. after a rollback or
+ * after their datasets were deleted) are collected every <code>horreum.blob-store.gc.check</code> once they were
+ * last stored more than <code>horreum.blob-store.gc.grace-period</code> ago. Blobs of trashed runs are kept as the
+ * runs can be restored.
+ */
+@ApplicationScoped
+public class RunPayloadStore {
+    private static final String NONE = "none";
+    private static final int COMPRESSION_LEVEL = 3;
+    private static final int GC_BATCH_SIZE = 1000;
+    //@formatter:off
+    private static final String REFERENCED = """
+         SELECT data_hash FROM run WHERE data_hash IN ?1
+         UNION
+         SELECT data_hash FROM dataset WHERE data_hash IN ?1
+         """;
+    //@formatter:on
+
+    @ConfigProperty(name = "horreum.blob-store.type", defaultValue = NONE)
+    String type;
+
+    @ConfigProperty(name = "horreum.blob-store.min-size", defaultValue = "16M")
+    MemorySize minSize;
+
+    @Inject
+    @All
+    List<BlobStore> stores;
+
+    @ConfigProperty(name = "horreum.blob-store.gc.grace-period", defaultValue = "P1D")
+    Duration gcGracePeriod;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    TimeService timeService;
+
+    private BlobStore store;
+
+    @PostConstruct
+    void init() {
+        if (!NONE.equals(type)) {
+            store = stores.stream().filter(s -> s.type().equals(type)).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Unknown blob store type: " + type));
+        }
+    }
+
+    /**
+     * Moves the payload of a new run to the blob store when it is enabled and the payload is large enough.
+     * Must be called before the run is persisted.
+     */
+    void offload(RunDAO run) {
+        offload(run, minSize.asLongValue());
+    }
+
+    boolean isEnabled() {
+        return store != null;
+    }
+
+    /**
+     * Moves the payload of an existing run to the blob store regardless of its size. The datasets of the run must be
+     * archived first as they may reference the payload.
+     */
+    void archive(RunDAO run) {
+        offload(run, 0);
+    }
+
+    /**
+     * Moves the data of a dataset to the blob store, resolving the references into the run data.
+     */
+    void archive(DatasetDAO dataset) {
+        if (store == null || dataset.data == null || !dataset.data.isContainerNode() || dataset.dataHash != null) {
+            return;
+        }
+        JsonNode data = dataset.getResolvedData();
+        dataset.dataHash = write(store, data);
+        dataset.data = skeleton(data);
+    }
+
+    private void offload(RunDAO run, long minSize) {
+        if (store == null || run.data == null || !run.data.isContainerNode() || run.dataHash != null) {
+            return;
+        }
+        long size = serializedSize(run.data);
+        if (size < minSize) {
+            return;
+        }
+        run.dataHash = write(store, run.data);
+        run.dataSize = size;
+        run.data = skeleton(run.data);
+        Log.debugf("Run payload of %d bytes stored in the blob store as %s", size, run.dataHash);
+    }
+
+    /**
+     * @return the complete payload of the run
+     */
+    JsonNode data(RunDAO run) {
+        return run.dataHash == null ? run.data : read(run.dataHash);
+    }
+
+    /**
+     * @return the data of the dataset with the references into the run resolved
+     */
+    JsonNode data(DatasetDAO dataset) {
+        return dataset.dataHash == null ? dataset.getResolvedData() : read(dataset.dataHash);
+    }
+
+    /**
+     * @return the data of the dataset, with the references into the run resolved, if it is archived;
+     *         <code>null</code> if the data are kept in the database (or the dataset does not exist)
+     */
+    JsonNode archivedData(int datasetId) {
+        List<?> hashes = em.createNativeQuery("SELECT data_hash FROM dataset WHERE id = ?1 AND data_hash IS NOT NULL")
+                .setParameter(1, datasetId).getResultList();
+        return hashes.isEmpty() ? null : read((String) hashes.get(0));
+    }
+
+    /**
+     * @return the complete payload of the run if it is kept in the blob store, <code>null</code> if it is kept in
+     *         the database (or the run does not exist)
+     */
+    JsonNode offloadedData(int runId) {
+        List<?> hashes = em.createNativeQuery("SELECT data_hash FROM run WHERE id = ?1 AND data_hash IS NOT NULL")
+                .setParameter(1, runId).getResultList();
+        return hashes.isEmpty() ? null : read((String) hashes.get(0));
+    }
+
+    private JsonNode read(String hash) {
+        if (store == null) {
+            throw ServiceException.serverError("Run data are kept in the blob store but horreum.blob-store.type is not set");
+        }
+        try {
+            return read(store, hash);
+        } catch (IOException e) {
+            Log.errorf(e, "Cannot read blob %s", hash);
+            throw ServiceException.serverError("Cannot read run data from the blob store");
+        }
+    }
+
+    static String write(BlobStore store, JsonNode data) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile("horreum-blob", ".zst");
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (OutputStream out = new DigestOutputStream(
+                    new ZstdOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), COMPRESSION_LEVEL), digest)) {
+                Util.OBJECT_MAPPER.writeValue(out, data);
+            }
+            String hash = HexFormat.of().formatHex(digest.digest());
+            // also refreshes an existing blob so that it is not collected before the reference commits
+            store.put(hash, tmp);
+            return hash;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.error("Cannot write run data to the blob store", e);
+            throw ServiceException.serverError("Cannot write run data to the blob store");
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    Log.warnf(e, "Cannot delete temporary file %s", tmp);
+                }
+            }
+        }
+    }
+
+    @Scheduled(every = "{horreum.blob-store.gc.check}", delayed = "{horreum.blob-store.gc.check}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void collectGarbage() {
+        if (store == null) {
+            return;
+        }
+        try {
+            int deleted = collectGarbage(store, timeService.now().minus(gcGracePeriod));
+            if (deleted > 0) {
+                Log.infof("Deleted %d unreferenced blobs", deleted);
+            }
+        } catch (Exception e) {
+            Log.error("Failed to collect unreferenced blobs", e);
+        }
+    }
+
+    /**
+     * Deletes the blobs last stored before the instant that no run or dataset references.
+     *
+     * @return number of deleted blobs
+     */
+    int collectGarbage(BlobStore store, Instant before) throws IOException {
+        int deleted = 0;
+        try (Stream<String> hashes = store.storedBefore(before)) {
+            List<String> batch = new ArrayList<>(GC_BATCH_SIZE);
+            for (Iterator<String> it = hashes.iterator(); it.hasNext();) {
+                batch.add(it.next());
+                if (batch.size() == GC_BATCH_SIZE || !it.hasNext()) {
+                    batch.removeAll(referenced(batch));
+                    for (String hash : batch) {
+                        if (store.delete(hash, before)) {
+                            ++deleted;
+                        }
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        return deleted;
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Set<String> referenced(List<String> hashes) {
+        return new HashSet<>(em.unwrap(Session.class).createNativeQuery(REFERENCED, String.class)
+                .setParameter(1, hashes).getResultList());
+    }
+
+    static JsonNode read(BlobStore store, String hash) throws IOException {
+        try (InputStream in = new ZstdInputStream(new BufferedInputStream(store.get(hash)))) {
+            return Util.OBJECT_MAPPER.readTree(in);
+        }
+    }
+
+    private static long serializedSize(JsonNode data) {
+        long[] size = new long[1];
+        try (OutputStream counter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                ++size[0];
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                size[0] += len;
+            }
+        }) {
+            Util.OBJECT_MAPPER.writeValue(counter, data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return size[0];
+    }
+
+    /**
+     * Keeps only what <code>run_schemas</code> are derived from: the <code>$schema</code> of the root, of the
+     * objects at the second level and of the array elements, the latter keeping their positions.
+     */
+    static JsonNode skeleton(JsonNode data) {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        if (data.isArray()) {
+            ArrayNode skeleton = factory.arrayNode(data.size());
+            for (JsonNode element : data) {
+                ObjectNode item = skeleton.addObject();
+                JsonNode schema = element.get("$schema");
+                if (element.isObject() && schema != null && schema.isTextual()) {
+                    item.set("$schema", schema);
+                }
+            }
+            return skeleton;
+        }
+        ObjectNode skeleton = factory.objectNode();
+        JsonNode schema = data.get("$schema");
+        if (schema != null && schema.isTextual()) {
+            skeleton.set("$schema", schema);
+        }
+        for (Map.Entry<String, JsonNode> field : data.properties()) {
+            JsonNode fieldSchema = field.getValue().get("$schema");
+            if (field.getValue().isObject() && fieldSchema != null && fieldSchema.isTextual()) {
+                skeleton.set(field.getKey(), factory.objectNode().set("$schema", fieldSchema));
+            }
+        }
+        return skeleton;
+    }
+}
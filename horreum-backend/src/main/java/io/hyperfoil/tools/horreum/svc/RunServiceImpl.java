@@ -1,21 +1,25 @@
 package io.hyperfoil.tools.horreum.svc;
 
 import static com.fasterxml.jackson.databind.node.JsonNodeFactory.instance;
-import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID;
-import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID;
+import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_EXTRACTORS_BY_RUNID;
 import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_TRANSFORMER_TARGETS;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -38,6 +42,7 @@ import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
@@ -63,27 +68,32 @@ import io.hyperfoil.tools.horreum.api.data.Run;
 import io.hyperfoil.tools.horreum.api.data.ValidationError;
 import io.hyperfoil.tools.horreum.api.services.RunService;
 import io.hyperfoil.tools.horreum.api.services.SchemaService;
-import io.hyperfoil.tools.horreum.api.services.TestService;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
 import io.hyperfoil.tools.horreum.datastore.Datastore;
 import io.hyperfoil.tools.horreum.datastore.DatastoreResolver;
 import io.hyperfoil.tools.horreum.datastore.DatastoreResponse;
 import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
-import io.hyperfoil.tools.horreum.entity.alerting.TransformationLogDAO;
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.ExtractorDAO;
 import io.hyperfoil.tools.horreum.entity.data.RunDAO;
 import io.hyperfoil.tools.horreum.entity.data.SchemaDAO;
 import io.hyperfoil.tools.horreum.entity.data.TestDAO;
 import io.hyperfoil.tools.horreum.entity.data.TransformerDAO;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.jsonpath.JsonPath;
+import io.hyperfoil.tools.horreum.jsonpath.JsonPathException;
 import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
 import io.hyperfoil.tools.horreum.mapper.RunMapper;
+import io.hyperfoil.tools.horreum.server.ReadReplica;
+import io.hyperfoil.tools.horreum.server.ReplicaRouter;
 import io.hyperfoil.tools.horreum.server.RoleManager;
 import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.logging.Log;
 import io.quarkus.narayana.jta.runtime.TransactionConfiguration;
 import io.quarkus.runtime.Startup;
+import io.quarkus.scheduler.Scheduled;
 import io.quarkus.security.identity.SecurityIdentity;
 
 @ApplicationScoped
@@ -98,6 +108,23 @@ public class RunServiceImpl implements RunService {
         WHERE jsonb_typeof(q) = 'object') AS keys
         WHERE keys.key LIKE CONCAT(?, '%');
     """;
+    private static final String FIND_AUTOCOMPLETE_KEYPATH = """
+        SELECT DISTINCT key FROM run_keypath
+        WHERE starts_with(key, ?1) AND parent ~ ?2
+        ORDER BY key
+    """;
+    // keys are counted per owner and access of the runs, so that they are visible only to users who can see the runs
+    private static final String UPSERT_KEYPATHS = """
+        INSERT INTO run_keypath(testid, owner, access, parent, key, runs)
+        SELECT ?1, ?2, ?3, kp.parent, kp.key, 1 FROM jsonb_to_recordset((?4)::jsonb) AS kp(parent text, key text)
+        ON CONFLICT (testid, owner, access, parent, key) DO UPDATE SET runs = run_keypath.runs + 1
+    """;
+    private static final String DECREMENT_KEYPATHS = """
+        UPDATE run_keypath SET runs = runs - 1
+        FROM jsonb_to_recordset((?4)::jsonb) AS kp(parent text, key text)
+        WHERE run_keypath.testid = ?1 AND run_keypath.owner = ?2 AND run_keypath.access = ?3
+           AND run_keypath.parent = kp.parent AND run_keypath.key = kp.key
+    """;
     private static final String FIND_RUNS_WITH_URI = """
         SELECT id, testid
         FROM run
@@ -120,9 +147,17 @@ public class RunServiceImpl implements RunService {
         ) INSERT INTO dataset_schemas(dataset_id, uri, index, schema_id)
             SELECT ?1 as dataset_id, indexed.uri, indexed.index, schema.id FROM indexed JOIN schema ON schema.uri = indexed.uri;
     """;
+    private static final String STAGE_RUN_UPLOADS = """
+         INSERT INTO run_upload (testid, start, stop, test, owner, access, schema_uri, description, payload, roles)
+         SELECT ?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, payload, ?10
+         FROM jsonb_array_elements((?9)::jsonb) AS payload
+         RETURNING id
+         """;
     //@formatter:on
     private static final String[] CONDITION_SELECT_TERMINAL = { "==", "!=", "<>", "<", "<=", ">", ">=", " " };
     private static final String CHANGE_ACCESS = "UPDATE run SET owner = ?, access = ? WHERE id = ?";
+    // namespace of the advisory lock held while a run is transformed, the second key is the run ID
+    static final int TRANSFORMATION_LOCK = 1;
     private static final String SCHEMA_USAGE = "COALESCE(jsonb_agg(jsonb_build_object(" +
             "'id', schema.id, 'uri', rs.uri, 'name', schema.name, 'source', rs.source, " +
             "'type', rs.type, 'key', rs.key, 'hasJsonSchema', schema.schema IS NOT NULL)), '[]')";
@@ -130,6 +165,12 @@ public class RunServiceImpl implements RunService {
     @Inject
     EntityManager em;
 
+    @Inject
+    PersistentLogWriter logWriter;
+
+    @Inject
+    PipelineMetrics metrics;
+
     @Inject
     SecurityIdentity identity;
 
@@ -159,7 +200,17 @@ public class RunServiceImpl implements RunService {
     @Inject
     Session session;
 
-    private final ConcurrentHashMap<Integer, TestService.RecalculationStatus> transformations = new ConcurrentHashMap<>();
+    @Inject
+    RunPayloadStore payloadStore;
+
+    @Inject
+    ReplicaRouter replicaRouter;
+
+    @ConfigProperty(name = "horreum.run.search.exact-count-limit", defaultValue = "10000")
+    int exactCountLimit;
+
+    @ConfigProperty(name = "horreum.run.upload.retention", defaultValue = "P7D")
+    Duration uploadRetention;
 
     @Transactional
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
@@ -180,7 +231,8 @@ public class RunServiceImpl implements RunService {
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
     @Transactional
     void trashDueToTestDeleted(int id) {
-        trashInternal(id, true);
+        // the key-path dictionary of the test is deleted with it
+        trashInternal(id, true, false);
     }
 
     // We cannot run this without a transaction (to avoid timeout) because we have not request going on
@@ -239,7 +291,17 @@ public class RunServiceImpl implements RunService {
         em.createNativeQuery("DELETE FROM run_validationerrors WHERE schema_id = ?1")
                 .setParameter(1, schemaId).executeUpdate();
 
-        Util.registerTxSynchronization(tm, txStatus -> mediator.queueRunRecalculation(runId));
+        mediator.queueRunRecalculation(runId);
+    }
+
+    /**
+     * @return ID of the test the run belongs to, or <code>null</code> if the run does not exist
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    Integer findTestId(int runId) {
+        return em.unwrap(Session.class).createNativeQuery("SELECT testid FROM run WHERE id = ?1", Integer.class)
+                .setParameter(1, runId).getResultStream().findFirst().orElse(null);
     }
 
     @Transactional
@@ -268,19 +330,25 @@ public class RunServiceImpl implements RunService {
 
         RunExtended runExtended = null;
 
-        String extendedData = (String) Util.runQuery(em, "SELECT (to_jsonb(run) || jsonb_build_object(" +
-                "'schemas', (SELECT " + SCHEMA_USAGE
-                + " FROM run_schemas rs JOIN schema ON rs.schemaid = schema.id WHERE runid = run.id), " +
-                "'testname', (SELECT name FROM test WHERE test.id = run.testid), " +
-                "'datasets', (SELECT jsonb_agg(id ORDER BY id) FROM dataset WHERE runid = run.id), " +
-                "'validationErrors', (SELECT jsonb_agg(jsonb_build_object('schemaId', schema_id, 'error', error)) FROM run_validationerrors WHERE run_id = ?1)"
-                +
-                "))::text FROM run WHERE id = ?1", id);
+        String extendedData = (String) Util.runQuery(em,
+                "SELECT (to_jsonb(run) - 'data_hash' - 'data_size' || jsonb_build_object(" +
+                        "'schemas', (SELECT " + SCHEMA_USAGE
+                        + " FROM run_schemas rs JOIN schema ON rs.schemaid = schema.id WHERE runid = run.id), " +
+                        "'testname', (SELECT name FROM test WHERE test.id = run.testid), " +
+                        "'datasets', (SELECT jsonb_agg(id ORDER BY id) FROM dataset WHERE runid = run.id), " +
+                        "'validationErrors', (SELECT jsonb_agg(jsonb_build_object('schemaId', schema_id, 'error', error)) FROM run_validationerrors WHERE run_id = ?1)"
+                        +
+                        "))::text FROM run WHERE id = ?1",
+                id);
         try {
             runExtended = mapper.readValue(extendedData, RunExtended.class);
         } catch (JsonProcessingException e) {
             throw ServiceException.serverError("Could not retrieve extended run");
         }
+        JsonNode offloaded = payloadStore.offloadedData(id);
+        if (offloaded != null) {
+            runExtended.data = offloaded;
+        }
 
         return runExtended;
     }
@@ -310,6 +378,10 @@ public class RunServiceImpl implements RunService {
     @WithRoles
     @Override
     public Object getData(int id, String schemaUri) {
+        JsonNode offloaded = payloadStore.offloadedData(id);
+        if (offloaded != null) {
+            return getOffloadedData(id, offloaded, schemaUri);
+        }
         if (schemaUri == null || schemaUri.isEmpty()) {
             return Util.runQuery(em, "SELECT data#>>'{}' from run where id = ?", id);
         } else {
@@ -322,6 +394,23 @@ public class RunServiceImpl implements RunService {
         }
     }
 
+    private Object getOffloadedData(int id, JsonNode data, String schemaUri) {
+        if (schemaUri == null || schemaUri.isEmpty()) {
+            return data.toString();
+        }
+        List<Object[]> locations = session.createNativeQuery(
+                "SELECT type, key FROM run_schemas WHERE runid = ?1 AND source = 0 AND uri = ?2", Object[].class)
+                .setParameter(1, id).setParameter(2, schemaUri)
+                .addScalar("type", StandardBasicTypes.INTEGER)
+                .addScalar("key", StandardBasicTypes.TEXT)
+                .getResultList();
+        if (locations.isEmpty()) {
+            return null;
+        }
+        JsonNode node = schemaRoot(data, (int) locations.get(0)[0], (String) locations.get(0)[1]);
+        return node.isMissingNode() ? null : node.toString();
+    }
+
     //this is nearly identical to TestServiceImpl.labelValues (except the return object)
     //this reads from the dataset table but provides data specific to the run...
     @Override
@@ -368,10 +457,17 @@ public class RunServiceImpl implements RunService {
     @Override
     // TODO: it would be nicer to use @FormParams but fetchival on client side doesn't support that
     public void updateRunAccess(int id, String owner, Access access) {
+        RunDAO run = RunDAO.findById(id);
         int updatedRecords = RunDAO.update("owner = ?1, access = ?2 WHERE id = ?3", owner, access, id);
         if (updatedRecords != 1) {
             throw ServiceException.serverError("Access change failed (missing permissions?)");
         }
+        // the key-path dictionary is kept per owner and access of the runs
+        if (run != null && !run.trashed && (!Objects.equals(run.owner, owner) || run.access != access)) {
+            JsonNode data = payloadStore.data(run);
+            removeKeyPaths(run.testid, run.owner, run.access, data);
+            updateKeyPaths(run.testid, owner, access, data);
+        }
 
         // propagate the same change to all datasets belonging to the run
         DatasetDAO.update("owner = ?1, access = ?2 WHERE run.id = ?3", owner, access, id);
@@ -534,10 +630,8 @@ public class RunServiceImpl implements RunService {
             //if we return more than 10 results, offload to async queue to process - this might take a LOOONG time
             if (response.payload.size() > 10) {
                 Log.infof("Received more than 10 runs, processing them asynchronously");
-                response.payload.forEach(jsonNode -> {
-                    mediator.queueRunUpload(start, stop, test, owner, access, schemaUri, description, null, jsonNode,
-                            testEntity);
-                });
+                stageRunUploads(start, stop, test, owner, access, schemaUri, description, (ArrayNode) response.payload,
+                        testEntity.id, identity.getRoles());
             } else { //process synchronously
                 response.payload.forEach(jsonNode -> runs
                         .add(getPersistRun(start, stop, test, owner, access, schemaUri, description, metadata, jsonNode,
@@ -565,19 +659,72 @@ public class RunServiceImpl implements RunService {
                 .build();
     }
 
+    /**
+     * Stores the runs in the <code>run_upload</code> staging table and queues their ids in the same transaction;
+     * the payloads themselves never pass through the message broker.
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void stageRunUploads(String start, String stop, String test, String owner, Access access, String schemaUri,
+            String description, ArrayNode payloads, int testId, Set<String> roles) {
+        @SuppressWarnings("unchecked")
+        List<Long> uploadIds = em.createNativeQuery(STAGE_RUN_UPLOADS)
+                .setParameter(1, testId)
+                .setParameter(2, start)
+                .setParameter(3, stop)
+                .setParameter(4, test)
+                .setParameter(5, owner)
+                .setParameter(6, access == null ? null : access.name())
+                .setParameter(7, schemaUri)
+                .setParameter(8, description)
+                .setParameter(9, payloads.toString())
+                .setParameter(10, String.join(",", roles))
+                .unwrap(NativeQuery.class)
+                .addScalar("id", StandardBasicTypes.LONG)
+                .getResultList();
+        Log.debugf("Staged %d run uploads for test %d", uploadIds.size(), testId);
+        uploadIds.forEach(mediator::queueRunUpload);
+    }
+
     @Transactional
-    void persistRun(ServiceMediator.RunUpload runUpload) {
-        runUpload.roles.add("horreum.system");
-        roleManager.setRoles(String.join(",", runUpload.roles));
-        TestDAO testEntity = TestDAO.findById(runUpload.testId);
+    void persistRun(long uploadId) {
+        roleManager.setRoles(Roles.HORREUM_SYSTEM);
+        // deleting the upload claims it, a concurrent delivery of the same id finds nothing; uploads rejected
+        // with a ServiceException stay consumed while other failures roll the deletion back, so the upload is
+        // retried on redelivery or removed by expireRunUploads eventually
+        List<Object[]> rows = session.createNativeQuery(
+                "DELETE FROM run_upload WHERE id = ?1 RETURNING testid, start, stop, test, owner, access, schema_uri, description, metadata, payload, roles",
+                Object[].class)
+                .setParameter(1, uploadId)
+                .addScalar("testid", StandardBasicTypes.INTEGER)
+                .addScalar("start", StandardBasicTypes.TEXT)
+                .addScalar("stop", StandardBasicTypes.TEXT)
+                .addScalar("test", StandardBasicTypes.TEXT)
+                .addScalar("owner", StandardBasicTypes.TEXT)
+                .addScalar("access", StandardBasicTypes.TEXT)
+                .addScalar("schema_uri", StandardBasicTypes.TEXT)
+                .addScalar("description", StandardBasicTypes.TEXT)
+                .addScalar("metadata", JsonBinaryType.INSTANCE)
+                .addScalar("payload", JsonBinaryType.INSTANCE)
+                .addScalar("roles", StandardBasicTypes.TEXT)
+                .getResultList();
+        if (rows.isEmpty()) {
+            Log.warnf("Run upload %d was not found, it might have been processed already", uploadId);
+            return;
+        }
+        Object[] upload = rows.get(0);
+
+        int testId = (int) upload[0];
+        roleManager.setRoles(upload[10] + "," + Roles.HORREUM_SYSTEM);
+        TestDAO testEntity = TestDAO.findById(testId);
         if (testEntity == null) {
-            Log.errorf("Could not find Test (%d) for Run Upload", runUpload.testId);
+            Log.errorf("Could not find Test (%d) for Run Upload", testId);
             return;
         }
         try {
-            RunPersistence run = getPersistRun(runUpload.start, runUpload.stop, runUpload.test,
-                    runUpload.owner, runUpload.access, runUpload.schemaUri,
-                    runUpload.description, runUpload.metaData, runUpload.payload, testEntity);
+            RunPersistence run = getPersistRun((String) upload[1], (String) upload[2], (String) upload[3],
+                    (String) upload[4], upload[5] == null ? null : Access.valueOf((String) upload[5]), (String) upload[6],
+                    (String) upload[7], (JsonNode) upload[8], (JsonNode) upload[9], testEntity);
 
             if (run.getRunId() == null) {
                 Log.errorf("Could not persist Run for Test:  %d", testEntity.name);
@@ -587,6 +734,21 @@ public class RunServiceImpl implements RunService {
         }
     }
 
+    /**
+     * Removes staged uploads that were not processed within the retention, e.g. because their work item was
+     * dead-lettered or lost.
+     */
+    @Scheduled(every = "{horreum.run.upload.check}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    void expireRunUploads() {
+        int deleted = em.createNativeQuery("DELETE FROM run_upload WHERE created < now() - ?1 * interval '1 millisecond'")
+                .setParameter(1, uploadRetention.toMillis()).executeUpdate();
+        if (deleted > 0) {
+            Log.warnf("Removed %d run uploads that were not processed within %s", deleted, uploadRetention);
+        }
+    }
+
     private RunPersistence getPersistRun(String start, String stop, String test, String owner, Access access,
             String schemaUri, String description, JsonNode metadata, JsonNode data, TestDAO testEntity) {
         Object foundStart = findIfNotSet(start, data);
@@ -686,10 +848,18 @@ public class RunServiceImpl implements RunService {
         }
         Log.debugf("Uploading with owner=%s and access=%s", run.owner, run.access);
 
+        // the payload is kept whole until the run is processed, even if it is moved to the blob store
+        JsonNode data = run.data;
+        payloadStore.offload(run);
         try {
             if (run.id == null) {
                 em.persist(run);
             } else {
+                RunDAO replaced = RunDAO.findById(run.id);
+                if (replaced != null && !replaced.trashed) {
+                    // the keys of the new payload are added below
+                    removeKeyPaths(replaced.testid, replaced.owner, replaced.access, payloadStore.data(replaced));
+                }
                 trashConnectedDatasets(run.id, run.testid);
                 em.merge(run);
             }
@@ -701,15 +871,69 @@ public class RunServiceImpl implements RunService {
         Log.debugf("Upload flushed, run ID %d", run.id);
 
         updateRunSchemas(run.id);
-        mediator.newRun(RunMapper.from(run));
+        updateKeyPaths(run.testid, run.owner, run.access, data);
+        Run runDTO = RunMapper.from(run);
+        runDTO.data = data;
+        mediator.newRun(runDTO);
         List<Integer> datasetIds = transform(run.id, false);
         if (mediator.testMode())
             Util.registerTxSynchronization(tm,
-                    txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_NEW, test.id, RunMapper.from(run)));
+                    txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_NEW, test.id, runDTO));
 
         return new RunPersistence(run.id, datasetIds);
     }
 
+    /**
+     * Records the object keys present in the run data into the key-path dictionary used by
+     * {@link #autocomplete(String)} and {@link #listAllRuns}.
+     *
+     * @param testId test of the persisted run
+     * @param owner owner of the run
+     * @param access access of the run
+     * @param data complete payload of the run
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    void updateKeyPaths(int testId, String owner, Access access, JsonNode data) {
+        JsonKeyPaths.Collected collected = JsonKeyPaths.collect(data);
+        if (collected.truncated()) {
+            // keys past the limits are missing from the dictionary, searches must not be pruned by it
+            em.createNativeQuery("INSERT INTO run_keypath_truncated(testid) VALUES (?1) ON CONFLICT DO NOTHING")
+                    .setParameter(1, testId).executeUpdate();
+        }
+        if (!collected.paths().isEmpty()) {
+            em.createNativeQuery(UPSERT_KEYPATHS).setParameter(1, testId).setParameter(2, owner)
+                    .setParameter(3, access.ordinal()).setParameter(4, keyPathRows(collected.paths())).executeUpdate();
+        }
+    }
+
+    /**
+     * Removes a run that is no longer searched (trashed), or a payload that is being replaced, from the counts of the
+     * key-path dictionary; keys that no other run of the test contains are dropped.
+     *
+     * @param testId test of the run
+     * @param owner owner of the run when its keys were recorded
+     * @param access access of the run when its keys were recorded
+     * @param data complete payload of the run
+     */
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    void removeKeyPaths(int testId, String owner, Access access, JsonNode data) {
+        SortedSet<JsonKeyPaths.KeyPath> keyPaths = JsonKeyPaths.collect(data).paths();
+        if (!keyPaths.isEmpty()) {
+            em.createNativeQuery(DECREMENT_KEYPATHS).setParameter(1, testId).setParameter(2, owner)
+                    .setParameter(3, access.ordinal()).setParameter(4, keyPathRows(keyPaths)).executeUpdate();
+            em.createNativeQuery("DELETE FROM run_keypath WHERE testid = ?1 AND runs <= 0").setParameter(1, testId)
+                    .executeUpdate();
+        }
+    }
+
+    private static String keyPathRows(SortedSet<JsonKeyPaths.KeyPath> keyPaths) {
+        ArrayNode rows = instance.arrayNode(keyPaths.size());
+        for (JsonKeyPaths.KeyPath keyPath : keyPaths) {
+            rows.addObject().put("parent", keyPath.parent()).put("key", keyPath.key());
+        }
+        return rows.toString();
+    }
+
     @PermitAll
     @WithRoles
     @Override
@@ -759,10 +983,20 @@ public class RunServiceImpl implements RunService {
             jsonpath = "$.**." + jsonpath;
         }
         try {
-            NativeQuery<String> findAutocomplete = session.createNativeQuery(FIND_AUTOCOMPLETE, String.class);
-            findAutocomplete.setParameter(1, jsonpath);
-            findAutocomplete.setParameter(2, incomplete);
-            List<String> results = findAutocomplete.getResultList();
+            List<String> results;
+            String parentRegex = JsonKeyPaths.toParentRegex(jsonpath);
+            if (parentRegex != null) {
+                results = session.createNativeQuery(FIND_AUTOCOMPLETE_KEYPATH, String.class)
+                        .setParameter(1, incomplete)
+                        .setParameter(2, parentRegex)
+                        .getResultList();
+            } else {
+                // the dictionary cannot answer complex expressions, evaluate the jsonpath over the data
+                NativeQuery<String> findAutocomplete = session.createNativeQuery(FIND_AUTOCOMPLETE, String.class);
+                findAutocomplete.setParameter(1, jsonpath);
+                findAutocomplete.setParameter(2, incomplete);
+                results = findAutocomplete.getResultList();
+            }
             return results.stream().map(option -> option.matches("^[a-zA-Z0-9_-]*$") ? option : "\"" + option + "\"")
                     .collect(Collectors.toList());
         } catch (PersistenceException e) {
@@ -771,16 +1005,14 @@ public class RunServiceImpl implements RunService {
     }
 
     @PermitAll
+    @ReadReplica
     @WithRoles
     @Override
     public RunsSummary listAllRuns(String query, boolean matchAll, String roles, boolean trashed,
             Integer limit, Integer page, String sort, SortDirection direction) {
-        StringBuilder sql = new StringBuilder("SELECT run.id, run.start, run.stop, run.testId, ")
-                .append("run.owner, run.access, run.trashed, run.description, ")
-                .append("run.metadata IS NOT NULL AS has_metadata, test.name AS testname, ")
-                .append("'[]'::jsonb AS schemas, '[]'::jsonb AS datasets, '[]'::jsonb AS validationErrors ")
-                .append("FROM run JOIN test ON test.id = run.testId WHERE ");
+        StringBuilder sql = new StringBuilder("FROM run JOIN test ON test.id = run.testId WHERE ");
         String[] queryParts;
+        List<String> params = new ArrayList<>();
         boolean whereStarted = false;
         if (query == null || query.isEmpty()) {
             queryParts = new String[0];
@@ -796,7 +1028,6 @@ public class RunServiceImpl implements RunService {
                 if (i != 0) {
                     sql.append(matchAll ? " AND " : " OR ");
                 }
-                sql.append("jsonb_path_exists(data, ?").append(i + 1).append(" ::jsonpath)");
                 if (queryParts[i].startsWith("$")) {
                     // no change
                 } else if (queryParts[i].startsWith("@")) {
@@ -804,34 +1035,71 @@ public class RunServiceImpl implements RunService {
                 } else {
                     queryParts[i] = "$.**." + queryParts[i];
                 }
+                // skip runs of tests that never contained the key before evaluating the jsonpath
+                String requiredKey = JsonKeyPaths.requiredKey(queryParts[i]);
+                sql.append("(");
+                if (requiredKey != null) {
+                    params.add(requiredKey);
+                    sql.append("run.testid IN (SELECT testid FROM run_keypath WHERE key = ?").append(params.size())
+                            .append(" UNION ALL SELECT testid FROM run_keypath_truncated) AND ");
+                }
+                params.add(queryParts[i]);
+                sql.append("jsonb_path_exists(data, ?").append(params.size()).append(" ::jsonpath))");
             }
             sql.append(")");
             whereStarted = true;
         }
 
-        whereStarted = Roles.addRolesSql(identity, "run", sql, roles, queryParts.length + 1, whereStarted ? " AND" : null)
+        whereStarted = Roles.addRolesSql(identity, "run", sql, roles, params.size() + 1, whereStarted ? " AND" : null)
                 || whereStarted;
         if (!trashed) {
             if (whereStarted) {
                 sql.append(" AND ");
             }
             sql.append(" trashed = false ");
-        }
+        } else if (!whereStarted) {
+            sql.append(" true ");
+        }
+        String fromWhere = sql.toString();
+        boolean filtered = !params.isEmpty() || Roles.hasRolesParam(roles);
+        // the total of a filtered search is counted while the page is selected, without evaluating the filter again
+        sql.insert(0, "SELECT run.id, run.start, run.stop, run.testId, " +
+                "run.owner, run.access, run.trashed, run.description, " +
+                "run.metadata IS NOT NULL AS has_metadata, test.name AS testname, " +
+                "'[]'::jsonb AS schemas, '[]'::jsonb AS datasets, '[]'::jsonb AS validationErrors" +
+                (filtered ? ", count(*) OVER () AS total " : " "));
         Util.addPaging(sql, limit, page, sort, direction);
 
-        NativeQuery<Object[]> sqlQuery = session.createNativeQuery(sql.toString(), Object[].class);
-        for (int i = 0; i < queryParts.length; ++i) {
-            sqlQuery.setParameter(i + 1, queryParts[i]);
-        }
-
-        Roles.addRolesParam(identity, sqlQuery, queryParts.length + 1, roles);
+        Consumer<Query> bindParams = q -> {
+            for (int i = 0; i < params.size(); ++i) {
+                q.setParameter(i + 1, params.get(i));
+            }
+            Roles.addRolesParam(identity, q, params.size() + 1, roles);
+        };
+        Session readSession = replicaRouter.session();
+        NativeQuery<Object[]> sqlQuery = readSession.createNativeQuery(sql.toString(), Object[].class);
+        bindParams.accept(sqlQuery);
 
         try {
             List<Object[]> runs = sqlQuery.getResultList();
 
             RunsSummary summary = new RunsSummary();
-            // TODO: total does not consider the query but evaluating all the expressions would be expensive
-            summary.total = trashed ? RunDAO.count() : RunDAO.count("trashed = false");
+            if (!filtered) {
+                summary.total = readSession
+                        .createNativeQuery(trashed ? "SELECT count(*) FROM run" : "SELECT count(*) FROM run WHERE NOT trashed",
+                                Long.class)
+                        .getSingleResult();
+            } else if (!runs.isEmpty()) {
+                summary.total = ((Number) runs.get(0)[13]).longValue();
+            } else if (limit == null || limit <= 0 || page == null || page <= 1) {
+                summary.total = 0;
+            } else {
+                // a page past the last one does not select any row to count, evaluating all the expressions again
+                // would be expensive, count exactly only up to a limit
+                Util.Count count = Util.countWithEstimate(readSession, fromWhere, exactCountLimit, bindParams);
+                summary.total = count.value();
+                summary.totalEstimated = count.estimated();
+            }
             summary.runs = runs.stream().map(this::createSummary).collect(Collectors.toList());
             return summary;
         } catch (PersistenceException pe) {
@@ -995,10 +1263,10 @@ public class RunServiceImpl implements RunService {
     @Transactional
     @Override
     public void trash(int id, Boolean isTrashed) {
-        trashInternal(id, isTrashed == null || isTrashed);
+        trashInternal(id, isTrashed == null || isTrashed, true);
     }
 
-    private void trashInternal(int id, boolean trashed) {
+    private void trashInternal(int id, boolean trashed, boolean keyPaths) {
         RunDAO run = RunDAO.findById(id);
         if (run == null) {
             throw ServiceException.notFound("Run not found: " + id);
@@ -1009,6 +1277,9 @@ public class RunServiceImpl implements RunService {
         }
         if (trashed) {
             trashConnectedDatasets(run.id, run.testid);
+            if (keyPaths) {
+                removeKeyPaths(run.testid, run.owner, run.access, payloadStore.data(run));
+            }
             run.trashed = true;
             run.persist();
             if (mediator.testMode())
@@ -1019,6 +1290,9 @@ public class RunServiceImpl implements RunService {
         // before we try to recalculate the dataset
         else {
             if (TestDAO.findById(run.testid) != null) {
+                if (run.trashed) {
+                    updateKeyPaths(run.testid, run.owner, run.access, payloadStore.data(run));
+                }
                 run.trashed = false;
                 run.persistAndFlush();
                 transform(id, true);
@@ -1070,7 +1344,8 @@ public class RunServiceImpl implements RunService {
         }
 
         // Triggering dirty property on Run
-        JsonNode updated = run.data.deepCopy();
+        JsonNode previous = payloadStore.data(run);
+        JsonNode updated = previous.deepCopy();
         JsonNode item;
         if (updated.isObject()) {
             item = path == null ? updated : updated.path(path);
@@ -1092,7 +1367,15 @@ public class RunServiceImpl implements RunService {
             throw ServiceException.badRequest(
                     "Cannot update schema at " + (path == null ? "<root>" : path) + " as the target is not an object");
         }
+        if (!run.trashed) {
+            removeKeyPaths(run.testid, run.owner, run.access, previous);
+            updateKeyPaths(run.testid, run.owner, run.access, updated);
+        }
         run.data = updated;
+        // the updated payload has a different hash
+        run.dataHash = null;
+        run.dataSize = null;
+        payloadStore.offload(run);
         trashConnectedDatasets(run.id, run.testid);
         run.persist();
         onNewOrUpdatedSchemaForRun(run.id, schemaOptional.get().id);
@@ -1156,7 +1439,7 @@ public class RunServiceImpl implements RunService {
             Log.debugf("Recalculate Datasets for run %d - forcing recalculation of all between %s and %s", r.runId, from, to);
             // transform will add proper roles anyway
             //         messageBus.executeForTest(r.testId, () -> datasetService.withRecalculationLock(() -> transform(r.runId, true)));
-            Util.registerTxSynchronization(tm, txStatus -> mediator.queueRunRecalculation(r.runId));
+            mediator.queueRunRecalculation(r.runId);
         }
     }
 
@@ -1182,13 +1465,11 @@ public class RunServiceImpl implements RunService {
 
         Log.debugf("Transforming run ID %d, recalculation? %s", runId, Boolean.toString(isRecalculation));
 
-        // check whether there is an ongoing transformation on the same runId
-        TestService.RecalculationStatus status = new TestService.RecalculationStatus(1);
-        TestService.RecalculationStatus prev = transformations.putIfAbsent(runId, status);
-        // ensure the transformation is removed, with this approach we should be sure
-        // it gets removed even if transaction-level exception occurs, e.g., timeout
-        Util.registerTxSynchronization(tm, txStatus -> transformations.remove(runId, status));
-        if (prev != null) {
+        // check whether there is an ongoing transformation on the same runId on any instance; the lock is
+        // released when the transaction completes, even if a transaction-level exception occurs, e.g., timeout
+        boolean locked = em.unwrap(Session.class).createNativeQuery("SELECT pg_try_advisory_xact_lock(?1, ?2)", Boolean.class)
+                .setParameter(1, TRANSFORMATION_LOCK).setParameter(2, runId).getSingleResult();
+        if (!locked) {
             // there is an ongoing transformation that has recently been initiated
             Log.warnf("Transformation for run %d already in progress", runId);
             return datasetIds;
@@ -1208,9 +1489,33 @@ public class RunServiceImpl implements RunService {
             Log.errorf("Cannot load run ID %d for transformation", runId);
             return datasetIds; // this is still empty
         }
+        JsonNode data;
+        try {
+            data = payloadStore.data(run);
+        } catch (ServiceException e) {
+            logMessage(run, PersistentLogDAO.ERROR, "Cannot load the run data from the blob store.");
+            return datasetIds;
+        }
+        Timer.Sample sample = metrics.start();
+        try {
+            createDatasets(run, data, datasetIds, isRecalculation);
+        } finally {
+            metrics.stop(sample, PipelineMetrics.TRANSFORM, run.testid);
+        }
+        metrics.count(PipelineMetrics.TRANSFORM, run.testid, datasetIds.size());
+        mediator.validateRun(run.id);
+        return datasetIds;
+    }
+
+    /**
+     * Applies the transformers to the run data and creates the datasets, adding their IDs to <code>datasetIds</code>.
+     */
+    private void createDatasets(RunDAO run, JsonNode data, List<Integer> datasetIds, boolean isRecalculation) {
         Map<Integer, JsonNode> transformerResults = new TreeMap<>();
         // naked nodes (those produced by implicit identity transformers) are all added to each dataset
         List<JsonNode> nakedNodes = new ArrayList<>();
+        // what is persisted in place of the naked nodes, see DatasetDAO.RUN_REFERENCE
+        List<JsonNode> nakedReferences = new ArrayList<>();
 
         List<Object[]> relevantSchemas = unchecked(em.createNamedQuery(QUERY_TRANSFORMER_TARGETS)
                 .setParameter(1, run.id)
@@ -1222,6 +1527,17 @@ public class RunServiceImpl implements RunService {
                 .addScalar("source", StandardBasicTypes.INTEGER)
                 .getResultList());
 
+        Map<Integer, TransformerDAO> transformers = loadTransformers(relevantSchemas);
+        Map<TransformerTarget, List<Object[]>> extracted;
+        if (transformers.isEmpty()) {
+            extracted = Collections.emptyMap();
+        } else if (run.dataHash != null) {
+            // the database holds only the skeleton of the payload
+            extracted = extractAll(run, data, relevantSchemas, transformers);
+        } else {
+            extracted = extractAll(run);
+        }
+
         int schemasAndTransformers = relevantSchemas.size();
         for (Object[] relevantSchema : relevantSchemas) {
             int type = (int) relevantSchema[0];
@@ -1232,7 +1548,7 @@ public class RunServiceImpl implements RunService {
 
             TransformerDAO t;
             if (transformerId != null) {
-                t = TransformerDAO.findById(transformerId);
+                t = transformers.get(transformerId);
                 if (t == null) {
                     Log.errorf("Missing transformer with ID %d", transformerId);
                 }
@@ -1243,33 +1559,8 @@ public class RunServiceImpl implements RunService {
                 JsonNode root = JsonNodeFactory.instance.objectNode();
                 JsonNode result;
                 if (t.extractors != null && !t.extractors.isEmpty()) {
-                    List<Object[]> extractedData;
-                    try {
-                        if (type == SchemaDAO.TYPE_1ST_LEVEL) {
-                            // note: metadata always follow the 2nd level format
-                            extractedData = unchecked(em.createNamedQuery(QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID)
-                                    .setParameter(1, run.id).setParameter(2, transformerId)
-                                    .unwrap(NativeQuery.class)
-                                    .addScalar("name", StandardBasicTypes.TEXT)
-                                    .addScalar("value", JsonBinaryType.INSTANCE)
-                                    .getResultList());
-                        } else {
-                            extractedData = unchecked(em.createNamedQuery(QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID)
-                                    .setParameter(1, run.id).setParameter(2, transformerId)
-                                    .setParameter(3, type == SchemaDAO.TYPE_2ND_LEVEL ? key : Integer.parseInt(key))
-                                    .setParameter(4, source)
-                                    .unwrap(NativeQuery.class)
-                                    .addScalar("name", StandardBasicTypes.TEXT)
-                                    .addScalar("value", JsonBinaryType.INSTANCE)
-                                    .getResultList());
-                        }
-                    } catch (PersistenceException e) {
-                        logMessage(run, PersistentLogDAO.ERROR,
-                                "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
-                        findFailingExtractor(runId);
-                        extractedData = Collections.emptyList();
-                    }
-                    addExtracted((ObjectNode) root, extractedData);
+                    addExtracted((ObjectNode) root, extracted.getOrDefault(
+                            new TransformerTarget(transformerId, type, key, source), Collections.emptyList()));
                 }
                 // In Horreum it's customary that when a single extractor is used we pass the result directly to the function
                 // without wrapping it in an extra object.
@@ -1281,11 +1572,13 @@ public class RunServiceImpl implements RunService {
                         root = root.iterator().next();
                     }
                 }
-                logMessage(run, PersistentLogDAO.DEBUG,
-                        "Run transformer %s/%s with input: <pre>%s</pre>, function: <pre>%s</pre>",
-                        uri, t.name, limitLength(root.toPrettyString()), t.function);
+                if (logWriter.isEnabled(run.testid, PersistentLogDAO.DEBUG)) {
+                    logMessage(run, PersistentLogDAO.DEBUG,
+                            "Run transformer %s/%s with input: <pre>%s</pre>, function: <pre>%s</pre>",
+                            uri, t.name, limitLength(root.toPrettyString()), t.function);
+                }
                 if (t.function != null && !t.function.isBlank()) {
-                    result = Util.evaluateOnce(t.function, root, Util::convertToJson,
+                    result = Util.evaluateOnce(metrics.jsEvaluation(), t.function, root, Util::convertToJson,
                             (code, e) -> logMessage(run, PersistentLogDAO.ERROR,
                                     "Evaluation of transformer %s/%s failed: '%s' Code: <pre>%s</pre>", uri, t.name,
                                     e.getMessage(), code),
@@ -1336,22 +1629,10 @@ public class RunServiceImpl implements RunService {
                     }
                 }
             } else {
-                JsonNode node;
-                JsonNode sourceNode = source == 0 ? run.data : run.metadata;
-                switch (type) {
-                    case SchemaDAO.TYPE_1ST_LEVEL:
-                        node = sourceNode;
-                        break;
-                    case SchemaDAO.TYPE_2ND_LEVEL:
-                        node = sourceNode.path(key);
-                        break;
-                    case SchemaDAO.TYPE_ARRAY_ELEMENT:
-                        node = sourceNode.path(Integer.parseInt(key));
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown type " + type);
-                }
+                JsonNode node = schemaRoot(source == 0 ? data : run.metadata, type, key);
                 nakedNodes.add(node);
+                // the database holds only the skeleton of offloaded payloads, these must be copied
+                nakedReferences.add(source == 0 && run.dataHash != null ? node : runReference(uri, source, type, key));
                 logMessage(run, PersistentLogDAO.DEBUG,
                         "This test (%d) does not use any transformer for schema %s (key %s), passing as-is.", run.testid,
                         uri,
@@ -1388,19 +1669,19 @@ public class RunServiceImpl implements RunService {
                         Log.warnf(message);
                     }
                 }
-                nakedNodes.forEach(all::add);
+                ArrayNode full = instance.arrayNode(all.size() + nakedNodes.size()).addAll(all);
+                nakedNodes.forEach(full::add);
+                nakedReferences.forEach(all::add);
                 DatasetDAO ds = new DatasetDAO(run, datasetIds.size(), run.description, all);
-                datasetIds.add(createDataset(ds, isRecalculation));
+                datasetIds.add(createDataset(ds, full, isRecalculation));
             }
         } else {
             logMessage(run, PersistentLogDAO.INFO, "No applicable schema, dataset will be empty.");
             DatasetDAO ds = new DatasetDAO(
                     run, 0, "Empty Dataset for run data without any schema.",
                     instance.arrayNode());
-            datasetIds.add(createDataset(ds, isRecalculation));
+            datasetIds.add(createDataset(ds, ds.data, isRecalculation));
         }
-        mediator.validateRun(run.id);
-        return datasetIds;
     }
 
     /**
@@ -1408,17 +1689,20 @@ public class RunServiceImpl implements RunService {
      * triggered sync only if the {isRecalculation} is set to true otherwise it is completely skipped
      *
      * @param ds the DatasetDAO object to be persisted
+     * @param data dataset data with the references into the run resolved, sent in the event
      * @param isRecalculation whether the dataset is a result of recalculation
      * @return the ID of the persisted dataset
      */
-    private Integer createDataset(DatasetDAO ds, boolean isRecalculation) {
+    private Integer createDataset(DatasetDAO ds, JsonNode data, boolean isRecalculation) {
         ds.persistAndFlush();
         // re-create the dataset_schemas associations
         updateDatasetSchemas(ds.id);
 
         if (isRecalculation) {
             try {
-                Dataset.EventNew event = new Dataset.EventNew(DatasetMapper.from(ds), true);
+                Dataset dataset = DatasetMapper.from(ds);
+                dataset.data = data;
+                Dataset.EventNew event = new Dataset.EventNew(dataset, true);
                 mediator.onNewDataset(event);
                 if (mediator.testMode())
                     Util.registerTxSynchronization(tm,
@@ -1439,18 +1723,17 @@ public class RunServiceImpl implements RunService {
     }
 
     private void queueDatasetProcessing(DatasetDAO ds, boolean isRecalculation) {
-        Dataset.EventNew event = new Dataset.EventNew(DatasetMapper.from(ds), isRecalculation);
+        Dataset dataset = DatasetMapper.from(ds);
+        dataset.data = payloadStore.data(ds);
+        Dataset.EventNew event = new Dataset.EventNew(dataset, isRecalculation);
         mediator.queueDatasetEvents(event);
         if (mediator.testMode())
             Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.DATASET_NEW, ds.testid,
                     event));
     }
 
-    @WithRoles(extras = Roles.HORREUM_SYSTEM)
-    @Transactional(Transactional.TxType.REQUIRES_NEW)
     protected void logMessage(RunDAO run, int level, String format, Object... args) {
-        String msg = args.length == 0 ? format : format.formatted(args);
-        new TransformationLogDAO(em.getReference(TestDAO.class, run.testid), run, level, msg).persist();
+        logWriter.logTransformation(run.testid, run.id, level, format, args);
     }
 
     @WithRoles(extras = Roles.HORREUM_SYSTEM)
@@ -1494,6 +1777,106 @@ public class RunServiceImpl implements RunService {
         return (List<Object[]>) list;
     }
 
+    private Map<Integer, TransformerDAO> loadTransformers(List<Object[]> relevantSchemas) {
+        Set<Integer> ids = relevantSchemas.stream().map(row -> (Integer) row[2]).filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<TransformerDAO> transformers = em.createQuery(
+                "SELECT DISTINCT t FROM Transformer t LEFT JOIN FETCH t.extractors WHERE t.id IN ?1", TransformerDAO.class)
+                .setParameter(1, ids).getResultList();
+        return transformers.stream().collect(Collectors.toMap(t -> t.id, Function.identity()));
+    }
+
+    /**
+     * Evaluates the extractors of all transformers applicable to the run in a single query, so that the run data
+     * are read only once.
+     *
+     * @return extractor names and values for each (transformer, schema location) pair
+     */
+    private Map<TransformerTarget, List<Object[]>> extractAll(RunDAO run) {
+        List<Object[]> rows;
+        try {
+            rows = unchecked(em.createNamedQuery(QUERY_EXTRACTORS_BY_RUNID)
+                    .setParameter(1, run.id)
+                    .unwrap(NativeQuery.class)
+                    .addScalar("transformer_id", StandardBasicTypes.INTEGER)
+                    .addScalar("type", StandardBasicTypes.INTEGER)
+                    .addScalar("key", StandardBasicTypes.TEXT)
+                    .addScalar("source", StandardBasicTypes.INTEGER)
+                    .addScalar("name", StandardBasicTypes.TEXT)
+                    .addScalar("value", JsonBinaryType.INSTANCE)
+                    .getResultList());
+        } catch (PersistenceException e) {
+            logMessage(run, PersistentLogDAO.ERROR,
+                    "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
+            findFailingExtractor(run.id);
+            return Collections.emptyMap();
+        }
+        Map<TransformerTarget, List<Object[]>> extracted = new HashMap<>();
+        for (Object[] row : rows) {
+            extracted.computeIfAbsent(new TransformerTarget((Integer) row[0], (Integer) row[1], (String) row[2],
+                    (Integer) row[3]), k -> new ArrayList<>()).add(new Object[] { row[4], row[5] });
+        }
+        return extracted;
+    }
+
+    /**
+     * Evaluates the extractors in the JVM for runs whose payload is kept in the blob store, producing the same
+     * results as {@link #extractAll(RunDAO)}.
+     */
+    private Map<TransformerTarget, List<Object[]>> extractAll(RunDAO run, JsonNode data, List<Object[]> relevantSchemas,
+            Map<Integer, TransformerDAO> transformers) {
+        Map<TransformerTarget, List<Object[]>> extracted = new HashMap<>();
+        for (Object[] relevantSchema : relevantSchemas) {
+            Integer transformerId = (Integer) relevantSchema[2];
+            TransformerDAO t = transformerId == null ? null : transformers.get(transformerId);
+            if (t == null || t.extractors == null) {
+                continue;
+            }
+            int type = (int) relevantSchema[0];
+            String key = (String) relevantSchema[1];
+            Integer source = (Integer) relevantSchema[4];
+            JsonNode root = schemaRoot(source == 0 ? data : run.metadata, type, key);
+            List<Object[]> values = extracted.computeIfAbsent(new TransformerTarget(transformerId, type, key, source),
+                    k -> new ArrayList<>());
+            for (ExtractorDAO extractor : t.extractors) {
+                JsonNode value = null;
+                if (!root.isMissingNode()) {
+                    try {
+                        JsonPath path = JsonPath.compile(extractor.jsonpath);
+                        value = extractor.isArray ? path.queryArray(root) : path.queryFirst(root);
+                    } catch (JsonPathException e) {
+                        logMessage(run, PersistentLogDAO.ERROR, "Failed to extract %s using JSONPath <code>%s</code>: %s",
+                                extractor.name, extractor.jsonpath, e.getMessage());
+                    }
+                }
+                values.add(new Object[] { extractor.name, value });
+            }
+        }
+        return extracted;
+    }
+
+    private static JsonNode runReference(String uri, int source, int type, String key) {
+        ObjectNode reference = instance.objectNode().put("source", source).put("type", type);
+        if (type != SchemaDAO.TYPE_1ST_LEVEL) {
+            reference.put("key", key);
+        }
+        ObjectNode element = instance.objectNode().put("$schema", uri);
+        element.set(DatasetDAO.RUN_REFERENCE, reference);
+        return element;
+    }
+
+    private static JsonNode schemaRoot(JsonNode sourceNode, int type, String key) {
+        return switch (type) {
+            case SchemaDAO.TYPE_1ST_LEVEL -> sourceNode;
+            case SchemaDAO.TYPE_2ND_LEVEL -> sourceNode.path(key);
+            case SchemaDAO.TYPE_ARRAY_ELEMENT -> sourceNode.path(Integer.parseInt(key));
+            default -> throw new IllegalStateException("Unknown type " + type);
+        };
+    }
+
     private void addExtracted(ObjectNode root, List<Object[]> resultSet) {
         for (Object[] labelValue : resultSet) {
             String name = (String) labelValue[0];
@@ -1513,6 +1896,9 @@ public class RunServiceImpl implements RunService {
         }
     }
 
+    private record TransformerTarget(Integer transformerId, Integer type, String key, Integer source) {
+    }
+
     static class Recalculate {
         private int runId;
         private int testId;
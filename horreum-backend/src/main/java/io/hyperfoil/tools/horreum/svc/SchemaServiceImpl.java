@@ -120,6 +120,9 @@ public class SchemaServiceImpl implements SchemaService {
     @Inject
     TransactionManager tm;
 
+    @Inject
+    RunPayloadStore payloadStore;
+
     @Inject
     SecurityIdentity identity;
 
@@ -131,6 +134,9 @@ public class SchemaServiceImpl implements SchemaService {
 
     @Inject
     BlockingTaskDispatcher messageBus;
+
+    @Inject
+    PipelineMetrics metrics;
     @Inject
     Session session;
 
@@ -228,7 +234,7 @@ public class SchemaServiceImpl implements SchemaService {
 
     private void newOrUpdatedSchema(SchemaDAO schema) {
         Log.debugf("Push schema event for async run schemas update: %d (%s)", schema.id, schema.uri);
-        Util.registerTxSynchronization(tm, txStatus -> mediator.queueSchemaSync(schema.id));
+        mediator.queueSchemaSync(schema.id);
     }
 
     private void validateSchema(Schema schemaDTO) {
@@ -351,10 +357,12 @@ public class SchemaServiceImpl implements SchemaService {
             run.validationErrors.removeIf(e -> schemaFilter == null || schemaFilter.test(e.schema.uri));
         if (run.validationErrors == null)
             run.validationErrors = new ArrayList<>();
-        validateData(run.data, schemaFilter, run.validationErrors);
-        if (run.metadata != null) {
-            validateData(run.metadata, schemaFilter, run.validationErrors);
-        }
+        metrics.time(PipelineMetrics.VALIDATION, run.testid, () -> {
+            validateData(payloadStore.data(run), schemaFilter, run.validationErrors);
+            if (run.metadata != null) {
+                validateData(run.metadata, schemaFilter, run.validationErrors);
+            }
+        });
         run.persist();
         if (mediator.testMode())
             Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_VALIDATED, run.testid,
@@ -385,7 +393,9 @@ public class SchemaServiceImpl implements SchemaService {
         if (dataset.data != null) {
             if (dataset.validationErrors == null)
                 dataset.validationErrors = new ArrayList<>();
-            validateData(dataset.data, schemaFilter, dataset.validationErrors);
+            JsonNode data = payloadStore.data(dataset);
+            metrics.time(PipelineMetrics.VALIDATION, dataset.testid,
+                    () -> validateData(data, schemaFilter, dataset.validationErrors));
             for (var item : dataset.data) {
                 String uri = item.path("$schema").asText();
                 if (uri == null || uri.isBlank()) {
@@ -466,22 +476,7 @@ public class SchemaServiceImpl implements SchemaService {
             }
 
             try {
-                HorreumURIFetcher fetcher = new HorreumURIFetcher();
-                fetcher.addResource(SchemaLocation.of(schemaUri).getAbsoluteIri(), rootSchema.schema.toString());
-
-                JsonSchemaFactory factory = JsonSchemaFactory.builder(JSON_SCHEMA_FACTORY)
-                        .schemaLoaders(schemaLoaders -> schemaLoaders.add(fetcher))
-                        .build();
-
-                for (JsonNode node : toCheck.get(schemaUri)) {
-                    factory.getSchema(rootSchema.schema).validate(node).forEach(msg -> {
-                        ValidationErrorDAO error = new ValidationErrorDAO();
-                        error.schema = rootSchema;
-                        error.error = Util.OBJECT_MAPPER.valueToTree(msg);
-                        if (!consumer.contains(error))
-                            consumer.add(error);
-                    });
-                }
+                validate(schemaUri, rootSchema, toCheck.get(schemaUri), consumer);
             } catch (Throwable e) {
                 // Do not let messed up schemas fail the upload
                 Log.error("Schema validation failed", e);
@@ -496,6 +491,26 @@ public class SchemaServiceImpl implements SchemaService {
         }
     }
 
+    static void validate(String schemaUri, SchemaDAO rootSchema, List<JsonNode> nodes,
+            Collection<ValidationErrorDAO> consumer) {
+        HorreumURIFetcher fetcher = new HorreumURIFetcher();
+        fetcher.addResource(SchemaLocation.of(schemaUri).getAbsoluteIri(), rootSchema.schema.toString());
+
+        JsonSchemaFactory factory = JsonSchemaFactory.builder(JSON_SCHEMA_FACTORY)
+                .schemaLoaders(schemaLoaders -> schemaLoaders.add(fetcher))
+                .build();
+
+        for (JsonNode node : nodes) {
+            factory.getSchema(rootSchema.schema).validate(node).forEach(msg -> {
+                ValidationErrorDAO error = new ValidationErrorDAO();
+                error.schema = rootSchema;
+                error.error = Util.OBJECT_MAPPER.valueToTree(msg);
+                if (!consumer.contains(error))
+                    consumer.add(error);
+            });
+        }
+    }
+
     private void addIfHasSchema(Map<String, List<JsonNode>> toCheck, JsonNode node) {
         String uri = node.path("$schema").asText();
         if (uri != null && !uri.isBlank()) {
@@ -876,12 +891,10 @@ public class SchemaServiceImpl implements SchemaService {
             }
 
             Log.infof("Queuing %s datasets for recalculation", datasetIds.size());
-            Util.registerTxSynchronization(tm, txStatus -> {
-                for (var dataset : datasetIds) {
-                    mediator.queueDatasetEvents(
-                            new Dataset.EventNew((Integer) dataset[0], (Integer) dataset[1], 0, labelId, true));
-                }
-            });
+            for (var dataset : datasetIds) {
+                mediator.queueDatasetEvents(
+                        new Dataset.EventNew((Integer) dataset[0], (Integer) dataset[1], 0, labelId, true));
+            }
         } catch (NoResultException nre) {
             Log.debugf("Could not find datasetId/testId to recalculate labels: %s", nre.getMessage());
         }
@@ -1,15 +1,19 @@
 package io.hyperfoil.tools.horreum.svc;
 
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.context.control.ActivateRequestContext;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
+import jakarta.transaction.TransactionManager;
 import jakarta.transaction.Transactional;
 
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -19,21 +23,20 @@ import org.eclipse.microprofile.reactive.messaging.Incoming;
 import org.eclipse.microprofile.reactive.messaging.Message;
 import org.eclipse.microprofile.reactive.messaging.OnOverflow;
 
-import com.fasterxml.jackson.databind.JsonNode;
-
 import io.hyperfoil.tools.horreum.api.alerting.Change;
 import io.hyperfoil.tools.horreum.api.alerting.DataPoint;
-import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.Dataset;
 import io.hyperfoil.tools.horreum.api.data.Run;
 import io.hyperfoil.tools.horreum.api.data.Test;
 import io.hyperfoil.tools.horreum.api.data.TestExport;
 import io.hyperfoil.tools.horreum.api.services.ExperimentService;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
-import io.hyperfoil.tools.horreum.entity.data.TestDAO;
 import io.hyperfoil.tools.horreum.events.DatasetChanges;
 import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.security.identity.SecurityIdentity;
 import io.smallrye.reactive.messaging.amqp.OutgoingAmqpMetadata;
 import io.smallrye.reactive.messaging.annotations.Blocking;
@@ -72,6 +75,9 @@ public class ServiceMediator {
     @Inject
     DatasetServiceImpl datasetService;
 
+    @Inject
+    TransformScheduler transformScheduler;
+
     @Inject
     EventAggregator aggregator;
 
@@ -84,6 +90,15 @@ public class ServiceMediator {
     @Inject
     SecurityIdentity identity;
 
+    @Inject
+    PostgresWorkQueue workQueue;
+
+    @Inject
+    TransactionManager tm;
+
+    @Inject
+    MeterRegistry registry;
+
     @Inject
     @ConfigProperty(name = "horreum.test-mode", defaultValue = "false")
     Boolean testMode;
@@ -103,13 +118,24 @@ public class ServiceMediator {
 
     @OnOverflow(value = OnOverflow.Strategy.BUFFER, bufferSize = 10000)
     @Channel("run-upload-out")
-    Emitter<RunUpload> runUploadEmitter;
+    Emitter<Long> runUploadEmitter;
+
+    @ConfigProperty(name = "horreum.dataset-event.coalesce-window", defaultValue = "0")
+    Duration datasetEventWindow;
+
+    private final DatasetEventCoalescer datasetEvents = new DatasetEventCoalescer();
 
     private Map<AsyncEventChannels, Map<Integer, BlockingQueue<Object>>> events = new ConcurrentHashMap<>();
 
     public ServiceMediator() {
     }
 
+    @PostConstruct
+    void init() {
+        Gauge.builder("horreum.dataset-event.pending", datasetEvents, DatasetEventCoalescer::size)
+                .description("Datasets with events waiting in the coalescing window").register(registry);
+    }
+
     void executeBlocking(Runnable runnable) {
         Util.executeBlocking(vertx, runnable);
     }
@@ -153,6 +179,7 @@ public class ServiceMediator {
     @Transactional
     void updateLabels(Dataset.LabelsUpdatedEvent event) {
         alertingService.onLabelsUpdated(event);
+        reportService.onLabelsUpdated(event);
     }
 
     @Transactional
@@ -175,13 +202,52 @@ public class ServiceMediator {
         this.actionService.onDatasetLabelsComputed(newEvent.testId, newEvent.datasetId);
     }
 
-    // NEW_DATASET, i.e., when uploading new run, has higher priority than RECALC_DATASET, i.e., when updating label schema
-    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    /*
+     * The queue* methods must be called in the transaction that makes the changes to be processed. The Postgres work
+     * queue inserts the item in that transaction, so the work is committed (or rolled back) together with the changes;
+     * AMQP messages are sent once the transaction completes.
+     */
+
     void queueDatasetEvents(Dataset.EventNew event) {
-        OutgoingAmqpMetadata meta = OutgoingAmqpMetadata.builder()
-                .withPriority(event.isRecalculation ? Dataset.EventNew.Priority.RECALC_DATASET.value
-                        : Dataset.EventNew.Priority.NEW_DATASET.value)
-                .build();
+        if (workQueue.isEnabled()) {
+            workQueue.enqueue(PostgresWorkQueue.DATASET_EVENT, event, datasetEventPriority(event));
+        } else {
+            Util.registerTxSynchronization(tm, txStatus -> coalesceDatasetEvent(event));
+        }
+    }
+
+    // with a coalescing window configured, events are held in memory so that duplicates can be merged before they
+    // are dispatched; the held events do not survive a crash
+    private void coalesceDatasetEvent(Dataset.EventNew event) {
+        if (datasetEventWindow.isZero()) {
+            sendDatasetEvent(event);
+        } else if (datasetEvents.add(event)) {
+            vertx.setTimer(datasetEventWindow.toMillis(), timerId -> executeBlocking(this::flushDatasetEvents));
+        }
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    void flushDatasetEvents() {
+        List<Dataset.EventNew> events = datasetEvents.drain();
+        long merged = datasetEvents.resetMerged();
+        if (merged > 0) {
+            Log.debugf("Dispatching %d dataset events, %d duplicates merged", events.size(), merged);
+        }
+        events.forEach(this::sendDatasetEvent);
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        flushDatasetEvents();
+    }
+
+    // NEW_DATASET, i.e., when uploading new run, has higher priority than RECALC_DATASET, i.e., when updating label schema
+    private static short datasetEventPriority(Dataset.EventNew event) {
+        return event.isRecalculation ? Dataset.EventNew.Priority.RECALC_DATASET.value
+                : Dataset.EventNew.Priority.NEW_DATASET.value;
+    }
+
+    private void sendDatasetEvent(Dataset.EventNew event) {
+        OutgoingAmqpMetadata meta = OutgoingAmqpMetadata.builder().withPriority(datasetEventPriority(event)).build();
         Message<Dataset.EventNew> msg = Message.of(event).addMetadata(meta);
         dataSetEmitter.send(msg);
     }
@@ -190,12 +256,16 @@ public class ServiceMediator {
     @Blocking(ordered = false, value = "horreum.run.pool")
     @ActivateRequestContext
     public void processRunRecalculation(int runId) {
-        runService.transform(runId, true);
+        transformScheduler.execute(runService.findTestId(runId), TransformScheduler.Priority.RECALCULATION,
+                () -> runService.transform(runId, true));
     }
 
-    @Transactional(Transactional.TxType.NOT_SUPPORTED)
     void queueRunRecalculation(int runId) {
-        runEmitter.send(runId);
+        if (workQueue.isEnabled()) {
+            workQueue.enqueue(PostgresWorkQueue.RUN_RECALC, runId, PostgresWorkQueue.DEFAULT_PRIORITY);
+        } else {
+            Util.registerTxSynchronization(tm, txStatus -> runEmitter.send(runId));
+        }
     }
 
     @Incoming("schema-sync-in")
@@ -208,22 +278,29 @@ public class ServiceMediator {
     @Incoming("run-upload-in")
     @Blocking(ordered = false, value = "horreum.run.pool")
     @ActivateRequestContext
-    public void processRunUpload(RunUpload runUpload) {
-        Log.debugf("Run Upload: %d", runUpload.testId);
-        runService.persistRun(runUpload);
+    public void processRunUpload(long uploadId) {
+        Log.debugf("Run Upload: %d", uploadId);
+        transformScheduler.execute(null, TransformScheduler.Priority.UPLOAD, () -> {
+            runService.persistRun(uploadId);
+            return null;
+        });
     }
 
-    @Transactional(Transactional.TxType.NOT_SUPPORTED)
     void queueSchemaSync(int schemaId) {
-        schemaEmitter.send(schemaId);
+        if (workQueue.isEnabled()) {
+            workQueue.enqueue(PostgresWorkQueue.SCHEMA_SYNC, schemaId, PostgresWorkQueue.DEFAULT_PRIORITY);
+        } else {
+            Util.registerTxSynchronization(tm, txStatus -> schemaEmitter.send(schemaId));
+        }
     }
 
-    @Transactional(Transactional.TxType.NOT_SUPPORTED)
-    public void queueRunUpload(String start, String stop, String test, String owner, Access access,
-            String schemaUri, String description, JsonNode metadata, JsonNode jsonNode, TestDAO testEntity) {
-        RunUpload upload = new RunUpload(start, stop, test, owner, access, schemaUri, description, metadata, jsonNode,
-                testEntity.id, identity.getRoles());
-        runUploadEmitter.send(upload);
+    void queueRunUpload(long uploadId) {
+        if (workQueue.isEnabled()) {
+            workQueue.enqueue(PostgresWorkQueue.RUN_UPLOAD, uploadId, PostgresWorkQueue.DEFAULT_PRIORITY);
+        } else {
+            // the staged upload exists only if the transaction commits
+            Util.doAfterCommit(tm, () -> runUploadEmitter.send(uploadId));
+        }
     }
 
     void dataPointsProcessed(DataPoint.DatasetProcessedEvent event) {
@@ -242,6 +319,14 @@ public class ServiceMediator {
         return runService.transform(runId, isRecalculation).size();
     }
 
+    RecalculationJobs.Batch recalculateDatasets(RecalculationJobs.Job job) {
+        return testService.recalculateDatasets(job);
+    }
+
+    RecalculationJobs.Batch recalculateDatapoints(RecalculationJobs.Job job) {
+        return alertingService.recalculateDatapoints(job);
+    }
+
     void newExperimentResult(ExperimentService.ExperimentResult result) {
         actionService.onNewExperimentResult(result);
     }
@@ -271,6 +356,10 @@ public class ServiceMediator {
         datasetService.updateFingerprints(testId);
     }
 
+    public void createMissingFingerprints(int testId) {
+        datasetService.createMissingFingerprints(testId);
+    }
+
     public void validateRun(Integer runId) {
         schemaService.validateRunData(runId, null);
     }
@@ -301,38 +390,4 @@ public class ServiceMediator {
         }
     }
 
-    public static class RunUpload {
-        public String start;
-        public String stop;
-        public String test;
-        public String owner;
-        public Access access;
-        public String schemaUri;
-        public String description;
-        public JsonNode metaData;
-        public JsonNode payload;
-        public Integer testId;
-        public Set<String> roles;
-
-        public RunUpload() {
-        }
-
-        public RunUpload(String start, String stop, String test, String owner,
-                Access access, String schemaUri, String description,
-                JsonNode metaData, JsonNode payload, Integer testId,
-                Set<String> roles) {
-            this.start = start;
-            this.stop = stop;
-            this.test = test;
-            this.owner = owner;
-            this.access = access;
-            this.schemaUri = schemaUri;
-            this.description = description;
-            this.metaData = metaData;
-            this.payload = payload;
-            this.testId = testId;
-            this.roles = roles;
-        }
-    }
-
 }
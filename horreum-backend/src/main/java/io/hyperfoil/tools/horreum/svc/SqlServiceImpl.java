@@ -84,11 +84,12 @@ public class SqlServiceImpl implements SqlService {
         try {
             if (schemaUri == null) {
                 String func = array ? "jsonb_path_query_array" : "jsonb_path_query_first";
-                String sqlQuery = "SELECT " + func + "(data, ?::jsonpath)#>>'{}' FROM dataset WHERE id = ?";
+                String sqlQuery = "SELECT " + func
+                        + "(dataset_data(data, runid), ?::jsonpath)#>>'{}' FROM dataset WHERE id = ?";
                 result.value = String.valueOf(Util.runQuery(em, sqlQuery, jsonpath, datasetId));
             } else {
                 // This schema-aware query already assumes that Dataset.data is an array of objects with defined schema
-                String schemaQuery = "jsonb_path_query(data, '$[*] ? (@.\"$schema\" == $schema)', ('{\"schema\":\"' || ? || '\"}')::jsonb)";
+                String schemaQuery = "jsonb_path_query(dataset_data(data, runid), '$[*] ? (@.\"$schema\" == $schema)', ('{\"schema\":\"' || ? || '\"}')::jsonb)";
                 String sqlQuery;
                 if (!array) {
                     sqlQuery = "SELECT jsonb_path_query_first(" + schemaQuery
@@ -1,5 +1,7 @@
 package io.hyperfoil.tools.horreum.svc;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -9,7 +11,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import jakarta.annotation.security.PermitAll;
@@ -25,12 +26,11 @@ import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 
-import org.hibernate.ScrollMode;
-import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
 import org.hibernate.type.StandardBasicTypes;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -44,6 +44,7 @@ import io.hyperfoil.tools.horreum.api.data.TestExport;
 import io.hyperfoil.tools.horreum.api.data.datastore.DatastoreType;
 import io.hyperfoil.tools.horreum.api.services.TestService;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.WatchDAO;
 import io.hyperfoil.tools.horreum.entity.backend.DatastoreConfigDAO;
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
@@ -54,6 +55,8 @@ import io.hyperfoil.tools.horreum.entity.data.ViewDAO;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import io.hyperfoil.tools.horreum.mapper.DatasourceMapper;
 import io.hyperfoil.tools.horreum.mapper.TestMapper;
+import io.hyperfoil.tools.horreum.server.ReadReplica;
+import io.hyperfoil.tools.horreum.server.ReplicaRouter;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.quarkus.hibernate.orm.panache.PanacheQuery;
 import io.quarkus.logging.Log;
@@ -70,6 +73,13 @@ public class TestServiceImpl implements TestService {
     //using find and replace because  ASC or DESC cannot be set with a parameter
     //@formatter:off
     private static final String CHECK_TEST_EXISTS_BY_ID_QUERY = "SELECT EXISTS(SELECT 1 FROM test WHERE id = ?1)";
+    // runs ordered by start and ID after the checkpoint, if there is one
+    private static final String NEXT_RUNS_FOR_RECALCULATION = """
+         SELECT id, start FROM run
+         WHERE testid = ?1 AND NOT trashed AND (CAST(?2 AS timestamptz) IS NULL OR (start, id) > (?2, ?3))
+         ORDER BY start, id
+         LIMIT ?4
+         """;
     protected static final String LABEL_VALUES_SUMMARY_QUERY = """
          SELECT DISTINCT COALESCE(jsonb_object_agg(label.name, lv.value), '{}'::jsonb) AS values
                   FROM dataset
@@ -87,6 +97,18 @@ public class TestServiceImpl implements TestService {
     @Inject
     EntityManager em;
 
+    @Inject
+    PersistentLogWriter logWriter;
+
+    @Inject
+    ConfigurationCache configCache;
+
+    @Inject
+    RecalculationJobs recalculationJobs;
+
+    @Inject
+    TransformScheduler transformScheduler;
+
     @Inject
     SecurityIdentity identity;
 
@@ -97,9 +119,10 @@ public class TestServiceImpl implements TestService {
     LabelValuesService labelValuesService;
 
     @Inject
-    TransactionManager tm;
+    ReplicaRouter replicaRouter;
 
-    private final ConcurrentHashMap<Integer, RecalculationStatus> recalculations = new ConcurrentHashMap<>();
+    @Inject
+    TransactionManager tm;
 
     @RolesAllowed(Roles.TESTER)
     @WithRoles
@@ -115,6 +138,7 @@ public class TestServiceImpl implements TestService {
         Log.debugf("Deleting test %s (%d)", test.name, test.id);
         mediator.deleteTest(test.id);
         test.delete();
+        configCache.onTestUpdated(test.id);
         if (mediator.testMode())
             Util.registerTxSynchronization(tm,
                     txStatus -> mediator.publishEvent(AsyncEventChannels.TEST_DELETED, test.id, TestMapper.from(test)));
@@ -157,7 +181,7 @@ public class TestServiceImpl implements TestService {
     @WithRoles
     @Transactional
     protected boolean checkTestExists(int id) {
-        return (Boolean) em.createNativeQuery(CHECK_TEST_EXISTS_BY_ID_QUERY, Boolean.class)
+        return replicaRouter.session().createNativeQuery(CHECK_TEST_EXISTS_BY_ID_QUERY, Boolean.class)
                 .setParameter(1, id)
                 .getSingleResult();
     }
@@ -227,6 +251,12 @@ public class TestServiceImpl implements TestService {
         if (dto.name == null || dto.name.isBlank()) {
             throw ServiceException.badRequest("Test name can not be empty");
         }
+        if (dto.logLevel != null && (dto.logLevel < PersistentLogDAO.DEBUG || dto.logLevel > PersistentLogDAO.ERROR)) {
+            throw ServiceException.badRequest("Invalid log level " + dto.logLevel);
+        }
+        if (dto.archiveAfterDays != null && dto.archiveAfterDays < 1) {
+            throw ServiceException.badRequest("Runs can be archived after 1 day at the earliest");
+        }
 
         TestDAO existing = dto.id != null ? TestDAO.findById(dto.id) : null;
         TestDAO test = TestMapper.to(dto);
@@ -248,6 +278,8 @@ public class TestServiceImpl implements TestService {
 
             test.views = existing.views;
             test = em.merge(test);
+            logWriter.onTestUpdated(test.id);
+            configCache.onTestUpdated(test.id);
             if (shouldRecalculateLabels)
                 mediator.updateFingerprints(test.id);
         } else {
@@ -519,6 +551,7 @@ public class TestServiceImpl implements TestService {
         } catch (Exception e) {
             throw ServiceException.serverError("Notification change failed (missing permissions?)");
         }
+        configCache.onTestUpdated(testId);
     }
 
     @RolesAllowed(Roles.TESTER)
@@ -596,6 +629,7 @@ public class TestServiceImpl implements TestService {
         return rtrn;
     }
 
+    @ReadReplica
     @Transactional
     @WithRoles
     @Override
@@ -653,10 +687,10 @@ public class TestServiceImpl implements TestService {
     @Transactional
     public void recalculateTestDatasets(int testId) {
         TestDAO test = getTestForUpdate(testId);
-        RecalculationStatus status = new RecalculationStatus(RunDAO.count("testid = ?1 AND trashed = false", testId));
-        // we don't have to care about races with new runs
-        RecalculationStatus prev = recalculations.putIfAbsent(testId, status);
-        if (prev != null) {
+        // the total is an estimate, runs uploaded during the recalculation are processed, too
+        long totalRuns = RunDAO.count("testid = ?1 AND trashed = false", testId);
+        Long jobId = recalculationJobs.start(testId, RecalculationJobs.DATASETS, (int) totalRuns, null);
+        if (jobId == null) {
             Log.infof("Recalculation for test %d (%s) already in progress", testId, test.name);
             return;
         }
@@ -668,34 +702,73 @@ public class TestServiceImpl implements TestService {
         if (deleted > 0) {
             Log.debugf("Deleted %d datasets for trashed runs in test %s (%d)", deleted, test.name, (Object) testId);
         }
-
         Log.infof("Recalculating datasets for test %d (%s)", testId, test.name);
-        try (ScrollableResults<Integer> results = em
-                .createNativeQuery("SELECT id FROM run WHERE testid = ?1 AND NOT trashed ORDER BY start")
+    }
+
+    /**
+     * Recalculates the datasets of the next batch of runs after the checkpoint of the job.
+     *
+     * @return <code>null</code> when there are no more runs
+     */
+    RecalculationJobs.Batch recalculateDatasets(RecalculationJobs.Job job) {
+        List<Object[]> runs = nextRunsForRecalculation(job.testId(), job.checkpoint());
+        if (runs.isEmpty()) {
+            return null;
+        }
+        List<Integer> runIds = runs.stream().map(row -> (Integer) row[0]).toList();
+        int[] result = recalculationJobs.runConcurrently(runIds, runId -> {
+            Log.debugf("Recalculate Datasets for run %d - forcing recalculation for test %d", runId, job.testId());
+            return transformScheduler.execute(job.testId(), TransformScheduler.Priority.RECALCULATION,
+                    () -> mediator.transform(runId, true));
+        });
+        Object[] last = runs.get(runs.size() - 1);
+        return new RecalculationJobs.Batch(RecalculationJobs.checkpoint((Instant) last[1], (Integer) last[0]),
+                runIds.size(), result[0], result[1], null);
+    }
+
+    @WithRoles(extras = Roles.HORREUM_SYSTEM)
+    @Transactional
+    List<Object[]> nextRunsForRecalculation(int testId, JsonNode checkpoint) {
+        return em.unwrap(Session.class).createNativeQuery(NEXT_RUNS_FOR_RECALCULATION, Object[].class)
                 .setParameter(1, testId)
-                .unwrap(NativeQuery.class).setReadOnly(true).setFetchSize(100)
-                .scroll(ScrollMode.FORWARD_ONLY)) {
-            while (results.next()) {
-                int runId = (int) results.get();
-                Log.debugf("Recalculate Datasets for run %d - forcing recalculation for test %d (%s)", runId, testId,
-                        test.name);
-
-                mediator.executeBlocking(() -> {
-                    int newDatasets = 0;
-                    try {
-                        newDatasets = mediator.transform(runId, true);
-                    } finally {
-                        synchronized (status) {
-                            status.finished++;
-                            status.datasets += newDatasets;
-                            if (status.finished == status.totalRuns) {
-                                Log.infof("Datasets recalculation for test %d (%s) completed", testId, test.name);
-                                recalculations.remove(testId, status);
-                            }
-                        }
-                    }
-                });
-            }
+                .setParameter(2, RecalculationJobs.checkpointStart(checkpoint), StandardBasicTypes.INSTANT)
+                .setParameter(3, RecalculationJobs.checkpointId(checkpoint), StandardBasicTypes.INTEGER)
+                .setParameter(4, recalculationJobs.batchSize)
+                .addScalar("id", StandardBasicTypes.INTEGER)
+                .addScalar("start", StandardBasicTypes.INSTANT)
+                .getResultList();
+    }
+
+    @Override
+    @RolesAllowed(Roles.TESTER)
+    @WithRoles
+    @Transactional
+    public void pauseTestRecalculation(int testId) {
+        getTestForUpdate(testId);
+        if (!recalculationJobs.pause(testId, RecalculationJobs.DATASETS)) {
+            throw ServiceException.notFound("No running recalculation for test " + testId);
+        }
+    }
+
+    @Override
+    @RolesAllowed(Roles.TESTER)
+    @WithRoles
+    @Transactional
+    public void resumeTestRecalculation(int testId) {
+        getTestForUpdate(testId);
+        if (!recalculationJobs.resume(testId, RecalculationJobs.DATASETS)) {
+            throw ServiceException.notFound("No paused recalculation for test " + testId);
+        }
+    }
+
+    @Override
+    @RolesAllowed(Roles.TESTER)
+    @WithRoles
+    @Transactional
+    public void cancelTestRecalculation(int testId) {
+        getTestForUpdate(testId);
+        if (!recalculationJobs.cancel(testId, RecalculationJobs.DATASETS)) {
+            throw ServiceException.notFound("No recalculation in progress for test " + testId);
         }
     }
 
@@ -705,8 +778,16 @@ public class TestServiceImpl implements TestService {
         if (!checkTestExists(testId)) {
             throw ServiceException.serverError("Cannot find test " + testId);
         }
-        RecalculationStatus status = recalculations.get(testId);
-        if (status == null) {
+        RecalculationJobs.Job job = recalculationJobs.find(testId, RecalculationJobs.DATASETS, Duration.ZERO);
+        RecalculationStatus status;
+        if (job != null && !job.completed()) {
+            status = new RecalculationStatus(job.total());
+            status.timestamp = job.started().toEpochMilli();
+            status.finished = job.finished();
+            status.datasets = job.datasets();
+            status.state = job.state();
+            status.throughput = job.throughput();
+        } else {
             status = new RecalculationStatus(RunDAO.count("testid = ?1 AND trashed = false", testId));
             status.finished = status.totalRuns;
             status.datasets = DatasetDAO.count("testid", testId);
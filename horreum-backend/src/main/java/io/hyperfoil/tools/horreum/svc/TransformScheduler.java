@@ -0,0 +1,131 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admission control for the run transformations executed in the background, i.e. queued uploads and
+ * recalculations, so that they cannot take all database connections from the requests.
+ * <p>
+ * At most <code>horreum.transform.max-concurrency</code> transformations run at once on this instance, and at most
+ * <code>horreum.transform.max-concurrency-per-test</code> of them for the same test. Waiting uploads are admitted
+ * before waiting recalculations, and recalculations may not use the last
+ * <code>horreum.transform.upload-reserve</code> slots, so an upload never waits for a whole batch of
+ * recalculations to finish. The caller must not hold a database connection while waiting, i.e. the task is
+ * expected to start its own transaction.
+ */
+@ApplicationScoped
+public class TransformScheduler {
+    enum Priority {
+        // ordered from the highest priority
+        UPLOAD,
+        RECALCULATION
+    }
+
+    private record Waiter(Priority priority, long sequence, Integer testId) {
+    }
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "horreum.transform.max-concurrency", defaultValue = "8")
+    int maxConcurrency;
+
+    @ConfigProperty(name = "horreum.transform.max-concurrency-per-test", defaultValue = "4")
+    int maxConcurrencyPerTest;
+
+    @ConfigProperty(name = "horreum.transform.upload-reserve", defaultValue = "2")
+    int uploadReserve;
+
+    private final TreeSet<Waiter> waiting = new TreeSet<>(
+            Comparator.comparing(Waiter::priority).thenComparingLong(Waiter::sequence));
+    private final Map<Integer, Integer> runningPerTest = new HashMap<>();
+    private long sequence;
+    private int running;
+
+    @PostConstruct
+    void init() {
+        if (uploadReserve >= maxConcurrency) {
+            throw new IllegalArgumentException("horreum.transform.upload-reserve must be lower than max-concurrency");
+        }
+        Gauge.builder("horreum.transform.running", this, s -> s.running())
+                .description("Background run transformations running on this instance").register(registry);
+        Gauge.builder("horreum.transform.waiting", this, s -> s.waiting())
+                .description("Background run transformations waiting for admission on this instance").register(registry);
+    }
+
+    /**
+     * Runs the task once it is admitted, blocking the calling thread until then.
+     *
+     * @param testId test of the transformed run, <code>null</code> if it is not known
+     */
+    <T> T execute(Integer testId, Priority priority, Supplier<T> task) {
+        acquire(testId, priority);
+        try {
+            return task.get();
+        } finally {
+            release(testId);
+        }
+    }
+
+    private synchronized void acquire(Integer testId, Priority priority) {
+        Waiter waiter = new Waiter(priority, sequence++, testId);
+        waiting.add(waiter);
+        try {
+            while (next() != waiter) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for admission", e);
+        } finally {
+            waiting.remove(waiter);
+        }
+        ++running;
+        if (testId != null) {
+            runningPerTest.merge(testId, 1, Integer::sum);
+        }
+        // another waiter may be admissible, too
+        notifyAll();
+    }
+
+    private synchronized void release(Integer testId) {
+        --running;
+        if (testId != null) {
+            runningPerTest.computeIfPresent(testId, (id, count) -> count > 1 ? count - 1 : null);
+        }
+        notifyAll();
+    }
+
+    // the first waiter in priority order that can be admitted now
+    private Waiter next() {
+        for (Waiter waiter : waiting) {
+            int limit = waiter.priority == Priority.UPLOAD ? maxConcurrency : maxConcurrency - uploadReserve;
+            if (running < limit && (waiter.testId == null
+                    || runningPerTest.getOrDefault(waiter.testId, 0) < maxConcurrencyPerTest)) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    private synchronized int running() {
+        return running;
+    }
+
+    private synchronized int waiting() {
+        return waiting.size();
+    }
+}
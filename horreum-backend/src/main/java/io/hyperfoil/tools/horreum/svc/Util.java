@@ -54,7 +54,9 @@ import com.jayway.jsonpath.ReadContext;
 import com.jayway.jsonpath.spi.json.JacksonJsonNodeJsonProvider;
 
 import io.hyperfoil.tools.horreum.api.SortDirection;
+import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import io.hyperfoil.tools.horreum.server.RolesInterceptor;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.logging.Log;
 import io.quarkus.security.identity.SecurityIdentity;
 import io.smallrye.context.SmallRyeContextManagerProvider;
@@ -596,7 +598,7 @@ public class Util {
      * Evaluates a List of Objects, executing Javascript Combination Functions, if defined.
      * Callbacks for JS evaluation exceptions and output logging allow for custom error handling
      */
-    static <T> void evaluateWithCombinationFunction(List<T> inputData,
+    static <T> void evaluateWithCombinationFunction(Timer timer, List<T> inputData,
             Function<T, String> jsCombinationFunction,
             Function<T, JsonNode> evaluationInputObject,
             BiConsumer<T, Value> jsFuncResultConsumer,
@@ -609,6 +611,7 @@ public class Util {
             T element = inputData.get(i);
             String jsFuncBody = jsCombinationFunction.apply(element);
             if (jsFuncBody != null && !jsFuncBody.isBlank()) {
+                Timer.Sample sample = Timer.start();
                 try (org.graalvm.polyglot.Context context = createContext(out)) {
                     context.enter();
                     try {
@@ -629,6 +632,8 @@ public class Util {
                     } finally {
                         context.leave();
                     }
+                } finally {
+                    sample.stop(timer);
                 }
             } else {
                 nonFuncResultConsumer.accept(element);
@@ -692,12 +697,13 @@ public class Util {
     }
 
     //I SWEAR IF I FIND ANOTHER PLACE THAT PERFORMS THE SAME CALCULATION I WILL BUY MORE SCREWDRIVERS
-    static <T> T evaluateOnce(String function, JsonNode input, Function<Value, T> processResult,
+    static <T> T evaluateOnce(Timer timer, String function, JsonNode input, Function<Value, T> processResult,
             BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
         StringBuilder jsCode = new StringBuilder("const __obj = ").append(input).append(";\n");
         jsCode.append("const __func = ").append(function).append(";\n");
         jsCode.append("__func(__obj)");
         ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Timer.Sample sample = Timer.start();
         try (Context context = createContext(out)) {
             context.enter();
             try {
@@ -717,13 +723,15 @@ public class Util {
                 }
                 context.leave();
             }
+        } finally {
+            sample.stop(timer);
         }
         return null;
     }
 
-    static boolean evaluateTest(String function, JsonNode input,
+    static boolean evaluateTest(Timer timer, String function, JsonNode input,
             Predicate<Value> onNotBoolean, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
-        Boolean res = evaluateOnce(makeFilter(function), input, result -> {
+        Boolean res = evaluateOnce(timer, makeFilter(function), input, result -> {
             if (result.isBoolean()) {
                 return result.asBoolean();
             } else {
@@ -758,6 +766,35 @@ public class Util {
         }
     }
 
+    /**
+     * Counts rows selected by the query exactly up to the given limit; beyond the limit the planner's estimate
+     * is used so that large result sets are not scanned just to compute a total.
+     *
+     * @param em entity manager
+     * @param fromWhere FROM and WHERE clauses of the query, without ordering or paging
+     * @param exactLimit maximum number of rows counted exactly
+     * @param bindParams binds the parameters referenced in the clauses
+     * @return the count, flagged when it is an estimate
+     */
+    static Count countWithEstimate(EntityManager em, String fromWhere, int exactLimit, Consumer<Query> bindParams) {
+        Query capped = em.createNativeQuery(
+                "SELECT count(*) FROM (SELECT 1 " + fromWhere + " LIMIT " + (exactLimit + 1) + ") AS capped");
+        bindParams.accept(capped);
+        long count = ((Number) capped.getSingleResult()).longValue();
+        if (count <= exactLimit) {
+            return new Count(count, false);
+        }
+        Query explain = em.createNativeQuery("EXPLAIN (FORMAT JSON) SELECT 1 " + fromWhere);
+        bindParams.accept(explain);
+        JsonNode plan = (JsonNode) explain.unwrap(NativeQuery.class)
+                .addScalar("QUERY PLAN", JsonBinaryType.INSTANCE).getSingleResult();
+        long estimate = plan == null ? 0 : plan.path(0).path("Plan").path("Plan Rows").asLong();
+        return new Count(Math.max(count, estimate), true);
+    }
+
+    public record Count(long value, boolean estimated) {
+    }
+
     public static Instant toInstant(Object time) {
         if (time == null) {
             return null;
@@ -0,0 +1,87 @@
+package io.hyperfoil.tools.horreum.jsonpath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+
+public class JsonPathTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * The expected results in <code>jsonpath/conformance.json</code> were recorded from PostgreSQL 16 with
+     * <code>jsonb_path_query_first</code> and <code>jsonb_path_query_array</code>; <code>error</code> holds
+     * the message when the database failed. Where the database succeeds the engine must produce the same
+     * result or refuse the path as unsupported, so that the caller evaluates it in the database.
+     */
+    @Test
+    public void testConformance() throws IOException {
+        JsonNode groups;
+        try (InputStream stream = getClass().getResourceAsStream("/jsonpath/conformance.json")) {
+            groups = MAPPER.readTree(stream);
+        }
+        List<String> failures = new ArrayList<>();
+        int cases = 0;
+        for (JsonNode group : groups) {
+            JsonNode document = group.get("document");
+            for (JsonNode expected : group.get("cases")) {
+                ++cases;
+                String path = expected.get("path").asText();
+                JsonNode first;
+                ArrayNode array;
+                try {
+                    JsonPath compiled = JsonPath.compile(path);
+                    first = compiled.queryFirst(document);
+                    array = compiled.queryArray(document);
+                } catch (JsonPathException e) {
+                    if (!expected.has("error") && !e.isUnsupported()) {
+                        failures.add(path + ": failed with '" + e.getMessage() + "', expected " + expected.get("array"));
+                    }
+                    continue;
+                }
+                if (expected.has("error")) {
+                    failures.add(path + ": expected error '" + expected.get("error").asText() + "', got " + array);
+                } else if (!expected.get("array").equals(array)
+                        || (expected.has("first") ? !expected.get("first").equals(first) : first != null)) {
+                    failures.add(path + ": expected " + expected.get("first") + " and " + expected.get("array")
+                            + ", got " + first + " and " + array);
+                }
+            }
+        }
+        assertTrue(cases > 300);
+        assertEquals(List.of(), failures);
+    }
+
+    @Test
+    public void testCompileIsCached() {
+        assertSame(JsonPath.compile("$.foo[*] ? (@.bar > 1)"), JsonPath.compile("$.foo[*] ? (@.bar > 1)"));
+        JsonPathException first = assertThrows(JsonPathException.class, () -> JsonPath.compile("$.foo.keyvalue()"));
+        JsonPathException second = assertThrows(JsonPathException.class, () -> JsonPath.compile("$.foo.keyvalue()"));
+        assertSame(first, second);
+        assertTrue(first.isUnsupported());
+    }
+
+    @Test
+    public void testComputedNumbers() throws IOException {
+        JsonNode document = MAPPER.readTree("{\"a\": 1.5, \"b\": 3}");
+        assertEquals(DoubleNode.valueOf(4.5), JsonPath.compile("$.a * $.b").queryFirst(document));
+        assertEquals(IntNode.valueOf(6), JsonPath.compile("$.b * 2").queryFirst(document));
+        // exact decimal arithmetic as in numeric
+        assertEquals(DoubleNode.valueOf(2.0), JsonPath.compile("2 / 3 * 3").queryFirst(document));
+        assertNull(JsonPath.compile("$.c").queryFirst(document));
+    }
+}
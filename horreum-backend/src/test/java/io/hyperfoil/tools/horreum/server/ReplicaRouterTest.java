@@ -0,0 +1,124 @@
+package io.hyperfoil.tools.horreum.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import jakarta.interceptor.InvocationContext;
+import jakarta.transaction.Status;
+import jakarta.transaction.TransactionManager;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.agroal.api.AgroalDataSource;
+
+public class ReplicaRouterTest {
+
+    @Test
+    public void testFallBackToPrimaryWhileReplicaLags() throws SQLException {
+        ReplicaRouter router = router();
+        ResultSet lag = lagResult(router);
+
+        Mockito.when(lag.getDouble(1)).thenReturn(3.0);
+        assertTrue(router.isAvailable());
+        Mockito.when(lag.getDouble(1)).thenReturn(30.0);
+        assertFalse(router.isAvailable());
+        // caught up
+        Mockito.when(lag.getDouble(1)).thenReturn(0.0);
+        assertTrue(router.isAvailable());
+    }
+
+    @Test
+    public void testFallBackToPrimaryWhenReplicaIsDown() throws SQLException {
+        ReplicaRouter router = router();
+        ResultSet lag = lagResult(router);
+        Mockito.when(lag.getDouble(1)).thenReturn(0.0);
+        assertTrue(router.isAvailable());
+
+        Mockito.when(router.replica.getConnection()).thenThrow(new SQLException("connection refused"));
+        assertFalse(router.isAvailable());
+    }
+
+    @Test
+    public void testNoReplica() {
+        ReplicaRouter router = router();
+        router.replica = null;
+        assertFalse(router.isAvailable());
+    }
+
+    @Test
+    public void testRoutesToAvailableReplica() throws Exception {
+        ReadReplicaInterceptor interceptor = interceptor(Status.STATUS_NO_TRANSACTION, true);
+        Mockito.when(interceptor.router.onReplica(Mockito.any()))
+                .thenAnswer(invocation -> invocation.<Callable<?>> getArgument(0).call());
+        InvocationContext ctx = invocation();
+
+        assertEquals("result", interceptor.intercept(ctx));
+        Mockito.verify(interceptor.router).onReplica(Mockito.any());
+        Mockito.verify(ctx).proceed();
+    }
+
+    @Test
+    public void testReadsPrimaryWhenReplicaIsUnavailable() throws Exception {
+        ReadReplicaInterceptor interceptor = interceptor(Status.STATUS_NO_TRANSACTION, false);
+        InvocationContext ctx = invocation();
+
+        assertEquals("result", interceptor.intercept(ctx));
+        Mockito.verify(interceptor.router, Mockito.never()).onReplica(Mockito.any());
+        Mockito.verify(ctx).proceed();
+    }
+
+    @Test
+    public void testReadsPrimaryWithinTransaction() throws Exception {
+        // the transaction might have written data the replica has not seen yet
+        ReadReplicaInterceptor interceptor = interceptor(Status.STATUS_ACTIVE, true);
+        InvocationContext ctx = invocation();
+
+        assertEquals("result", interceptor.intercept(ctx));
+        Mockito.verify(interceptor.router, Mockito.never()).onReplica(Mockito.any());
+        Mockito.verify(ctx).proceed();
+    }
+
+    private static ReplicaRouter router() {
+        ReplicaRouter router = new ReplicaRouter();
+        router.maxLag = Duration.ofSeconds(10);
+        // check the lag on every call
+        router.lagCheck = Duration.ZERO;
+        router.replica = Mockito.mock(AgroalDataSource.class);
+        return router;
+    }
+
+    private static ResultSet lagResult(ReplicaRouter router) throws SQLException {
+        Connection connection = Mockito.mock(Connection.class);
+        Statement statement = Mockito.mock(Statement.class);
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        Mockito.when(router.replica.getConnection()).thenReturn(connection);
+        Mockito.when(connection.createStatement()).thenReturn(statement);
+        Mockito.when(statement.executeQuery(Mockito.anyString())).thenReturn(rs);
+        Mockito.when(rs.next()).thenReturn(true);
+        return rs;
+    }
+
+    private static ReadReplicaInterceptor interceptor(int txStatus, boolean available) throws Exception {
+        ReadReplicaInterceptor interceptor = new ReadReplicaInterceptor();
+        interceptor.router = Mockito.mock(ReplicaRouter.class);
+        interceptor.tm = Mockito.mock(TransactionManager.class);
+        Mockito.when(interceptor.tm.getStatus()).thenReturn(txStatus);
+        Mockito.when(interceptor.router.isAvailable()).thenReturn(available);
+        return interceptor;
+    }
+
+    private static InvocationContext invocation() throws Exception {
+        InvocationContext ctx = Mockito.mock(InvocationContext.class);
+        Mockito.when(ctx.proceed()).thenReturn("result");
+        return ctx;
+    }
+}
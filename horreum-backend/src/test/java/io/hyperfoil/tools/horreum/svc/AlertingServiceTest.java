@@ -3,9 +3,11 @@ package io.hyperfoil.tools.horreum.svc;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
@@ -13,6 +15,8 @@ import java.util.stream.IntStream;
 
 import jakarta.inject.Inject;
 
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
 import org.junit.jupiter.api.TestInfo;
 import org.mockito.Mockito;
 
@@ -64,6 +68,9 @@ public class AlertingServiceTest extends BaseServiceTest {
     @Inject
     ServiceMediator serviceMediator;
 
+    @Inject
+    RecalculationJobs recalculationJobs;
+
     @org.junit.jupiter.api.Test
     public void testNotifications(TestInfo info) throws InterruptedException {
         Test test = createTest(createExampleTest(getTestName(info)));
@@ -748,6 +755,280 @@ public class AlertingServiceTest extends BaseServiceTest {
         checkChanges(test);
     }
 
+    @org.junit.jupiter.api.Test
+    public void testRecalculationControlsWithoutJob(TestInfo info) throws InterruptedException {
+        Test test = createTest(createExampleTest(getTestName(info)));
+        recalculateDatasets(test.id, false);
+        // the job of a test without runs completes after its first batch
+        TestService.RecalculationStatus status = null;
+        for (int i = 0; i < 200 && (status == null || status.state != null); ++i) {
+            Thread.sleep(20);
+            status = jsonRequest().get("/api/test/" + test.id + "/recalculate")
+                    .then().statusCode(200).extract().body().as(TestService.RecalculationStatus.class);
+        }
+        assertNull(status.state);
+        assertEquals(0, status.totalRuns);
+        for (String action : new String[] { "pause", "resume", "cancel" }) {
+            jsonRequest().post("/api/test/" + test.id + "/recalculate/" + action).then().statusCode(404);
+            jsonRequest().post("/api/alerting/recalculate/" + action + "?test=" + test.id).then().statusCode(404);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testRecalculationResumesFromCheckpoint(TestInfo info) throws InterruptedException {
+        Test test = createTest(createExampleTest(getTestName(info)));
+        List<Object[]> datasets = createDatasetsWithDatapoints(info, test);
+        Map<Integer, Long> before = datapoints(test.id);
+        // the first dataset is checkpointed, the other ones were recalculated by an interrupted batch
+        insertRecalculationJob(test.id, datasets, RecalculationJobs.PAUSED, "interval '0'");
+
+        jsonRequest().post("/api/alerting/recalculate/resume?test=" + test.id).then().statusCode(204);
+        awaitRecalculationCompleted(test.id);
+
+        Map<Integer, Long> after = datapoints(test.id);
+        assertEquals(before.keySet(), after.keySet());
+        int first = (Integer) datasets.get(0)[0];
+        assertEquals(before.get(first), after.get(first));
+        for (Object[] dataset : datasets.subList(1, datasets.size())) {
+            assertNotEquals(before.get((Integer) dataset[0]), after.get((Integer) dataset[0]));
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testRecalculationClaimsAbandonedJob(TestInfo info) throws InterruptedException {
+        Test test = createTest(createExampleTest(getTestName(info)));
+        List<Object[]> datasets = createDatasetsWithDatapoints(info, test);
+        Map<Integer, Long> before = datapoints(test.id);
+        // the instance running the job stopped before recording the checkpoint of its second batch
+        insertRecalculationJob(test.id, datasets, RecalculationJobs.RUNNING, "interval '1 hour'");
+
+        recalculationJobs.poll();
+        awaitRecalculationCompleted(test.id);
+
+        Map<Integer, Long> after = datapoints(test.id);
+        assertEquals(before.keySet(), after.keySet());
+        assertEquals(before.get((Integer) datasets.get(0)[0]), after.get((Integer) datasets.get(0)[0]));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testRecalculationPauseAndCancel(TestInfo info) throws InterruptedException {
+        Test test = createTest(createExampleTest(getTestName(info)));
+        List<Object[]> datasets = createDatasetsWithDatapoints(info, test);
+        Map<Integer, Long> before = datapoints(test.id);
+        // driven by another instance that is still alive
+        insertRecalculationJob(test.id, datasets, RecalculationJobs.RUNNING, "interval '0'");
+
+        String path = "/api/alerting/recalculate/%s?test=" + test.id;
+        jsonRequest().post(path.formatted("pause")).then().statusCode(204);
+        jsonRequest().post(path.formatted("pause")).then().statusCode(404);
+        assertEquals(RecalculationJobs.PAUSED,
+                recalculationJobs.find(test.id, RecalculationJobs.DATAPOINTS, Duration.ofMinutes(1)).state());
+
+        jsonRequest().post(path.formatted("cancel")).then().statusCode(204);
+        jsonRequest().post(path.formatted("resume")).then().statusCode(404);
+        jsonRequest().post(path.formatted("cancel")).then().statusCode(404);
+        RecalculationJobs.Job job = recalculationJobs.find(test.id, RecalculationJobs.DATAPOINTS, Duration.ofMinutes(1));
+        assertEquals(RecalculationJobs.CANCELLED, job.state());
+        assertTrue(job.completed());
+        assertEquals(before, datapoints(test.id));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testRecalculationJobRolledBack(TestInfo info) throws Exception {
+        Test test = createTest(createExampleTest(getTestName(info)));
+        tm.begin();
+        try {
+            assertNotNull(recalculationJobs.start(test.id, RecalculationJobs.DATASETS, 0, null));
+        } finally {
+            tm.rollback();
+        }
+        assertNull(recalculationJobs.find(test.id, RecalculationJobs.DATASETS, Duration.ofMinutes(1)));
+        // the test is not left with a recalculation in progress
+        recalculateDatasets(test.id, true);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testChangeDetectionWatermark(TestInfo info) throws InterruptedException {
+        Test test = createTest(createExampleTest(getTestName(info)));
+        Schema schema = createExampleSchema(info);
+        addChangeDetectionVariable(test, schema.id);
+        BlockingQueue<DataPoint.Event> datapointQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATAPOINT_NEW,
+                test.id);
+
+        long ts = System.currentTimeMillis();
+        for (int i = 0; i < 3; ++i) {
+            uploadRun(ts + i, ts + i, runWithValue(1, schema), test.name);
+            assertValue(datapointQueue, 1);
+        }
+        // change detection has covered all datapoints up to the last one
+        TestUtil.eventually(() -> assertEquals(List.of(true, true), watermark(test.id)));
+
+        // an older datapoint moves the watermark back, change detection covers all datapoints again
+        uploadRun(ts - 1, ts - 1, runWithValue(1, schema), test.name);
+        assertValue(datapointQueue, 1);
+        TestUtil.eventually(() -> assertEquals(List.of(true, true), watermark(test.id)));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testChangeDetectionWaitsForLock(TestInfo info) throws Exception {
+        Test test = createTest(createExampleTest(getTestName(info)));
+        Schema schema = createExampleSchema(info);
+        addChangeDetectionVariable(test, schema.id);
+        BlockingQueue<DataPoint.Event> datapointQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATAPOINT_NEW,
+                test.id);
+        BlockingQueue<Change.Event> changeQueue = serviceMediator.getEventQueue(AsyncEventChannels.CHANGE_NEW, test.id);
+
+        long ts = System.currentTimeMillis();
+        for (int i = 0; i < 4; ++i) {
+            uploadRun(ts + i, ts + i, runWithValue(1 + i % 2, schema), test.name);
+            assertValue(datapointQueue, 1 + i % 2);
+        }
+        int variableId = Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return ((Number) em.createNativeQuery("SELECT id FROM variable WHERE testid = ?1")
+                        .setParameter(1, test.id).getSingleResult()).intValue();
+            }
+        });
+
+        // another transaction runs change detection for the same datapoints
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> Util.withTx(tm, () -> {
+            em.createNativeQuery(
+                    "SELECT 1 FROM pg_advisory_xact_lock((?1::bigint << 32) | (hashtext('null'::jsonb::text) & 4294967295))")
+                    .setParameter(1, variableId).getSingleResult();
+            locked.countDown();
+            try {
+                return release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        holder.start();
+        try {
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+            uploadRun(ts + 4, ts + 4, runWithValue(3, schema), test.name);
+            assertValue(datapointQueue, 3);
+            assertNull(changeQueue.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            release.countDown();
+            holder.join(10_000);
+        }
+        // the change is detected by a retry once the lock is released
+        Change.Event event = changeQueue.poll(20, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals(test.id, event.change.variable.testId);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testChangeDetectionRetryDelay() {
+        assertEquals(AlertingServiceImpl.CHANGE_DETECTION_RETRY_DELAY, AlertingServiceImpl.changeDetectionRetryDelay(0));
+        assertEquals(2 * AlertingServiceImpl.CHANGE_DETECTION_RETRY_DELAY,
+                AlertingServiceImpl.changeDetectionRetryDelay(1));
+        assertEquals(AlertingServiceImpl.CHANGE_DETECTION_MAX_RETRY_DELAY,
+                AlertingServiceImpl.changeDetectionRetryDelay(AlertingServiceImpl.CHANGE_DETECTION_MAX_ATTEMPTS));
+        assertEquals(AlertingServiceImpl.CHANGE_DETECTION_MAX_RETRY_DELAY,
+                AlertingServiceImpl.changeDetectionRetryDelay(Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return IDs and start timestamps of the datasets of three runs, ordered as they are recalculated
+     */
+    private List<Object[]> createDatasetsWithDatapoints(TestInfo info, Test test) throws InterruptedException {
+        Schema schema = createExampleSchema(info);
+        addChangeDetectionVariable(test, schema.id);
+        BlockingQueue<DataPoint.Event> datapointQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATAPOINT_NEW,
+                test.id);
+        long ts = System.currentTimeMillis();
+        for (int i = 0; i < 3; ++i) {
+            uploadRun(ts + i, ts + i, runWithValue(i, schema), test.name);
+            assertValue(datapointQueue, i);
+        }
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em.unwrap(Session.class)
+                        .createNativeQuery("SELECT id, start FROM dataset WHERE testid = ?1 ORDER BY start, id", Object[].class)
+                        .setParameter(1, test.id)
+                        .addScalar("id", StandardBasicTypes.INTEGER)
+                        .addScalar("start", StandardBasicTypes.INSTANT)
+                        .getResultList();
+            }
+        });
+    }
+
+    /**
+     * Registers a datapoint recalculation job of another instance, checkpointed after the first dataset.
+     *
+     * @param idle SQL interval since the last heartbeat of the job
+     */
+    private void insertRecalculationJob(int testId, List<Object[]> datasets, String state, String idle) {
+        ObjectNode params = JsonNodeFactory.instance.objectNode().put("notify", false).put("debug", false)
+                .put("clear", true);
+        params.putArray("last").add((Integer) datasets.get(datasets.size() - 1)[0]);
+        Object[] first = datasets.get(0);
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em
+                        .createNativeQuery(
+                                """
+                                        INSERT INTO recalculation_job (test_id, kind, state, owner, total, finished, params, checkpoint, updated)
+                                        VALUES (?1, ?2, ?3, 'another-instance', ?4, 1, (?5)::jsonb, (?6)::jsonb, now() - %s)
+                                        """
+                                        .formatted(idle))
+                        .setParameter(1, testId).setParameter(2, RecalculationJobs.DATAPOINTS).setParameter(3, state)
+                        .setParameter(4, datasets.size()).setParameter(5, params.toString())
+                        .setParameter(6, RecalculationJobs.checkpoint((Instant) first[1], (Integer) first[0]).toString())
+                        .executeUpdate();
+            }
+        });
+    }
+
+    private void awaitRecalculationCompleted(int testId) {
+        TestUtil.eventually(() -> {
+            RecalculationJobs.Job job = recalculationJobs.find(testId, RecalculationJobs.DATAPOINTS, Duration.ofMinutes(1));
+            assertEquals(RecalculationJobs.COMPLETED, job.state());
+        });
+    }
+
+    /**
+     * @return datapoint ID by dataset ID; fails if a dataset has more than one datapoint
+     */
+    private Map<Integer, Long> datapoints(int testId) {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                @SuppressWarnings("unchecked")
+                List<Object[]> rows = em.createNativeQuery(
+                        "SELECT dp.dataset_id, dp.id FROM datapoint dp JOIN dataset ds ON ds.id = dp.dataset_id WHERE ds.testid = ?1")
+                        .setParameter(1, testId).getResultList();
+                Map<Integer, Long> datapoints = new HashMap<>();
+                for (Object[] row : rows) {
+                    assertNull(datapoints.put(((Number) row[0]).intValue(), ((Number) row[1]).longValue()),
+                            "Duplicate datapoint for dataset " + row[0]);
+                }
+                return datapoints;
+            }
+        });
+    }
+
+    /**
+     * @return whether the watermark of the test's variable is at its last datapoint and whether it is inclusive
+     */
+    private List<Boolean> watermark(int testId) {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                Object[] row = (Object[]) em
+                        .createNativeQuery(
+                                """
+                                        SELECT w.timestamp = (SELECT max(dp.timestamp) FROM datapoint dp WHERE dp.variable_id = v.id), w.inclusive
+                                        FROM variable v JOIN change_detection_watermark w ON w.variable_id = v.id
+                                        WHERE v.testid = ?1
+                                        """)
+                        .setParameter(1, testId).getSingleResult();
+                return List.of((Boolean) row[0], (Boolean) row[1]);
+            }
+        });
+    }
+
     @org.junit.jupiter.api.Test
     public void testFindLastDatapoints(TestInfo info) throws IOException {
         populateDataFromFiles();
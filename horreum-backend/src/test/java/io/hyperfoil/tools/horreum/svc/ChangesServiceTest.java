@@ -0,0 +1,72 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.time.Instant;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.ws.rs.core.HttpHeaders;
+
+import org.junit.jupiter.api.TestInfo;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.api.alerting.DataPoint;
+import io.hyperfoil.tools.horreum.api.data.Access;
+import io.hyperfoil.tools.horreum.api.data.Schema;
+import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.api.internal.services.ChangesService;
+import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.test.ReplicaTestProfile;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.restassured.RestAssured;
+import io.restassured.specification.RequestSpecification;
+
+@QuarkusTest
+@TestProfile(ReplicaTestProfile.class)
+public class ChangesServiceTest extends BaseServiceTest {
+
+    @org.junit.jupiter.api.Test
+    public void testQueryOnReplicaAppliesUserRoles(TestInfo info) throws InterruptedException {
+        Test test = createExampleTest(getTestName(info));
+        test.access = Access.PRIVATE;
+        test = createTest(test);
+        Schema schema = createExampleSchema(info);
+        addChangeDetectionVariable(test, schema.id);
+
+        BlockingQueue<DataPoint.Event> datapointQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATAPOINT_NEW,
+                test.id);
+        long ts = System.currentTimeMillis();
+        uploadRun(ts, ts, runWithValue(42, schema), test.name, UPLOADER_ROLES[0], Access.PRIVATE);
+        DataPoint.Event event = datapointQueue.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event);
+        int variableId = event.dataPoint.variable.id;
+
+        ObjectNode query = JsonNodeFactory.instance.objectNode();
+        query.putObject("range").put("from", Instant.ofEpochMilli(ts - 1000).toString())
+                .put("to", Instant.ofEpochMilli(ts + 1000).toString());
+        query.putArray("targets").addObject().put("target", String.valueOf(variableId));
+
+        ChangesService.TimeseriesTarget[] visible = query(jsonRequest(), query);
+        assertEquals(1, visible.length);
+        assertEquals("Value", visible[0].target);
+        assertEquals(1, visible[0].datapoints.size());
+        assertEquals(42, visible[0].datapoints.get(0)[0].intValue());
+
+        // neither the variable nor its datapoints are visible to anonymous users
+        ChangesService.TimeseriesTarget[] hidden = query(
+                RestAssured.given().header(HttpHeaders.CONTENT_TYPE, "application/json"), query);
+        assertEquals(1, hidden.length);
+        assertEquals(String.valueOf(variableId), hidden[0].target);
+        assertEquals(0, hidden[0].datapoints.size());
+    }
+
+    private static ChangesService.TimeseriesTarget[] query(RequestSpecification request, ObjectNode query) {
+        return request.body(query.toString()).post("/api/changes/query").then().statusCode(200).extract()
+                .as(ChangesService.TimeseriesTarget[].class);
+    }
+}
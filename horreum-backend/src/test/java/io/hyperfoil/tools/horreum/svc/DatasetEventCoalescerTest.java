@@ -0,0 +1,52 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.hyperfoil.tools.horreum.api.data.Dataset;
+
+public class DatasetEventCoalescerTest {
+
+    @Test
+    public void testMergeLabels() {
+        DatasetEventCoalescer coalescer = new DatasetEventCoalescer();
+        assertTrue(coalescer.add(new Dataset.EventNew(1, 10, 100, 5, true)));
+        assertFalse(coalescer.add(new Dataset.EventNew(1, 10, 100, 5, true)));
+        assertFalse(coalescer.add(new Dataset.EventNew(1, 10, 100, 6, true)));
+        assertFalse(coalescer.add(new Dataset.EventNew(2, 10, 101, 5, true)));
+
+        List<Dataset.EventNew> events = coalescer.drain();
+        assertEquals(3, events.size());
+        assertEvent(events.get(0), 1, 5, true);
+        assertEvent(events.get(1), 1, 6, true);
+        assertEvent(events.get(2), 2, 5, true);
+        assertEquals(2, coalescer.resetMerged());
+        assertEquals(0, coalescer.resetMerged());
+        assertTrue(coalescer.drain().isEmpty());
+    }
+
+    @Test
+    public void testFullRecalculationSubsumesLabels() {
+        DatasetEventCoalescer coalescer = new DatasetEventCoalescer();
+        coalescer.add(new Dataset.EventNew(1, 10, 0, 5, true));
+        coalescer.add(new Dataset.EventNew(1, 10, 100, -1, false));
+        coalescer.add(new Dataset.EventNew(1, 10, 100, 6, true));
+
+        List<Dataset.EventNew> events = coalescer.drain();
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), 1, -1, false);
+        assertEquals(100, events.get(0).runId);
+        assertTrue(coalescer.add(new Dataset.EventNew(1, 10, 100, 5, true)));
+    }
+
+    private static void assertEvent(Dataset.EventNew event, int datasetId, int labelId, boolean isRecalculation) {
+        assertEquals(datasetId, event.datasetId);
+        assertEquals(labelId, event.labelId);
+        assertEquals(isRecalculation, event.isRecalculation);
+    }
+}
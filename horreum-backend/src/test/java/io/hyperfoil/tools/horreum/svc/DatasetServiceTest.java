@@ -1,7 +1,9 @@
 package io.hyperfoil.tools.horreum.svc;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -130,6 +132,59 @@ public class DatasetServiceTest extends BaseServiceTest {
         }, "urn:A");
     }
 
+    @org.junit.jupiter.api.Test
+    public void testRunReferencesResolveToCopiedNodes() {
+        withExampleSchemas(schemas -> {
+            int labelA = addLabel(schemas[0], "value", null, new Extractor("value", "$.value", false));
+            int labelB = addLabel(schemas[1], "value", null, new Extractor("value", "$.value", false));
+            ObjectNode root = JsonNodeFactory.instance.objectNode().put("$schema", "urn:A").put("value", 24);
+            root.putObject("nested").put("$schema", "urn:B").put("value", 42);
+            // the nodes the datasets of tests without transformers held before they became references
+            testRunReferences("references-object", root, Set.of(root, root.get("nested")), labelA, labelB);
+
+            ArrayNode array = createABData();
+            testRunReferences("references-array", array, Set.of(array.get(0), array.get(1)), labelA, labelB);
+        }, "urn:A", "urn:B");
+    }
+
+    private void testRunReferences(String testName, JsonNode runData, Set<JsonNode> copies, int labelA, int labelB) {
+        Test test = createTest(createExampleTest(testName));
+        BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue = serviceMediator
+                .getEventQueue(AsyncEventChannels.DATASET_UPDATED_LABELS, test.id);
+        withExampleDataset(test, runData, ds -> {
+            waitForUpdate(updateQueue, ds);
+            // the dataset row holds only the references
+            assertEquals(copies.size(), ds.data.size());
+            for (JsonNode element : ds.data) {
+                assertTrue(element.has(DatasetDAO.RUN_REFERENCE), element.toString());
+                assertFalse(element.has("value"), element.toString());
+            }
+
+            Dataset dataset = jsonRequest().get("/api/dataset/" + ds.id).then().statusCode(200).extract().as(Dataset.class);
+            assertEquals(copies, toSet(dataset.data));
+            JsonNode resolved = Util.withTx(tm, () -> {
+                try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                    return Util.toJsonNode((String) em
+                            .createNativeQuery("SELECT dataset_data(data, runid)::text FROM dataset WHERE id = ?1")
+                            .setParameter(1, ds.id).getSingleResult());
+                }
+            });
+            assertEquals(copies, toSet(resolved));
+
+            List<LabelValueDAO> values = LabelValueDAO.<LabelValueDAO> find("datasetId", ds.id).list();
+            assertEquals(24, values.stream().filter(v -> v.labelId == labelA).findFirst().orElseThrow().value.asInt());
+            assertEquals(42, values.stream().filter(v -> v.labelId == labelB).findFirst().orElseThrow().value.asInt());
+
+            assertEquals("24", sqlService.queryDatasetData(ds.id, "$.value", false, "urn:A").value);
+            assertEquals("42", sqlService.queryDatasetData(ds.id, "$.value", false, "urn:B").value);
+            return null;
+        });
+    }
+
+    private static Set<JsonNode> toSet(JsonNode array) {
+        return StreamSupport.stream(array.spliterator(), false).collect(Collectors.toSet());
+    }
+
     private ArrayNode createXYData() {
         ArrayNode data = JsonNodeFactory.instance.arrayNode();
         ObjectNode a = JsonNodeFactory.instance.objectNode();
@@ -410,6 +465,55 @@ public class DatasetServiceTest extends BaseServiceTest {
         }, "urn:A", "urn:B");
     }
 
+    @org.junit.jupiter.api.Test
+    public void testDatasetViewsAfterLabelChangeAndViewDeletion() {
+        Test test = createTest(createExampleTest("views"));
+        View extra = new View("Extra", test.id);
+        extra.components = List.of(new ViewComponent("A", null, "a"), new ViewComponent("B", null, "a", "b"));
+        View view = createView(extra);
+        int componentA = view.components.stream().filter(vc -> "A".equals(vc.headerName)).findFirst().orElseThrow().id;
+        int componentB = view.components.stream().filter(vc -> "B".equals(vc.headerName)).findFirst().orElseThrow().id;
+        withExampleSchemas((schemas) -> {
+            Extractor valuePath = new Extractor("value", "$.value", false);
+            addLabel(schemas[0], "a", null, valuePath);
+            int labelB = addLabel(schemas[1], "b", null, valuePath);
+            BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue = serviceMediator
+                    .getEventQueue(AsyncEventChannels.DATASET_UPDATED_LABELS, test.id);
+            withExampleDataset(test, createABData(), ds -> {
+                waitForUpdate(updateQueue, ds);
+                JsonNode value = datasetView(ds.id, view.id);
+                assertNotNull(value);
+                assertEquals(24, value.path(String.valueOf(componentA)).path("a").asInt());
+                assertEquals(42, value.path(String.valueOf(componentB)).path("b").asInt());
+
+                updateLabel(schemas[1], labelB, "b", "v => v + 1", valuePath);
+                waitForUpdate(updateQueue, ds);
+                value = datasetView(ds.id, view.id);
+                assertEquals(24, value.path(String.valueOf(componentB)).path("a").asInt());
+                assertEquals(43, value.path(String.valueOf(componentB)).path("b").asInt());
+
+                jsonRequest().delete("/api/ui/" + test.id + "/view/" + view.id).then().statusCode(204);
+                assertNull(datasetView(ds.id, view.id));
+                // recalculation of the labels must not bring the deleted view back
+                updateLabel(schemas[1], labelB, "b", null, valuePath);
+                waitForUpdate(updateQueue, ds);
+                assertNull(datasetView(ds.id, view.id));
+                return null;
+            });
+        }, "urn:A", "urn:B");
+    }
+
+    private JsonNode datasetView(int datasetId, int viewId) {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                List<?> values = em.createNativeQuery(
+                        "SELECT value::text FROM dataset_view WHERE dataset_id = ?1 AND view_id = ?2")
+                        .setParameter(1, datasetId).setParameter(2, viewId).getResultList();
+                return values.isEmpty() ? null : Util.toJsonNode((String) values.get(0));
+            }
+        });
+    }
+
     private JsonNode fetchDatasetsByTest(int testId) {
         JsonNode datasets = Util.toJsonNode(
                 jsonRequest().get("/api/dataset/list/byTest/" + testId).then().statusCode(200).extract().body().asString());
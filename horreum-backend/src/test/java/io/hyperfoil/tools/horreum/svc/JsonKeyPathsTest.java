@@ -0,0 +1,115 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+public class JsonKeyPathsTest {
+
+    @Test
+    public void testCollect() throws JsonProcessingException {
+        var data = Util.OBJECT_MAPPER.readTree("""
+                {
+                  "$schema": "urn:foo",
+                  "info": { "name": "x", "tags": [ { "k": 1 }, { "v": 2 } ] },
+                  "results": [ [ { "value": 1 } ] ]
+                }
+                """);
+        JsonKeyPaths.Collected collected = JsonKeyPaths.collect(data);
+        assertFalse(collected.truncated());
+        Set<JsonKeyPaths.KeyPath> paths = collected.paths();
+        assertEquals(Set.of(
+                new JsonKeyPaths.KeyPath("$", "$schema"),
+                new JsonKeyPaths.KeyPath("$", "info"),
+                new JsonKeyPaths.KeyPath("$", "results"),
+                new JsonKeyPaths.KeyPath("$.info", "name"),
+                new JsonKeyPaths.KeyPath("$.info", "tags"),
+                new JsonKeyPaths.KeyPath("$.info.tags[*]", "k"),
+                new JsonKeyPaths.KeyPath("$.info.tags[*]", "v"),
+                new JsonKeyPaths.KeyPath("$.results[*][*]", "value")), paths);
+        assertEquals(".\"$schema\"", JsonKeyPaths.segment("$schema"));
+    }
+
+    @Test
+    public void testCollectTruncated() throws JsonProcessingException {
+        // keys of objects up to depth MAX_DEPTH - 1 are collected, empty containers beyond do not matter
+        String depth = "{\"a\":".repeat(JsonKeyPaths.MAX_DEPTH);
+        String closing = "}".repeat(JsonKeyPaths.MAX_DEPTH);
+        assertFalse(JsonKeyPaths.collect(Util.OBJECT_MAPPER.readTree(depth + "1" + closing)).truncated());
+        assertFalse(JsonKeyPaths.collect(Util.OBJECT_MAPPER.readTree(depth + "{}" + closing)).truncated());
+        JsonKeyPaths.Collected deep = JsonKeyPaths.collect(Util.OBJECT_MAPPER.readTree(depth + "{\"b\":1}" + closing));
+        assertTrue(deep.truncated());
+        assertEquals(JsonKeyPaths.MAX_DEPTH, deep.paths().size());
+        assertTrue(JsonKeyPaths.collect(Util.OBJECT_MAPPER.readTree(depth + "[[1]]" + closing)).truncated());
+
+        var wide = Util.OBJECT_MAPPER.createObjectNode();
+        for (int i = 0; i < JsonKeyPaths.MAX_PATHS; ++i) {
+            wide.put("k" + i, i);
+        }
+        assertFalse(JsonKeyPaths.collect(wide).truncated());
+        // repeated keys in array elements do not count twice
+        var array = Util.OBJECT_MAPPER.createArrayNode().add(wide).add(wide);
+        assertFalse(JsonKeyPaths.collect(array).truncated());
+        wide.put("last", 0);
+        JsonKeyPaths.Collected truncated = JsonKeyPaths.collect(wide);
+        assertTrue(truncated.truncated());
+        assertEquals(JsonKeyPaths.MAX_PATHS, truncated.paths().size());
+    }
+
+    @Test
+    public void testParentRegex() {
+        assertMatches("$.**", "$", "$.info", "$.info.tags[*]", "$.\"$schema\".x");
+        assertMatches("$.info", "$.info", "$[*].info");
+        assertNoMatch("$.info", "$", "$.info.tags", "$.other");
+        assertMatches("$.**.tags", "$.info.tags", "$.tags", "$.a[*].tags");
+        assertNoMatch("$.**.tags", "$.info.tags[*]", "$.info.tagsx");
+        assertMatches("$.info.tags[*]", "$.info.tags[*]");
+        assertMatches("$.info.tags[0]", "$.info.tags[*]");
+        assertMatches("$.*.tags", "$.info.tags", "$.\"a.b\".tags");
+        assertMatches("$.\"a.b\"", "$.\"a.b\"");
+        assertNoMatch("$.\"a.b\"", "$.aXb");
+
+        assertNull(JsonKeyPaths.toParentRegex("$.info ? (@.name == \"x\")"));
+        assertNull(JsonKeyPaths.toParentRegex("$.info.size()"));
+        assertNull(JsonKeyPaths.toParentRegex("$.**{2}"));
+        assertNull(JsonKeyPaths.toParentRegex("$.tags[last]"));
+        assertNull(JsonKeyPaths.toParentRegex("strict $.info"));
+    }
+
+    @Test
+    public void testRequiredKey() {
+        assertEquals("tags", JsonKeyPaths.requiredKey("$.**.tags"));
+        assertEquals("name", JsonKeyPaths.requiredKey("$.info.name"));
+        assertEquals("name", JsonKeyPaths.requiredKey("$.** ? (@.name == \"x\")"));
+        assertEquals("name", JsonKeyPaths.requiredKey("$.** ? (@.name != \"x\" && @.other == 1)"));
+        assertNull(JsonKeyPaths.requiredKey("$.info.size()"));
+        assertEquals("info", JsonKeyPaths.requiredKey("$.info ? (@.size() > 1)"));
+        assertNull(JsonKeyPaths.requiredKey("$.** ? (@.name == \"x\" || @.other == 1)"));
+        assertNull(JsonKeyPaths.requiredKey("$.** ? (!(@.name == \"x\"))"));
+        assertNull(JsonKeyPaths.requiredKey("$.info.name == \"x\""));
+        assertNull(JsonKeyPaths.requiredKey("$.**"));
+        assertNull(JsonKeyPaths.requiredKey("@.name"));
+    }
+
+    private static void assertMatches(String jsonpath, String... parents) {
+        Pattern pattern = Pattern.compile(JsonKeyPaths.toParentRegex(jsonpath));
+        for (String parent : parents) {
+            assertTrue(pattern.matcher(parent).matches(), jsonpath + " should match " + parent);
+        }
+    }
+
+    private static void assertNoMatch(String jsonpath, String... parents) {
+        Pattern pattern = Pattern.compile(JsonKeyPaths.toParentRegex(jsonpath));
+        for (String parent : parents) {
+            assertFalse(pattern.matcher(parent).matches(), jsonpath + " should not match " + parent);
+        }
+    }
+}
@@ -2,13 +2,18 @@ package io.hyperfoil.tools.horreum.svc;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import jakarta.inject.Inject;
+
 import org.junit.jupiter.api.TestInfo;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -22,6 +27,8 @@ import io.hyperfoil.tools.horreum.api.data.Label;
 import io.hyperfoil.tools.horreum.api.data.Schema;
 import io.hyperfoil.tools.horreum.api.data.Test;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
+import io.hyperfoil.tools.horreum.server.CloseMe;
 import io.hyperfoil.tools.horreum.test.HorreumTestProfile;
 import io.hyperfoil.tools.horreum.test.PostgresResource;
 import io.quarkus.arc.impl.ParameterizedTypeImpl;
@@ -35,6 +42,11 @@ import io.quarkus.test.oidc.server.OidcWiremockTestResource;
 @QuarkusTestResource(OidcWiremockTestResource.class)
 @TestProfile(HorreumTestProfile.class)
 public class LogServiceTest extends BaseServiceTest {
+    @Inject
+    PersistentLogWriter logWriter;
+
+    @Inject
+    LogServiceImpl logService;
 
     @org.junit.jupiter.api.Test
     public void testLogs(TestInfo info) throws JsonProcessingException, InterruptedException {
@@ -133,4 +145,90 @@ public class LogServiceTest extends BaseServiceTest {
 
         assertEquals(0, datasetLogCount);
     }
+
+    @org.junit.jupiter.api.Test
+    public void testPersistentLogWriter(TestInfo info) {
+        Test test = createTest(createExampleTest(getTestName(info)));
+
+        // in test mode the message is written before the call returns
+        logWriter.logTransformation(test.id, 42, PersistentLogDAO.ERROR, "Failed %s", "transformation");
+        assertEquals(1, countTransformationLogs(test.id));
+
+        // the failing message does not prevent persisting the others
+        Instant now = Instant.now();
+        int failed = logWriter.write(List.of(
+                new PersistentLogWriter.Entry(test.id, 42, null, PersistentLogDAO.INFO, now, "first"),
+                new PersistentLogWriter.Entry(test.id, 42, null, PersistentLogDAO.INFO, now, null),
+                new PersistentLogWriter.Entry(test.id, 42, null, PersistentLogDAO.INFO, now, "third")));
+        assertEquals(1, failed);
+        assertEquals(3, countTransformationLogs(test.id));
+
+        // messages buffered before the test was deleted are not persisted
+        deleteTest(test);
+        assertEquals(0, countTransformationLogs(test.id));
+        assertEquals(0, logWriter.write(List.of(
+                new PersistentLogWriter.Entry(test.id, 42, null, PersistentLogDAO.INFO, now, "late"),
+                new PersistentLogWriter.Entry(test.id, 43, "labels", PersistentLogDAO.INFO, now, "late"))));
+        assertEquals(0, countTransformationLogs(test.id));
+        assertEquals(0, Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return ((Number) em.createNativeQuery("SELECT count(*) FROM datasetlog WHERE testid = ?1")
+                        .setParameter(1, test.id).getSingleResult()).intValue();
+            }
+        }));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testMaintainLogPartitions() {
+        // a log from long ago, before its partition exists, falls into the default partition
+        Instant logged = Instant.parse("2001-01-15T10:00:00Z");
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em.createNativeQuery("""
+                        INSERT INTO actionlog (id, level, timestamp, testid, event, type, message)
+                        VALUES (-1, ?1, ?2, -1, 'test/new', 'http', 'old log')
+                        """).setParameter(1, PersistentLogDAO.INFO).setParameter(2, logged).executeUpdate();
+            }
+        });
+        assertEquals("actionlog_default", actionLogPartition());
+
+        try {
+            // the log is moved into the partition created for its month
+            logService.maintainLogPartitions("actionlog", Duration.ofDays(90), Instant.parse("2001-01-20T00:00:00Z"));
+            assertEquals("actionlog_p200101", actionLogPartition());
+            // creating the partitions again is a no-op
+            logService.maintainLogPartitions("actionlog", Duration.ofDays(90), Instant.parse("2001-01-20T00:00:00Z"));
+            assertEquals("actionlog_p200101", actionLogPartition());
+
+            // the partition is dropped with the log once the whole month is older than the lifespan
+            logService.maintainLogPartitions("actionlog", Duration.ofDays(30), Instant.parse("2001-03-05T00:00:00Z"));
+            assertNull(actionLogPartition());
+        } finally {
+            Util.withTx(tm, () -> {
+                try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                    return em.createNativeQuery("SELECT drop_log_partitions('actionlog', ?1)")
+                            .setParameter(1, Instant.parse("2002-01-01T00:00:00Z")).getSingleResult();
+                }
+            });
+        }
+    }
+
+    private String actionLogPartition() {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                List<?> partitions = em.createNativeQuery("SELECT tableoid::regclass::text FROM actionlog WHERE id = -1")
+                        .getResultList();
+                return partitions.isEmpty() ? null : (String) partitions.get(0);
+            }
+        });
+    }
+
+    private int countTransformationLogs(int testId) {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return ((Number) em.createNativeQuery("SELECT count(*) FROM transformationlog WHERE testid = ?1")
+                        .setParameter(1, testId).getSingleResult()).intValue();
+            }
+        });
+    }
 }
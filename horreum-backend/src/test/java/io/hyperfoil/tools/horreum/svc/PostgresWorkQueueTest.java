@@ -0,0 +1,118 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import jakarta.inject.Inject;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import io.hyperfoil.tools.horreum.api.data.Dataset;
+import io.hyperfoil.tools.horreum.server.CloseMe;
+import io.hyperfoil.tools.horreum.test.HorreumTestProfile;
+import io.hyperfoil.tools.horreum.test.PostgresResource;
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.oidc.server.OidcWiremockTestResource;
+
+@QuarkusTest
+@QuarkusTestResource(PostgresResource.class)
+@QuarkusTestResource(OidcWiremockTestResource.class)
+@TestProfile(HorreumTestProfile.class)
+public class PostgresWorkQueueTest extends BaseServiceTest {
+    // the queue backend is amqp in tests, so there are no consumers claiming the items
+    @Inject
+    PostgresWorkQueue workQueue;
+
+    @AfterEach
+    public void cleanQueue() {
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em.createNativeQuery("DELETE FROM work_queue WHERE channel = ?1")
+                        .setParameter(1, PostgresWorkQueue.DATASET_EVENT).executeUpdate();
+            }
+        });
+    }
+
+    @Test
+    public void testClaimMergesPendingDatasetEvents() throws JsonProcessingException {
+        enqueue(new Dataset.EventNew(1, 10, 100, -1, false));
+        enqueue(new Dataset.EventNew(1, 10, 100, 5, false));
+        enqueue(new Dataset.EventNew(1, 10, 100, -1, true));
+        enqueue(new Dataset.EventNew(2, 10, 101, 5, false));
+
+        List<PostgresWorkQueue.Item> claimed = workQueue.claim(PostgresWorkQueue.DATASET_EVENT, 1);
+        assertEquals(1, claimed.size());
+        Dataset.EventNew event = parse(claimed.get(0));
+        assertEquals(1, event.datasetId);
+        assertEquals(-1, event.labelId);
+        assertFalse(event.isRecalculation);
+        // only the event for the other dataset is left
+        assertEquals(2, countItems());
+
+        claimed = workQueue.claim(PostgresWorkQueue.DATASET_EVENT, 10);
+        assertEquals(1, claimed.size());
+        assertEquals(2, parse(claimed.get(0)).datasetId);
+    }
+
+    @Test
+    public void testClaimKeepsEventsForOtherLabels() throws JsonProcessingException {
+        enqueue(new Dataset.EventNew(1, 10, 100, 5, false));
+        enqueue(new Dataset.EventNew(1, 10, 100, 6, false));
+        enqueue(new Dataset.EventNew(1, 10, 100, 5, false));
+        enqueue(new Dataset.EventNew(1, 10, 100, -1, false));
+
+        // the duplicate in the same batch is merged, the event for all labels is not absorbed by a single label
+        List<PostgresWorkQueue.Item> claimed = workQueue.claim(PostgresWorkQueue.DATASET_EVENT, 3);
+        assertEquals(2, claimed.size());
+        assertEquals(5, parse(claimed.get(0)).labelId);
+        assertEquals(6, parse(claimed.get(1)).labelId);
+        assertEquals(3, countItems());
+    }
+
+    @Test
+    public void testMergedEventIsRecalculationOnlyIfAllWere() throws JsonProcessingException {
+        // the recalculation is claimed first thanks to its priority
+        workQueue.enqueue(PostgresWorkQueue.DATASET_EVENT, new Dataset.EventNew(1, 10, 0, -1, true), (short) 9);
+        enqueue(new Dataset.EventNew(1, 10, 100, -1, false));
+
+        List<PostgresWorkQueue.Item> claimed = workQueue.claim(PostgresWorkQueue.DATASET_EVENT, 1);
+        assertEquals(1, claimed.size());
+        Dataset.EventNew event = parse(claimed.get(0));
+        assertFalse(event.isRecalculation);
+        assertEquals(100, event.runId);
+        // a retry processes the merged event
+        String payload = Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return (String) em.createNativeQuery("SELECT payload::text FROM work_queue WHERE id = ?1")
+                        .setParameter(1, claimed.get(0).id()).getSingleResult();
+            }
+        });
+        assertTrue(payload.contains("\"isRecalculation\": false"));
+        assertEquals(1, countItems());
+    }
+
+    private void enqueue(Dataset.EventNew event) {
+        workQueue.enqueue(PostgresWorkQueue.DATASET_EVENT, event, PostgresWorkQueue.DEFAULT_PRIORITY);
+    }
+
+    private static Dataset.EventNew parse(PostgresWorkQueue.Item item) throws JsonProcessingException {
+        return Util.OBJECT_MAPPER.readValue(item.payload(), Dataset.EventNew.class);
+    }
+
+    private long countItems() {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return ((Number) em.createNativeQuery("SELECT count(*) FROM work_queue WHERE channel = ?1")
+                        .setParameter(1, PostgresWorkQueue.DATASET_EVENT).getSingleResult()).longValue();
+            }
+        });
+    }
+}
@@ -3,6 +3,7 @@ package io.hyperfoil.tools.horreum.svc;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.concurrent.BlockingQueue;
@@ -11,12 +12,15 @@ import java.util.function.Function;
 
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 
+import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.Dataset;
 import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.api.internal.services.ReportService;
 import io.hyperfoil.tools.horreum.api.report.ReportComment;
 import io.hyperfoil.tools.horreum.api.report.TableReport;
 import io.hyperfoil.tools.horreum.api.report.TableReportConfig;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.server.CloseMe;
 import io.hyperfoil.tools.horreum.test.HorreumTestProfile;
 import io.hyperfoil.tools.horreum.test.PostgresResource;
 import io.quarkus.test.common.QuarkusTestResource;
@@ -123,6 +127,110 @@ public class ReportServiceTest extends BaseServiceTest {
         assertEquals(expected, report.data.stream().map(selector).filter(value::equals).count());
     }
 
+    @org.junit.jupiter.api.Test
+    public void testComponentFunctions() throws InterruptedException {
+        Test test = createTest(createExampleTest("functions"));
+        createComparisonSchema();
+        uploadExampleRuns(test);
+
+        TableReportConfig config = newExampleTableReportConfig(test);
+        // global state must not leak from the evaluation of one dataset to another
+        config.components.get(0).function = "v => { if (globalThis.seen) return -1; globalThis.seen = true; return v; }";
+        config.components.get(1).function = "v => { if (v > 100000000) throw new Error('too much'); return v; }";
+        TableReport report = jsonRequest().body(config).post("/api/report/table/config")
+                .then().statusCode(200).extract().body().as(TableReport.class);
+
+        assertEquals(8, report.data.size());
+        for (TableReport.DataDTO data : report.data) {
+            assertEquals(3, data.values.size());
+            assertNotEquals(-1, data.values.get(0).asDouble());
+        }
+        TableReport.DataDTO failed = report.data.stream()
+                .filter(d -> "windows".equals(d.series) && "jvm".equals(d.category) && Integer.parseInt(d.scale) == 2)
+                .findFirst().orElseThrow();
+        assertTrue(failed.values.get(1).isNull());
+        // the failed component does not shift the following ones
+        assertEquals(256, failed.values.get(2).asInt());
+
+        deleteReport(report);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testTableReportJob() throws InterruptedException {
+        Test test = createTest(createExampleTest("job"));
+        createComparisonSchema();
+        uploadExampleRuns(test);
+
+        TableReportConfig config = newExampleTableReportConfig(test);
+        ReportService.TableReportJobStatus status = jsonRequest().body(config).post("/api/report/table/job")
+                .then().statusCode(200).extract().body().as(ReportService.TableReportJobStatus.class);
+        status = awaitJob(status.jobId);
+        assertEquals(ReportService.TableReportJobState.COMPLETED, status.state);
+        assertEquals(8, status.processedDatasets);
+        assertNull(status.reportId);
+
+        TableReport preview = jsonRequest().get("/api/report/table/job/" + status.jobId + "/result")
+                .then().statusCode(200).extract().body().as(TableReport.class);
+        assertEquals(8, preview.data.size());
+        // the job is stored in the database and readable on any instance
+        assertEquals(1L, countJobs("id = '" + status.jobId + "' AND result IS NOT NULL"));
+
+        // an identical preview reuses the result
+        ReportService.TableReportJobStatus again = jsonRequest().body(config).post("/api/report/table/job")
+                .then().statusCode(200).extract().body().as(ReportService.TableReportJobStatus.class);
+        assertEquals(status.jobId, again.jobId);
+        // the job is not visible to other users
+        unauthenticatedJsonRequest().get("/api/report/table/job/" + status.jobId).then().statusCode(404);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testTableReportJobLimit() throws InterruptedException {
+        Test example = createExampleTest("jobLimit");
+        example.access = Access.PUBLIC;
+        Test test = createTest(example);
+        createComparisonSchema();
+        uploadExampleRuns(test);
+
+        TableReportConfig config = newExampleTableReportConfig(test);
+        ReportService.TableReportJobStatus status = jsonRequest().body(config).post("/api/report/table/job")
+                .then().statusCode(200).extract().body().as(ReportService.TableReportJobStatus.class);
+        awaitJob(status.jobId);
+        // unfinished jobs of the same user, e.g. generated by another instance
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em.createNativeQuery("""
+                        INSERT INTO tablereport_job (id, owner, test_id, instance)
+                        SELECT 'limit-' || i, owner, test_id, 'other' FROM tablereport_job, generate_series(1, 3) AS i
+                        WHERE id = ?1
+                        """).setParameter(1, status.jobId).executeUpdate();
+            }
+        });
+        config.title = "Other title";
+        jsonRequest().body(config).post("/api/report/table/job").then().statusCode(429);
+        // anonymous users have their own limit
+        unauthenticatedJsonRequest().body(config).post("/api/report/table/job").then().statusCode(200);
+    }
+
+    private ReportService.TableReportJobStatus awaitJob(String jobId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        ReportService.TableReportJobStatus status;
+        do {
+            Thread.sleep(50);
+            status = jsonRequest().get("/api/report/table/job/" + jobId)
+                    .then().statusCode(200).extract().body().as(ReportService.TableReportJobStatus.class);
+        } while (status.finished == null && System.currentTimeMillis() < deadline);
+        return status;
+    }
+
+    private long countJobs(String condition) {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return ((Number) em.createNativeQuery("SELECT count(*) FROM tablereport_job WHERE " + condition)
+                        .getSingleResult()).longValue();
+            }
+        });
+    }
+
     @org.junit.jupiter.api.Test
     public void testMissingValues() throws InterruptedException {
         Test test = createTest(createExampleTest("missing"));
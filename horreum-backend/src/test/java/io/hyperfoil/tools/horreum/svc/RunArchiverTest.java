@@ -0,0 +1,117 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.inject.Inject;
+
+import org.junit.jupiter.api.TestInfo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.api.data.Dataset;
+import io.hyperfoil.tools.horreum.api.data.Extractor;
+import io.hyperfoil.tools.horreum.api.data.Label;
+import io.hyperfoil.tools.horreum.api.data.Schema;
+import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.api.services.DatasetService;
+import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.entity.data.LabelValueDAO;
+import io.hyperfoil.tools.horreum.server.CloseMe;
+import io.hyperfoil.tools.horreum.test.BlobStoreTestProfile;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+
+@QuarkusTest
+@TestProfile(BlobStoreTestProfile.class)
+public class RunArchiverTest extends BaseServiceTest {
+    @Inject
+    RunArchiver runArchiver;
+
+    @org.junit.jupiter.api.Test
+    public void testArchiveRun(TestInfo info) throws InterruptedException {
+        Schema schema = createSchema(getTestName(info), uriForTest(info, "1.0"));
+        int labelId = addLabel(schema, "value", null, new Extractor("value", "$.value", false));
+        Test test = createTest(createExampleTest("archive"));
+        BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue = serviceMediator
+                .getEventQueue(AsyncEventChannels.DATASET_UPDATED_LABELS, test.id);
+        int runId = uploadRun(runWithValue(42, schema), test.name);
+        int datasetId = awaitLabels(updateQueue).datasetId;
+
+        assertTrue(runArchiver.archiveRun(runId));
+        // nothing is left to archive
+        assertFalse(runArchiver.archiveRun(runId));
+        assertNotNull(dataHash("run", runId));
+        assertNotNull(dataHash("dataset", datasetId));
+
+        JsonNode runData = jsonRequest().get("/api/run/" + runId + "/data").then().statusCode(200).extract()
+                .as(JsonNode.class);
+        assertEquals(42, runData.path("value").asInt());
+        assertEquals(3, runData.path("values").size());
+        Dataset dataset = jsonRequest().get("/api/dataset/" + datasetId).then().statusCode(200).extract().as(Dataset.class);
+        assertEquals(42, dataset.data.path(0).path("value").asInt());
+
+        // label values of the archived dataset are extracted from the blob
+        updateLabel(schema, labelId, "value", "v => v + 1", new Extractor("value", "$.value", false));
+        assertEquals(datasetId, awaitLabels(updateQueue).datasetId);
+        List<LabelValueDAO> values = LabelValueDAO.<LabelValueDAO> find("datasetId", datasetId).list();
+        assertEquals(1, values.size());
+        assertEquals(43, values.get(0).value.asInt());
+
+        Label label = new Label();
+        label.name = "values";
+        label.schemaId = schema.id;
+        label.extractors = List.of(new Extractor("values", "$.values", false));
+        DatasetService.LabelPreview preview = jsonRequest().body(label).post("/api/dataset/" + datasetId + "/previewLabel")
+                .then().statusCode(200).extract().body().as(DatasetService.LabelPreview.class);
+        assertEquals(3, preview.value.size());
+
+        // neither the recalculation nor the preview bring the data back to the database
+        assertNotNull(dataHash("dataset", datasetId));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSkipTrashedRuns(TestInfo info) throws InterruptedException {
+        Schema schema = createSchema(getTestName(info), uriForTest(info, "1.0"));
+        Test test = createTest(createExampleTest("archiveTrashed"));
+        BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue = serviceMediator
+                .getEventQueue(AsyncEventChannels.DATASET_UPDATED_LABELS, test.id);
+        int runId = uploadRun(runWithValue(42, schema), test.name);
+        awaitLabels(updateQueue);
+        Instant before = Instant.now().plus(1, ChronoUnit.DAYS);
+        assertEquals(List.of(runId), runArchiver.candidates(test.id, before));
+
+        // neither the run nor its remaining datasets are archived once the run is trashed
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em.createNativeQuery("UPDATE run SET trashed = true WHERE id = ?1").setParameter(1, runId)
+                        .executeUpdate();
+            }
+        });
+        assertEquals(List.of(), runArchiver.candidates(test.id, before));
+    }
+
+    private Dataset.LabelsUpdatedEvent awaitLabels(BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue)
+            throws InterruptedException {
+        Dataset.LabelsUpdatedEvent event = updateQueue.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event);
+        return event;
+    }
+
+    private String dataHash(String table, int id) {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return (String) em.createNativeQuery("SELECT data_hash FROM " + table + " WHERE id = ?1")
+                        .setParameter(1, id).getSingleResult();
+            }
+        });
+    }
+}
@@ -0,0 +1,78 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.blob.FileSystemBlobStore;
+
+public class RunPayloadStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testIdenticalPayloadsAreStoredOnce() throws IOException {
+        FileSystemBlobStore store = new FileSystemBlobStore(dir);
+        JsonNode data = Util.OBJECT_MAPPER.readTree("{\"$schema\":\"urn:foo\",\"values\":[1,2,3],\"text\":\"abc\"}");
+
+        String hash = RunPayloadStore.write(store, data);
+        assertEquals(hash, RunPayloadStore.write(store, data.deepCopy()));
+        assertEquals(64, hash.length());
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertEquals(1, files.filter(Files::isRegularFile).count());
+        }
+        assertEquals(data, RunPayloadStore.read(store, hash));
+        assertTrue(store.exists(hash));
+    }
+
+    @Test
+    public void testStoringAgainRefreshesBlob() throws IOException {
+        FileSystemBlobStore store = new FileSystemBlobStore(dir);
+        JsonNode data = Util.OBJECT_MAPPER.readTree("{\"values\":[1,2,3]}");
+        String hash = RunPayloadStore.write(store, data);
+        Instant hourAgo = Instant.now().minus(Duration.ofHours(1));
+        Path file = dir.resolve(hash.substring(0, 2)).resolve(hash + ".zst");
+        Files.setLastModifiedTime(file, FileTime.from(hourAgo.minus(Duration.ofHours(1))));
+        try (Stream<String> hashes = store.storedBefore(hourAgo)) {
+            assertEquals(List.of(hash), hashes.toList());
+        }
+
+        // the blob is about to be referenced again and is not deleted
+        RunPayloadStore.write(store, data);
+        try (Stream<String> hashes = store.storedBefore(hourAgo)) {
+            assertEquals(List.of(), hashes.toList());
+        }
+        assertFalse(store.delete(hash, hourAgo));
+        assertTrue(store.exists(hash));
+
+        assertTrue(store.delete(hash, Instant.now().plus(Duration.ofMinutes(1))));
+        assertFalse(store.exists(hash));
+        assertFalse(store.delete(hash, Instant.now().plus(Duration.ofMinutes(1))));
+    }
+
+    @Test
+    public void testSkeletonKeepsSchemaLocations() throws IOException {
+        JsonNode object = Util.OBJECT_MAPPER.readTree(
+                "{\"$schema\":\"urn:root\",\"a\":{\"$schema\":\"urn:a\",\"x\":1},\"b\":{\"x\":2},\"c\":[{\"$schema\":\"urn:c\"}]}");
+        assertEquals(Util.OBJECT_MAPPER.readTree("{\"$schema\":\"urn:root\",\"a\":{\"$schema\":\"urn:a\"}}"),
+                RunPayloadStore.skeleton(object));
+
+        JsonNode array = Util.OBJECT_MAPPER.readTree("[{\"x\":1},{\"$schema\":\"urn:b\",\"y\":2},3]");
+        assertEquals(Util.OBJECT_MAPPER.readTree("[{},{\"$schema\":\"urn:b\"},{}]"), RunPayloadStore.skeleton(array));
+    }
+}
@@ -10,6 +10,9 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -22,12 +25,16 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.StreamSupport;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 
 import org.apache.groovy.util.Maps;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.TestInfo;
+import org.junit.jupiter.api.io.TempDir;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -56,6 +63,7 @@ import io.hyperfoil.tools.horreum.api.internal.services.AlertingService;
 import io.hyperfoil.tools.horreum.api.services.DatasetService;
 import io.hyperfoil.tools.horreum.api.services.ExperimentService;
 import io.hyperfoil.tools.horreum.api.services.RunService;
+import io.hyperfoil.tools.horreum.blob.FileSystemBlobStore;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
 import io.hyperfoil.tools.horreum.entity.data.RunDAO;
@@ -79,6 +87,12 @@ import io.restassured.specification.RequestSpecification;
 public class RunServiceTest extends BaseServiceTest {
     private static final int POLL_DURATION_SECONDS = 10;
 
+    @Inject
+    RunServiceImpl runService;
+
+    @Inject
+    RunPayloadStore payloadStore;
+
     @org.junit.jupiter.api.Test
     public void testTransformationNoSchemaInData(TestInfo info) throws InterruptedException {
         Test exampleTest = createExampleTest(getTestName(info));
@@ -978,6 +992,212 @@ public class RunServiceTest extends BaseServiceTest {
         assertEquals(1, nRunSchemas);
     }
 
+    @org.junit.jupiter.api.Test
+    public void testKeyPathsOfTrashedRuns() throws InterruptedException {
+        Test test = createTest(createExampleTest("keypaths"));
+        long now = System.currentTimeMillis();
+        int first = uploadRun(now, JsonNodeFactory.instance.objectNode().put("uniqueKey", 1), test.name);
+        int second = uploadRun(now + 1, JsonNodeFactory.instance.objectNode().put("uniqueKey", 2), test.name);
+        assertEquals(2L, keyPathRuns(test.id, "uniqueKey"));
+
+        trashRun(first, test.id, true);
+        assertEquals(1L, keyPathRuns(test.id, "uniqueKey"));
+        trashRun(second, test.id, true);
+        assertEquals(0L, keyPathRuns(test.id, "uniqueKey"));
+        trashRun(second, test.id, false);
+        assertEquals(1L, keyPathRuns(test.id, "uniqueKey"));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testKeyPathsOfReplacedRunData(TestInfo info) {
+        Test test = createTest(createExampleTest("keypaths-replaced"));
+        Schema schema = createExampleSchema(info);
+        ObjectNode data = JsonNodeFactory.instance.objectNode().put("replacedKey", 1);
+        data.putObject("nested").put("value", 2);
+        int runId = uploadRun(System.currentTimeMillis(), data, test.name);
+        assertEquals(1L, keyPathRuns(test.id, "replacedKey"));
+        assertEquals(0L, keyPathRuns(test.id, "$schema"));
+
+        updateRunSchema(runId, "nested", schema.uri);
+        // the previous payload is no longer counted
+        assertEquals(1L, keyPathRuns(test.id, "replacedKey"));
+        assertEquals(1L, keyPathRuns(test.id, "$schema"));
+
+        updateRunSchema(runId, null, schema.uri);
+        assertEquals(1L, keyPathRuns(test.id, "replacedKey"));
+        assertEquals(1L, keyPathRuns(test.id, "value"));
+        // the key is present under both the root and the nested object
+        assertEquals(2L, keyPathRuns(test.id, "$schema"));
+    }
+
+    private void updateRunSchema(int runId, String path, String uri) {
+        RestAssured.given().auth().oauth2(getTesterToken())
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN)
+                .body(uri)
+                .post("/api/run/" + runId + "/schema" + (path == null ? "" : "?path=" + path))
+                .then()
+                .statusCode(200);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testAutocompleteHidesKeysOfRestrictedRuns() {
+        Test test = createTest(createExampleTest("autocomplete-access"));
+        long now = System.currentTimeMillis();
+        uploadRun(now, now, JsonNodeFactory.instance.objectNode().put("publicRunKey", 1), test.name, UPLOADER_ROLES[0],
+                Access.PUBLIC);
+        int privateRun = uploadRun(now + 1, now + 1, JsonNodeFactory.instance.objectNode().put("privateRunKey", 1),
+                test.name, UPLOADER_ROLES[0], Access.PRIVATE);
+
+        List<String> anonymous = autocomplete(RestAssured.given());
+        assertTrue(anonymous.contains("publicRunKey"), anonymous.toString());
+        assertFalse(anonymous.contains("privateRunKey"), anonymous.toString());
+        List<String> tester = autocomplete(RestAssured.given().auth().oauth2(getTesterToken()));
+        assertTrue(tester.contains("publicRunKey"), tester.toString());
+        assertTrue(tester.contains("privateRunKey"), tester.toString());
+
+        jsonRequest().post("/api/run/" + privateRun + "/updateAccess?owner=" + UPLOADER_ROLES[0] + "&access=PUBLIC")
+                .then().statusCode(204);
+        assertTrue(autocomplete(RestAssured.given()).contains("privateRunKey"));
+        assertEquals(1L, keyPathRuns(test.id, "privateRunKey"));
+    }
+
+    private static List<String> autocomplete(RequestSpecification request) {
+        return Arrays.asList(request.queryParam("query", "$.").get("/api/run/autocomplete").then().statusCode(200)
+                .extract().as(String[].class));
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testFilteredSearchTotal() {
+        Test test = createTest(createExampleTest("search-total"));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; ++i) {
+            uploadRun(now + i, JsonNodeFactory.instance.objectNode().put("searchTotalKey", i), test.name);
+        }
+
+        RunService.RunsSummary firstPage = searchRuns("$.searchTotalKey", 2, 1);
+        assertEquals(2, firstPage.runs.size());
+        assertEquals(3, firstPage.total);
+        assertFalse(firstPage.totalEstimated);
+        RunService.RunsSummary lastPage = searchRuns("$.searchTotalKey", 2, 2);
+        assertEquals(1, lastPage.runs.size());
+        assertEquals(3, lastPage.total);
+        // the page selects no rows, the runs are counted separately
+        RunService.RunsSummary pastLastPage = searchRuns("$.searchTotalKey", 2, 5);
+        assertEquals(0, pastLastPage.runs.size());
+        assertEquals(3, pastLastPage.total);
+        assertFalse(pastLastPage.totalEstimated);
+
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                Util.Count exact = Util.countWithEstimate(em, "FROM run WHERE testid = ?1", 3,
+                        q -> q.setParameter(1, test.id));
+                assertEquals(new Util.Count(3, false), exact);
+                // above the limit the planner estimate is used, but never less than what was counted
+                Util.Count estimated = Util.countWithEstimate(em, "FROM run WHERE testid = ?1", 1,
+                        q -> q.setParameter(1, test.id));
+                assertTrue(estimated.estimated());
+                assertTrue(estimated.value() >= 2, estimated.toString());
+                return null;
+            }
+        });
+    }
+
+    private RunService.RunsSummary searchRuns(String query, int limit, int page) {
+        return jsonRequest().queryParam("query", query)
+                .get("/api/run/list?limit=" + limit + "&page=" + page)
+                .then()
+                .statusCode(200)
+                .extract()
+                .as(RunService.RunsSummary.class);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testSearchRunBeyondKeyPathLimits() {
+        Test test = createTest(createExampleTest("deep"));
+        ObjectNode data = JsonNodeFactory.instance.objectNode().put("deepKey", "found");
+        for (int i = 0; i < JsonKeyPaths.MAX_DEPTH; ++i) {
+            data = JsonNodeFactory.instance.objectNode().set("level", data);
+        }
+        uploadRun(System.currentTimeMillis(), data, test.name);
+
+        // the key is not in the dictionary but the search must not skip the test
+        assertEquals(0L, keyPathRuns(test.id, "deepKey"));
+        RunService.RunsSummary runs = jsonRequest()
+                .get("/api/run/list?limit=10&page=1&query=$.**.deepKey")
+                .then()
+                .statusCode(200)
+                .extract()
+                .as(RunService.RunsSummary.class);
+        assertEquals(1, runs.runs.size());
+        assertEquals(test.name, runs.runs.get(0).testname);
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testExpireRunUploads() {
+        Test test = createTest(createExampleTest("uploads"));
+        long[] uploads = Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                String insert = "INSERT INTO run_upload (testid, payload, roles, created) VALUES (?1, '{}', '', ?2) RETURNING id";
+                long stale = ((Number) em.createNativeQuery(insert).setParameter(1, test.id)
+                        .setParameter(2, Instant.now().minus(Duration.ofDays(8))).getSingleResult()).longValue();
+                long recent = ((Number) em.createNativeQuery(insert).setParameter(1, test.id)
+                        .setParameter(2, Instant.now()).getSingleResult()).longValue();
+                return new long[] { stale, recent };
+            }
+        });
+        runService.expireRunUploads();
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                List<?> remaining = em.createNativeQuery("SELECT id FROM run_upload WHERE id IN (?1, ?2)")
+                        .setParameter(1, uploads[0]).setParameter(2, uploads[1]).getResultList();
+                assertEquals(1, remaining.size());
+                assertEquals(uploads[1], ((Number) remaining.get(0)).longValue());
+                em.createNativeQuery("DELETE FROM run_upload WHERE id = ?1").setParameter(1, uploads[1]).executeUpdate();
+                return null;
+            }
+        });
+    }
+
+    @org.junit.jupiter.api.Test
+    public void testCollectUnreferencedBlobs(@TempDir Path dir) throws IOException {
+        FileSystemBlobStore store = new FileSystemBlobStore(dir);
+        Test test = createTest(createExampleTest("blobs"));
+        int runId = uploadRun(JsonNodeFactory.instance.objectNode().put("value", 1), test.name);
+        String referenced = RunPayloadStore.write(store, JsonNodeFactory.instance.objectNode().put("referenced", true));
+        String unreferenced = RunPayloadStore.write(store, JsonNodeFactory.instance.objectNode().put("referenced", false));
+        setRunDataHash(runId, referenced);
+        try {
+            // both blobs are within the grace period
+            assertEquals(0, payloadStore.collectGarbage(store, Instant.now().minus(Duration.ofMinutes(1))));
+            assertTrue(store.exists(unreferenced));
+
+            assertEquals(1, payloadStore.collectGarbage(store, Instant.now().plus(Duration.ofMinutes(1))));
+            assertTrue(store.exists(referenced));
+            assertFalse(store.exists(unreferenced));
+        } finally {
+            setRunDataHash(runId, null);
+        }
+    }
+
+    private void setRunDataHash(int runId, String hash) {
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em.unwrap(Session.class).createNativeQuery("UPDATE run SET data_hash = ?1 WHERE id = ?2")
+                        .setParameter(1, hash, StandardBasicTypes.TEXT).setParameter(2, runId).executeUpdate();
+            }
+        });
+    }
+
+    private long keyPathRuns(int testId, String key) {
+        return Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return ((Number) em.createNativeQuery(
+                        "SELECT coalesce(sum(runs), 0) FROM run_keypath WHERE testid = ?1 AND key = ?2")
+                        .setParameter(1, testId).setParameter(2, key).getSingleResult()).longValue();
+            }
+        });
+    }
+
     @org.junit.jupiter.api.Test
     public void testAddRunWithMetadataData() throws JsonProcessingException {
         Test test = createExampleTest("supersecret");
@@ -14,6 +14,8 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import jakarta.inject.Inject;
+
 import org.junit.jupiter.api.TestInfo;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -71,6 +73,38 @@ import io.restassured.response.Response;
 @QuarkusTestResource(OidcWiremockTestResource.class)
 @TestProfile(InMemoryAMQTestProfile.class)
 class TestServiceTest extends BaseServiceTest {
+    @Inject
+    ConfigurationCache configCache;
+
+    @org.junit.jupiter.api.Test
+    void testConfigurationCacheInvalidation(TestInfo info) throws Exception {
+        Test test = createTest(createExampleTest(getTestName(info)));
+
+        // a change not committed yet is neither seen nor cached
+        tm.begin();
+        try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            em.createNativeQuery("UPDATE test SET notificationsenabled = false WHERE id = ?1")
+                    .setParameter(1, test.id).executeUpdate();
+            assertTrue(configCache.test(test.id).notificationsEnabled());
+        } finally {
+            tm.rollback();
+        }
+        assertTrue(configCache.test(test.id).notificationsEnabled());
+
+        // updates through this instance drop the snapshot on commit
+        jsonRequest().post("/api/test/" + test.id + "/notifications?enabled=false").then().statusCode(204);
+        assertFalse(configCache.test(test.id).notificationsEnabled());
+
+        // updates through another instance are picked up when the config version changes
+        Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+                return em.createNativeQuery("UPDATE test SET name = ?2 WHERE id = ?1")
+                        .setParameter(1, test.id).setParameter(2, test.name + "-renamed").executeUpdate();
+            }
+        });
+        configCache.refresh();
+        assertEquals(test.name + "-renamed", configCache.test(test.id).name());
+    }
 
     @org.junit.jupiter.api.Test
     void testListTests() {
@@ -0,0 +1,83 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class TransformSchedulerTest {
+
+    private static TransformScheduler scheduler(int maxConcurrency, int maxConcurrencyPerTest, int uploadReserve) {
+        TransformScheduler scheduler = new TransformScheduler();
+        scheduler.registry = new SimpleMeterRegistry();
+        scheduler.maxConcurrency = maxConcurrency;
+        scheduler.maxConcurrencyPerTest = maxConcurrencyPerTest;
+        scheduler.uploadReserve = uploadReserve;
+        scheduler.init();
+        return scheduler;
+    }
+
+    @Test
+    public void testUploadUsesReservedSlot() throws InterruptedException {
+        TransformScheduler scheduler = scheduler(2, 2, 1);
+        CountDownLatch recalculationStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread recalculation = new Thread(() -> scheduler.execute(1, TransformScheduler.Priority.RECALCULATION, () -> {
+            recalculationStarted.countDown();
+            return await(release);
+        }));
+        recalculation.start();
+        assertTrue(recalculationStarted.await(10, TimeUnit.SECONDS));
+
+        // the second slot is reserved for uploads
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread secondRecalculation = new Thread(
+                () -> scheduler.execute(2, TransformScheduler.Priority.RECALCULATION, () -> order.add("recalculation")));
+        secondRecalculation.start();
+        scheduler.execute(null, TransformScheduler.Priority.UPLOAD, () -> order.add("upload"));
+        release.countDown();
+        recalculation.join(10000);
+        secondRecalculation.join(10000);
+        assertEquals(List.of("upload", "recalculation"), order);
+    }
+
+    @Test
+    public void testLimitPerTest() throws InterruptedException {
+        TransformScheduler scheduler = scheduler(4, 1, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread first = new Thread(() -> scheduler.execute(1, TransformScheduler.Priority.RECALCULATION, () -> {
+            started.countDown();
+            return await(release);
+        }));
+        first.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread sameTest = new Thread(
+                () -> scheduler.execute(1, TransformScheduler.Priority.RECALCULATION, () -> order.add("same test")));
+        sameTest.start();
+        // waits until the waiter of the same test is queued, then runs before it
+        Thread.sleep(100);
+        scheduler.execute(2, TransformScheduler.Priority.RECALCULATION, () -> order.add("other test"));
+        release.countDown();
+        first.join(10000);
+        sameTest.join(10000);
+        assertEquals(List.of("other test", "same test"), order);
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -30,7 +30,11 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 public class UtilTest {
+    private static final Timer JS_EVALUATION = new SimpleMeterRegistry().timer(PipelineMetrics.JS_EVALUATION);
 
     public static class StringHandler extends OutputStreamHandler {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -175,7 +179,7 @@ public class UtilTest {
 
     @org.junit.jupiter.api.Test
     public void evaluateOnceJsonKeyAccess() throws JsonProcessingException {
-        Object rtrn = Util.evaluateOnce(
+        Object rtrn = Util.evaluateOnce(JS_EVALUATION,
                 """
                         (input)=>{
                             return input.foo;
@@ -198,7 +202,7 @@ public class UtilTest {
 
     @org.junit.jupiter.api.Test
     public void evaluateOnceAsync() {
-        Object rtrn = Util.evaluateOnce(
+        Object rtrn = Util.evaluateOnce(JS_EVALUATION,
                 """
                         async ()=>{
                             return "foo";
@@ -222,7 +226,7 @@ public class UtilTest {
     @org.junit.jupiter.api.Test
     public void evaluateOnceAsyncAwaitFetchJson() {
         try (CloseableServer server = new CloseableServer("/", "{\"key\":42}")) {
-            Object rtrn = Util.evaluateOnce(
+            Object rtrn = Util.evaluateOnce(JS_EVALUATION,
                     """
                             async ()=>{
                                 let rtrn = await fetch("SERVER_URL");
@@ -0,0 +1,18 @@
+package io.hyperfoil.tools.horreum.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.hyperfoil.tools.horreum.blob.FileSystemBlobStore;
+
+public class BlobStoreTestProfile extends HorreumTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+        Map<String, String> configOverrides = new HashMap<>(super.getConfigOverrides());
+        configOverrides.put("horreum.blob-store.type", FileSystemBlobStore.TYPE);
+        configOverrides.put("horreum.blob-store.path", "target/test-blobs");
+        return configOverrides;
+    }
+
+}
@@ -0,0 +1,17 @@
+package io.hyperfoil.tools.horreum.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReplicaTestProfile extends HorreumTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+        Map<String, String> configOverrides = new HashMap<>(super.getConfigOverrides());
+        // the primary database stands in for the read replica
+        configOverrides.put("quarkus.datasource.replica.active", "true");
+        configOverrides.put("quarkus.datasource.replica.jdbc.url", "${quarkus.datasource.jdbc.url}");
+        return configOverrides;
+    }
+
+}
@@ -0,0 +1,120 @@
+package io.hyperfoil.tools.horreum.bench;
+
+import java.time.Instant;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Generates run payloads shaped like Hyperfoil results: run metadata, a list of phases with per-metric
+ * statistics and percentiles, and per-agent environment info. The generator is seeded so all benchmark
+ * forks work with identical data.
+ */
+public final class SyntheticRuns {
+    public static final String SCHEMA_URI = "urn:horreum:benchmark:0.1";
+    private static final String[] METRICS = { "login", "browse", "search", "add-to-cart", "checkout", "logout" };
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9, 99.99 };
+
+    private SyntheticRuns() {
+    }
+
+    /**
+     * @param seed random seed
+     * @param phases number of phases in the run
+     * @param metrics number of metrics recorded in each phase
+     */
+    public static ObjectNode run(long seed, int phases, int metrics) {
+        Random random = new Random(seed);
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        ObjectNode run = factory.objectNode();
+        run.put("$schema", SCHEMA_URI);
+        long start = Instant.parse("2025-01-01T00:00:00Z").toEpochMilli() + random.nextInt(1_000_000) * 1000L;
+        ObjectNode info = run.putObject("info");
+        info.put("id", random.nextInt(100_000));
+        info.put("benchmark", "eshop-" + random.nextInt(10));
+        info.put("startTime", start);
+        info.put("terminateTime", start + phases * 60_000L);
+        info.put("description", "Synthetic run generated for benchmarking");
+        ArrayNode tags = info.putArray("tags");
+        tags.addObject().put("key", "version").put("value", "1." + random.nextInt(20));
+        tags.addObject().put("key", "jvm").put("value", random.nextBoolean() ? "17" : "21");
+
+        ArrayNode stats = run.putArray("stats");
+        for (int p = 0; p < phases; ++p) {
+            for (int m = 0; m < metrics; ++m) {
+                ObjectNode stat = stats.addObject();
+                stat.put("name", METRICS[m % METRICS.length] + (m < METRICS.length ? "" : "-" + m));
+                stat.put("phase", "steadyState/" + p);
+                stat.put("iteration", p);
+                ObjectNode summary = stat.putObject("total").putObject("summary");
+                long mean = 1_000_000 + random.nextInt(5_000_000);
+                summary.put("startTime", start + p * 60_000L);
+                summary.put("endTime", start + (p + 1) * 60_000L);
+                summary.put("requestCount", 10_000 + random.nextInt(50_000));
+                summary.put("responseCount", 10_000 + random.nextInt(50_000));
+                summary.put("meanResponseTime", mean);
+                summary.put("maxResponseTime", mean * (5 + random.nextInt(10)));
+                summary.put("minResponseTime", mean / (2 + random.nextInt(5)));
+                ObjectNode percentiles = summary.putObject("percentileResponseTime");
+                long value = mean;
+                for (double percentile : PERCENTILES) {
+                    value += random.nextInt((int) (mean / 2) + 1);
+                    percentiles.put(String.valueOf(percentile), value);
+                }
+                ObjectNode errors = summary.putObject("errors");
+                errors.put("connectionErrors", random.nextInt(3));
+                errors.put("requestTimeouts", random.nextInt(3));
+                errors.put("status_5xx", random.nextInt(10));
+            }
+        }
+        ArrayNode agents = run.putArray("agents");
+        for (int a = 0; a < 4; ++a) {
+            ObjectNode agent = agents.addObject();
+            agent.put("name", "agent-" + a);
+            agent.put("cpus", 4 + random.nextInt(60));
+            agent.put("memory", (8 + random.nextInt(120)) + "G");
+            agent.putObject("env").put("os", "Linux").put("kernel", "6." + random.nextInt(10));
+        }
+        return run;
+    }
+
+    /**
+     * JSON schema describing the generated runs, used by the validation benchmark.
+     */
+    public static ObjectNode schema() {
+        ObjectNode schema = JsonNodeFactory.instance.objectNode();
+        schema.put("$schema", "http://json-schema.org/draft-07/schema#");
+        schema.put("$id", SCHEMA_URI);
+        schema.put("type", "object");
+        schema.putArray("required").add("info").add("stats");
+        ObjectNode properties = schema.putObject("properties");
+        ObjectNode info = properties.putObject("info");
+        info.put("type", "object");
+        info.putArray("required").add("id").add("benchmark").add("startTime");
+        ObjectNode infoProperties = info.putObject("properties");
+        infoProperties.putObject("id").put("type", "integer");
+        infoProperties.putObject("benchmark").put("type", "string");
+        infoProperties.putObject("startTime").put("type", "integer");
+        infoProperties.putObject("terminateTime").put("type", "integer");
+        ObjectNode stats = properties.putObject("stats");
+        stats.put("type", "array");
+        ObjectNode stat = stats.putObject("items");
+        stat.put("type", "object");
+        stat.putArray("required").add("name").add("total");
+        ObjectNode statProperties = stat.putObject("properties");
+        statProperties.putObject("name").put("type", "string");
+        statProperties.putObject("phase").put("type", "string");
+        ObjectNode summary = statProperties.putObject("total").put("type", "object").putObject("properties")
+                .putObject("summary");
+        summary.put("type", "object");
+        ObjectNode summaryProperties = summary.putObject("properties");
+        for (String field : new String[] { "requestCount", "responseCount", "meanResponseTime", "maxResponseTime" }) {
+            summaryProperties.putObject(field).put("type", "integer").put("minimum", 0);
+        }
+        summaryProperties.putObject("percentileResponseTime").put("type", "object")
+                .putObject("additionalProperties").put("type", "integer");
+        return schema;
+    }
+}
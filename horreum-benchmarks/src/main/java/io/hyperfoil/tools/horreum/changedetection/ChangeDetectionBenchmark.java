@@ -0,0 +1,95 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
+import io.hyperfoil.tools.horreum.entity.alerting.VariableDAO;
+import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.RunDAO;
+import io.hyperfoil.tools.horreum.svc.Util;
+
+/**
+ * Built-in change detection models over a history of datapoints that ends with a regression.
+ * The Hunter e-divisive model runs an external process and is not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChangeDetectionBenchmark {
+
+    @Param({ "100", "10000" })
+    int datapoints;
+
+    List<DataPointDAO> history;
+    final RelativeDifferenceChangeDetectionModel relativeDifference = new RelativeDifferenceChangeDetectionModel();
+    final FixedThresholdModel fixedThreshold = new FixedThresholdModel();
+    JsonNode relativeDifferenceConfig;
+    JsonNode fixedThresholdConfig;
+
+    @Setup
+    public void setup() {
+        relativeDifference.mapper = Util.OBJECT_MAPPER;
+        fixedThreshold.mapper = Util.OBJECT_MAPPER;
+        relativeDifferenceConfig = Util.OBJECT_MAPPER.createObjectNode().put("filter", "mean").put("window", 5)
+                .put("threshold", 0.2).put("minPrevious", 10);
+        ObjectNode fixed = Util.OBJECT_MAPPER.createObjectNode();
+        fixed.putObject("min").put("value", 50).put("enabled", true).put("inclusive", true);
+        fixed.putObject("max").put("value", 120).put("enabled", true).put("inclusive", true);
+        fixedThresholdConfig = fixed;
+
+        VariableDAO variable = new VariableDAO();
+        variable.id = 1;
+        variable.testId = 1;
+        Random random = new Random(42);
+        Instant now = Instant.parse("2025-01-01T00:00:00Z");
+        // models expect the most recent datapoint first
+        history = new ArrayList<>(datapoints);
+        for (int i = 0; i < datapoints; ++i) {
+            RunDAO run = new RunDAO();
+            run.id = datapoints - i;
+            DatasetDAO dataset = new DatasetDAO();
+            dataset.id = datapoints - i;
+            dataset.run = run;
+            DataPointDAO dp = new DataPointDAO();
+            dp.id = datapoints - i;
+            dp.variable = variable;
+            dp.dataset = dataset;
+            dp.timestamp = now.minusSeconds(3600L * i);
+            dp.value = (i < 5 ? 130 : 100) + random.nextGaussian() * 3;
+            history.add(dp);
+        }
+    }
+
+    @Benchmark
+    public void relativeDifference(Blackhole blackhole) throws ChangeDetectionException {
+        relativeDifference.analyze(history, relativeDifferenceConfig, blackhole::consume);
+    }
+
+    @Benchmark
+    public void fixedThreshold(Blackhole blackhole) throws ChangeDetectionException {
+        fixedThreshold.analyze(history, fixedThresholdConfig, blackhole::consume);
+    }
+}
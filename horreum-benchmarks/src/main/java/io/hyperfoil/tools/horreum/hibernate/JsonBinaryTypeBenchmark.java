@@ -0,0 +1,86 @@
+package io.hyperfoil.tools.horreum.hibernate;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.bench.SyntheticRuns;
+
+/**
+ * Conversion of <code>jsonb</code> columns to and from {@link JsonNode}, plus the copies Hibernate makes
+ * for dirty checking of loaded entities.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JsonBinaryTypeBenchmark {
+
+    @Param({ "4", "32", "256" })
+    int phases;
+
+    final JsonBinaryType type = new JsonBinaryType();
+    JsonNode run;
+    ResultSet resultSet;
+    PreparedStatement statement;
+    Object bound;
+
+    @Setup
+    public void setup() {
+        run = SyntheticRuns.run(42, phases, 6);
+        byte[] bytes = run.toString().getBytes(StandardCharsets.UTF_8);
+        // only the methods used by JsonBinaryType are implemented
+        resultSet = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getBytes")) {
+                        return bytes;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("setObject") || method.getName().equals("setNull")) {
+                        bound = args[1];
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @Benchmark
+    public JsonNode read() throws SQLException {
+        return type.nullSafeGet(resultSet, 1, null, null);
+    }
+
+    @Benchmark
+    public Object write() throws SQLException {
+        type.nullSafeSet(statement, run, 1, null);
+        return bound;
+    }
+
+    @Benchmark
+    public boolean copyAndCompare() {
+        JsonNode copy = type.deepCopy(run);
+        return type.equals(run, copy);
+    }
+}
@@ -0,0 +1,83 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.bench.SyntheticRuns;
+
+/**
+ * JavaScript label and variable functions, evaluated the same way as during label calculation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JavaScriptBenchmark {
+    private static final String MEAN_FUNCTION = "values => values.reduce((a, b) => a + b, 0) / values.length";
+    private static final String OBJECT_FUNCTION = "({ mean, max }) => ({ ratio: max / mean, slow: max > 10 * mean })";
+
+    @Param({ "4", "32" })
+    int phases;
+
+    @Param({ "8" })
+    int labels;
+
+    JsonNode values;
+    List<Object[]> labelRows;
+
+    @Setup
+    public void setup() {
+        ObjectNode run = SyntheticRuns.run(42, phases, 6);
+        values = Util.OBJECT_MAPPER.valueToTree(Util.findJsonPath(run, "$.stats[*].total.summary.meanResponseTime"));
+        labelRows = new ArrayList<>();
+        for (int i = 0; i < labels; ++i) {
+            JsonNode summary = run.path("stats").path(i % run.path("stats").size()).path("total").path("summary");
+            // every other label has no function and is passed through
+            String function = i % 2 == 0 ? OBJECT_FUNCTION : null;
+            ObjectNode input = Util.OBJECT_MAPPER.createObjectNode()
+                    .put("mean", summary.path("meanResponseTime").asLong())
+                    .put("max", summary.path("maxResponseTime").asLong());
+            labelRows.add(new Object[] { "label" + i, function, input });
+        }
+    }
+
+    @Benchmark
+    public JsonNode evaluateOnce() {
+        return Util.evaluateOnce(MEAN_FUNCTION, values, Util::convertToJson, (code, t) -> {
+            throw new IllegalStateException(t);
+        }, out -> {
+        });
+    }
+
+    @Benchmark
+    public void evaluateWithCombinationFunction(Blackhole blackhole) {
+        Util.evaluateWithCombinationFunction(labelRows,
+                row -> (String) row[1],
+                row -> (JsonNode) row[2],
+                (row, result) -> blackhole.consume(Util.convertToJson(result)),
+                row -> blackhole.consume(row[2]),
+                (row, e, code) -> {
+                    throw new IllegalStateException(e);
+                },
+                blackhole::consume);
+    }
+}
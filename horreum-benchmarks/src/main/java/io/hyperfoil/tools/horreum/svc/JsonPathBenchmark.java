@@ -0,0 +1,54 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.bench.SyntheticRuns;
+
+/**
+ * JSONPath evaluation in Java, as used by {@link Util#findJsonPath(JsonNode, String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JsonPathBenchmark {
+
+    @Param({ "4", "32" })
+    int phases;
+
+    @Param({
+            "$.info.benchmark",
+            "$.stats[*].total.summary.meanResponseTime",
+            "$.stats[?(@.name == 'checkout')].total.summary.percentileResponseTime['99.0']",
+            "$..kernel"
+    })
+    String path;
+
+    JsonNode run;
+
+    @Setup
+    public void setup() {
+        run = SyntheticRuns.run(42, phases, 6);
+    }
+
+    @Benchmark
+    public Object findJsonPath() {
+        return Util.findJsonPath(run, path);
+    }
+}
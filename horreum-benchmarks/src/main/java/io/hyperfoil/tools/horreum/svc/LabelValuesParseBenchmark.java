@@ -0,0 +1,67 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import io.hyperfoil.tools.horreum.api.data.ExportedLabelValues;
+
+/**
+ * Grouping of label value rows into {@link ExportedLabelValues}, the Java part of the label values endpoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LabelValuesParseBenchmark {
+
+    @Param({ "100", "1000" })
+    int datasets;
+
+    @Param({ "20" })
+    int labels;
+
+    List<Object[]> rows;
+
+    @Setup
+    public void setup() {
+        // rows as returned by the label values query: name, value, run ID, dataset ID, start, stop
+        rows = new ArrayList<>(datasets * labels);
+        Instant start = Instant.parse("2025-01-01T00:00:00Z");
+        for (int d = 0; d < datasets; ++d) {
+            Instant runStart = start.plusSeconds(3600L * d);
+            for (int l = 0; l < labels; ++l) {
+                Object value = l % 4 == 0 ? new TextNode("value-" + d) : new DoubleNode(d * 1.5 + l);
+                rows.add(new Object[] { "label" + l, value, d / 2, d, runStart, runStart.plusSeconds(600) });
+            }
+        }
+    }
+
+    @Benchmark
+    public List<ExportedLabelValues> parseAll() {
+        return LabelValuesService.parse(rows, null, null);
+    }
+
+    @Benchmark
+    public List<ExportedLabelValues> parsePage() {
+        return LabelValuesService.parse(rows, 20, 2);
+    }
+}
@@ -0,0 +1,70 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.bench.SyntheticRuns;
+import io.hyperfoil.tools.horreum.entity.ValidationErrorDAO;
+import io.hyperfoil.tools.horreum.entity.data.SchemaDAO;
+
+/**
+ * JSON schema validation of run data, without loading the schemas from the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SchemaValidationBenchmark {
+
+    @Param({ "4", "32" })
+    int phases;
+
+    SchemaDAO schema;
+    List<JsonNode> valid;
+    List<JsonNode> invalid;
+
+    @Setup
+    public void setup() {
+        schema = new SchemaDAO();
+        schema.uri = SyntheticRuns.SCHEMA_URI;
+        schema.schema = SyntheticRuns.schema();
+        ObjectNode run = SyntheticRuns.run(42, phases, 6);
+        valid = List.of(run);
+        ObjectNode broken = run.deepCopy();
+        broken.with("info").put("id", "not a number");
+        ((ObjectNode) broken.path("stats").path(0).path("total").path("summary")).put("requestCount", -1);
+        invalid = List.of(broken);
+    }
+
+    @Benchmark
+    public List<ValidationErrorDAO> validateValid() {
+        List<ValidationErrorDAO> errors = new ArrayList<>();
+        SchemaServiceImpl.validate(schema.uri, schema, valid, errors);
+        return errors;
+    }
+
+    @Benchmark
+    public List<ValidationErrorDAO> validateInvalid() {
+        List<ValidationErrorDAO> errors = new ArrayList<>();
+        SchemaServiceImpl.validate(schema.uri, schema, invalid, errors);
+        return errors;
+    }
+}
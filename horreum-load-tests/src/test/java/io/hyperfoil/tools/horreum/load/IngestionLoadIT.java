@@ -0,0 +1,195 @@
+package io.hyperfoil.tools.horreum.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import jakarta.ws.rs.core.Response;
+
+import org.junit.jupiter.api.Test;
+
+import io.hyperfoil.tools.HorreumClient;
+import io.hyperfoil.tools.horreum.api.data.Access;
+import io.quarkus.logging.Log;
+import io.quarkus.test.junit.QuarkusIntegrationTest;
+import io.quarkus.test.junit.TestProfile;
+
+/**
+ * Uploads synthetic runs concurrently and measures how long it takes until their datapoints and changes exist.
+ * The test is skipped unless the build runs with <code>-DskipLoadTests=false</code>; see the module README for
+ * the parameters.
+ */
+@QuarkusIntegrationTest
+@TestProfile(LoadTestProfile.class)
+public class IngestionLoadIT {
+    private static final long POLL_MILLIS = 200;
+    // change detection may still replace changes after all datapoints exist
+    private static final long SETTLE_NANOS = Duration.ofSeconds(5).toNanos();
+
+    //@formatter:off
+    private static final String RUNS_WITH_DATAPOINTS = LoadReport.MARKER + """
+         SELECT DISTINCT ds.runid FROM datapoint dp JOIN dataset ds ON ds.id = dp.dataset_id
+         WHERE ds.testid = ANY(?)
+         """;
+    private static final String CHANGES = LoadReport.MARKER + """
+         SELECT c.id, ds.runid FROM change c JOIN dataset ds ON ds.id = c.dataset_id
+         WHERE ds.testid = ANY(?)
+         """;
+    //@formatter:on
+
+    private final int tests = Integer.getInteger("horreum.load-test.tests", 2);
+    private final int runsPerTest = Integer.getInteger("horreum.load-test.runs", 200);
+    private final int concurrency = Integer.getInteger("horreum.load-test.concurrency", 8);
+    private final int metrics = Integer.getInteger("horreum.load-test.metrics", 10);
+    private final Duration timeout = Duration.parse(System.getProperty("horreum.load-test.timeout", "PT10M"));
+    private final Path reportPath = Path.of(System.getProperty("horreum.load-test.report", "load-test-report.json"));
+
+    @Test
+    public void ingestion() throws Exception {
+        try (HorreumClient client = new HorreumClient.Builder()
+                .horreumUrl("http://localhost:" + System.getProperty("quarkus.http.test-port"))
+                .horreumUser("horreum.bootstrap")
+                .horreumPassword(LoadTestResource.HORREUM_BOOTSTRAP_PASSWORD)
+                .build();
+                Connection connection = LoadTestResource.connection()) {
+            List<SyntheticTests.Target> targets = new ArrayList<>();
+            for (int i = 0; i < tests; ++i) {
+                targets.add(SyntheticTests.create(client, i, metrics));
+            }
+            Array testIds = connection.createArrayOf("integer", targets.stream().map(t -> t.test().id).toArray());
+            LoadReport report = new LoadReport(tests, runsPerTest, concurrency, metrics);
+            long[] statsBefore = LoadReport.resetDatabaseStats(connection);
+
+            Map<Integer, Long> uploaded = new ConcurrentHashMap<>();
+            AtomicLong uploadEnd = new AtomicLong();
+            long start = System.nanoTime();
+            // the uploads run in the background so that the results are seen as soon as they appear
+            List<Future<Long>> uploads = upload(client, targets, uploaded, uploadEnd);
+
+            Map<Integer, Long> datapointsSeen = new HashMap<>();
+            Map<Integer, Long> changesSeen = new HashMap<>();
+            Map<Integer, Integer> changeRuns = new HashMap<>();
+            long deadline = start + timeout.toNanos();
+            long lastProgress = start;
+            while (System.nanoTime() < deadline) {
+                long now = System.nanoTime();
+                boolean progress = poll(connection, RUNS_WITH_DATAPOINTS, testIds,
+                        rs -> datapointsSeen.putIfAbsent(rs.getInt(1), now) == null);
+                progress |= poll(connection, CHANGES, testIds, rs -> {
+                    changeRuns.put(rs.getInt(1), rs.getInt(2));
+                    return changesSeen.putIfAbsent(rs.getInt(1), now) == null;
+                });
+                if (progress) {
+                    lastProgress = now;
+                } else if (uploads.stream().allMatch(Future::isDone) && datapointsSeen.size() >= uploaded.size()
+                        && now - lastProgress > SETTLE_NANOS) {
+                    break;
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+            List<Long> uploadLatency = new ArrayList<>();
+            for (Future<Long> upload : uploads) {
+                uploadLatency.add(upload.get());
+            }
+            Log.infof("Uploaded %d runs in %d ms", uploads.size(), Duration.ofNanos(uploadEnd.get() - start).toMillis());
+
+            report.throughput(uploaded.size(), uploadEnd.get() - start, lastProgress - start);
+            report.latency("upload", uploadLatency);
+            report.latency("datapoints", latencies(datapointsSeen, Function.identity(), uploaded));
+            report.latency("changes", latencies(changesSeen, changeRuns::get, uploaded));
+            report.changes(changesSeen.size());
+            report.database(connection, statsBefore, uploaded.size());
+            report.write(reportPath);
+            Log.infof("Load test report written to %s:%n%s", reportPath.toAbsolutePath(), report.json.toPrettyString());
+
+            assertEquals(uploaded.keySet(), datapointsSeen.keySet(), "Not all runs have datapoints within " + timeout);
+            if (runsPerTest > SyntheticTests.STEP_PERIOD) {
+                assertTrue(changesSeen.size() > 0, "No changes were detected");
+            }
+        }
+    }
+
+    private List<Future<Long>> upload(HorreumClient client, List<SyntheticTests.Target> targets,
+            Map<Integer, Long> uploaded, AtomicLong uploadEnd) {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<Long>> uploads = new ArrayList<>();
+            // interleave the tests as concurrent CI jobs would
+            for (int i = 0; i < runsPerTest; ++i) {
+                for (SyntheticTests.Target target : targets) {
+                    int sequence = i;
+                    uploads.add(executor.submit(() -> {
+                        long begin = System.nanoTime();
+                        try (Response response = client.runService.addRunFromData("$.start", "$.stop",
+                                target.test().name, SyntheticTests.OWNER, Access.PUBLIC, target.schemaUri(), null,
+                                target.run(sequence))) {
+                            assertEquals(Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+                            for (String runId : response.readEntity(String.class).split(",")) {
+                                uploaded.put(Integer.parseInt(runId.trim()), begin);
+                            }
+                        }
+                        long end = System.nanoTime();
+                        uploadEnd.accumulateAndGet(end, Math::max);
+                        return end - begin;
+                    }));
+                }
+            }
+            return uploads;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean poll(Connection connection, String query, Array testIds, RowHandler handler)
+            throws SQLException {
+        boolean changed = false;
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setArray(1, testIds);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    changed |= handler.accept(rs);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param seen time when the item was first seen, by item ID
+     * @param runOf maps item ID to run ID
+     * @param uploaded time when the run upload started, by run ID
+     */
+    private static List<Long> latencies(Map<Integer, Long> seen, Function<Integer, Integer> runOf,
+            Map<Integer, Long> uploaded) {
+        List<Long> latencies = new ArrayList<>();
+        seen.forEach((id, time) -> {
+            Long begin = uploaded.get(runOf.apply(id));
+            if (begin != null) {
+                latencies.add(time - begin);
+            }
+        });
+        return latencies;
+    }
+
+    @FunctionalInterface
+    private interface RowHandler {
+        boolean accept(ResultSet rs) throws SQLException;
+    }
+}
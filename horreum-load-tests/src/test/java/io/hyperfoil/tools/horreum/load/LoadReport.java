@@ -0,0 +1,144 @@
+package io.hyperfoil.tools.horreum.load;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Result of a load test run in JSON; the <code>$schema</code> allows uploading the report to Horreum itself
+ * and tracking ingestion performance over time.
+ */
+final class LoadReport {
+    static final String SCHEMA_URI = "urn:horreum:load-test:0.1";
+    // statements issued by the load test itself carry this marker and are excluded from the statistics
+    static final String MARKER = "/* horreum-load-test */";
+    private static final double[] PERCENTILES = { 50, 90, 99, 100 };
+
+    //@formatter:off
+    private static final String DATABASE_STATS = MARKER + """
+         SELECT xact_commit + xact_rollback, tup_returned, tup_fetched, tup_inserted, tup_updated, tup_deleted
+         FROM pg_stat_database WHERE datname = current_database()
+         """;
+    private static final String STATEMENT_TOTALS = MARKER + """
+         SELECT coalesce(sum(calls), 0), coalesce(sum(total_exec_time), 0) FROM pg_stat_statements
+         WHERE dbid = (SELECT oid FROM pg_database WHERE datname = current_database())
+            AND query NOT LIKE '/* horreum-load-test */%'
+         """;
+    private static final String TOP_STATEMENTS = MARKER + """
+         SELECT query, calls, total_exec_time, rows FROM pg_stat_statements
+         WHERE dbid = (SELECT oid FROM pg_database WHERE datname = current_database())
+            AND query NOT LIKE '/* horreum-load-test */%'
+         ORDER BY total_exec_time DESC LIMIT 20
+         """;
+    //@formatter:on
+    private static final String[] DATABASE_COUNTERS = { "transactions", "tuplesReturned", "tuplesFetched",
+            "tuplesInserted", "tuplesUpdated", "tuplesDeleted" };
+
+    final ObjectNode json = JsonNodeFactory.instance.objectNode();
+    private final ObjectNode latencies;
+
+    LoadReport(int tests, int runsPerTest, int concurrency, int metrics) {
+        json.put("$schema", SCHEMA_URI);
+        ObjectNode parameters = json.putObject("parameters");
+        parameters.put("tests", tests);
+        parameters.put("runsPerTest", runsPerTest);
+        parameters.put("concurrency", concurrency);
+        parameters.put("metrics", metrics);
+        latencies = json.putObject("latencyMillis");
+    }
+
+    /**
+     * Resets the statement statistics and returns the current database counters.
+     */
+    static long[] resetDatabaseStats(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(MARKER + "CREATE EXTENSION IF NOT EXISTS pg_stat_statements");
+            statement.execute(MARKER + "SELECT pg_stat_statements_reset()");
+            // pg_stat_database is a snapshot cached for the duration of the transaction
+            statement.execute(MARKER + "SELECT pg_stat_clear_snapshot()");
+            try (ResultSet rs = statement.executeQuery(DATABASE_STATS)) {
+                rs.next();
+                long[] counters = new long[DATABASE_COUNTERS.length];
+                for (int i = 0; i < counters.length; ++i) {
+                    counters[i] = rs.getLong(i + 1);
+                }
+                return counters;
+            }
+        }
+    }
+
+    void throughput(int runs, long uploadNanos, long processingNanos) {
+        ObjectNode throughput = json.putObject("throughput");
+        throughput.put("runs", runs);
+        throughput.put("uploadSeconds", uploadNanos / 1e9);
+        throughput.put("processingSeconds", processingNanos / 1e9);
+        throughput.put("uploadedRunsPerSecond", runs * 1e9 / uploadNanos);
+        throughput.put("processedRunsPerSecond", runs * 1e9 / processingNanos);
+    }
+
+    /**
+     * @param name latency being reported
+     * @param nanos latencies in nanoseconds
+     */
+    void latency(String name, Collection<Long> nanos) {
+        ObjectNode latency = latencies.putObject(name);
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        latency.put("count", sorted.length);
+        if (sorted.length == 0) {
+            return;
+        }
+        latency.put("mean", Arrays.stream(sorted).average().orElse(0) / 1e6);
+        for (double percentile : PERCENTILES) {
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            latency.put("p" + (int) percentile, sorted[Math.max(index, 0)] / 1e6);
+        }
+    }
+
+    void database(Connection connection, long[] before, int runs) throws SQLException {
+        ObjectNode database = json.putObject("database");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(MARKER + "SELECT pg_stat_clear_snapshot()");
+            try (ResultSet rs = statement.executeQuery(DATABASE_STATS)) {
+                rs.next();
+                for (int i = 0; i < DATABASE_COUNTERS.length; ++i) {
+                    database.put(DATABASE_COUNTERS[i], rs.getLong(i + 1) - before[i]);
+                }
+            }
+            try (ResultSet rs = statement.executeQuery(STATEMENT_TOTALS)) {
+                rs.next();
+                long calls = rs.getLong(1);
+                database.put("statements", calls);
+                database.put("statementsPerRun", (double) calls / runs);
+                database.put("statementMillis", rs.getDouble(2));
+            }
+            ArrayNode top = database.putArray("topStatements");
+            try (ResultSet rs = statement.executeQuery(TOP_STATEMENTS)) {
+                while (rs.next()) {
+                    top.addObject().put("query", rs.getString(1)).put("calls", rs.getLong(2))
+                            .put("totalMillis", rs.getDouble(3)).put("rows", rs.getLong(4));
+                }
+            }
+        }
+    }
+
+    void changes(int count) {
+        json.put("changes", count);
+    }
+
+    void write(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Files.writeString(path, new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(json));
+    }
+}
@@ -0,0 +1,28 @@
+package io.hyperfoil.tools.horreum.load;
+
+import java.util.List;
+import java.util.Map;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+
+public class LoadTestProfile implements QuarkusTestProfile {
+    @Override
+    public Map<String, String> getConfigOverrides() {
+        return Map.of(
+                // disable certificate validation (but still require a SSL connection)
+                "quarkus.datasource.jdbc.additional-jdbc-properties.sslmode", "require",
+                "quarkus.amqp.devservices.enabled", "false",
+                // the request log would dominate the output
+                "quarkus.log.category.\"io.hyperfoil\".level", "INFO");
+    }
+
+    @Override
+    public boolean disableGlobalTestResources() {
+        return true;
+    }
+
+    @Override
+    public List<TestResourceEntry> testResources() {
+        return List.of(new TestResourceEntry(LoadTestResource.class));
+    }
+}
@@ -0,0 +1,112 @@
+package io.hyperfoil.tools.horreum.load;
+
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_DB_PASSWORD;
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_DB_USERNAME;
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_KC_ADMIN_PASSWORD;
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_KC_ADMIN_USERNAME;
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_KC_DB_PASSWORD;
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_KC_DB_USERNAME;
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_KEYCLOAK_NETWORK_ALIAS;
+import static io.hyperfoil.tools.horreum.infra.common.Const.DEFAULT_POSTGRES_NETWORK_ALIAS;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_KEYCLOAK_ADMIN_PASSWORD;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_KEYCLOAK_ADMIN_USERNAME;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_KEYCLOAK_DB_PASSWORD;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_KEYCLOAK_DB_USERNAME;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_KEYCLOAK_ENABLED;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_KEYCLOAK_IMAGE;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_KEYCLOAK_NETWORK_ALIAS;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_POSTGRES_ENABLED;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_POSTGRES_IMAGE;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_POSTGRES_NETWORK_ALIAS;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_POSTGRES_SSL_CERTIFICATE;
+import static io.hyperfoil.tools.horreum.infra.common.Const.HORREUM_DEV_POSTGRES_SSL_CERTIFICATE_KEY;
+import static io.hyperfoil.tools.horreum.infra.common.HorreumResources.startContainers;
+import static io.hyperfoil.tools.horreum.infra.common.HorreumResources.stopContainers;
+import static java.lang.System.getProperty;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.hyperfoil.tools.horreum.infra.common.SelfSignedCert;
+import io.quarkus.logging.Log;
+import io.quarkus.test.common.QuarkusTestResourceLifecycleManager;
+import io.smallrye.reactive.messaging.memory.InMemoryConnector;
+
+/**
+ * Starts Postgres and Keycloak with the Horreum dev services and switches all messaging channels to the in-memory
+ * connector. The JDBC URL is kept so that the load test can read the results and statement statistics directly.
+ */
+public class LoadTestResource implements QuarkusTestResourceLifecycleManager {
+    public static final String HORREUM_BOOTSTRAP_PASSWORD = "horreum.secret";
+    private static final String[] CHANNELS = { "run-upload", "dataset-event", "run-recalc", "schema-sync" };
+
+    private static String jdbcUrl;
+
+    @Override
+    public Map<String, String> start() {
+        synchronized (LoadTestResource.class) {
+            Log.info("Starting Horreum load test resources");
+            try {
+                String keycloakImage = getProperty(HORREUM_DEV_KEYCLOAK_IMAGE);
+                String postgresImage = getProperty(HORREUM_DEV_POSTGRES_IMAGE);
+                if (keycloakImage == null || postgresImage == null) {
+                    throw new RuntimeException("Test container images are not defined");
+                }
+                SelfSignedCert postgresSelfSignedCert = new SelfSignedCert("RSA", "SHA256withRSA", "localhost", 123);
+
+                Map<String, String> containerArgs = Map.ofEntries(
+                        Map.entry(HORREUM_DEV_KEYCLOAK_ENABLED, "true"),
+                        Map.entry(HORREUM_DEV_KEYCLOAK_IMAGE, keycloakImage),
+                        Map.entry(HORREUM_DEV_KEYCLOAK_NETWORK_ALIAS, DEFAULT_KEYCLOAK_NETWORK_ALIAS),
+                        Map.entry(HORREUM_DEV_POSTGRES_ENABLED, "true"),
+                        Map.entry(HORREUM_DEV_POSTGRES_IMAGE, postgresImage),
+                        Map.entry(HORREUM_DEV_POSTGRES_NETWORK_ALIAS, DEFAULT_POSTGRES_NETWORK_ALIAS),
+                        Map.entry(HORREUM_DEV_POSTGRES_SSL_CERTIFICATE, postgresSelfSignedCert.getCertString()),
+                        Map.entry(HORREUM_DEV_POSTGRES_SSL_CERTIFICATE_KEY, postgresSelfSignedCert.getKeyString()),
+                        Map.entry(HORREUM_DEV_KEYCLOAK_DB_USERNAME, DEFAULT_KC_DB_USERNAME),
+                        Map.entry(HORREUM_DEV_KEYCLOAK_DB_PASSWORD, DEFAULT_KC_DB_PASSWORD),
+                        Map.entry(HORREUM_DEV_KEYCLOAK_ADMIN_USERNAME, DEFAULT_KC_ADMIN_USERNAME),
+                        Map.entry(HORREUM_DEV_KEYCLOAK_ADMIN_PASSWORD, DEFAULT_KC_ADMIN_PASSWORD),
+                        Map.entry("horreum.bootstrap.password", HORREUM_BOOTSTRAP_PASSWORD));
+                Map<String, String> config = new HashMap<>(startContainers(containerArgs));
+                jdbcUrl = config.get("quarkus.datasource.jdbc.url");
+                for (String channel : CHANNELS) {
+                    config.putAll(InMemoryConnector.switchIncomingChannelsToInMemory(channel + "-in"));
+                    config.putAll(InMemoryConnector.switchOutgoingChannelsToInMemory(channel + "-out"));
+                }
+                return config;
+            } catch (Exception e) {
+                Log.fatal("Could not start Horreum services", e);
+                stopContainers();
+                throw new RuntimeException("Could not start Horreum services", e);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (LoadTestResource.class) {
+            try {
+                Log.info("Stopping Horreum load test resources");
+                stopContainers();
+                jdbcUrl = null;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection as the database owner, which bypasses row level security.
+     */
+    static Connection connection() throws SQLException {
+        if (jdbcUrl == null) {
+            throw new IllegalStateException("Load test resources are not started");
+        }
+        return DriverManager.getConnection(jdbcUrl + (jdbcUrl.contains("?") ? "&" : "?") + "sslmode=require",
+                DEFAULT_DB_USERNAME, DEFAULT_DB_PASSWORD);
+    }
+}
@@ -0,0 +1,116 @@
+package io.hyperfoil.tools.horreum.load;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.HorreumClient;
+import io.hyperfoil.tools.horreum.api.alerting.ChangeDetection;
+import io.hyperfoil.tools.horreum.api.alerting.Variable;
+import io.hyperfoil.tools.horreum.api.data.Access;
+import io.hyperfoil.tools.horreum.api.data.Extractor;
+import io.hyperfoil.tools.horreum.api.data.Label;
+import io.hyperfoil.tools.horreum.api.data.Schema;
+import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.api.data.changeDetection.ChangeDetectionModelType;
+import io.hyperfoil.tools.horreum.api.internal.services.AlertingService;
+
+/**
+ * Creates tests with a schema, one metric label and change detection variable per metric, and generates runs
+ * for them. Every {@link #STEP_PERIOD} runs the metrics move by 50 %, so change detection has something to find.
+ */
+final class SyntheticTests {
+    static final int STEP_PERIOD = 50;
+    static final String OWNER = "dev-team";
+    private static final Instant BASE_TIME = Instant.parse("2025-01-01T00:00:00Z");
+
+    private SyntheticTests() {
+    }
+
+    static Target create(HorreumClient client, int index, int metrics) {
+        String name = "load-test-" + index;
+        Schema schema = new Schema();
+        schema.uri = "urn:load-test:" + index + ":0.1";
+        schema.name = name;
+        schema.owner = OWNER;
+        schema.access = Access.PUBLIC;
+        schema.id = client.schemaService.addSchema(schema);
+
+        addLabel(client, schema, "build", "$.build", false);
+        for (int i = 0; i < metrics; ++i) {
+            addLabel(client, schema, metric(i), "$.metrics." + metric(i), true);
+        }
+
+        Test test = new Test();
+        test.name = name;
+        test.owner = OWNER;
+        test.access = Access.PUBLIC;
+        test.description = "Synthetic test created by the load test";
+        test = client.testService.addTest(test);
+
+        List<Variable> variables = new ArrayList<>();
+        for (int i = 0; i < metrics; ++i) {
+            Variable variable = new Variable();
+            variable.testId = test.id;
+            variable.name = metric(i);
+            variable.order = i;
+            variable.labels = Collections.singletonList(metric(i));
+            ChangeDetection changeDetection = new ChangeDetection();
+            changeDetection.model = ChangeDetectionModelType.names.RELATIVE_DIFFERENCE;
+            changeDetection.config = JsonNodeFactory.instance.objectNode()
+                    .put("window", 1).put("filter", "mean").put("threshold", 0.2).put("minPrevious", 5);
+            variable.changeDetection = Set.of(changeDetection);
+            variables.add(variable);
+        }
+        client.alertingService.updateVariables(test.id, variables);
+
+        AlertingService.ChangeDetectionUpdate update = new AlertingService.ChangeDetectionUpdate();
+        update.fingerprintLabels = Collections.emptyList();
+        update.timelineLabels = Collections.emptyList();
+        client.alertingService.updateChangeDetection(test.id, update);
+        return new Target(test, schema.uri, metrics);
+    }
+
+    private static void addLabel(HorreumClient client, Schema schema, String name, String jsonpath, boolean metrics) {
+        Label label = new Label();
+        label.name = name;
+        label.extractors = List.of(new Extractor(name, jsonpath, false));
+        label.access = Access.PUBLIC;
+        label.owner = OWNER;
+        label.metrics = metrics;
+        label.filtering = !metrics;
+        client.schemaService.addLabel(schema.id, label);
+    }
+
+    private static String metric(int i) {
+        return "m" + i;
+    }
+
+    record Target(Test test, String schemaUri, int metrics) {
+        /**
+         * Runs are one hour apart, in the order of their sequence number; concurrent uploads still arrive
+         * out of order, as they do from CI jobs.
+         */
+        ObjectNode run(int sequence) {
+            Random random = new Random(test.id * 31L + sequence);
+            double level = 1 + (sequence / STEP_PERIOD) % 2 * 0.5;
+            ObjectNode run = JsonNodeFactory.instance.objectNode();
+            run.put("$schema", schemaUri);
+            Instant start = BASE_TIME.plusSeconds(sequence * 3600L);
+            run.put("start", start.toString());
+            run.put("stop", start.plusSeconds(600).toString());
+            run.put("build", sequence);
+            ObjectNode values = run.putObject("metrics");
+            for (int i = 0; i < metrics; ++i) {
+                values.put(metric(i), (1000 + 100 * i) * level * (0.98 + random.nextDouble() * 0.04));
+            }
+            return run;
+        }
+    }
+}